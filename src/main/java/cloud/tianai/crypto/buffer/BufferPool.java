@@ -0,0 +1,43 @@
+package cloud.tianai.crypto.buffer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @Author: 天爱有情
+ * @date 2021/12/27 10:05
+ * @Description buffer池, 加解密流和校验流借用 buffer, close 时归还
+ * <p>
+ * 借出的 buffer 内容不会被清零, 长度可能大于申请的长度
+ */
+public interface BufferPool {
+
+    /**
+     * 借用一个堆内 buffer
+     *
+     * @param minSize 最小长度
+     * @return 长度不小于 minSize 的 byte[]
+     */
+    byte[] acquire(int minSize);
+
+    /**
+     * 归还堆内 buffer, 归还后不能再使用
+     *
+     * @param buffer buffer, 为空时忽略
+     */
+    void release(byte[] buffer);
+
+    /**
+     * 借用一个堆外 buffer
+     *
+     * @param minSize 最小长度
+     * @return position 为0, limit 为 minSize 的 direct ByteBuffer
+     */
+    ByteBuffer acquireDirect(int minSize);
+
+    /**
+     * 归还堆外 buffer, 归还后不能再使用
+     *
+     * @param buffer buffer, 为空时忽略
+     */
+    void releaseDirect(ByteBuffer buffer);
+}
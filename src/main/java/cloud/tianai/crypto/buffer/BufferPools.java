@@ -0,0 +1,57 @@
+package cloud.tianai.crypto.buffer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @Author: 天爱有情
+ * @date 2021/12/27 10:12
+ * @Description 默认的 buffer 池
+ * <p>
+ * 启动参数 -Deasy-crypto.buffer.leakDetection=true 开启泄漏检测, -Deasy-crypto.buffer.pooled=false 关闭池化
+ */
+public class BufferPools {
+
+    public static final String LEAK_DETECTION_PROPERTY = "easy-crypto.buffer.leakDetection";
+    public static final String POOLED_PROPERTY = "easy-crypto.buffer.pooled";
+
+    /** 不做池化, 每次都新建. */
+    public static final BufferPool UNPOOLED = new BufferPool() {
+        @Override
+        public byte[] acquire(int minSize) {
+            return new byte[minSize];
+        }
+
+        @Override
+        public void release(byte[] buffer) {
+        }
+
+        @Override
+        public ByteBuffer acquireDirect(int minSize) {
+            return ByteBuffer.allocateDirect(minSize);
+        }
+
+        @Override
+        public void releaseDirect(ByteBuffer buffer) {
+        }
+    };
+
+    private static volatile BufferPool defaultPool = Boolean.parseBoolean(System.getProperty(POOLED_PROPERTY, "true"))
+            ? new SizeClassBufferPool(Boolean.getBoolean(LEAK_DETECTION_PROPERTY))
+            : UNPOOLED;
+
+    public static BufferPool getDefault() {
+        return defaultPool;
+    }
+
+    /**
+     * 替换默认的 buffer 池, 只影响之后创建的流
+     *
+     * @param bufferPool buffer池
+     */
+    public static void setDefault(BufferPool bufferPool) {
+        if (bufferPool == null) {
+            throw new IllegalArgumentException("bufferPool不能为空");
+        }
+        defaultPool = bufferPool;
+    }
+}
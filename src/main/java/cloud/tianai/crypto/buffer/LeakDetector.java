@@ -0,0 +1,97 @@
+package cloud.tianai.crypto.buffer;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @Author: 天爱有情
+ * @date 2021/12/27 11:02
+ * @Description buffer泄漏检测, 借出时记录调用栈, buffer 未归还就被GC回收时打印警告
+ * <p>
+ * ByteBuffer 的 hashCode 与内容有关, 这里统一按 identityHashCode 索引
+ */
+@Slf4j
+final class LeakDetector {
+
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+    /** identityHashCode -> 借出记录, 访问需要加锁. */
+    private final Map<Integer, List<Record>> records = new HashMap<>();
+    private int outstanding;
+
+    void track(Object buffer) {
+        reportLeaks();
+        Record record = new Record(buffer, queue, new Throwable("buffer acquired here"));
+        synchronized (this) {
+            records.computeIfAbsent(record.hash, k -> new ArrayList<>(1)).add(record);
+            outstanding++;
+        }
+    }
+
+    /**
+     * @return 是否是借出且未归还的 buffer
+     */
+    boolean untrack(Object buffer) {
+        reportLeaks();
+        int hash = System.identityHashCode(buffer);
+        synchronized (this) {
+            List<Record> list = records.get(hash);
+            if (list != null) {
+                for (Iterator<Record> iterator = list.iterator(); iterator.hasNext(); ) {
+                    Record record = iterator.next();
+                    if (record.get() == buffer) {
+                        iterator.remove();
+                        if (list.isEmpty()) {
+                            records.remove(hash);
+                        }
+                        outstanding--;
+                        // 清除后不会再进入 ReferenceQueue
+                        record.clear();
+                        return true;
+                    }
+                }
+            }
+        }
+        log.warn("归还的buffer不是从BufferPool借出的或者已经归还过", new Throwable("buffer released here"));
+        return false;
+    }
+
+    synchronized int outstanding() {
+        reportLeaks();
+        return outstanding;
+    }
+
+    private void reportLeaks() {
+        Record record;
+        while ((record = (Record) queue.poll()) != null) {
+            synchronized (this) {
+                List<Record> list = records.get(record.hash);
+                if (list == null || !list.remove(record)) {
+                    continue;
+                }
+                if (list.isEmpty()) {
+                    records.remove(record.hash);
+                }
+                outstanding--;
+            }
+            log.warn("检测到buffer泄漏, buffer未归还到BufferPool就被GC回收了", record.stack);
+        }
+    }
+
+    private static final class Record extends WeakReference<Object> {
+        private final int hash;
+        private final Throwable stack;
+
+        Record(Object buffer, ReferenceQueue<Object> queue, Throwable stack) {
+            super(buffer, queue);
+            this.hash = System.identityHashCode(buffer);
+            this.stack = stack;
+        }
+    }
+}
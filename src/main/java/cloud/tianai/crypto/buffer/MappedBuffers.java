@@ -0,0 +1,83 @@
+package cloud.tianai.crypto.buffer;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * @Author: 天爱有情
+ * @date 2022/1/2 10:20
+ * @Description 立即释放 MappedByteBuffer 的映射
+ * <p>
+ * JDK 没有公开的 unmap 方法, 映射要等到 GC 时才释放. Windows 下文件存在映射时不能 truncate 或删除,
+ * 所以需要改变文件长度之前先释放映射. JDK 9+ 使用 Unsafe.invokeCleaner, JDK 8 使用 DirectByteBuffer.cleaner().clean().
+ * 释放后不能再访问该 buffer, 否则会导致 JVM 崩溃, 只能用于不会被其他线程访问的局部映射
+ */
+@Slf4j
+public final class MappedBuffers {
+
+    /** (ByteBuffer) -> void, 不支持时为 null. */
+    private static final MethodHandle UNMAPPER = createUnmapper();
+
+    private MappedBuffers() {
+    }
+
+    /**
+     * 是否支持立即释放映射
+     */
+    public static boolean isUnmapSupported() {
+        return UNMAPPER != null;
+    }
+
+    /**
+     * 释放映射, 不支持时什么都不做, 等待 GC 释放
+     *
+     * @param buffer 映射的 buffer, 释放后不能再使用
+     * @return 是否已释放
+     */
+    public static boolean unmap(MappedByteBuffer buffer) {
+        if (UNMAPPER == null || buffer == null) {
+            return false;
+        }
+        try {
+            UNMAPPER.invokeExact((ByteBuffer) buffer);
+            return true;
+        } catch (Throwable e) {
+            log.debug("释放MappedByteBuffer失败: {}", e.toString());
+            return false;
+        }
+    }
+
+    private static MethodHandle createUnmapper() {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            // JDK 9+
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return lookup.unreflect(invokeCleaner).bindTo(theUnsafe.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // JDK 8 没有 invokeCleaner
+        }
+        try {
+            Class<?> directBufferClass = Class.forName("java.nio.DirectByteBuffer");
+            Method cleanerMethod = directBufferClass.getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Method cleanMethod = cleanerMethod.getReturnType().getMethod("clean");
+            cleanMethod.setAccessible(true);
+            MethodHandle cleaner = lookup.unreflect(cleanerMethod).asType(MethodType.methodType(Object.class, ByteBuffer.class));
+            MethodHandle clean = lookup.unreflect(cleanMethod).asType(MethodType.methodType(void.class, Object.class));
+            return MethodHandles.filterReturnValue(cleaner, clean);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.debug("当前JDK不支持立即释放MappedByteBuffer: {}", e.toString());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package cloud.tianai.crypto.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @Author: 天爱有情
+ * @date 2021/12/27 10:20
+ * @Description 按长度分级的 buffer 池
+ * <p>
+ * 长度按2的幂分级(512B ~ maxPooledSize), 申请时向上取整到所在级别; 超过 maxPooledSize 的直接新建, 归还时丢弃.
+ * 每个线程有一个小的本地缓存, 本地缓存满了再放入全局共享的队列, 共享队列也满了就直接丢弃交给GC回收.
+ * 开启泄漏检测后会记录每个 buffer 借出时的调用栈, buffer 未归还就被GC回收时打印警告.
+ * 归还时会清零, 重复归还(当前线程缓存或共享队列中已存在)时直接忽略
+ */
+public class SizeClassBufferPool implements BufferPool {
+
+    public static final int MIN_SIZE_SHIFT = 9;
+    public static final int DEFAULT_MAX_POOLED_SIZE = 4 * 1024 * 1024;
+    /** 每个线程每个级别缓存的数量. */
+    public static final int DEFAULT_THREAD_CACHE_SIZE = 4;
+    /** 共享队列每个级别缓存的数量. */
+    public static final int DEFAULT_SHARED_CACHE_SIZE = 32;
+    /** 清零 direct buffer 时使用. */
+    private static final byte[] ZEROS = new byte[8192];
+
+    private final int maxPooledSize;
+    private final int threadCacheSize;
+    private final List<SizeClass<byte[]>> heapClasses;
+    private final List<SizeClass<ByteBuffer>> directClasses;
+    private final ThreadLocal<ThreadCache> threadCache;
+    /** 为空时不检测泄漏. */
+    private final LeakDetector leakDetector;
+
+    public SizeClassBufferPool() {
+        this(false);
+    }
+
+    public SizeClassBufferPool(boolean leakDetection) {
+        this(DEFAULT_MAX_POOLED_SIZE, DEFAULT_THREAD_CACHE_SIZE, DEFAULT_SHARED_CACHE_SIZE, leakDetection);
+    }
+
+    /**
+     * @param maxPooledSize   池化的最大长度, 会向上取整为2的幂
+     * @param threadCacheSize 每个线程每个级别缓存的数量, 0为不使用线程缓存
+     * @param sharedCacheSize 共享队列每个级别缓存的数量
+     * @param leakDetection   是否开启泄漏检测, 有一定性能损耗, 建议只在调试时开启
+     */
+    public SizeClassBufferPool(int maxPooledSize, int threadCacheSize, int sharedCacheSize, boolean leakDetection) {
+        if (maxPooledSize < (1 << MIN_SIZE_SHIFT) || maxPooledSize > (1 << 30)) {
+            throw new IllegalArgumentException("maxPooledSize超出范围: " + maxPooledSize);
+        }
+        int classCount = sizeClass(maxPooledSize) + 1;
+        this.maxPooledSize = classSize(classCount - 1);
+        this.threadCacheSize = threadCacheSize;
+        this.heapClasses = new ArrayList<>(classCount);
+        this.directClasses = new ArrayList<>(classCount);
+        for (int i = 0; i < classCount; i++) {
+            heapClasses.add(new SizeClass<>(sharedCacheSize));
+            directClasses.add(new SizeClass<>(sharedCacheSize));
+        }
+        this.threadCache = ThreadLocal.withInitial(() -> new ThreadCache(classCount));
+        this.leakDetector = leakDetection ? new LeakDetector() : null;
+    }
+
+    @Override
+    public byte[] acquire(int minSize) {
+        byte[] buffer;
+        if (minSize > maxPooledSize) {
+            buffer = new byte[minSize];
+        } else {
+            int index = sizeClass(minSize);
+            buffer = threadCacheSize > 0 ? threadCache.get().heap(index).poll() : null;
+            if (buffer == null) {
+                buffer = heapClasses.get(index).poll();
+            }
+            if (buffer == null) {
+                buffer = new byte[classSize(index)];
+            }
+        }
+        track(buffer);
+        return buffer;
+    }
+
+    @Override
+    public void release(byte[] buffer) {
+        if (buffer == null || !untrack(buffer)) {
+            return;
+        }
+        int length = buffer.length;
+        if (length > maxPooledSize || Integer.bitCount(length) != 1 || length < (1 << MIN_SIZE_SHIFT)) {
+            // 不是池中分配的长度, 丢弃
+            return;
+        }
+        int index = sizeClass(length);
+        ArrayDeque<byte[]> cache = threadCacheSize > 0 ? threadCache.get().heap(index) : null;
+        SizeClass<byte[]> sizeClass = heapClasses.get(index);
+        if (containsSame(cache, buffer) || containsSame(sizeClass.queue, buffer)) {
+            // 重复归还, 已经在池中的 buffer 可能已被再次借出, 不能清零
+            return;
+        }
+        // 清除明文、秘钥等数据, 避免泄露给下一个使用者
+        Arrays.fill(buffer, (byte) 0);
+        if (cache != null && cache.size() < threadCacheSize) {
+            cache.push(buffer);
+            return;
+        }
+        sizeClass.offer(buffer);
+    }
+
+    @Override
+    public ByteBuffer acquireDirect(int minSize) {
+        ByteBuffer buffer;
+        if (minSize > maxPooledSize) {
+            buffer = ByteBuffer.allocateDirect(minSize);
+        } else {
+            int index = sizeClass(minSize);
+            buffer = threadCacheSize > 0 ? threadCache.get().direct(index).poll() : null;
+            if (buffer == null) {
+                buffer = directClasses.get(index).poll();
+            }
+            if (buffer == null) {
+                buffer = ByteBuffer.allocateDirect(classSize(index));
+            }
+        }
+        buffer.clear().limit(minSize);
+        track(buffer);
+        return buffer;
+    }
+
+    @Override
+    public void releaseDirect(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || !untrack(buffer)) {
+            return;
+        }
+        int capacity = buffer.capacity();
+        if (capacity > maxPooledSize || Integer.bitCount(capacity) != 1 || capacity < (1 << MIN_SIZE_SHIFT)) {
+            return;
+        }
+        int index = sizeClass(capacity);
+        ArrayDeque<ByteBuffer> cache = threadCacheSize > 0 ? threadCache.get().direct(index) : null;
+        SizeClass<ByteBuffer> sizeClass = directClasses.get(index);
+        if (containsSame(cache, buffer) || containsSame(sizeClass.queue, buffer)) {
+            return;
+        }
+        zero(buffer);
+        if (cache != null && cache.size() < threadCacheSize) {
+            cache.push(buffer);
+            return;
+        }
+        sizeClass.offer(buffer);
+    }
+
+    /**
+     * 已借出未归还的 buffer 数量, 只有开启泄漏检测时有效
+     *
+     * @return 未开启泄漏检测时返回 -1
+     */
+    public int getOutstandingCount() {
+        return leakDetector == null ? -1 : leakDetector.outstanding();
+    }
+
+    public boolean isLeakDetection() {
+        return leakDetector != null;
+    }
+
+    private void track(Object buffer) {
+        if (leakDetector != null) {
+            leakDetector.track(buffer);
+        }
+    }
+
+    /**
+     * @return 是否可以放回池中, 重复归还时返回false
+     */
+    private boolean untrack(Object buffer) {
+        return leakDetector == null || leakDetector.untrack(buffer);
+    }
+
+    /**
+     * 按引用判断是否已经在缓存中, ByteBuffer 的 equals 比较的是内容, 不能用 contains.
+     * 线程缓存和共享队列的数量都很小, 直接遍历
+     */
+    private static boolean containsSame(Iterable<?> cached, Object buffer) {
+        if (cached == null) {
+            return false;
+        }
+        for (Object item : cached) {
+            if (item == buffer) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void zero(ByteBuffer buffer) {
+        buffer.clear();
+        while (buffer.remaining() >= ZEROS.length) {
+            buffer.put(ZEROS);
+        }
+        buffer.put(ZEROS, 0, buffer.remaining());
+        buffer.clear();
+    }
+
+    /**
+     * 长度所在的级别, 向上取整
+     */
+    static int sizeClass(int size) {
+        if (size <= (1 << MIN_SIZE_SHIFT)) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SIZE_SHIFT;
+    }
+
+    static int classSize(int index) {
+        return 1 << (index + MIN_SIZE_SHIFT);
+    }
+
+    /**
+     * 一个级别的共享队列, 有数量上限.
+     */
+    private static final class SizeClass<T> {
+        private final Queue<T> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+        private final int maxSize;
+
+        SizeClass(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        T poll() {
+            T t = queue.poll();
+            if (t != null) {
+                size.decrementAndGet();
+            }
+            return t;
+        }
+
+        void offer(T t) {
+            if (size.incrementAndGet() > maxSize) {
+                size.decrementAndGet();
+                return;
+            }
+            queue.offer(t);
+        }
+    }
+
+    /**
+     * 线程本地缓存, 按需创建每个级别的队列.
+     */
+    private static final class ThreadCache {
+        private final List<ArrayDeque<byte[]>> heap;
+        private final List<ArrayDeque<ByteBuffer>> direct;
+
+        ThreadCache(int classCount) {
+            this.heap = new ArrayList<>(Collections.nCopies(classCount, null));
+            this.direct = new ArrayList<>(Collections.nCopies(classCount, null));
+        }
+
+        ArrayDeque<byte[]> heap(int index) {
+            ArrayDeque<byte[]> cache = heap.get(index);
+            if (cache == null) {
+                cache = new ArrayDeque<>();
+                heap.set(index, cache);
+            }
+            return cache;
+        }
+
+        ArrayDeque<ByteBuffer> direct(int index) {
+            ArrayDeque<ByteBuffer> cache = direct.get(index);
+            if (cache == null) {
+                cache = new ArrayDeque<>();
+                direct.set(index, cache);
+            }
+            return cache;
+        }
+    }
+}
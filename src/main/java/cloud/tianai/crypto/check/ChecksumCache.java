@@ -0,0 +1,1096 @@
+package cloud.tianai.crypto.check;
+
+import cloud.tianai.crypto.exception.CryptoException;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * @Author: 天爱有情
+ * @date 2021/12/31 16:30
+ * @Description 按文件标识(路径、大小、修改时间、inode)持久化校验结果, 文件没有变化时不需要重新计算
+ * <p>
+ * 数据保存在追加写入的日志文件中: 文件头(magic|版本|generation) + 记录(长度|内容|CRC32), 崩溃时最后一条不完整的记录会被 CRC32 识别并丢弃.
+ * 同一路径和算法的新记录覆盖旧记录, 旧记录过多时自动压缩(顺序读取日志, 只保留最新的记录, 写入临时文件后原子替换, generation 加1),
+ * 压缩不会丢弃任何一个路径和算法的最新记录.
+ * <p>
+ * 索引保存在旁边的 .idx 文件中, 通过 mmap 映射: 4KB 文件头 + 开放寻址(线性探测)的散列表, 每个槽位16字节(路径和算法的64位hash|日志偏移),
+ * 查询时按 hash 定位槽位, 再按偏移读取一条日志记录并比较路径、算法和 CRC32, 是 O(1) 的, 不占用堆内存,
+ * 千万级文件的索引约为 文件数 * 16 / 0.75 字节. 装载率超过0.75时在索引文件结尾分配2倍大小的散列表,
+ * 旧的散列表在写入者下次打开时回收. 索引丢失、损坏或与日志的 generation 不一致时从日志重建.
+ * <p>
+ * 同一时间只能有一个写入者(open, 通过 .lock 文件加排他锁), 可以有多个只读者(openReadOnly). 读路径不加锁:
+ * 写入者先写日志再写槽位, 只读者通过共享的映射直接看到新记录, 散列表扩容、日志压缩和索引替换通过索引文件头发现后重新映射.
+ * 读到写了一半的槽位或者已被替换的日志时, 记录的校验不通过, 按未命中处理, 不会返回错误的结果.
+ * 映射在 GC 时释放, 读路径不加锁, 所以不能主动 unmap.
+ */
+@Slf4j
+public class ChecksumCache implements Closeable {
+
+    private static final int MAGIC = 0x45434331;
+    private static final int VERSION = 2;
+    private static final int HEADER_LENGTH = 16;
+    /** 单条记录的最大长度, 超过时认为数据已损坏. */
+    private static final int MAX_RECORD_LENGTH = 1024 * 1024;
+    /** 旧记录数超过有效记录数且超过该值时压缩. */
+    private static final int COMPACT_THRESHOLD = 1024;
+
+    private static final int INDEX_MAGIC = 0x45434958;
+    private static final int INDEX_VERSION = 1;
+    /** 索引文件头的长度, 散列表按该长度对齐. */
+    private static final int INDEX_HEADER_LENGTH = 4096;
+    private static final int STATE_OFFSET = 8;
+    private static final int LOG_GENERATION_OFFSET = 16;
+    /** 当前散列表的位置和大小, 见 Table.descriptor, 一次写入8字节. */
+    private static final int TABLE_OFFSET = 24;
+    private static final int COUNT_OFFSET = 32;
+    private static final int RECORDS_OFFSET = 40;
+    /** 该位置之前的日志记录都已写入索引. */
+    private static final int INDEXED_POSITION_OFFSET = 48;
+    private static final int STATE_ACTIVE = 0;
+    /** 索引文件已被替换, 只读者需要重新打开. */
+    private static final int STATE_REPLACED = 1;
+    private static final int SLOT_LENGTH = 16;
+    private static final int MIN_CAPACITY_SHIFT = 12;
+    private static final int MAX_CAPACITY_SHIFT = 40;
+    /** 每个映射段 2^26 个槽位, 即1GB. */
+    private static final int SEGMENT_SHIFT = 26;
+    /** 从日志重建索引时估计的平均记录长度. */
+    private static final int ESTIMATED_RECORD_LENGTH = 128;
+    /** 查询时一次读取的长度, 大部分记录一次读完. */
+    private static final int READ_AHEAD = 512;
+    /** 只读者重新打开失败后的重试间隔. */
+    private static final long RELOAD_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final Path file;
+    private final Path indexFile;
+    private final boolean readOnly;
+    private final Object reloadLock = new Object();
+    /** 查询使用的快照, 读路径不加锁. */
+    private volatile View view;
+    private volatile long nextReloadNanos;
+    private volatile boolean closed;
+    private FileChannel lockChannel;
+    private FileLock lock;
+    /** 以下只有写入者使用, 通过 synchronized 访问. */
+    private FileChannel indexChannel;
+    /** 有效数据的结尾. */
+    private long position;
+    /** 散列表中的记录数. */
+    private long count;
+    /** 日志中的记录数, 包含被覆盖的旧记录. */
+    private long records;
+
+    private ChecksumCache(Path file, boolean readOnly) {
+        this.file = file;
+        this.indexFile = file.resolveSibling(file.getFileName() + ".idx");
+        this.readOnly = readOnly;
+    }
+
+    /**
+     * 以写入者身份打开, 文件不存在时创建
+     *
+     * @param file 缓存文件, 索引保存在同目录的 file.idx 中
+     * @return ChecksumCache
+     */
+    public static ChecksumCache open(Path file) throws IOException {
+        ChecksumCache cache = new ChecksumCache(file, false);
+        try {
+            cache.lock();
+            cache.load();
+        } catch (IOException | RuntimeException e) {
+            cache.close();
+            throw e;
+        }
+        return cache;
+    }
+
+    /**
+     * 以只读者身份打开, 可以与写入者同时使用. 写入者还没有创建时查询都不命中, 创建后自动加载
+     *
+     * @param file 缓存文件
+     * @return ChecksumCache
+     */
+    public static ChecksumCache openReadOnly(Path file) throws IOException {
+        ChecksumCache cache = new ChecksumCache(file, true);
+        cache.view = cache.openView(null);
+        return cache;
+    }
+
+    /**
+     * 查询缓存的校验结果, 文件大小、修改时间或 inode 变化时返回 null. 不加锁, 可以被多个线程同时调用
+     *
+     * @param identity  文件标识
+     * @param algorithm 算法名称, 见 ChecksumService.algorithmName
+     * @return 校验结果
+     */
+    public byte[] get(FileIdentity identity, String algorithm) {
+        checkOpen();
+        View current = currentView();
+        if (current == null) {
+            return null;
+        }
+        try {
+            Record record = current.find(identity.pathBytes, algorithm.getBytes(StandardCharsets.UTF_8), identity);
+            return record == null ? null : record.value();
+        } catch (IOException e) {
+            // 日志已被压缩替换并关闭, 或者读取的线程被中断, 按未命中处理
+            log.debug("读取校验缓存 {} 失败: {}", file, e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * 写入校验结果
+     *
+     * @param identity  文件标识
+     * @param algorithm 算法名称
+     * @param value     校验结果
+     */
+    public synchronized void put(FileIdentity identity, String algorithm, byte[] value) throws IOException {
+        checkWritable();
+        View current = currentView();
+        byte[] algorithmBytes = algorithm.getBytes(StandardCharsets.UTF_8);
+        Record old = current.find(identity.pathBytes, algorithmBytes, identity);
+        if (old != null && Arrays.equals(old.value(), value)) {
+            return;
+        }
+        long offset = position;
+        position = writeFully(current.log, frame(encode(identity, algorithmBytes, value)), offset);
+        indexRecord(hash(identity.pathBytes, 0, identity.pathBytes.length, algorithmBytes, 0, algorithmBytes.length), offset);
+        updateCounters();
+        if (records - count > Math.max(COMPACT_THRESHOLD, count)) {
+            compact();
+        }
+    }
+
+    /**
+     * 只读者立即检查写入者是否扩容、压缩或替换了索引并重新加载. 新追加的记录不需要 refresh 就能查询到
+     */
+    public void refresh() throws IOException {
+        checkOpen();
+        if (!readOnly) {
+            return;
+        }
+        synchronized (reloadLock) {
+            View current = view;
+            if (current == null || !current.isUsable()) {
+                reload(current);
+            }
+        }
+    }
+
+    /**
+     * 只保留每个路径和算法的最新记录, 重写日志文件
+     */
+    public synchronized void compact() throws IOException {
+        checkWritable();
+        View current = view;
+        Table table = current.table;
+        Table compacted = appendTable(shiftFor(count));
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        long newGeneration = current.logGeneration + 1;
+        long[] written = new long[2];
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            written[0] = writeHeader(out, newGeneration);
+            // 顺序读取日志, 只复制散列表中指向的记录
+            scan(current.log, HEADER_LENGTH, position, (offset, payload) -> {
+                long hash = new Record(payload).keyHash();
+                if (table.lookup(hash) == offset) {
+                    insert(compacted, hash, written[0]);
+                    written[0] = writeFully(out, frame(payload), written[0]);
+                    written[1]++;
+                }
+            });
+            out.force(true);
+        }
+        move(tmp, file);
+        FileChannel newLog = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        position = written[0];
+        count = written[1];
+        records = written[1];
+        updateCounters();
+        publish(newLog, newGeneration, current.header, compacted);
+        current.log.close();
+    }
+
+    /**
+     * 把已写入的记录和索引刷到磁盘
+     */
+    public synchronized void flush() throws IOException {
+        checkWritable();
+        View current = view;
+        current.log.force(false);
+        current.table.force();
+        current.header.force();
+    }
+
+    /**
+     * @return 路径和算法不同的记录数, 包含文件已变化的记录
+     */
+    public long size() {
+        checkOpen();
+        View current = currentView();
+        return current == null ? 0 : current.header.getLong(COUNT_OFFSET);
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        synchronized (reloadLock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            View current = view;
+            try {
+                if (current != null) {
+                    if (!readOnly) {
+                        current.log.force(false);
+                        current.table.force();
+                        current.header.force();
+                    }
+                    current.log.close();
+                }
+                if (indexChannel != null) {
+                    indexChannel.close();
+                }
+            } finally {
+                if (lock != null) {
+                    lock.release();
+                }
+                if (lockChannel != null) {
+                    lockChannel.close();
+                }
+            }
+        }
+    }
+
+    private void lock() throws IOException {
+        lockChannel = FileChannel.open(file.resolveSibling(file.getFileName() + ".lock"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            lock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+        if (lock == null) {
+            throw new CryptoException("校验缓存 " + file + " 已经有写入者");
+        }
+    }
+
+    /**
+     * 写入者打开日志和索引, 索引不可用时从日志重建, 然后补上索引之后追加的记录, 丢弃结尾不完整的记录
+     */
+    private void load() throws IOException {
+        FileChannel logChannel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long logSize = logChannel.size();
+            long logGeneration;
+            if (logSize < HEADER_LENGTH) {
+                logGeneration = ThreadLocalRandom.current().nextLong();
+                logChannel.truncate(0);
+                logSize = writeHeader(logChannel, logGeneration);
+            } else {
+                logGeneration = readLogGeneration(logChannel);
+            }
+            indexChannel = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            MappedByteBuffer header = null;
+            if (indexChannel.size() >= INDEX_HEADER_LENGTH) {
+                header = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, INDEX_HEADER_LENGTH);
+                if (header.getInt(0) != INDEX_MAGIC || header.getInt(4) != INDEX_VERSION) {
+                    log.warn("校验缓存索引 {} 已损坏, 从日志重建", indexFile);
+                    header = null;
+                }
+            }
+            if (header == null) {
+                header = replaceIndex(null, null);
+            }
+            // 上次替换索引时崩溃
+            header.putInt(STATE_OFFSET, STATE_ACTIVE);
+            long descriptor = header.getLong(TABLE_OFFSET);
+            long indexed = header.getLong(INDEXED_POSITION_OFFSET);
+            Table table;
+            if (header.getLong(LOG_GENERATION_OFFSET) == logGeneration && indexed >= HEADER_LENGTH && indexed <= logSize
+                    && Table.isValid(descriptor, indexChannel.size())) {
+                table = Table.map(indexChannel, descriptor, true);
+                if (Table.offsetOf(descriptor) - INDEX_HEADER_LENGTH >= table.length()) {
+                    // 扩容和压缩留下的旧散列表比当前的大, 复制到新文件回收空间
+                    header = reclaimIndex(header, table);
+                    table = Table.map(indexChannel, header.getLong(TABLE_OFFSET), true);
+                }
+                position = indexed;
+                count = header.getLong(COUNT_OFFSET);
+                records = header.getLong(RECORDS_OFFSET);
+            } else {
+                if (descriptor != 0) {
+                    log.warn("校验缓存索引 {} 与日志不一致, 从日志重建", indexFile);
+                }
+                table = appendTable(shiftFor(logSize / ESTIMATED_RECORD_LENGTH));
+                // 先于 generation 和散列表写入, 重建过程中崩溃时下次从头重建
+                header.putLong(INDEXED_POSITION_OFFSET, HEADER_LENGTH);
+                position = HEADER_LENGTH;
+                count = 0;
+                records = 0;
+            }
+            publish(logChannel, logGeneration, header, table);
+            long end = scan(logChannel, position, logSize, (offset, payload) -> indexRecord(new Record(payload).keyHash(), offset));
+            if (end < logSize) {
+                log.warn("校验缓存 {} 结尾有 {} 字节不完整的数据, 已丢弃", file, logSize - end);
+                logChannel.truncate(end);
+            }
+            position = end;
+            updateCounters();
+        } catch (IOException | RuntimeException e) {
+            logChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 写入散列表, 装载率超过0.75时扩容
+     */
+    private void indexRecord(long hash, long offset) throws IOException {
+        records++;
+        Table table = view.table;
+        if (insert(table, hash, offset)) {
+            count++;
+            if (count > table.capacity() / 4 * 3) {
+                Table grown = appendTable(table.shift + 1);
+                for (long slot = 0; slot < table.capacity(); slot++) {
+                    long slotHash = table.hash(slot);
+                    if (slotHash != 0) {
+                        insert(grown, slotHash, table.recordOffset(slot));
+                    }
+                }
+                View current = view;
+                publish(current.log, current.logGeneration, current.header, grown);
+            }
+        }
+    }
+
+    private void updateCounters() {
+        MappedByteBuffer header = view.header;
+        header.putLong(COUNT_OFFSET, count);
+        header.putLong(RECORDS_OFFSET, records);
+        header.putLong(INDEXED_POSITION_OFFSET, position);
+    }
+
+    /**
+     * 先替换本进程的快照, 再写入索引文件头通知只读者
+     */
+    private void publish(FileChannel logChannel, long logGeneration, MappedByteBuffer header, Table table) {
+        view = new View(logChannel, logGeneration, header, table);
+        header.putLong(LOG_GENERATION_OFFSET, logGeneration);
+        header.putLong(TABLE_OFFSET, table.descriptor());
+    }
+
+    /**
+     * 在索引文件结尾分配新的散列表, 新分配的区域全部为0
+     */
+    private Table appendTable(int shift) throws IOException {
+        long offset = (indexChannel.size() + INDEX_HEADER_LENGTH - 1) / INDEX_HEADER_LENGTH * INDEX_HEADER_LENGTH;
+        return Table.map(indexChannel, Table.descriptor(offset, shift), true);
+    }
+
+    /**
+     * 把当前散列表复制到新的索引文件开头. 只读者的映射阻止替换时(Windows)保留原文件
+     */
+    private MappedByteBuffer reclaimIndex(MappedByteBuffer header, Table table) throws IOException {
+        try {
+            return replaceIndex(header, table);
+        } catch (IOException e) {
+            log.debug("回收校验缓存索引 {} 的空间失败: {}", indexFile, e.toString());
+            return header;
+        }
+    }
+
+    /**
+     * 写入新的索引文件后原子替换, 替换前标记旧文件, 只读者发现后重新打开
+     *
+     * @param oldHeader 旧文件头, 旧文件不可用时为 null
+     * @param table     复制的散列表, 为 null 时新文件只有文件头
+     * @return 新文件头的映射
+     */
+    private MappedByteBuffer replaceIndex(MappedByteBuffer oldHeader, Table table) throws IOException {
+        Path tmp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_LENGTH);
+            header.putInt(INDEX_MAGIC).putInt(INDEX_VERSION);
+            if (oldHeader != null && table != null) {
+                header.putLong(LOG_GENERATION_OFFSET, oldHeader.getLong(LOG_GENERATION_OFFSET));
+                header.putLong(TABLE_OFFSET, Table.descriptor(INDEX_HEADER_LENGTH, table.shift));
+                header.putLong(COUNT_OFFSET, oldHeader.getLong(COUNT_OFFSET));
+                header.putLong(RECORDS_OFFSET, oldHeader.getLong(RECORDS_OFFSET));
+                header.putLong(INDEXED_POSITION_OFFSET, oldHeader.getLong(INDEXED_POSITION_OFFSET));
+            }
+            header.clear();
+            long offset = writeFully(out, header, 0);
+            if (table != null) {
+                long source = Table.offsetOf(table.descriptor());
+                long end = source + table.length();
+                out.position(offset);
+                while (source < end) {
+                    source += indexChannel.transferTo(source, end - source, out);
+                }
+            }
+            out.force(true);
+        }
+        if (oldHeader != null) {
+            oldHeader.putInt(STATE_OFFSET, STATE_REPLACED);
+        }
+        try {
+            move(tmp, indexFile);
+        } catch (IOException e) {
+            if (oldHeader != null) {
+                oldHeader.putInt(STATE_OFFSET, STATE_ACTIVE);
+            }
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        indexChannel.close();
+        indexChannel = FileChannel.open(indexFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, INDEX_HEADER_LENGTH);
+    }
+
+    /**
+     * 只读者的快照已过期时重新打开, 失败后 RELOAD_INTERVAL_NANOS 内继续使用旧的快照
+     */
+    private View currentView() {
+        View current = view;
+        if (!readOnly) {
+            return current.log.isOpen() ? current : reopenLog();
+        }
+        if ((current != null && current.isUsable()) || System.nanoTime() - nextReloadNanos < 0) {
+            return current;
+        }
+        synchronized (reloadLock) {
+            current = view;
+            if (closed || (current != null && current.isUsable())) {
+                return current;
+            }
+            try {
+                return reload(current);
+            } catch (IOException | RuntimeException e) {
+                log.debug("重新加载校验缓存 {} 失败: {}", file, e.toString());
+                return current;
+            }
+        }
+    }
+
+    /**
+     * 读取的线程被中断时 FileChannel 会被关闭, 写入者重新打开日志
+     */
+    private synchronized View reopenLog() {
+        View current = view;
+        if (closed || current.log.isOpen()) {
+            return current;
+        }
+        try {
+            FileChannel logChannel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            view = new View(logChannel, current.logGeneration, current.header, current.table);
+        } catch (IOException e) {
+            log.debug("重新打开校验缓存 {} 失败: {}", file, e.toString());
+        }
+        return view;
+    }
+
+    /**
+     * 需要持有 reloadLock
+     */
+    private View reload(View current) throws IOException {
+        View loaded = null;
+        try {
+            loaded = openView(current);
+        } finally {
+            if (loaded == null) {
+                nextReloadNanos = System.nanoTime() + RELOAD_INTERVAL_NANOS;
+            }
+        }
+        if (loaded == null) {
+            return current;
+        }
+        view = loaded;
+        if (current != null && current.log != loaded.log) {
+            current.log.close();
+        }
+        return loaded;
+    }
+
+    /**
+     * 只读者打开索引和日志, 写入者还没有创建、正在替换或者两者的 generation 不一致时返回 null
+     */
+    private View openView(View current) throws IOException {
+        MappedByteBuffer header;
+        Table table;
+        try (FileChannel index = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            long indexSize = index.size();
+            if (indexSize < INDEX_HEADER_LENGTH) {
+                return null;
+            }
+            header = index.map(FileChannel.MapMode.READ_ONLY, 0, INDEX_HEADER_LENGTH);
+            if (header.getInt(0) != INDEX_MAGIC || header.getInt(4) != INDEX_VERSION) {
+                throw new CryptoException("不是校验缓存索引文件或版本不支持: " + indexFile);
+            }
+            long descriptor = header.getLong(TABLE_OFFSET);
+            if (header.getInt(STATE_OFFSET) != STATE_ACTIVE || !Table.isValid(descriptor, indexSize)) {
+                return null;
+            }
+            table = Table.map(index, descriptor, false);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        long logGeneration = header.getLong(LOG_GENERATION_OFFSET);
+        if (current != null && current.logGeneration == logGeneration && current.log.isOpen()) {
+            return new View(current.log, logGeneration, header, table);
+        }
+        FileChannel logChannel;
+        try {
+            logChannel = FileChannel.open(file, StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        try {
+            if (readLogGeneration(logChannel) == logGeneration) {
+                return new View(logChannel, logGeneration, header, table);
+            }
+        } catch (IOException | RuntimeException e) {
+            logChannel.close();
+            throw e;
+        }
+        // 写入者正在压缩
+        logChannel.close();
+        return null;
+    }
+
+    private long readLogGeneration(FileChannel logChannel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        readFully(logChannel, header, 0);
+        header.flip();
+        if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+            throw new CryptoException("不是校验缓存文件或版本不支持: " + file);
+        }
+        return header.getLong();
+    }
+
+    /**
+     * 顺序读取 [from, to) 之间的记录
+     *
+     * @return 最后一条完整记录的结尾
+     */
+    private static long scan(FileChannel channel, long from, long to, RecordConsumer consumer) throws IOException {
+        // 不能关闭, 否则会关闭 channel
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(from)), 64 * 1024));
+        CRC32 crc32 = new CRC32();
+        long offset = from;
+        while (offset + 8 <= to) {
+            int length;
+            byte[] payload;
+            long crc;
+            try {
+                length = in.readInt();
+                if (length <= 0 || length > MAX_RECORD_LENGTH || offset + 8 + length > to) {
+                    break;
+                }
+                payload = new byte[length];
+                in.readFully(payload);
+                crc = in.readInt() & 0xFFFFFFFFL;
+            } catch (EOFException e) {
+                break;
+            }
+            crc32.reset();
+            crc32.update(payload, 0, payload.length);
+            if (crc32.getValue() != crc) {
+                break;
+            }
+            consumer.accept(offset, payload);
+            offset += 8 + length;
+        }
+        return offset;
+    }
+
+    /**
+     * 读取一条记录, 偏移无效或者校验不通过时返回 null
+     */
+    private static Record readRecord(FileChannel channel, long offset) throws IOException {
+        if (offset < HEADER_LENGTH) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(READ_AHEAD);
+        readAvailable(channel, buffer, offset);
+        if (buffer.position() < 4) {
+            return null;
+        }
+        int length = buffer.getInt(0);
+        if (length <= 0 || length > MAX_RECORD_LENGTH) {
+            return null;
+        }
+        if (8 + length > buffer.capacity()) {
+            ByteBuffer larger = ByteBuffer.allocate(8 + length);
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+            readAvailable(channel, buffer, offset);
+        }
+        if (buffer.position() < 8 + length) {
+            return null;
+        }
+        CRC32 crc32 = new CRC32();
+        crc32.update(buffer.array(), 4, length);
+        if ((int) crc32.getValue() != buffer.getInt(4 + length)) {
+            return null;
+        }
+        try {
+            return new Record(Arrays.copyOfRange(buffer.array(), 4, 4 + length));
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 写入槽位, hash 相同时视为同一路径和算法, 覆盖偏移
+     *
+     * @return 是否占用了新的槽位
+     */
+    private static boolean insert(Table table, long hash, long offset) {
+        long mask = table.capacity() - 1;
+        for (long slot = hash & mask; ; slot = (slot + 1) & mask) {
+            long slotHash = table.hash(slot);
+            if (slotHash == 0) {
+                table.set(slot, hash, offset);
+                return true;
+            }
+            if (slotHash == hash) {
+                table.setOffset(slot, offset);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * 装载率不超过0.75的最小容量
+     */
+    private static int shiftFor(long entries) {
+        int shift = MIN_CAPACITY_SHIFT;
+        while (shift < MAX_CAPACITY_SHIFT && (1L << shift) / 4 * 3 < entries) {
+            shift++;
+        }
+        return shift;
+    }
+
+    /**
+     * 路径和算法的64位 hash, 0 表示空槽位, 所以不会返回0
+     */
+    private static long hash(byte[] path, int pathOffset, int pathLength, byte[] algorithm, int algorithmOffset, int algorithmLength) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = pathOffset; i < pathOffset + pathLength; i++) {
+            h = (h ^ (path[i] & 0xFF)) * 0x100000001b3L;
+        }
+        // UTF-8 中不会出现 0xFF, 作为分隔符
+        h = (h ^ 0xFF) * 0x100000001b3L;
+        for (int i = algorithmOffset; i < algorithmOffset + algorithmLength; i++) {
+            h = (h ^ (algorithm[i] & 0xFF)) * 0x100000001b3L;
+        }
+        // FNV-1a 的低位分布不均匀, 散列表按低位定位槽位, 再混合一次(murmur3 fmix64)
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+
+    private static byte[] encode(FileIdentity identity, byte[] algorithm, byte[] value) {
+        byte[] path = identity.pathBytes;
+        if (path.length > 0xFFFF || algorithm.length > 0xFFFF || value.length > 0xFFFF) {
+            throw new IllegalArgumentException("路径、算法名称或校验结果过长");
+        }
+        ByteBuffer payload = ByteBuffer.allocate(2 + path.length + 2 + algorithm.length + 24 + 2 + value.length);
+        payload.putShort((short) path.length).put(path);
+        payload.putShort((short) algorithm.length).put(algorithm);
+        payload.putLong(identity.size).putLong(identity.modifiedNanos).putLong(identity.fileKeyHash);
+        payload.putShort((short) value.length).put(value);
+        return payload.array();
+    }
+
+    /**
+     * 长度|内容|CRC32
+     */
+    private static ByteBuffer frame(byte[] payload) {
+        ByteBuffer record = ByteBuffer.allocate(8 + payload.length);
+        record.putInt(payload.length).put(payload);
+        CRC32 crc32 = new CRC32();
+        crc32.update(payload, 0, payload.length);
+        record.putInt((int) crc32.getValue());
+        record.flip();
+        return record;
+    }
+
+    private static long writeHeader(FileChannel out, long generation) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(MAGIC).putInt(VERSION).putLong(generation).flip();
+        return writeFully(out, header, 0);
+    }
+
+    /**
+     * @return 写入后的偏移
+     */
+    private static long writeFully(FileChannel out, ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            offset += out.write(buffer, offset);
+        }
+        return offset;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    /**
+     * 读到 buffer 写满或文件结尾
+     */
+    private static void readAvailable(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                return;
+            }
+        }
+    }
+
+    private static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("ChecksumCache已关闭");
+        }
+    }
+
+    private void checkWritable() {
+        checkOpen();
+        if (readOnly) {
+            throw new IllegalStateException("只读的ChecksumCache不能写入");
+        }
+    }
+
+    /**
+     * 文件标识, 路径为 toRealPath 的结果, 修改时间精确到文件系统支持的精度
+     */
+    public static final class FileIdentity {
+        private final String path;
+        private final byte[] pathBytes;
+        private final long size;
+        private final long modifiedNanos;
+        /** inode 等文件系统标识的 hash, 不支持时为0. */
+        private final long fileKeyHash;
+
+        private FileIdentity(String path, long size, long modifiedNanos, long fileKeyHash) {
+            this.path = path;
+            this.pathBytes = path.getBytes(StandardCharsets.UTF_8);
+            this.size = size;
+            this.modifiedNanos = modifiedNanos;
+            this.fileKeyHash = fileKeyHash;
+        }
+
+        public static FileIdentity of(Path file) throws IOException {
+            Path realPath = file.toRealPath();
+            BasicFileAttributes attributes = Files.readAttributes(realPath, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            Object fileKey = attributes.fileKey();
+            long fileKeyHash = 0;
+            if (fileKey != null) {
+                // fileKey 的 toString 形如 (dev=803,ino=1234), 使用64位 FNV-1a 降低冲突
+                fileKeyHash = 0xcbf29ce484222325L;
+                for (char c : fileKey.toString().toCharArray()) {
+                    fileKeyHash = (fileKeyHash ^ c) * 0x100000001b3L;
+                }
+            }
+            return new FileIdentity(realPath.toString(), attributes.size(),
+                    attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS), fileKeyHash);
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof FileIdentity)) {
+                return false;
+            }
+            FileIdentity that = (FileIdentity) o;
+            return size == that.size && modifiedNanos == that.modifiedNanos
+                    && fileKeyHash == that.fileKeyHash && path.equals(that.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(path, size, modifiedNanos, fileKeyHash);
+        }
+    }
+
+    private interface RecordConsumer {
+        void accept(long offset, byte[] payload) throws IOException;
+    }
+
+    /**
+     * 日志、索引文件头和当前散列表的快照, 发布后不再修改
+     */
+    private static final class View {
+        final FileChannel log;
+        final long logGeneration;
+        final MappedByteBuffer header;
+        final Table table;
+
+        View(FileChannel log, long logGeneration, MappedByteBuffer header, Table table) {
+            this.log = log;
+            this.logGeneration = logGeneration;
+            this.header = header;
+            this.table = table;
+        }
+
+        /**
+         * 只读者使用, 写入者没有扩容、压缩或替换索引文件, 并且日志没有因为线程中断被关闭
+         */
+        boolean isUsable() {
+            return header.getInt(STATE_OFFSET) == STATE_ACTIVE
+                    && header.getLong(LOG_GENERATION_OFFSET) == logGeneration
+                    && header.getLong(TABLE_OFFSET) == table.descriptor()
+                    && log.isOpen();
+        }
+
+        /**
+         * 线性探测, hash 相同的槽位读取日志记录确认路径和算法; identity 不一致时继续查找,
+         * 崩溃后可能有多个槽位指向同一路径和算法的记录
+         */
+        Record find(byte[] path, byte[] algorithm, FileIdentity identity) throws IOException {
+            long hash = hash(path, 0, path.length, algorithm, 0, algorithm.length);
+            long mask = table.capacity() - 1;
+            long slot = hash & mask;
+            for (long i = 0; i <= mask; i++, slot = (slot + 1) & mask) {
+                long slotHash = table.hash(slot);
+                if (slotHash == 0) {
+                    return null;
+                }
+                if (slotHash == hash) {
+                    Record record = readRecord(log, table.recordOffset(slot));
+                    if (record != null && record.isKey(path, algorithm) && record.matches(identity)) {
+                        return record;
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * 映射到索引文件的散列表, 槽位为 hash(8字节, 0表示空) + 日志偏移(8字节).
+     * 超过1GB时分段映射
+     */
+    private static final class Table {
+        final int shift;
+        final long descriptor;
+        final MappedByteBuffer[] segments;
+
+        private Table(long descriptor, MappedByteBuffer[] segments) {
+            this.shift = (int) (descriptor & 0xFF);
+            this.descriptor = descriptor;
+            this.segments = segments;
+        }
+
+        /**
+         * 偏移按4KB对齐, 与容量的 shift 合并为一个 long, 只读者一次读到一致的值
+         */
+        static long descriptor(long offset, int shift) {
+            return (offset / INDEX_HEADER_LENGTH) << 8 | shift;
+        }
+
+        static long offsetOf(long descriptor) {
+            return (descriptor >>> 8) * INDEX_HEADER_LENGTH;
+        }
+
+        static boolean isValid(long descriptor, long fileSize) {
+            int shift = (int) (descriptor & 0xFF);
+            long offset = offsetOf(descriptor);
+            return shift >= MIN_CAPACITY_SHIFT && shift <= MAX_CAPACITY_SHIFT && offset >= INDEX_HEADER_LENGTH
+                    && offset + ((long) SLOT_LENGTH << shift) <= fileSize;
+        }
+
+        static Table map(FileChannel channel, long descriptor, boolean writable) throws IOException {
+            long offset = offsetOf(descriptor);
+            long capacity = 1L << (descriptor & 0xFF);
+            long segmentLength = Math.min(capacity, 1L << SEGMENT_SHIFT) * SLOT_LENGTH;
+            MappedByteBuffer[] segments = new MappedByteBuffer[(int) (capacity * SLOT_LENGTH / segmentLength)];
+            FileChannel.MapMode mode = writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+            for (int i = 0; i < segments.length; i++) {
+                segments[i] = channel.map(mode, offset + i * segmentLength, segmentLength);
+            }
+            return new Table(descriptor, segments);
+        }
+
+        long descriptor() {
+            return descriptor;
+        }
+
+        long capacity() {
+            return 1L << shift;
+        }
+
+        long length() {
+            return capacity() * SLOT_LENGTH;
+        }
+
+        long hash(long slot) {
+            return segments[(int) (slot >>> SEGMENT_SHIFT)].getLong(position(slot));
+        }
+
+        long recordOffset(long slot) {
+            return segments[(int) (slot >>> SEGMENT_SHIFT)].getLong(position(slot) + 8);
+        }
+
+        /**
+         * 先写偏移再写 hash, 只读者看到 hash 时偏移通常已写入; 没有写入时读到的记录校验不通过
+         */
+        void set(long slot, long hash, long offset) {
+            MappedByteBuffer segment = segments[(int) (slot >>> SEGMENT_SHIFT)];
+            segment.putLong(position(slot) + 8, offset);
+            segment.putLong(position(slot), hash);
+        }
+
+        void setOffset(long slot, long offset) {
+            segments[(int) (slot >>> SEGMENT_SHIFT)].putLong(position(slot) + 8, offset);
+        }
+
+        /**
+         * @return hash 对应的日志偏移, 不存在时为 -1
+         */
+        long lookup(long hash) {
+            long mask = capacity() - 1;
+            long slot = hash & mask;
+            for (long i = 0; i <= mask; i++, slot = (slot + 1) & mask) {
+                long slotHash = hash(slot);
+                if (slotHash == hash) {
+                    return recordOffset(slot);
+                }
+                if (slotHash == 0) {
+                    return -1;
+                }
+            }
+            return -1;
+        }
+
+        void force() {
+            for (MappedByteBuffer segment : segments) {
+                segment.force();
+            }
+        }
+
+        private static int position(long slot) {
+            return (int) (slot & ((1L << SEGMENT_SHIFT) - 1)) * SLOT_LENGTH;
+        }
+    }
+
+    /**
+     * 日志记录的内容: 路径长度|路径|算法长度|算法|大小|修改时间|fileKeyHash|结果长度|结果
+     */
+    private static final class Record {
+        final byte[] payload;
+        final int pathLength;
+        final int algorithmOffset;
+        final int algorithmLength;
+        final long size;
+        final long modifiedNanos;
+        final long fileKeyHash;
+        final int valueOffset;
+        final int valueLength;
+
+        Record(byte[] payload) {
+            ByteBuffer in = ByteBuffer.wrap(payload);
+            this.payload = payload;
+            this.pathLength = in.getShort() & 0xFFFF;
+            in.position(2 + pathLength);
+            this.algorithmLength = in.getShort() & 0xFFFF;
+            this.algorithmOffset = in.position();
+            in.position(algorithmOffset + algorithmLength);
+            this.size = in.getLong();
+            this.modifiedNanos = in.getLong();
+            this.fileKeyHash = in.getLong();
+            this.valueLength = in.getShort() & 0xFFFF;
+            this.valueOffset = in.position();
+            if (valueOffset + valueLength > payload.length) {
+                throw new BufferUnderflowException();
+            }
+        }
+
+        long keyHash() {
+            return hash(payload, 2, pathLength, payload, algorithmOffset, algorithmLength);
+        }
+
+        boolean isKey(byte[] path, byte[] algorithm) {
+            return regionEquals(payload, 2, pathLength, path) && regionEquals(payload, algorithmOffset, algorithmLength, algorithm);
+        }
+
+        boolean matches(FileIdentity identity) {
+            return size == identity.size && modifiedNanos == identity.modifiedNanos && fileKeyHash == identity.fileKeyHash;
+        }
+
+        byte[] value() {
+            return Arrays.copyOfRange(payload, valueOffset, valueOffset + valueLength);
+        }
+
+        private static boolean regionEquals(byte[] bytes, int offset, int length, byte[] other) {
+            if (length != other.length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (bytes[offset + i] != other[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
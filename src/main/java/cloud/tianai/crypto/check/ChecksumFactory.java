@@ -0,0 +1,133 @@
+package cloud.tianai.crypto.check;
+
+import cloud.tianai.crypto.check.impl.DigestChecksum;
+import cloud.tianai.crypto.check.impl.Sm3MessageDigest;
+import cloud.tianai.crypto.cipher.util.CryptoRuntime;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @Author: 天爱有情
+ * @date 2021/12/31 19:10
+ * @Description 创建 MessageDigest 和 DigestChecksum, 减少每次计算的初始化开销
+ * <p>
+ * 每种算法只通过 JCA 查找一次 provider, 得到的实例作为原型, 之后通过 clone 创建(不支持 clone 时退回 getInstance);
+ * SM3 使用纯java的 Sm3MessageDigest; 其他算法找不到时才注册 BouncyCastle 并重试. acquire/release 在线程内复用 DigestChecksum, 适合大量小数据的摘要
+ * <pre>
+ * byte[] md5 = ChecksumFactory.digest("MD5", data, 0, data.length);
+ *
+ * DigestChecksum checksum = ChecksumFactory.acquire("SHA-256");
+ * try {
+ *     ...
+ * } finally {
+ *     ChecksumFactory.release(checksum);
+ * }
+ * </pre>
+ */
+public class ChecksumFactory {
+
+    /** 每个线程每种算法最多缓存的 DigestChecksum 数量. */
+    private static final int MAX_POOLED_PER_ALGORITHM = 4;
+    /** 不支持 clone 的算法. */
+    private static final Set<String> NOT_CLONEABLE = ConcurrentHashMap.newKeySet();
+    private static final Map<String, MessageDigest> PROTOTYPES = new ConcurrentHashMap<>();
+    private static final ThreadLocal<Map<String, ArrayDeque<DigestChecksum>>> POOL = ThreadLocal.withInitial(HashMap::new);
+
+    private ChecksumFactory() {
+    }
+
+    /**
+     * 创建 MessageDigest, 优先从原型 clone
+     *
+     * @param algorithm 算法
+     * @return 新的 MessageDigest
+     */
+    public static MessageDigest newMessageDigest(String algorithm) throws NoSuchAlgorithmException {
+        String key = algorithm.toUpperCase(Locale.ROOT);
+        MessageDigest prototype = PROTOTYPES.get(key);
+        if (prototype != null) {
+            try {
+                return (MessageDigest) prototype.clone();
+            } catch (CloneNotSupportedException e) {
+                // 原型 clone 成功过, 不会走到这里
+            }
+        }
+        MessageDigest created = getInstance(algorithm);
+        if (prototype == null && !NOT_CLONEABLE.contains(key)) {
+            try {
+                PROTOTYPES.putIfAbsent(key, (MessageDigest) created.clone());
+            } catch (CloneNotSupportedException e) {
+                NOT_CLONEABLE.add(key);
+            }
+        }
+        return created;
+    }
+
+    private static MessageDigest getInstance(String algorithm) throws NoSuchAlgorithmException {
+        if ("SM3".equalsIgnoreCase(algorithm)) {
+            // 纯java优化实现, 比 BouncyCastle 的 SM3Digest 快, 也不需要注册 provider
+            return new Sm3MessageDigest();
+        }
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            // SM3 等算法需要 BouncyCastle, 只在找不到时注册
+            CryptoRuntime.enableBouncyCastle();
+            return MessageDigest.getInstance(algorithm);
+        }
+    }
+
+    /**
+     * 从当前线程的缓存中获取 DigestChecksum, 没有时新建, 使用完调用 release 归还
+     *
+     * @param algorithm 算法
+     * @return 初始状态的 DigestChecksum
+     */
+    public static DigestChecksum acquire(String algorithm) {
+        ArrayDeque<DigestChecksum> deque = POOL.get().get(algorithm.toUpperCase(Locale.ROOT));
+        DigestChecksum checksum = deque == null ? null : deque.pollFirst();
+        return checksum != null ? checksum : new DigestChecksum(algorithm);
+    }
+
+    /**
+     * 归还 DigestChecksum, 归还后不能再使用
+     *
+     * @param checksum acquire 获取的 DigestChecksum
+     */
+    public static void release(DigestChecksum checksum) {
+        if (checksum == null || checksum.isResumable()) {
+            return;
+        }
+        checksum.reset();
+        ArrayDeque<DigestChecksum> deque = POOL.get().computeIfAbsent(checksum.getAlgorithm().toUpperCase(Locale.ROOT), k -> new ArrayDeque<>());
+        if (deque.size() < MAX_POOLED_PER_ALGORITHM) {
+            deque.addFirst(checksum);
+        }
+    }
+
+    /**
+     * 使用线程内缓存的 DigestChecksum 计算摘要
+     *
+     * @param algorithm 算法
+     * @param data      数据
+     * @param off       偏移量
+     * @param len       长度
+     * @return 摘要
+     */
+    public static byte[] digest(String algorithm, byte[] data, int off, int len) {
+        DigestChecksum checksum = acquire(algorithm);
+        try {
+            checksum.update(data, off, len);
+            return checksum.getCheckValue();
+        } finally {
+            release(checksum);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package cloud.tianai.crypto.check;
+
+import cloud.tianai.crypto.check.impl.CRC64Checksum;
+import cloud.tianai.crypto.check.impl.Crc32cChecksum;
+import cloud.tianai.crypto.check.impl.DigestChecksum;
+import cloud.tianai.crypto.check.impl.MultiPartChecksum;
+import cloud.tianai.crypto.check.impl.TreeHashChecksum;
+import cloud.tianai.crypto.check.impl.XxHash64Checksum;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * @Author: 天爱有情
+ * @date 2021/12/31 17:20
+ * @Description 计算文件校验, 先查询 ChecksumCache, 只计算缓存中没有或文件已变化的算法, 多个算法通过 FileChecksums 只映射一次文件
+ * <p>
+ * 计算前后各读取一次文件标识, 计算过程中文件被修改时结果不写入缓存. 只读的缓存只查询不写入
+ * <pre>
+ * try (ChecksumCache cache = ChecksumCache.open(Paths.get("checksum.cache"))) {
+ *     ChecksumService service = new ChecksumService(cache);
+ *     List&lt;Object&gt; values = service.compute(file, new Md5Checksum(), new CRC64Checksum());
+ *     byte[] md5 = (byte[]) values.get(0);
+ *     long crc64 = (Long) values.get(1);
+ * }
+ * </pre>
+ */
+@Slf4j
+public class ChecksumService {
+
+    /** 缓存值的类型标识. */
+    private static final byte TYPE_BYTES = 0;
+    private static final byte TYPE_LONG = 1;
+
+    private final ChecksumCache cache;
+
+    /**
+     * @param cache 缓存, 为空时每次都重新计算
+     */
+    public ChecksumService(ChecksumCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * 计算文件的校验值
+     *
+     * @param file      文件
+     * @param checksums 校验, 会被 reset; 命中缓存时不会被更新
+     * @return 与 checksums 顺序相同的校验值, 类型与 getCheckValue 相同(byte[] 或 Long)
+     */
+    public List<Object> compute(Path file, EnhanceChecksum<?>... checksums) throws IOException {
+        ChecksumCache.FileIdentity identity = ChecksumCache.FileIdentity.of(file);
+        Object[] values = new Object[checksums.length];
+        String[] names = new String[checksums.length];
+        List<EnhanceChecksum<?>> missing = new ArrayList<>(checksums.length);
+        List<Integer> missingIndex = new ArrayList<>(checksums.length);
+        for (int i = 0; i < checksums.length; i++) {
+            names[i] = algorithmName(checksums[i]);
+            byte[] cached = cache == null || names[i] == null ? null : cache.get(identity, names[i]);
+            if (cached != null) {
+                values[i] = decode(cached);
+            }
+            if (values[i] == null) {
+                checksums[i].reset();
+                missing.add(checksums[i]);
+                missingIndex.add(i);
+            }
+        }
+        if (missing.isEmpty()) {
+            return Arrays.asList(values);
+        }
+        MultiPartChecksum multiPartChecksum = new MultiPartChecksum(missing.toArray(new EnhanceChecksum<?>[0]));
+        FileChecksums.update(file, FileChecksums.DEFAULT_WINDOW_SIZE, multiPartChecksum);
+        boolean unchanged = identity.equals(ChecksumCache.FileIdentity.of(file));
+        if (!unchanged) {
+            log.warn("文件 {} 在计算校验时被修改, 结果不写入缓存", file);
+        }
+        for (int i = 0; i < missing.size(); i++) {
+            int index = missingIndex.get(i);
+            Object value = missing.get(i).getCheckValue();
+            values[index] = value;
+            byte[] encoded = encode(value);
+            if (unchanged && cache != null && !cache.isReadOnly() && names[index] != null && encoded != null) {
+                cache.put(identity, names[index], encoded);
+            }
+        }
+        return Arrays.asList(values);
+    }
+
+    /**
+     * 缓存中使用的算法名称, 参数不同的同一种校验名称不同
+     *
+     * @param checksum 校验
+     * @return 名称, 不支持缓存时为 null
+     */
+    public static String algorithmName(EnhanceChecksum<?> checksum) {
+        if (checksum instanceof DigestChecksum) {
+            return ((DigestChecksum) checksum).getAlgorithm().toUpperCase(Locale.ROOT);
+        }
+        if (checksum instanceof CRC64Checksum) {
+            return "CRC64";
+        }
+        if (checksum instanceof Crc32cChecksum) {
+            return "CRC32C";
+        }
+        if (checksum instanceof XxHash64Checksum) {
+            return "XXH64/" + ((XxHash64Checksum) checksum).getSeed();
+        }
+        if (checksum instanceof TreeHashChecksum) {
+            TreeHashChecksum tree = (TreeHashChecksum) checksum;
+            return "TREE/" + tree.getAlgorithm().toUpperCase(Locale.ROOT) + "/" + tree.getLeafSize();
+        }
+        return null;
+    }
+
+    private static byte[] encode(Object value) {
+        if (value instanceof byte[]) {
+            byte[] bytes = (byte[]) value;
+            byte[] encoded = new byte[bytes.length + 1];
+            encoded[0] = TYPE_BYTES;
+            System.arraycopy(bytes, 0, encoded, 1, bytes.length);
+            return encoded;
+        }
+        if (value instanceof Long) {
+            return ByteBuffer.allocate(9).put(TYPE_LONG).putLong((Long) value).array();
+        }
+        return null;
+    }
+
+    private static Object decode(byte[] encoded) {
+        if (encoded.length > 0 && encoded[0] == TYPE_BYTES) {
+            return Arrays.copyOfRange(encoded, 1, encoded.length);
+        }
+        if (encoded.length == 9 && encoded[0] == TYPE_LONG) {
+            return ByteBuffer.wrap(encoded, 1, 8).getLong();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,216 @@
+package cloud.tianai.crypto.check;
+
+import cloud.tianai.crypto.exception.CryptoException;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.zip.CRC32;
+
+/**
+ * @Author: 天爱有情
+ * @date 2021/12/31 13:40
+ * @Description 可持久化的校验状态: 已经校验的字节数 + EnhanceChecksum.saveState() 导出的状态
+ * <p>
+ * 大文件校验中断后, 读取保存的状态, 从 offset 处继续读取文件即可, 不需要重新计算已经处理过的数据.
+ * 状态中可以记录源文件的长度和修改时间(withSource), 恢复时文件已被修改则拒绝恢复.
+ * 序列化格式: magic | offset | 源文件长度 | 源文件修改时间 | 状态长度 | 状态 | CRC32,
+ * save 先写临时文件并刷盘再原子替换, 中途崩溃或断电不会留下不完整的状态
+ * <pre>
+ * EnhanceCheckedInputStream in = EnhanceCheckedInputStream.resume(file, checksum, ChecksumState.load(stateFile));
+ * ...
+ * in.snapshot().save(stateFile);
+ * </pre>
+ */
+@Slf4j
+public class ChecksumState {
+
+    /** 不记录源文件信息的旧格式. */
+    private static final int MAGIC_V1 = 0x45435331;
+    private static final int MAGIC = 0x45435332;
+    /** 未记录源文件信息. */
+    public static final long UNKNOWN = -1;
+
+    private final long offset;
+    private final byte[] state;
+    private final long sourceSize;
+    private final long sourceLastModified;
+
+    public ChecksumState(long offset, byte[] state) {
+        this(offset, state, UNKNOWN, UNKNOWN);
+    }
+
+    /**
+     * @param offset             已经校验的字节数
+     * @param state              EnhanceChecksum.saveState() 导出的状态
+     * @param sourceSize         源文件长度, 未知时为 UNKNOWN
+     * @param sourceLastModified 源文件修改时间(毫秒), 未知时为 UNKNOWN
+     */
+    public ChecksumState(long offset, byte[] state, long sourceSize, long sourceLastModified) {
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset不能小于0: " + offset);
+        }
+        this.offset = offset;
+        this.state = state.clone();
+        this.sourceSize = sourceSize;
+        this.sourceLastModified = sourceLastModified;
+    }
+
+    /**
+     * 导出校验的当前状态
+     *
+     * @param offset   已经校验的字节数
+     * @param checksum 校验
+     * @return ChecksumState
+     */
+    public static ChecksumState of(long offset, EnhanceChecksum<?> checksum) {
+        return new ChecksumState(offset, checksum.saveState());
+    }
+
+    /**
+     * 记录源文件当前的长度和修改时间, 恢复时用于判断文件是否被修改
+     *
+     * @param source 源文件
+     * @return 新的 ChecksumState
+     */
+    public ChecksumState withSource(Path source) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class);
+        return new ChecksumState(offset, state, attributes.size(), attributes.lastModifiedTime().toMillis());
+    }
+
+    /**
+     * 把状态恢复到校验中
+     *
+     * @param checksum 与导出时相同类型和参数的校验
+     */
+    public void restoreTo(EnhanceChecksum<?> checksum) {
+        checksum.restoreState(state.clone());
+    }
+
+    /**
+     * 检查源文件后把状态恢复到校验中
+     *
+     * @param checksum 与导出时相同类型和参数的校验
+     * @param source   源文件
+     * @throws IOException 源文件长度小于 offset, 或者与状态中记录的长度、修改时间不一致
+     */
+    public void restoreTo(EnhanceChecksum<?> checksum, Path source) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class);
+        if (attributes.size() < offset) {
+            throw new IOException("文件长度 " + attributes.size() + " 小于已校验的位置 " + offset + ", 文件可能已被修改");
+        }
+        if ((sourceSize != UNKNOWN && sourceSize != attributes.size())
+                || (sourceLastModified != UNKNOWN && sourceLastModified != attributes.lastModifiedTime().toMillis())) {
+            throw new IOException("文件 " + source + " 在保存校验状态后已被修改, 无法恢复");
+        }
+        restoreTo(checksum);
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public byte[] getState() {
+        return state.clone();
+    }
+
+    public long getSourceSize() {
+        return sourceSize;
+    }
+
+    public long getSourceLastModified() {
+        return sourceLastModified;
+    }
+
+    public byte[] toByteArray() {
+        ByteBuffer buffer = ByteBuffer.allocate(40 + state.length);
+        buffer.putInt(MAGIC).putLong(offset).putLong(sourceSize).putLong(sourceLastModified).putInt(state.length).put(state);
+        CRC32 crc32 = new CRC32();
+        crc32.update(buffer.array(), 0, buffer.position());
+        buffer.putLong(crc32.getValue());
+        return buffer.array();
+    }
+
+    public static ChecksumState fromByteArray(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int magic = bytes.length < 24 ? 0 : buffer.getInt();
+        if (magic != MAGIC && magic != MAGIC_V1) {
+            throw new CryptoException("不是校验状态数据");
+        }
+        int headerLength = magic == MAGIC ? 32 : 16;
+        if (bytes.length < headerLength + 8) {
+            throw new CryptoException("校验状态数据已损坏");
+        }
+        long offset = buffer.getLong();
+        long sourceSize = magic == MAGIC ? buffer.getLong() : UNKNOWN;
+        long sourceLastModified = magic == MAGIC ? buffer.getLong() : UNKNOWN;
+        int length = buffer.getInt();
+        if (length < 0 || length != bytes.length - headerLength - 8) {
+            throw new CryptoException("校验状态数据已损坏");
+        }
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes, 0, headerLength + length);
+        buffer.position(headerLength + length);
+        if (buffer.getLong() != crc32.getValue()) {
+            throw new CryptoException("校验状态数据已损坏");
+        }
+        byte[] state = new byte[length];
+        System.arraycopy(bytes, headerLength, state, 0, length);
+        return new ChecksumState(offset, state, sourceSize, sourceLastModified);
+    }
+
+    /**
+     * 保存到文件, 先写入同目录下的临时文件并刷盘, 再替换并刷新目录.
+     * 不刷盘的话断电后可能出现替换已生效而数据还没写入的情况
+     *
+     * @param file 文件
+     */
+    public void save(Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        try {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        syncDirectory(file.toAbsolutePath().getParent());
+    }
+
+    /**
+     * 刷新目录, 保证替换操作已经落盘; Windows 等不支持打开目录的系统上忽略
+     */
+    private static void syncDirectory(Path directory) {
+        if (directory == null) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            log.debug("刷新目录失败: {}, {}", directory, e.toString());
+        }
+    }
+
+    /**
+     * 从文件读取
+     *
+     * @param file 文件
+     * @return ChecksumState
+     */
+    public static ChecksumState load(Path file) throws IOException {
+        return fromByteArray(Files.readAllBytes(file));
+    }
+}
@@ -0,0 +1,45 @@
+package cloud.tianai.crypto.check;
+
+import cloud.tianai.crypto.check.impl.Sm3MessageDigest;
+
+import java.security.Provider;
+import java.security.Security;
+
+/**
+ * @Author: 天爱有情
+ * @date 2021/12/31 20:20
+ * @Description JCA Provider, 提供纯java优化的 SM3 MessageDigest
+ * <p>
+ * ChecksumFactory 和 Sm3Checksum 直接使用 Sm3MessageDigest, 不需要注册; 其他通过 MessageDigest.getInstance("SM3", "EasyCrypto")
+ * 使用的代码可以调用 install 注册
+ */
+@SuppressWarnings("deprecation")
+public class EasyCryptoProvider extends Provider {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final String PROVIDER_NAME = "EasyCrypto";
+
+    public EasyCryptoProvider() {
+        super(PROVIDER_NAME, 1.0, "easy-crypto provider (SM3 MessageDigest)");
+        put("MessageDigest.SM3", Sm3MessageDigest.class.getName());
+        put("Alg.Alias.MessageDigest.1.2.156.10197.1.401", "SM3");
+        put("Alg.Alias.MessageDigest.OID.1.2.156.10197.1.401", "SM3");
+    }
+
+    /**
+     * 注册到 JCA, 已经注册时忽略
+     *
+     * @param first 是否放在第一位, 为 true 时 MessageDigest.getInstance("SM3") 优先使用
+     */
+    public static synchronized void install(boolean first) {
+        if (Security.getProvider(PROVIDER_NAME) != null) {
+            return;
+        }
+        if (first) {
+            Security.insertProviderAt(new EasyCryptoProvider(), 1);
+        } else {
+            Security.addProvider(new EasyCryptoProvider());
+        }
+    }
+}
@@ -1,5 +1,9 @@
 package cloud.tianai.crypto.check;
 
+import cloud.tianai.crypto.buffer.BufferPool;
+import cloud.tianai.crypto.buffer.BufferPools;
+
+import java.nio.ByteBuffer;
 import java.util.zip.Checksum;
 
 /**
@@ -16,6 +20,66 @@ public interface EnhanceChecksum<R> extends Checksum {
      */
     R getCheckValue();
 
+    /**
+     * 更新 buffer 中 position 到 limit 之间的数据, 完成后 position 等于 limit
+     * <p>
+     * 默认实现: 堆内存直接使用底层数组, 堆外内存(包括 MappedByteBuffer)分段复制到借用的 buffer 中;
+     * 能直接读取 ByteBuffer 的实现应该覆盖这个方法, 省去复制
+     *
+     * @param buffer 数据
+     */
+    default void update(ByteBuffer buffer) {
+        int position = buffer.position();
+        int limit = buffer.limit();
+        if (position >= limit) {
+            return;
+        }
+        if (buffer.hasArray()) {
+            update(buffer.array(), buffer.arrayOffset() + position, limit - position);
+        } else {
+            BufferPool bufferPool = BufferPools.getDefault();
+            byte[] bytes = bufferPool.acquire(Math.min(64 * 1024, limit - position));
+            try {
+                while (buffer.hasRemaining()) {
+                    int len = Math.min(bytes.length, buffer.remaining());
+                    buffer.get(bytes, 0, len);
+                    update(bytes, 0, len);
+                }
+            } finally {
+                bufferPool.release(bytes);
+            }
+        }
+        buffer.position(limit);
+    }
+
+    /**
+     * 是否支持 saveState/restoreState, 需要中断后恢复校验时应该在开始前检查, 而不是等到导出状态时才失败
+     *
+     * @return boolean
+     */
+    default boolean isResumable() {
+        return false;
+    }
+
+    /**
+     * 导出当前的计算状态, 可以持久化后通过 restoreState 继续计算, 用于中断后恢复大文件的校验, 见 ChecksumState
+     *
+     * @return 状态
+     * @throws UnsupportedOperationException 不支持导出状态时(isResumable 为 false)
+     */
+    default byte[] saveState() {
+        throw new UnsupportedOperationException(getClass().getName() + " 不支持导出计算状态");
+    }
+
+    /**
+     * 恢复 saveState 导出的状态, 之前的数据会被丢弃
+     *
+     * @param state 状态
+     * @throws UnsupportedOperationException 不支持恢复状态时
+     */
+    default void restoreState(byte[] state) {
+        throw new UnsupportedOperationException(getClass().getName() + " 不支持恢复计算状态");
+    }
 
     /**
      * 弃用这个方法，建议使用  getCheckValue()
@@ -0,0 +1,112 @@
+package cloud.tianai.crypto.check;
+
+import cloud.tianai.crypto.buffer.BufferPool;
+import cloud.tianai.crypto.buffer.BufferPools;
+import cloud.tianai.crypto.buffer.MappedBuffers;
+import cloud.tianai.crypto.check.impl.MultiPartChecksum;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @Author: 天爱有情
+ * @date 2021/12/31 18:10
+ * @Description 通过内存映射计算文件的校验
+ * <p>
+ * 文件按窗口(默认256M)映射, 每个窗口直接交给 EnhanceChecksum.update(ByteBuffer), 不经过 InputStream 复制到堆内存;
+ * CRC64Checksum、Crc32cChecksum、XxHash64Checksum 直接读取映射的内存, DigestChecksum 使用 MessageDigest.update(ByteBuffer).
+ * 多个校验共用一次映射. 每个窗口计算完立即 unmap, 不等待 GC 释放.
+ * <p>
+ * 小于 {@link #MAP_THRESHOLD} 的文件映射的开销大于复制, 通过 BufferPool 借用的堆外 buffer 读取
+ * <pre>
+ * List&lt;Object&gt; values = FileChecksums.compute(file, new Sha256Checksum(), new CRC64Checksum());
+ * </pre>
+ */
+public class FileChecksums {
+
+    /** 默认映射窗口大小. */
+    public static final int DEFAULT_WINDOW_SIZE = 256 * 1024 * 1024;
+    /** 小于该长度的文件不映射, 直接读取. */
+    public static final int MAP_THRESHOLD = 4 * 1024 * 1024;
+    /** 直接读取时的 buffer 大小. */
+    private static final int READ_BUFFER_SIZE = 256 * 1024;
+
+    private FileChecksums() {
+    }
+
+    /**
+     * 计算文件的校验值
+     *
+     * @param file      文件
+     * @param checksums 校验, 从当前状态继续更新
+     * @return 与 checksums 顺序相同的 getCheckValue 结果
+     */
+    public static List<Object> compute(Path file, EnhanceChecksum<?>... checksums) throws IOException {
+        update(file, DEFAULT_WINDOW_SIZE, checksums);
+        List<Object> values = new ArrayList<>(checksums.length);
+        for (EnhanceChecksum<?> checksum : checksums) {
+            values.add(checksum.getCheckValue());
+        }
+        return values;
+    }
+
+    /**
+     * 把文件的全部数据更新到校验中
+     *
+     * @param file       文件
+     * @param windowSize 每次映射的长度, 直接读取时不使用
+     * @param checksums  校验
+     */
+    public static void update(Path file, int windowSize, EnhanceChecksum<?>... checksums) throws IOException {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("windowSize必须大于0: " + windowSize);
+        }
+        EnhanceChecksum<?> checksum = checksums.length == 1 ? checksums[0] : new MultiPartChecksum(checksums);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < MAP_THRESHOLD) {
+                read(channel, size, checksum);
+                return;
+            }
+            for (long position = 0; position < size; position += windowSize) {
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(windowSize, size - position));
+                try {
+                    checksum.update(window);
+                } finally {
+                    // update 返回后校验不再引用 window
+                    MappedBuffers.unmap(window);
+                }
+            }
+        }
+    }
+
+    private static void read(FileChannel channel, long size, EnhanceChecksum<?> checksum) throws IOException {
+        BufferPool bufferPool = BufferPools.getDefault();
+        ByteBuffer buffer = bufferPool.acquireDirect((int) Math.max(1, Math.min(size, READ_BUFFER_SIZE)));
+        try {
+            // 读到文件结尾, 文件在计算过程中变长时与映射一样只计算开始时的长度
+            long remaining = size;
+            while (remaining > 0) {
+                buffer.clear();
+                if (buffer.remaining() > remaining) {
+                    buffer.limit((int) remaining);
+                }
+                int n = channel.read(buffer);
+                if (n < 0) {
+                    break;
+                }
+                buffer.flip();
+                checksum.update(buffer);
+                remaining -= n;
+            }
+        } finally {
+            bufferPool.releaseDirect(buffer);
+        }
+    }
+}
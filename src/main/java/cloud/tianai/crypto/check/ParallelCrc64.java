@@ -0,0 +1,167 @@
+package cloud.tianai.crypto.check;
+
+import cloud.tianai.crypto.buffer.BufferPool;
+import cloud.tianai.crypto.buffer.BufferPools;
+import cloud.tianai.crypto.check.impl.CRC64Checksum;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * @Author: 天爱有情
+ * @date 2021/12/30 16:50
+ * @Description 并行计算大文件的 CRC64
+ * <p>
+ * 把数据分成多段, 在 ForkJoinPool 中分别计算每一段的 CRC64, 再通过 CRC64Checksum.combine 按顺序合并,
+ * 结果与单线程计算完全相同. 文件通过 FileChannel 按位置读取, 多个线程共用一个 FileChannel
+ * <pre>
+ * long crc64 = ParallelCrc64.checksum(Paths.get("archive.tar"));
+ * </pre>
+ */
+public class ParallelCrc64 {
+
+    /** 默认每一段的长度. */
+    public static final int DEFAULT_SEGMENT_SIZE = 32 * 1024 * 1024;
+    /** 读取文件时每次读取的长度. */
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+
+    private ParallelCrc64() {
+    }
+
+    /**
+     * 使用 ForkJoinPool.commonPool() 计算文件的 CRC64
+     *
+     * @param file 文件
+     * @return CRC64
+     */
+    public static long checksum(Path file) throws IOException {
+        return checksum(file, DEFAULT_SEGMENT_SIZE, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * 计算文件的 CRC64
+     *
+     * @param file        文件
+     * @param segmentSize 每一段的长度
+     * @param pool        线程池
+     * @return CRC64
+     */
+    public static long checksum(Path file, int segmentSize, ForkJoinPool pool) throws IOException {
+        checkSegmentSize(segmentSize);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            try {
+                return pool.invoke(new Segment(segmentSize, (start, end) -> fileSegment(channel, start, end), 0, size));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    /**
+     * 使用 ForkJoinPool.commonPool() 计算 buffer 中 position 到 limit 之间数据的 CRC64, 不改变 buffer 的 position
+     *
+     * @param buffer 数据, 可以是 MappedByteBuffer
+     * @return CRC64
+     */
+    public static long checksum(ByteBuffer buffer) {
+        return checksum(buffer, DEFAULT_SEGMENT_SIZE, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * 计算 buffer 中 position 到 limit 之间数据的 CRC64, 不改变 buffer 的 position
+     *
+     * @param buffer      数据, 可以是 MappedByteBuffer
+     * @param segmentSize 每一段的长度
+     * @param pool        线程池
+     * @return CRC64
+     */
+    public static long checksum(ByteBuffer buffer, int segmentSize, ForkJoinPool pool) {
+        checkSegmentSize(segmentSize);
+        ByteBuffer source = buffer.slice();
+        return pool.invoke(new Segment(segmentSize, (start, end) -> bufferSegment(source, (int) start, (int) end), 0, source.remaining()));
+    }
+
+    private static void checkSegmentSize(int segmentSize) {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("segmentSize必须大于0: " + segmentSize);
+        }
+    }
+
+    private static long fileSegment(FileChannel channel, long start, long end) {
+        BufferPool bufferPool = BufferPools.getDefault();
+        byte[] bytes = bufferPool.acquire((int) Math.min(READ_BUFFER_SIZE, end - start));
+        try {
+            CRC64Checksum crc64 = new CRC64Checksum();
+            long position = start;
+            while (position < end) {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, (int) Math.min(bytes.length, end - position));
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new EOFException("文件在计算过程中被截断, position:" + position);
+                }
+                crc64.update(bytes, 0, read);
+                position += read;
+            }
+            return crc64.getValue();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            bufferPool.release(bytes);
+        }
+    }
+
+    private static long bufferSegment(ByteBuffer source, int start, int end) {
+        // 堆外内存和 MappedByteBuffer 直接按 long 读取, 不复制到数组
+        ByteBuffer view = source.duplicate();
+        view.position(start).limit(end);
+        CRC64Checksum crc64 = new CRC64Checksum();
+        crc64.update(view);
+        return crc64.getValue();
+    }
+
+    @FunctionalInterface
+    private interface SegmentCalculator {
+        long calculate(long start, long end);
+    }
+
+    /**
+     * 二分拆分到不超过 segmentSize 后计算, 左右两半的结果通过 combine 合并
+     */
+    private static final class Segment extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+
+        private final int segmentSize;
+        private final SegmentCalculator calculator;
+        private final long start;
+        private final long end;
+
+        Segment(int segmentSize, SegmentCalculator calculator, long start, long end) {
+            this.segmentSize = segmentSize;
+            this.calculator = calculator;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected Long compute() {
+            long length = end - start;
+            if (length <= segmentSize) {
+                return length == 0 ? 0L : calculator.calculate(start, end);
+            }
+            // 按 segmentSize 对齐拆分, 保证每一段都是完整的
+            long middle = start + (length / segmentSize + 1) / 2 * segmentSize;
+            Segment right = new Segment(segmentSize, calculator, middle, end);
+            right.fork();
+            long left = new Segment(segmentSize, calculator, start, middle).compute();
+            return CRC64Checksum.combine(left, right.join(), end - middle);
+        }
+    }
+}
@@ -2,10 +2,16 @@ package cloud.tianai.crypto.check.impl;
 
 import cloud.tianai.crypto.check.EnhanceChecksum;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 /**
  * @Author: 天爱有情
  * @date 2021/11/26 14:25
  * @Description CRC64 Checksum
+ * <p>
+ * 批量更新使用 slicing-by-16: 每次按小端序读取两个 long, 通过16张预先计算的表一次处理16个字节, 剩余部分先按8字节再逐字节处理,
+ * 结果与逐字节查表完全相同
  */
 public class CRC64Checksum implements EnhanceChecksum<Long> {
 
@@ -14,6 +20,26 @@ public class CRC64Checksum implements EnhanceChecksum<Long> {
     /* CRC64 calculation table. */
     private final static long[] table;
 
+    /* slicing tables, Tk[n] = 字节 n 后面再跟 k 个0字节时的 crc, T0 即 table. */
+    private final static long[] T1 = new long[256];
+    private final static long[] T2 = new long[256];
+    private final static long[] T3 = new long[256];
+    private final static long[] T4 = new long[256];
+    private final static long[] T5 = new long[256];
+    private final static long[] T6 = new long[256];
+    private final static long[] T7 = new long[256];
+    private final static long[] T8 = new long[256];
+    private final static long[] T9 = new long[256];
+    private final static long[] T10 = new long[256];
+    private final static long[] T11 = new long[256];
+    private final static long[] T12 = new long[256];
+    private final static long[] T13 = new long[256];
+    private final static long[] T14 = new long[256];
+    private final static long[] T15 = new long[256];
+
+    /* 长度不足该值时逐字节查表, 省去包装 ByteBuffer 的开销. */
+    private final static int SLICING_THRESHOLD = 16;
+
     /* Current CRC value. */
     private long value;
 
@@ -30,6 +56,13 @@ public class CRC64Checksum implements EnhanceChecksum<Long> {
             }
             table[n] = crc;
         }
+        long[][] slices = {table, T1, T2, T3, T4, T5, T6, T7, T8, T9, T10, T11, T12, T13, T14, T15};
+        for (int k = 1; k < slices.length; k++) {
+            for (int n = 0; n < 256; n++) {
+                long crc = slices[k - 1][n];
+                slices[k][n] = (crc >>> 8) ^ table[(int) crc & 0xff];
+            }
+        }
     }
 
     public CRC64Checksum() {
@@ -73,6 +106,31 @@ public class CRC64Checksum implements EnhanceChecksum<Long> {
         return this.value;
     }
 
+    @Override
+    public boolean isResumable() {
+        return true;
+    }
+
+    /**
+     * 状态就是当前的 CRC64 值, 8字节大端
+     */
+    @Override
+    public byte[] saveState() {
+        return getBytes();
+    }
+
+    @Override
+    public void restoreState(byte[] state) {
+        if (state.length != 8) {
+            throw new IllegalArgumentException("CRC64状态长度必须为8: " + state.length);
+        }
+        long l = 0;
+        for (int i = 0; i < 8; i++) {
+            l = (l << 8) | (state[i] & 0xFF);
+        }
+        this.value = l;
+    }
+
     /**
      * Get long representation of current CRC64 value.
      **/
@@ -85,14 +143,7 @@ public class CRC64Checksum implements EnhanceChecksum<Long> {
      * Update CRC64 with new byte block.
      **/
     public void update(byte[] b, int len) {
-        int idx = 0;
-        this.value = ~this.value;
-        while (len > 0) {
-            this.value = table[((int) (this.value ^ b[idx])) & 0xff] ^ (this.value >>> 8);
-            idx++;
-            len--;
-        }
-        this.value = ~this.value;
+        update(b, 0, len);
     }
 
     /**
@@ -111,9 +162,72 @@ public class CRC64Checksum implements EnhanceChecksum<Long> {
 
     @Override
     public void update(byte[] b, int off, int len) {
-        for (int i = off; len > 0; len--) {
-            update(b[i++]);
+        if (off < 0 || len < 0 || off > b.length - len) {
+            throw new ArrayIndexOutOfBoundsException();
+        }
+        long crc = ~this.value;
+        if (len >= SLICING_THRESHOLD) {
+            crc = update(crc, ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN), off, off + len);
+        } else {
+            for (int end = off + len; off < end; off++) {
+                crc = table[((int) crc ^ b[off]) & 0xff] ^ (crc >>> 8);
+            }
         }
+        this.value = ~crc;
+    }
+
+    /**
+     * 直接按 long 读取 buffer(包括堆外内存和 MappedByteBuffer), 不复制到数组
+     */
+    @Override
+    public void update(ByteBuffer buffer) {
+        int position = buffer.position();
+        int limit = buffer.limit();
+        this.value = ~update(~this.value, buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN), position, limit);
+        buffer.position(limit);
+    }
+
+    /**
+     * slicing-by-16, buffer 必须是小端序, off、end 为绝对位置
+     */
+    private static long update(long crc, ByteBuffer buffer, int off, int end) {
+        int limit = off + ((end - off) & ~15);
+        for (; off < limit; off += 16) {
+            long c = crc ^ buffer.getLong(off);
+            long w = buffer.getLong(off + 8);
+            crc = T15[(int) c & 0xff]
+                    ^ T14[(int) (c >>> 8) & 0xff]
+                    ^ T13[(int) (c >>> 16) & 0xff]
+                    ^ T12[(int) (c >>> 24) & 0xff]
+                    ^ T11[(int) (c >>> 32) & 0xff]
+                    ^ T10[(int) (c >>> 40) & 0xff]
+                    ^ T9[(int) (c >>> 48) & 0xff]
+                    ^ T8[(int) (c >>> 56)]
+                    ^ T7[(int) w & 0xff]
+                    ^ T6[(int) (w >>> 8) & 0xff]
+                    ^ T5[(int) (w >>> 16) & 0xff]
+                    ^ T4[(int) (w >>> 24) & 0xff]
+                    ^ T3[(int) (w >>> 32) & 0xff]
+                    ^ T2[(int) (w >>> 40) & 0xff]
+                    ^ T1[(int) (w >>> 48) & 0xff]
+                    ^ table[(int) (w >>> 56)];
+        }
+        if (end - off >= 8) {
+            crc ^= buffer.getLong(off);
+            crc = T7[(int) crc & 0xff]
+                    ^ T6[(int) (crc >>> 8) & 0xff]
+                    ^ T5[(int) (crc >>> 16) & 0xff]
+                    ^ T4[(int) (crc >>> 24) & 0xff]
+                    ^ T3[(int) (crc >>> 32) & 0xff]
+                    ^ T2[(int) (crc >>> 40) & 0xff]
+                    ^ T1[(int) (crc >>> 48) & 0xff]
+                    ^ table[(int) (crc >>> 56)];
+            off += 8;
+        }
+        for (; off < end; off++) {
+            crc = table[((int) crc ^ buffer.get(off)) & 0xff] ^ (crc >>> 8);
+        }
+        return crc;
     }
 
     @Override
@@ -149,114 +263,58 @@ public class CRC64Checksum implements EnhanceChecksum<Long> {
      * length of the second block.
      */
     static public CRC64Checksum combine(CRC64Checksum summ1, CRC64Checksum summ2, long len2) {
-        // degenerate case.
-        if (len2 == 0)
-            return new CRC64Checksum(summ1.getValue());
-
-        int n;
-        long row;
-        long[] even = new long[GF2_DIM]; // even-power-of-two zeros operator
-        long[] odd = new long[GF2_DIM]; // odd-power-of-two zeros operator
-
-        // put operator for one zero bit in odd
-        odd[0] = POLY; // CRC-64 polynomial
-
-        row = 1;
-        for (n = 1; n < GF2_DIM; n++) {
-            odd[n] = row;
-            row <<= 1;
-        }
-
-        // put operator for two zero bits in even
-        gf2MatrixSquare(even, odd);
-
-        // put operator for four zero bits in odd
-        gf2MatrixSquare(odd, even);
-
-        // apply len2 zeros to crc1 (first square will put the operator for one
-        // zero byte, eight zero bits, in even)
-        long crc1 = summ1.getValue();
-        long crc2 = summ2.getValue();
-        do {
-            // apply zeros operator for this bit of len2
-            gf2MatrixSquare(even, odd);
-            if ((len2 & 1) == 1)
-                crc1 = gf2MatrixTimes(even, crc1);
-            len2 >>>= 1;
-
-            // if no more bits set, then done
-            if (len2 == 0)
-                break;
-
-            // another iteration of the loop with odd and even swapped
-            gf2MatrixSquare(odd, even);
-            if ((len2 & 1) == 1)
-                crc1 = gf2MatrixTimes(odd, crc1);
-            len2 >>>= 1;
-
-            // if no more bits set, then done
-        } while (len2 != 0);
-
-        // return combined crc.
-        crc1 ^= crc2;
-        return new CRC64Checksum(crc1);
+        return new CRC64Checksum(combine(summ1.getValue(), summ2.getValue(), len2));
     }
 
     /*
-     * Return the CRC-64 of two sequential blocks, where summ1 is the CRC-64 of
-     * the first block, summ2 is the CRC-64 of the second block, and len2 is the
+     * Return the CRC-64 of two sequential blocks, where crc1 is the CRC-64 of
+     * the first block, crc2 is the CRC-64 of the second block, and len2 is the
      * length of the second block.
      */
     static public long combine(long crc1, long crc2, long len2) {
         // degenerate case.
         if (len2 == 0)
             return crc1;
-
-        int n;
-        long row;
-        long[] even = new long[GF2_DIM]; // even-power-of-two zeros operator
-        long[] odd = new long[GF2_DIM]; // odd-power-of-two zeros operator
-
-        // put operator for one zero bit in odd
-        odd[0] = POLY; // CRC-64 polynomial
-
-        row = 1;
-        for (n = 1; n < GF2_DIM; n++) {
-            odd[n] = row;
-            row <<= 1;
+        // apply len2 zeros to crc1, one cached operator for each bit of len2
+        long[][] operators = ZeroOperators.OPERATORS;
+        for (int k = 0; len2 != 0; k++, len2 >>>= 1) {
+            if ((len2 & 1) == 1)
+                crc1 = gf2MatrixTimes(operators[k], crc1);
         }
+        // return combined crc.
+        return crc1 ^ crc2;
+    }
 
-        // put operator for two zero bits in even
-        gf2MatrixSquare(even, odd);
-
-        // put operator for four zero bits in odd
-        gf2MatrixSquare(odd, even);
-
-        // apply len2 zeros to crc1 (first square will put the operator for one
-        // zero byte, eight zero bits, in even)
-        do {
-            // apply zeros operator for this bit of len2
+    /**
+     * 预先计算的追加 2^k 个0字节的运算矩阵, combine 时按 len2 的二进制位直接取用, 不需要每次重新平方;
+     * 第一次 combine 时才初始化
+     */
+    private static final class ZeroOperators {
+        /** OPERATORS[k] 为追加 2^k 个0字节的运算矩阵. */
+        static final long[][] OPERATORS = new long[64][];
+
+        static {
+            long[] odd = new long[GF2_DIM]; // odd-power-of-two zeros operator
+            long[] even = new long[GF2_DIM]; // even-power-of-two zeros operator
+            // put operator for one zero bit in odd
+            odd[0] = POLY; // CRC-64 polynomial
+            long row = 1;
+            for (int n = 1; n < GF2_DIM; n++) {
+                odd[n] = row;
+                row <<= 1;
+            }
+            // put operator for two zero bits in even
             gf2MatrixSquare(even, odd);
-            if ((len2 & 1) == 1)
-                crc1 = gf2MatrixTimes(even, crc1);
-            len2 >>>= 1;
-
-            // if no more bits set, then done
-            if (len2 == 0)
-                break;
-
-            // another iteration of the loop with odd and even swapped
+            // put operator for four zero bits in odd
             gf2MatrixSquare(odd, even);
-            if ((len2 & 1) == 1)
-                crc1 = gf2MatrixTimes(odd, crc1);
-            len2 >>>= 1;
-
-            // if no more bits set, then done
-        } while (len2 != 0);
-
-        // return combined crc.
-        crc1 ^= crc2;
-        return crc1;
+            // one zero byte, eight zero bits
+            OPERATORS[0] = new long[GF2_DIM];
+            gf2MatrixSquare(OPERATORS[0], odd);
+            for (int k = 1; k < OPERATORS.length; k++) {
+                OPERATORS[k] = new long[GF2_DIM];
+                gf2MatrixSquare(OPERATORS[k], OPERATORS[k - 1]);
+            }
+        }
     }
 
 }
\ No newline at end of file
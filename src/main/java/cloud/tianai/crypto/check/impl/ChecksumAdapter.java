@@ -17,6 +17,19 @@ public class ChecksumAdapter implements EnhanceChecksum<Long> {
         this.checksum = checksum;
     }
 
+    /**
+     * 已经是 EnhanceChecksum 时直接返回, 否则包装成 ChecksumAdapter
+     *
+     * @param checksum checksum, 可以为空
+     * @return EnhanceChecksum
+     */
+    public static EnhanceChecksum<?> adapt(Checksum checksum) {
+        if (checksum == null || checksum instanceof EnhanceChecksum) {
+            return (EnhanceChecksum<?>) checksum;
+        }
+        return new ChecksumAdapter(checksum);
+    }
+
     @Override
     public long getValue() {
         return checksum.getValue();
@@ -0,0 +1,294 @@
+package cloud.tianai.crypto.check.impl;
+
+import cloud.tianai.crypto.check.EnhanceChecksum;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.Checksum;
+
+/**
+ * @Author: 天爱有情
+ * @date 2021/12/31 15:10
+ * @Description CRC32C(Castagnoli) 校验
+ * <p>
+ * java9+ 使用 java.util.zip.CRC32C(有 SSE4.2/ARMv8 指令优化), 项目按 java8 编译, 通过反射创建;
+ * java8 使用纯java的 slicing-by-8 实现. 两种实现结果相同, 都支持 combine 合并两段数据的 CRC32C.
+ * <p>
+ * JDK 的 CRC32C 无法设置初始值, restoreState 之后改用纯java实现继续计算, reset 后恢复使用 JDK 实现
+ */
+public class Crc32cChecksum implements EnhanceChecksum<Long> {
+
+    private final static int POLY = 0x82F63B78; // 反射后的 Castagnoli 多项式
+    private final static int SLICING_THRESHOLD = 16;
+
+    private final static int[] T0 = new int[256];
+    private final static int[] T1 = new int[256];
+    private final static int[] T2 = new int[256];
+    private final static int[] T3 = new int[256];
+    private final static int[] T4 = new int[256];
+    private final static int[] T5 = new int[256];
+    private final static int[] T6 = new int[256];
+    private final static int[] T7 = new int[256];
+
+    /** java.util.zip.CRC32C 的构造方法和 update(ByteBuffer), java8 时为 null. */
+    private final static MethodHandle JDK_CONSTRUCTOR;
+    private final static MethodHandle JDK_UPDATE_BUFFER;
+
+    static {
+        for (int n = 0; n < 256; n++) {
+            int crc = n;
+            for (int k = 0; k < 8; k++) {
+                crc = (crc & 1) == 1 ? (crc >>> 1) ^ POLY : crc >>> 1;
+            }
+            T0[n] = crc;
+        }
+        int[][] slices = {T0, T1, T2, T3, T4, T5, T6, T7};
+        for (int k = 1; k < slices.length; k++) {
+            for (int n = 0; n < 256; n++) {
+                int crc = slices[k - 1][n];
+                slices[k][n] = (crc >>> 8) ^ T0[crc & 0xff];
+            }
+        }
+        MethodHandle constructor = null;
+        MethodHandle updateBuffer = null;
+        try {
+            Class<?> type = Class.forName("java.util.zip.CRC32C");
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            constructor = lookup.findConstructor(type, MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(Checksum.class));
+            updateBuffer = lookup.findVirtual(type, "update", MethodType.methodType(void.class, ByteBuffer.class))
+                    .asType(MethodType.methodType(void.class, Checksum.class, ByteBuffer.class));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // java8, 使用纯java实现
+        }
+        JDK_CONSTRUCTOR = constructor;
+        JDK_UPDATE_BUFFER = updateBuffer;
+    }
+
+    private final boolean preferJdk;
+    /** JDK 实现, 为 null 时使用 crc. */
+    private Checksum jdk;
+    /** 纯java实现的内部值, 即 ~CRC32C. */
+    private int crc = ~0;
+
+    public Crc32cChecksum() {
+        this(true);
+    }
+
+    /**
+     * @param preferJdk 是否优先使用 java.util.zip.CRC32C
+     */
+    public Crc32cChecksum(boolean preferJdk) {
+        this.preferJdk = preferJdk;
+        this.jdk = preferJdk ? newJdkChecksum() : null;
+    }
+
+    /**
+     * 当前运行环境是否有 java.util.zip.CRC32C
+     *
+     * @return boolean
+     */
+    public static boolean isJdkAvailable() {
+        return JDK_CONSTRUCTOR != null;
+    }
+
+    private static Checksum newJdkChecksum() {
+        if (JDK_CONSTRUCTOR == null) {
+            return null;
+        }
+        try {
+            return (Checksum) JDK_CONSTRUCTOR.invokeExact();
+        } catch (Throwable e) {
+            return null;
+        }
+    }
+
+    @Override
+    public Long getCheckValue() {
+        return jdk != null ? jdk.getValue() : ~crc & 0xFFFFFFFFL;
+    }
+
+    /**
+     * 与 getCheckValue 相同, 保留给只认识 java.util.zip.Checksum 的调用方
+     */
+    @Override
+    @Deprecated
+    public long getValue() {
+        return getCheckValue();
+    }
+
+    @Override
+    public void update(int b) {
+        if (jdk != null) {
+            jdk.update(b);
+        } else {
+            crc = (crc >>> 8) ^ T0[(crc ^ b) & 0xff];
+        }
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        if (off < 0 || len < 0 || off > b.length - len) {
+            throw new ArrayIndexOutOfBoundsException();
+        }
+        if (jdk != null) {
+            jdk.update(b, off, len);
+            return;
+        }
+        if (len < SLICING_THRESHOLD) {
+            int c = crc;
+            for (int end = off + len; off < end; off++) {
+                c = (c >>> 8) ^ T0[(c ^ b[off]) & 0xff];
+            }
+            crc = c;
+            return;
+        }
+        crc = update(crc, ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN), off, off + len);
+    }
+
+    /**
+     * 更新 buffer 中 position 到 limit 之间的数据, 完成后 position 等于 limit
+     *
+     * @param buffer 数据, 可以是堆外内存
+     */
+    @Override
+    public void update(ByteBuffer buffer) {
+        if (jdk != null && JDK_UPDATE_BUFFER != null) {
+            try {
+                JDK_UPDATE_BUFFER.invokeExact(jdk, buffer);
+                return;
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        int position = buffer.position();
+        int limit = buffer.limit();
+        if (buffer.hasArray()) {
+            update(buffer.array(), buffer.arrayOffset() + position, limit - position);
+        } else if (jdk != null) {
+            for (int i = position; i < limit; i++) {
+                jdk.update(buffer.get(i));
+            }
+        } else {
+            crc = update(crc, buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN), position, limit);
+        }
+        buffer.position(limit);
+    }
+
+    /**
+     * slicing-by-8, 每次处理8个字节
+     */
+    private static int update(int crc, ByteBuffer buffer, int off, int end) {
+        int limit = off + ((end - off) & ~7);
+        for (; off < limit; off += 8) {
+            int c = crc ^ buffer.getInt(off);
+            int w = buffer.getInt(off + 4);
+            crc = T7[c & 0xff]
+                    ^ T6[(c >>> 8) & 0xff]
+                    ^ T5[(c >>> 16) & 0xff]
+                    ^ T4[c >>> 24]
+                    ^ T3[w & 0xff]
+                    ^ T2[(w >>> 8) & 0xff]
+                    ^ T1[(w >>> 16) & 0xff]
+                    ^ T0[w >>> 24];
+        }
+        for (; off < end; off++) {
+            crc = (crc >>> 8) ^ T0[(crc ^ buffer.get(off)) & 0xff];
+        }
+        return crc;
+    }
+
+    @Override
+    public void reset() {
+        jdk = preferJdk ? newJdkChecksum() : null;
+        crc = ~0;
+    }
+
+    @Override
+    public boolean isResumable() {
+        return true;
+    }
+
+    /**
+     * 状态为当前的 CRC32C 值, 4字节大端
+     */
+    @Override
+    public byte[] saveState() {
+        return ByteBuffer.allocate(4).putInt(getCheckValue().intValue()).array();
+    }
+
+    @Override
+    public void restoreState(byte[] state) {
+        if (state.length != 4) {
+            throw new IllegalArgumentException("CRC32C状态长度必须为4: " + state.length);
+        }
+        jdk = null;
+        crc = ~ByteBuffer.wrap(state).getInt();
+    }
+
+    /*
+     * Return the CRC32C of two sequential blocks, where crc1 is the CRC32C of
+     * the first block, crc2 is the CRC32C of the second block, and len2 is the
+     * length of the second block.
+     */
+    public static long combine(long crc1, long crc2, long len2) {
+        if (len2 == 0) {
+            return crc1;
+        }
+        int crc = (int) crc1;
+        int[][] operators = ZeroOperators.OPERATORS;
+        for (int k = 0; len2 != 0; k++, len2 >>>= 1) {
+            if ((len2 & 1) == 1) {
+                crc = gf2MatrixTimes(operators[k], crc);
+            }
+        }
+        return (crc ^ (int) crc2) & 0xFFFFFFFFL;
+    }
+
+    private static int gf2MatrixTimes(int[] mat, int vec) {
+        int sum = 0;
+        for (int idx = 0; vec != 0; idx++, vec >>>= 1) {
+            if ((vec & 1) == 1) {
+                sum ^= mat[idx];
+            }
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare(int[] square, int[] mat) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = gf2MatrixTimes(mat, mat[n]);
+        }
+    }
+
+    /**
+     * OPERATORS[k] 为追加 2^k 个0字节的运算矩阵, 与 CRC64Checksum 相同, 第一次 combine 时才初始化
+     */
+    private static final class ZeroOperators {
+        static final int[][] OPERATORS = new int[64][];
+
+        static {
+            int[] odd = new int[32];
+            int[] even = new int[32];
+            odd[0] = POLY;
+            int row = 1;
+            for (int n = 1; n < 32; n++) {
+                odd[n] = row;
+                row <<= 1;
+            }
+            gf2MatrixSquare(even, odd);
+            gf2MatrixSquare(odd, even);
+            OPERATORS[0] = new int[32];
+            gf2MatrixSquare(OPERATORS[0], odd);
+            for (int k = 1; k < OPERATORS.length; k++) {
+                OPERATORS[k] = new int[32];
+                gf2MatrixSquare(OPERATORS[k], OPERATORS[k - 1]);
+            }
+        }
+    }
+}
@@ -1,35 +1,105 @@
 package cloud.tianai.crypto.check.impl;
 
+import cloud.tianai.crypto.check.ChecksumFactory;
 import cloud.tianai.crypto.check.EnhanceChecksum;
 import lombok.SneakyThrows;
+import org.bouncycastle.crypto.Digest;
+import org.bouncycastle.crypto.digests.EncodableDigest;
+import org.bouncycastle.crypto.digests.MD5Digest;
+import org.bouncycastle.crypto.digests.SHA1Digest;
+import org.bouncycastle.crypto.digests.SHA224Digest;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.digests.SHA384Digest;
+import org.bouncycastle.crypto.digests.SHA512Digest;
 
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Function;
 
 /**
  * @Author: 天爱有情
  * @date 2021/12/8 14:28
  * @Description MessageDigest 通用算法校验
+ * <p>
+ * 默认使用 JCA 的 MessageDigest(JDK 的 MD5/SHA 有 intrinsic 优化), 不支持 saveState;
+ * resumable 为 true 时使用纯java实现(MD5、SHA-1、SHA-224、SHA-256、SHA-384、SHA-512、SM3), 可以导出和恢复计算状态.
+ * MessageDigest 通过 ChecksumFactory 从原型 clone 创建; getCheckValue 计算 clone 的摘要, 不影响当前状态
  */
 public class DigestChecksum implements EnhanceChecksum<byte[]> {
 
+    /** 支持导出状态的算法, 参数为 null 时新建, 否则从状态恢复. */
+    private static final Map<String, Function<byte[], Digest>> RESUMABLE_DIGESTS = new HashMap<>();
+
+    static {
+        RESUMABLE_DIGESTS.put("MD5", state -> state == null ? new MD5Digest() : new MD5Digest(state));
+        RESUMABLE_DIGESTS.put("SHA-1", state -> state == null ? new SHA1Digest() : new SHA1Digest(state));
+        RESUMABLE_DIGESTS.put("SHA-224", state -> state == null ? new SHA224Digest() : new SHA224Digest(state));
+        RESUMABLE_DIGESTS.put("SHA-256", state -> state == null ? new SHA256Digest() : new SHA256Digest(state));
+        RESUMABLE_DIGESTS.put("SHA-384", state -> state == null ? new SHA384Digest() : new SHA384Digest(state));
+        RESUMABLE_DIGESTS.put("SHA-512", state -> state == null ? new SHA512Digest() : new SHA512Digest(state));
+        RESUMABLE_DIGESTS.put("SM3", state -> state == null ? new Sm3Digest() : new Sm3Digest(state));
+    }
+
     protected MessageDigest messageDigest;
     protected String algorithm;
+    protected final boolean resumable;
 
     public DigestChecksum(String algorithm) {
+        this(algorithm, false);
+    }
+
+    /**
+     * @param algorithm 算法
+     * @param resumable 是否需要导出和恢复计算状态
+     */
+    public DigestChecksum(String algorithm, boolean resumable) {
         this.algorithm = algorithm;
+        this.resumable = resumable;
+        if (resumable && !isResumable(algorithm)) {
+            throw new IllegalArgumentException("算法 " + algorithm + " 不支持导出计算状态");
+        }
         createMessageDigest();
 
     }
 
+    /**
+     * 算法是否支持导出计算状态
+     *
+     * @param algorithm 算法
+     * @return boolean
+     */
+    public static boolean isResumable(String algorithm) {
+        return RESUMABLE_DIGESTS.containsKey(algorithm.toUpperCase(Locale.ROOT));
+    }
+
     @SneakyThrows(NoSuchAlgorithmException.class)
     private void createMessageDigest() {
-        messageDigest = MessageDigest.getInstance(algorithm);
+        if (resumable) {
+            messageDigest = new EncodableMessageDigest(algorithm, resumableFactory(), null);
+        } else {
+            messageDigest = ChecksumFactory.newMessageDigest(algorithm);
+        }
+    }
+
+    private Function<byte[], Digest> resumableFactory() {
+        return RESUMABLE_DIGESTS.get(algorithm.toUpperCase(Locale.ROOT));
     }
 
+    /**
+     * 返回当前数据的摘要, 可以重复调用, 之后可以继续 update;
+     * MessageDigest 不支持 clone 时退回 digest(), 计算后会重置
+     */
     @Override
     public byte[] getCheckValue() {
-        return messageDigest.digest();
+        try {
+            return ((MessageDigest) messageDigest.clone()).digest();
+        } catch (CloneNotSupportedException e) {
+            return messageDigest.digest();
+        }
     }
 
     @Override
@@ -42,8 +112,96 @@ public class DigestChecksum implements EnhanceChecksum<byte[]> {
         messageDigest.update(b, off, len);
     }
 
+    /**
+     * 使用 MessageDigest.update(ByteBuffer), JDK 的实现对堆外内存也不需要额外复制
+     */
+    @Override
+    public void update(ByteBuffer buffer) {
+        messageDigest.update(buffer);
+    }
+
     @Override
     public void reset() {
-        createMessageDigest();
+        messageDigest.reset();
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    @Override
+    public boolean isResumable() {
+        return resumable;
+    }
+
+    @Override
+    public byte[] saveState() {
+        if (!resumable) {
+            throw new UnsupportedOperationException(algorithm + " 未开启 resumable, 不支持导出计算状态");
+        }
+        return ((EncodableDigest) ((EncodableMessageDigest) messageDigest).digest).getEncodedState();
+    }
+
+    @Override
+    public void restoreState(byte[] state) {
+        if (!resumable) {
+            throw new UnsupportedOperationException(algorithm + " 未开启 resumable, 不支持恢复计算状态");
+        }
+        messageDigest = new EncodableMessageDigest(algorithm, resumableFactory(), state);
+    }
+
+    /**
+     * 把 BouncyCastle 的 Digest 适配成 MessageDigest, 子类和调用方仍然可以通过 messageDigest 使用
+     */
+    private static final class EncodableMessageDigest extends MessageDigest {
+        private final Function<byte[], Digest> factory;
+        private final Digest digest;
+
+        EncodableMessageDigest(String algorithm, Function<byte[], Digest> factory, byte[] state) {
+            super(algorithm);
+            this.factory = factory;
+            this.digest = factory.apply(state);
+        }
+
+        @Override
+        public Object clone() {
+            return new EncodableMessageDigest(getAlgorithm(), factory, ((EncodableDigest) digest).getEncodedState());
+        }
+
+        @Override
+        protected void engineUpdate(byte input) {
+            digest.update(input);
+        }
+
+        @Override
+        protected void engineUpdate(byte[] input, int offset, int len) {
+            digest.update(input, offset, len);
+        }
+
+        @Override
+        protected void engineUpdate(ByteBuffer input) {
+            if (digest instanceof Sm3Digest) {
+                ((Sm3Digest) digest).update(input);
+            } else {
+                super.engineUpdate(input);
+            }
+        }
+
+        @Override
+        protected byte[] engineDigest() {
+            byte[] out = new byte[digest.getDigestSize()];
+            digest.doFinal(out, 0);
+            return out;
+        }
+
+        @Override
+        protected int engineGetDigestLength() {
+            return digest.getDigestSize();
+        }
+
+        @Override
+        protected void engineReset() {
+            digest.reset();
+        }
     }
 }
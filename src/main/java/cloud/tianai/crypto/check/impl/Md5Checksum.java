@@ -11,4 +11,11 @@ public class Md5Checksum extends DigestChecksum {
     public Md5Checksum() {
         super("MD5");
     }
+
+    /**
+     * @param resumable 是否需要导出和恢复计算状态, 见 DigestChecksum
+     */
+    public Md5Checksum(boolean resumable) {
+        super("MD5", resumable);
+    }
 }
@@ -2,14 +2,17 @@ package cloud.tianai.crypto.check.impl;
 
 import cloud.tianai.crypto.check.EnhanceChecksum;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
 import java.util.List;
 
 /**
  * @Author: 天爱有情
  * @date 2021/11/26 14:51
  * @Description 可以承载多个校验一起校验
+ * <p>
+ * 在调用线程中依次更新每个校验, 耗时是所有算法之和; 需要同时计算多个较慢的摘要时可以使用 ParallelMultiPartChecksum
  */
 public class MultiPartChecksum implements EnhanceChecksum<List<EnhanceChecksum<?>>> {
 
@@ -17,7 +20,7 @@ public class MultiPartChecksum implements EnhanceChecksum<List<EnhanceChecksum<?
 
 
     public MultiPartChecksum(EnhanceChecksum<?>... checksumArr) {
-        this.checksumList = new LinkedList<>(Arrays.asList(checksumArr));
+        this.checksumList = new ArrayList<>(Arrays.asList(checksumArr));
     }
 
     @Override
@@ -39,10 +42,74 @@ public class MultiPartChecksum implements EnhanceChecksum<List<EnhanceChecksum<?
         }
     }
 
+    /**
+     * 每个校验读取同一个 buffer 的 duplicate, 不复制数据
+     */
+    @Override
+    public void update(ByteBuffer buffer) {
+        for (EnhanceChecksum<?> checksum : checksumList) {
+            checksum.update(buffer.duplicate());
+        }
+        buffer.position(buffer.limit());
+    }
+
     @Override
     public void reset() {
         for (EnhanceChecksum<?> checksum : checksumList) {
             checksum.reset();
         }
     }
+
+    /**
+     * 所有校验都支持时才支持导出状态
+     */
+    @Override
+    public boolean isResumable() {
+        for (EnhanceChecksum<?> checksum : checksumList) {
+            if (!checksum.isResumable()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 依次保存每个校验的状态: 数量 | (长度 | 状态)...
+     */
+    @Override
+    public byte[] saveState() {
+        byte[][] states = new byte[checksumList.size()][];
+        int length = 4;
+        for (int i = 0; i < states.length; i++) {
+            states[i] = checksumList.get(i).saveState();
+            length += 4 + states[i].length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.putInt(states.length);
+        for (byte[] state : states) {
+            buffer.putInt(state.length);
+            buffer.put(state);
+        }
+        return buffer.array();
+    }
+
+    @Override
+    public void restoreState(byte[] state) {
+        ByteBuffer buffer = ByteBuffer.wrap(state);
+        if (buffer.remaining() < 4 || buffer.getInt() != checksumList.size()) {
+            throw new IllegalArgumentException("状态中的校验数量与当前不一致");
+        }
+        byte[][] states = new byte[checksumList.size()][];
+        for (int i = 0; i < states.length; i++) {
+            int length = buffer.remaining() < 4 ? -1 : buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                throw new IllegalArgumentException("MultiPartChecksum状态已损坏");
+            }
+            states[i] = new byte[length];
+            buffer.get(states[i]);
+        }
+        for (int i = 0; i < states.length; i++) {
+            checksumList.get(i).restoreState(states[i]);
+        }
+    }
 }
@@ -0,0 +1,354 @@
+package cloud.tianai.crypto.check.impl;
+
+import cloud.tianai.crypto.buffer.BufferPool;
+import cloud.tianai.crypto.buffer.BufferPools;
+import cloud.tianai.crypto.check.EnhanceChecksum;
+import cloud.tianai.crypto.exception.CryptoException;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @Author: 天爱有情
+ * @date 2021/12/30 18:10
+ * @Description 并行计算多个校验, 每个校验一个工作线程, 耗时接近其中最慢的一个
+ * <p>
+ * update 的数据先复制到从 BufferPool 借用的 buffer 中, 攒满一块后作为只读的 Chunk 放入每个工作线程的有界队列,
+ * 队列满时 update 阻塞(背压). Chunk 带有引用计数, 所有工作线程处理完后归还 buffer.
+ * getCheckValue/reset 会先等待所有工作线程处理完已提交的数据.
+ * <p>
+ * 使用完必须调用 close 结束工作线程; 工作线程中的异常会在下一次 update/getCheckValue 时抛出.
+ * 工作线程被中断后会退出, 之后提交的数据直接丢弃, 不会阻塞 update 和 close
+ * <pre>
+ * try (ParallelMultiPartChecksum checksum = new ParallelMultiPartChecksum(new Md5Checksum(), new Sha256Checksum(), new Sm3Checksum(), new CRC64Checksum())) {
+ *     ...
+ * }
+ * </pre>
+ */
+public class ParallelMultiPartChecksum extends MultiPartChecksum implements Closeable {
+
+    public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+    public static final int DEFAULT_QUEUE_CAPACITY = 4;
+    private static final AtomicInteger THREAD_ID = new AtomicInteger();
+    /** 通知工作线程结束. */
+    private static final Chunk POISON = new Chunk(null, 0, 0, null, null);
+    /** 队列满时每隔多久检查一次工作线程是否已退出. */
+    private static final long OFFER_TIMEOUT_MILLIS = 100;
+
+    private final Worker[] workers;
+    private final int chunkSize;
+    private final BufferPool bufferPool;
+    /** 正在填充的 buffer. */
+    private byte[] current;
+    private int currentLen;
+    private volatile Throwable failure;
+    private boolean closed;
+
+    public ParallelMultiPartChecksum(EnhanceChecksum<?>... checksumArr) {
+        this(DEFAULT_CHUNK_SIZE, DEFAULT_QUEUE_CAPACITY, null, checksumArr);
+    }
+
+    /**
+     * @param chunkSize     每块数据的长度
+     * @param queueCapacity 每个工作线程最多排队的块数
+     * @param executor      执行工作线程的线程池, 每个校验占用一个线程直到 close; 为空时新建守护线程
+     * @param checksumArr   校验
+     */
+    public ParallelMultiPartChecksum(int chunkSize, int queueCapacity, Executor executor, EnhanceChecksum<?>... checksumArr) {
+        super(checksumArr);
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize必须大于0: " + chunkSize);
+        }
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("queueCapacity必须大于0: " + queueCapacity);
+        }
+        this.chunkSize = chunkSize;
+        this.bufferPool = BufferPools.getDefault();
+        List<EnhanceChecksum<?>> checksumList = super.getCheckValue();
+        this.workers = new Worker[checksumList.size()];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(checksumList.get(i), queueCapacity);
+            if (executor != null) {
+                executor.execute(workers[i]);
+            } else {
+                Thread thread = new Thread(workers[i], "checksum-worker-" + THREAD_ID.incrementAndGet());
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+    }
+
+    @Override
+    public void update(int b) {
+        if (current == null || currentLen == chunkSize) {
+            flush();
+            current = bufferPool.acquire(chunkSize);
+        }
+        current[currentLen++] = (byte) b;
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        while (len > 0) {
+            if (current == null || currentLen == chunkSize) {
+                flush();
+                current = bufferPool.acquire(chunkSize);
+            }
+            int n = Math.min(len, chunkSize - currentLen);
+            System.arraycopy(b, off, current, currentLen, n);
+            currentLen += n;
+            off += n;
+            len -= n;
+        }
+        if (currentLen == chunkSize) {
+            flush();
+        }
+    }
+
+    /**
+     * 复制到 chunk 中交给工作线程, 调用方可以立即复用 buffer
+     */
+    @Override
+    public void update(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            if (current == null || currentLen == chunkSize) {
+                flush();
+                current = bufferPool.acquire(chunkSize);
+            }
+            int n = Math.min(buffer.remaining(), chunkSize - currentLen);
+            buffer.get(current, currentLen, n);
+            currentLen += n;
+        }
+        if (currentLen == chunkSize) {
+            flush();
+        }
+    }
+
+    /**
+     * 等待所有数据处理完成后返回校验列表
+     */
+    @Override
+    public List<EnhanceChecksum<?>> getCheckValue() {
+        sync();
+        return super.getCheckValue();
+    }
+
+    @Override
+    public void reset() {
+        sync();
+        super.reset();
+    }
+
+    @Override
+    public byte[] saveState() {
+        sync();
+        return super.saveState();
+    }
+
+    @Override
+    public void restoreState(byte[] state) {
+        sync();
+        super.restoreState(state);
+    }
+
+    /**
+     * 结束工作线程, 未处理的数据会被丢弃
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        bufferPool.release(current);
+        current = null;
+        currentLen = 0;
+        for (Worker worker : workers) {
+            worker.stop();
+        }
+    }
+
+    /**
+     * 把正在填充的 buffer 提交给所有工作线程
+     */
+    private void flush() {
+        checkState();
+        if (current == null || currentLen == 0) {
+            return;
+        }
+        Chunk chunk = new Chunk(current, currentLen, workers.length, bufferPool, null);
+        current = null;
+        currentLen = 0;
+        for (Worker worker : workers) {
+            worker.put(chunk);
+        }
+    }
+
+    /**
+     * 提交剩余数据并等待所有工作线程处理完
+     */
+    private void sync() {
+        flush();
+        CountDownLatch latch = new CountDownLatch(workers.length);
+        Chunk marker = new Chunk(null, 0, 0, null, latch);
+        for (Worker worker : workers) {
+            worker.put(marker);
+        }
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CryptoException("等待校验计算完成时被中断", e);
+        }
+        checkState();
+    }
+
+    private void checkState() {
+        if (closed) {
+            throw new IllegalStateException("ParallelMultiPartChecksum已关闭");
+        }
+        Throwable e = failure;
+        if (e != null) {
+            throw new CryptoException("校验计算失败", e);
+        }
+    }
+
+    private void fail(Throwable e) {
+        if (failure == null) {
+            failure = e;
+        }
+    }
+
+    /**
+     * 只读的数据块, 所有工作线程处理完后归还 buffer
+     */
+    private static final class Chunk {
+        final byte[] data;
+        final int length;
+        final AtomicInteger refCount;
+        final BufferPool bufferPool;
+        /** 不为空时是同步标记, 工作线程处理到这里时 countDown. */
+        final CountDownLatch latch;
+
+        Chunk(byte[] data, int length, int refCount, BufferPool bufferPool, CountDownLatch latch) {
+            this.data = data;
+            this.length = length;
+            this.refCount = new AtomicInteger(refCount);
+            this.bufferPool = bufferPool;
+            this.latch = latch;
+        }
+
+        void release() {
+            if (data != null && refCount.decrementAndGet() == 0) {
+                bufferPool.release(data);
+            }
+        }
+    }
+
+    private final class Worker implements Runnable {
+        final EnhanceChecksum<?> checksum;
+        final BlockingQueue<Chunk> queue;
+        volatile boolean alive = true;
+
+        Worker(EnhanceChecksum<?> checksum, int queueCapacity) {
+            this.checksum = checksum;
+            this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        }
+
+        /**
+         * 放入队列, 队列满时等待; 工作线程已退出时直接丢弃, 错误由 checkState 抛出
+         */
+        void put(Chunk chunk) {
+            try {
+                while (alive) {
+                    if (queue.offer(chunk, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                        if (!alive) {
+                            // 工作线程在放入的同时退出了, 剩余的数据由当前线程丢弃
+                            drain();
+                        }
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                discard(chunk);
+                Thread.currentThread().interrupt();
+                throw new CryptoException("提交校验数据时被中断", e);
+            }
+            discard(chunk);
+        }
+
+        /**
+         * 通知工作线程结束, 工作线程已退出时直接返回
+         */
+        void stop() {
+            try {
+                while (alive && !queue.offer(POISON, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    // 等待工作线程消费
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * 丢弃队列中剩余的数据, 归还 buffer 并释放同步标记
+         */
+        void drain() {
+            Chunk chunk;
+            while ((chunk = queue.poll()) != null) {
+                discard(chunk);
+            }
+        }
+
+        private void discard(Chunk chunk) {
+            if (chunk.latch != null) {
+                chunk.latch.countDown();
+            } else {
+                chunk.release();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Chunk chunk;
+                    try {
+                        chunk = queue.take();
+                    } catch (InterruptedException e) {
+                        // 恢复中断标识并退出, 线程池可以据此结束线程
+                        fail(e);
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    if (chunk == POISON) {
+                        return;
+                    }
+                    if (chunk.latch != null) {
+                        chunk.latch.countDown();
+                        continue;
+                    }
+                    try {
+                        if (failure == null) {
+                            checksum.update(chunk.data, 0, chunk.length);
+                        }
+                    } catch (Throwable e) {
+                        fail(e);
+                    } finally {
+                        chunk.release();
+                    }
+                }
+            } finally {
+                alive = false;
+                drain();
+            }
+        }
+    }
+}
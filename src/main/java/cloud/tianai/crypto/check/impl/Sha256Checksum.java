@@ -12,4 +12,11 @@ public class Sha256Checksum extends DigestChecksum {
         super("SHA-256");
     }
 
+    /**
+     * @param resumable 是否需要导出和恢复计算状态, 见 DigestChecksum
+     */
+    public Sha256Checksum(boolean resumable) {
+        super("SHA-256", resumable);
+    }
+
 }
@@ -1,21 +1,23 @@
 package cloud.tianai.crypto.check.impl;
 
 
-import cloud.tianai.crypto.cipher.util.CryptoRuntime;
-
 /**
  * @Author: 天爱有情
  * @date 2021/12/8 14:36
  * @Description SM3 CheckSum
+ * <p>
+ * 使用纯java优化的 Sm3Digest(通过 ChecksumFactory 创建 Sm3MessageDigest), 不依赖 BouncyCastle provider
  */
 public class Sm3Checksum extends DigestChecksum {
 
-    static {
-        CryptoRuntime.enableBouncyCastle();
-    }
-
-
     public Sm3Checksum() {
         super("SM3");
     }
+
+    /**
+     * @param resumable 是否需要导出和恢复计算状态, 见 DigestChecksum
+     */
+    public Sm3Checksum(boolean resumable) {
+        super("SM3", resumable);
+    }
 }
@@ -0,0 +1,286 @@
+package cloud.tianai.crypto.check.impl;
+
+import org.bouncycastle.crypto.ExtendedDigest;
+import org.bouncycastle.crypto.digests.EncodableDigest;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * @Author: 天爱有情
+ * @date 2021/12/31 11:20
+ * @Description SM3 摘要(GB/T 32905-2016), 纯java实现, 内部状态可以导出和恢复
+ * <p>
+ * BouncyCastle 的 SM3Digest 不支持 EncodableDigest, 无法保存计算到一半的状态, 这里单独实现一份用于可恢复的 SM3 校验.
+ * 压缩函数每4轮展开一次并轮换变量名(每轮只写 B、D、F、H), 不需要在8个变量之间移动; T_j 循环左移 j 位的结果预先计算;
+ * 消息扩展的 int 数组在各分组之间复用; 整块数据直接按大端 int 从数组或 ByteBuffer(包括堆外内存)读取, 不经过内部缓冲区.
+ * <p>
+ * getEncodedState 格式: V(32字节) | 已处理的字节数(8字节) | 缓冲区长度(4字节) | 缓冲区数据
+ */
+public class Sm3Digest implements ExtendedDigest, EncodableDigest {
+
+    public static final int DIGEST_LENGTH = 32;
+    private static final int BLOCK_LENGTH = 64;
+    private static final int[] IV = {
+            0x7380166f, 0x4914b2b9, 0x172442d7, 0xda8a0600,
+            0xa96f30bc, 0x163138aa, 0xe38dee4d, 0xb0fb0e4e
+    };
+    /** T_J[j] = T_j <<< (j mod 32). */
+    private static final int[] T_J = new int[64];
+
+    static {
+        for (int j = 0; j < 64; j++) {
+            T_J[j] = Integer.rotateLeft(j < 16 ? 0x79cc4519 : 0x7a879d8a, j);
+        }
+    }
+
+    private final int[] v = new int[8];
+    private final int[] w = new int[68];
+    private final byte[] buffer = new byte[BLOCK_LENGTH];
+    private final ByteBuffer bufferView = ByteBuffer.wrap(buffer);
+    private int bufferOffset;
+    private long byteCount;
+
+    public Sm3Digest() {
+        reset();
+    }
+
+    public Sm3Digest(Sm3Digest other) {
+        System.arraycopy(other.v, 0, v, 0, 8);
+        System.arraycopy(other.buffer, 0, buffer, 0, other.bufferOffset);
+        bufferOffset = other.bufferOffset;
+        byteCount = other.byteCount;
+    }
+
+    /**
+     * 从 getEncodedState 的结果恢复
+     *
+     * @param encodedState 状态
+     */
+    public Sm3Digest(byte[] encodedState) {
+        ByteBuffer state = ByteBuffer.wrap(encodedState);
+        if (encodedState.length < 44) {
+            throw new IllegalArgumentException("SM3状态长度错误: " + encodedState.length);
+        }
+        for (int i = 0; i < 8; i++) {
+            v[i] = state.getInt();
+        }
+        byteCount = state.getLong();
+        bufferOffset = state.getInt();
+        if (byteCount < 0 || bufferOffset < 0 || bufferOffset >= BLOCK_LENGTH
+                || bufferOffset != (int) (byteCount % BLOCK_LENGTH) || state.remaining() != bufferOffset) {
+            throw new IllegalArgumentException("SM3状态已损坏");
+        }
+        state.get(buffer, 0, bufferOffset);
+    }
+
+    @Override
+    public byte[] getEncodedState() {
+        ByteBuffer state = ByteBuffer.allocate(44 + bufferOffset);
+        for (int i = 0; i < 8; i++) {
+            state.putInt(v[i]);
+        }
+        state.putLong(byteCount);
+        state.putInt(bufferOffset);
+        state.put(buffer, 0, bufferOffset);
+        return state.array();
+    }
+
+    @Override
+    public String getAlgorithmName() {
+        return "SM3";
+    }
+
+    @Override
+    public int getDigestSize() {
+        return DIGEST_LENGTH;
+    }
+
+    @Override
+    public int getByteLength() {
+        return BLOCK_LENGTH;
+    }
+
+    @Override
+    public void update(byte in) {
+        buffer[bufferOffset++] = in;
+        byteCount++;
+        if (bufferOffset == BLOCK_LENGTH) {
+            compress(bufferView, 0);
+            bufferOffset = 0;
+        }
+    }
+
+    @Override
+    public void update(byte[] in, int inOff, int len) {
+        if (len < BLOCK_LENGTH && bufferOffset + len < BLOCK_LENGTH) {
+            // 小数据直接放入缓冲区, 不创建 ByteBuffer
+            System.arraycopy(in, inOff, buffer, bufferOffset, len);
+            bufferOffset += len;
+            byteCount += len;
+            return;
+        }
+        update(ByteBuffer.wrap(in), inOff, inOff + len);
+    }
+
+    /**
+     * 更新 buffer 中 position 到 limit 之间的数据, 完成后 position 等于 limit
+     *
+     * @param in 数据, 可以是堆外内存
+     */
+    public void update(ByteBuffer in) {
+        int limit = in.limit();
+        update(in.duplicate().order(ByteOrder.BIG_ENDIAN), in.position(), limit);
+        in.position(limit);
+    }
+
+    private void update(ByteBuffer in, int off, int end) {
+        byteCount += end - off;
+        if (bufferOffset > 0) {
+            int n = Math.min(end - off, BLOCK_LENGTH - bufferOffset);
+            for (int i = 0; i < n; i++) {
+                buffer[bufferOffset++] = in.get(off++);
+            }
+            if (bufferOffset < BLOCK_LENGTH) {
+                return;
+            }
+            compress(bufferView, 0);
+            bufferOffset = 0;
+        }
+        for (; off + BLOCK_LENGTH <= end; off += BLOCK_LENGTH) {
+            compress(in, off);
+        }
+        while (off < end) {
+            buffer[bufferOffset++] = in.get(off++);
+        }
+    }
+
+    @Override
+    public int doFinal(byte[] out, int outOff) {
+        long bitLength = byteCount << 3;
+        buffer[bufferOffset++] = (byte) 0x80;
+        if (bufferOffset > BLOCK_LENGTH - 8) {
+            while (bufferOffset < BLOCK_LENGTH) {
+                buffer[bufferOffset++] = 0;
+            }
+            compress(bufferView, 0);
+            bufferOffset = 0;
+        }
+        while (bufferOffset < BLOCK_LENGTH - 8) {
+            buffer[bufferOffset++] = 0;
+        }
+        bufferView.putLong(BLOCK_LENGTH - 8, bitLength);
+        compress(bufferView, 0);
+        for (int i = 0; i < 8; i++) {
+            int x = v[i];
+            out[outOff++] = (byte) (x >>> 24);
+            out[outOff++] = (byte) (x >>> 16);
+            out[outOff++] = (byte) (x >>> 8);
+            out[outOff++] = (byte) x;
+        }
+        reset();
+        return DIGEST_LENGTH;
+    }
+
+    @Override
+    public void reset() {
+        System.arraycopy(IV, 0, v, 0, 8);
+        bufferOffset = 0;
+        byteCount = 0;
+    }
+
+    /**
+     * 压缩一个分组, in 必须是大端序
+     */
+    private void compress(ByteBuffer in, int off) {
+        int[] w = this.w;
+        for (int j = 0; j < 16; j++) {
+            w[j] = in.getInt(off + (j << 2));
+        }
+        for (int j = 16; j < 68; j++) {
+            int x = w[j - 16] ^ w[j - 9] ^ Integer.rotateLeft(w[j - 3], 15);
+            w[j] = x ^ Integer.rotateLeft(x, 15) ^ Integer.rotateLeft(x, 23) ^ Integer.rotateLeft(w[j - 13], 7) ^ w[j - 6];
+        }
+        int a = v[0], b = v[1], c = v[2], d = v[3], e = v[4], f = v[5], g = v[6], h = v[7];
+        int a12, ss1;
+        // 每轮: D += FF + SS2 + W', H = P0(H + GG + SS1 + W), B <<<= 9, F <<<= 19, 下一轮的 A..H 依次为 D,A,B,C / H,E,F,G
+        for (int j = 0; j < 16; j += 4) {
+            a12 = Integer.rotateLeft(a, 12);
+            ss1 = Integer.rotateLeft(a12 + e + T_J[j], 7);
+            d += (a ^ b ^ c) + (ss1 ^ a12) + (w[j] ^ w[j + 4]);
+            h = p0(h + (e ^ f ^ g) + ss1 + w[j]);
+            b = Integer.rotateLeft(b, 9);
+            f = Integer.rotateLeft(f, 19);
+
+            a12 = Integer.rotateLeft(d, 12);
+            ss1 = Integer.rotateLeft(a12 + h + T_J[j + 1], 7);
+            c += (d ^ a ^ b) + (ss1 ^ a12) + (w[j + 1] ^ w[j + 5]);
+            g = p0(g + (h ^ e ^ f) + ss1 + w[j + 1]);
+            a = Integer.rotateLeft(a, 9);
+            e = Integer.rotateLeft(e, 19);
+
+            a12 = Integer.rotateLeft(c, 12);
+            ss1 = Integer.rotateLeft(a12 + g + T_J[j + 2], 7);
+            b += (c ^ d ^ a) + (ss1 ^ a12) + (w[j + 2] ^ w[j + 6]);
+            f = p0(f + (g ^ h ^ e) + ss1 + w[j + 2]);
+            d = Integer.rotateLeft(d, 9);
+            h = Integer.rotateLeft(h, 19);
+
+            a12 = Integer.rotateLeft(b, 12);
+            ss1 = Integer.rotateLeft(a12 + f + T_J[j + 3], 7);
+            a += (b ^ c ^ d) + (ss1 ^ a12) + (w[j + 3] ^ w[j + 7]);
+            e = p0(e + (f ^ g ^ h) + ss1 + w[j + 3]);
+            c = Integer.rotateLeft(c, 9);
+            g = Integer.rotateLeft(g, 19);
+        }
+        for (int j = 16; j < 64; j += 4) {
+            a12 = Integer.rotateLeft(a, 12);
+            ss1 = Integer.rotateLeft(a12 + e + T_J[j], 7);
+            d += ff1(a, b, c) + (ss1 ^ a12) + (w[j] ^ w[j + 4]);
+            h = p0(h + gg1(e, f, g) + ss1 + w[j]);
+            b = Integer.rotateLeft(b, 9);
+            f = Integer.rotateLeft(f, 19);
+
+            a12 = Integer.rotateLeft(d, 12);
+            ss1 = Integer.rotateLeft(a12 + h + T_J[j + 1], 7);
+            c += ff1(d, a, b) + (ss1 ^ a12) + (w[j + 1] ^ w[j + 5]);
+            g = p0(g + gg1(h, e, f) + ss1 + w[j + 1]);
+            a = Integer.rotateLeft(a, 9);
+            e = Integer.rotateLeft(e, 19);
+
+            a12 = Integer.rotateLeft(c, 12);
+            ss1 = Integer.rotateLeft(a12 + g + T_J[j + 2], 7);
+            b += ff1(c, d, a) + (ss1 ^ a12) + (w[j + 2] ^ w[j + 6]);
+            f = p0(f + gg1(g, h, e) + ss1 + w[j + 2]);
+            d = Integer.rotateLeft(d, 9);
+            h = Integer.rotateLeft(h, 19);
+
+            a12 = Integer.rotateLeft(b, 12);
+            ss1 = Integer.rotateLeft(a12 + f + T_J[j + 3], 7);
+            a += ff1(b, c, d) + (ss1 ^ a12) + (w[j + 3] ^ w[j + 7]);
+            e = p0(e + gg1(f, g, h) + ss1 + w[j + 3]);
+            c = Integer.rotateLeft(c, 9);
+            g = Integer.rotateLeft(g, 19);
+        }
+        v[0] ^= a;
+        v[1] ^= b;
+        v[2] ^= c;
+        v[3] ^= d;
+        v[4] ^= e;
+        v[5] ^= f;
+        v[6] ^= g;
+        v[7] ^= h;
+    }
+
+    private static int ff1(int x, int y, int z) {
+        return (x & y) | ((x | y) & z);
+    }
+
+    private static int gg1(int x, int y, int z) {
+        return z ^ (x & (y ^ z));
+    }
+
+    private static int p0(int x) {
+        return x ^ Integer.rotateLeft(x, 9) ^ Integer.rotateLeft(x, 17);
+    }
+}
@@ -0,0 +1,60 @@
+package cloud.tianai.crypto.check.impl;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+/**
+ * @Author: 天爱有情
+ * @date 2021/12/31 20:10
+ * @Description 基于 Sm3Digest 的 MessageDigest, 支持 clone 和不复制数据的 update(ByteBuffer), 可以通过 EasyCryptoProvider 注册到 JCA
+ */
+public class Sm3MessageDigest extends MessageDigest implements Cloneable {
+
+    private final Sm3Digest digest;
+
+    public Sm3MessageDigest() {
+        this(new Sm3Digest());
+    }
+
+    private Sm3MessageDigest(Sm3Digest digest) {
+        super("SM3");
+        this.digest = digest;
+    }
+
+    @Override
+    protected void engineUpdate(byte input) {
+        digest.update(input);
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int len) {
+        digest.update(input, offset, len);
+    }
+
+    @Override
+    protected void engineUpdate(ByteBuffer input) {
+        digest.update(input);
+    }
+
+    @Override
+    protected byte[] engineDigest() {
+        byte[] out = new byte[Sm3Digest.DIGEST_LENGTH];
+        digest.doFinal(out, 0);
+        return out;
+    }
+
+    @Override
+    protected int engineGetDigestLength() {
+        return Sm3Digest.DIGEST_LENGTH;
+    }
+
+    @Override
+    protected void engineReset() {
+        digest.reset();
+    }
+
+    @Override
+    public Object clone() {
+        return new Sm3MessageDigest(new Sm3Digest(digest));
+    }
+}
@@ -0,0 +1,496 @@
+package cloud.tianai.crypto.check.impl;
+
+import cloud.tianai.crypto.buffer.BufferPool;
+import cloud.tianai.crypto.buffer.BufferPools;
+import cloud.tianai.crypto.check.ChecksumFactory;
+import cloud.tianai.crypto.check.EnhanceChecksum;
+import cloud.tianai.crypto.exception.CryptoException;
+import lombok.SneakyThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+
+/**
+ * @Author: 天爱有情
+ * @date 2021/12/31 10:30
+ * @Description 树形摘要(Merkle树), 数据按固定长度分成叶子, 叶子摘要并行计算, 再两两合并得到根摘要
+ * <p>
+ * 与 RFC 6962 相同, 叶子摘要为 H(0x00 || 数据), 中间节点为 H(0x01 || 左 || 右), 某一层为奇数个节点时最后一个直接提升到上一层;
+ * 没有数据时没有叶子, 根摘要与 RFC 6962 一样为 H(空). 结果与顺序计算无关, 只由数据、叶子长度和摘要算法决定.
+ * <p>
+ * getTree() 返回包含所有叶子摘要的 Tree, 可以序列化后与数据一起保存, 下载方拿到可信的根摘要后,
+ * 可以只校验自己下载的范围(Tree.verifyRange), 或者只用 O(log n) 个摘要校验单个叶子(Tree.proof + verifyLeaf)
+ * <pre>
+ * TreeHashChecksum checksum = new TreeHashChecksum("SHA-256");
+ * ...
+ * byte[] root = checksum.getCheckValue();
+ * byte[] tree = checksum.getTree().toByteArray();
+ * </pre>
+ */
+public class TreeHashChecksum implements EnhanceChecksum<byte[]> {
+
+    public static final int DEFAULT_LEAF_SIZE = 1024 * 1024;
+    private static final byte LEAF_PREFIX = 0x00;
+    private static final byte NODE_PREFIX = 0x01;
+
+    private final String algorithm;
+    private final int leafSize;
+    private final Executor executor;
+    private final BufferPool bufferPool;
+    /** 限制正在计算的叶子数量, 避免数据读取比摘要快时占用过多内存. */
+    private final Semaphore inFlight;
+    private final List<CompletableFuture<byte[]>> leaves = new ArrayList<>();
+    /** 正在填充的叶子. */
+    private byte[] current;
+    private int currentLen;
+    private long length;
+
+    public TreeHashChecksum(String algorithm) {
+        this(algorithm, DEFAULT_LEAF_SIZE, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param algorithm 叶子和节点使用的摘要算法, 比如 SHA-256、SM3
+     * @param leafSize  叶子长度
+     * @param executor  计算叶子摘要的线程池
+     */
+    public TreeHashChecksum(String algorithm, int leafSize, Executor executor) {
+        if (leafSize <= 0) {
+            throw new IllegalArgumentException("leafSize必须大于0: " + leafSize);
+        }
+        // 提前检查算法是否可用
+        newDigest(algorithm);
+        this.algorithm = algorithm;
+        this.leafSize = leafSize;
+        this.executor = executor;
+        this.bufferPool = BufferPools.getDefault();
+        this.inFlight = new Semaphore(Math.max(2, Runtime.getRuntime().availableProcessors() * 2));
+    }
+
+    @Override
+    public void update(int b) {
+        if (current == null) {
+            current = bufferPool.acquire(leafSize);
+        }
+        current[currentLen++] = (byte) b;
+        length++;
+        if (currentLen == leafSize) {
+            submitLeaf();
+        }
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        while (len > 0) {
+            if (current == null) {
+                current = bufferPool.acquire(leafSize);
+            }
+            int n = Math.min(len, leafSize - currentLen);
+            System.arraycopy(b, off, current, currentLen, n);
+            currentLen += n;
+            length += n;
+            off += n;
+            len -= n;
+            if (currentLen == leafSize) {
+                submitLeaf();
+            }
+        }
+    }
+
+    @Override
+    public void update(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            if (current == null) {
+                current = bufferPool.acquire(leafSize);
+            }
+            int n = Math.min(buffer.remaining(), leafSize - currentLen);
+            buffer.get(current, currentLen, n);
+            currentLen += n;
+            length += n;
+            if (currentLen == leafSize) {
+                submitLeaf();
+            }
+        }
+    }
+
+    /**
+     * 计算根摘要, 不影响后续的 update
+     *
+     * @return 根摘要
+     */
+    @Override
+    public byte[] getCheckValue() {
+        return getTree().getRoot();
+    }
+
+    /**
+     * 等待所有叶子计算完成, 返回当前数据的树
+     *
+     * @return Tree
+     */
+    public Tree getTree() {
+        List<byte[]> digests = new ArrayList<>(leaves.size() + 1);
+        for (CompletableFuture<byte[]> leaf : leaves) {
+            digests.add(leaf.join());
+        }
+        // 不完整的最后一个叶子只计算不提交, 后续 update 继续填充
+        if (currentLen > 0) {
+            digests.add(leafDigest(newDigest(algorithm), current == null ? new byte[0] : current, 0, currentLen));
+        }
+        return new Tree(algorithm, leafSize, length, digests);
+    }
+
+    @Override
+    public void reset() {
+        for (CompletableFuture<byte[]> leaf : leaves) {
+            // 等待计算完成, 保证 buffer 已经归还
+            leaf.exceptionally(e -> null).join();
+        }
+        leaves.clear();
+        bufferPool.release(current);
+        current = null;
+        currentLen = 0;
+        length = 0;
+    }
+
+    @Override
+    public boolean isResumable() {
+        return true;
+    }
+
+    /**
+     * 状态: leafSize | length | 完整叶子数量 | 摘要长度 | 叶子摘要... | 不完整叶子的数据
+     */
+    @Override
+    public byte[] saveState() {
+        List<byte[]> digests = new ArrayList<>(leaves.size());
+        for (CompletableFuture<byte[]> leaf : leaves) {
+            digests.add(leaf.join());
+        }
+        int digestLength = digests.isEmpty() ? 0 : digests.get(0).length;
+        ByteBuffer state = ByteBuffer.allocate(20 + digests.size() * digestLength + currentLen);
+        state.putInt(leafSize).putLong(length).putInt(digests.size()).putInt(digestLength);
+        for (byte[] digest : digests) {
+            state.put(digest);
+        }
+        if (currentLen > 0) {
+            state.put(current, 0, currentLen);
+        }
+        return state.array();
+    }
+
+    @Override
+    public void restoreState(byte[] state) {
+        ByteBuffer buffer = ByteBuffer.wrap(state);
+        if (state.length < 20 || buffer.getInt() != leafSize) {
+            throw new IllegalArgumentException("状态中的 leafSize 与当前不一致");
+        }
+        long restoreLength = buffer.getLong();
+        int count = buffer.getInt();
+        int digestLength = buffer.getInt();
+        int partial = (int) (restoreLength - (long) count * leafSize);
+        if (count < 0 || digestLength < 0 || partial < 0 || partial >= leafSize
+                || buffer.remaining() != (long) count * digestLength + partial) {
+            throw new IllegalArgumentException("TreeHashChecksum状态已损坏");
+        }
+        reset();
+        for (int i = 0; i < count; i++) {
+            byte[] digest = new byte[digestLength];
+            buffer.get(digest);
+            leaves.add(CompletableFuture.completedFuture(digest));
+        }
+        if (partial > 0) {
+            current = bufferPool.acquire(leafSize);
+            buffer.get(current, 0, partial);
+            currentLen = partial;
+        }
+        length = restoreLength;
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public int getLeafSize() {
+        return leafSize;
+    }
+
+    private void submitLeaf() {
+        byte[] data = current;
+        current = null;
+        currentLen = 0;
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            bufferPool.release(data);
+            throw new CryptoException("计算树形摘要时被中断", e);
+        }
+        CompletableFuture<byte[]> leaf;
+        try {
+            leaf = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return leafDigest(newDigest(algorithm), data, 0, leafSize);
+                } finally {
+                    bufferPool.release(data);
+                    inFlight.release();
+                }
+            }, executor);
+        } catch (RuntimeException e) {
+            bufferPool.release(data);
+            inFlight.release();
+            throw e;
+        }
+        leaves.add(leaf);
+    }
+
+    @SneakyThrows(NoSuchAlgorithmException.class)
+    private static MessageDigest newDigest(String algorithm) {
+        // 通过 ChecksumFactory 创建, SM3 不依赖已注册的 provider
+        return ChecksumFactory.newMessageDigest(algorithm);
+    }
+
+    private static byte[] leafDigest(MessageDigest digest, byte[] data, int off, int len) {
+        digest.update(LEAF_PREFIX);
+        digest.update(data, off, len);
+        return digest.digest();
+    }
+
+    private static byte[] nodeDigest(MessageDigest digest, byte[] left, byte[] right) {
+        digest.update(NODE_PREFIX);
+        digest.update(left);
+        digest.update(right);
+        return digest.digest();
+    }
+
+    /**
+     * 由叶子摘要逐层计算根摘要
+     */
+    private static byte[] root(MessageDigest digest, List<byte[]> leaves) {
+        if (leaves.isEmpty()) {
+            // RFC 6962: MTH({}) = HASH()
+            return digest.digest();
+        }
+        List<byte[]> level = leaves;
+        while (level.size() > 1) {
+            List<byte[]> next = new ArrayList<>((level.size() + 1) / 2);
+            for (int i = 0; i < level.size(); i += 2) {
+                next.add(i + 1 < level.size() ? nodeDigest(digest, level.get(i), level.get(i + 1)) : level.get(i));
+            }
+            level = next;
+        }
+        return level.get(0);
+    }
+
+    /**
+     * 只用审计路径校验单个叶子
+     *
+     * @param algorithm 摘要算法
+     * @param root      可信的根摘要
+     * @param leafIndex 叶子序号
+     * @param leafCount 叶子总数
+     * @param data      叶子数据
+     * @param off       偏移量
+     * @param len       长度
+     * @param proof     Tree.proof(leafIndex) 返回的审计路径
+     * @return 是否一致
+     */
+    public static boolean verifyLeaf(String algorithm, byte[] root, int leafIndex, int leafCount,
+                                     byte[] data, int off, int len, List<byte[]> proof) {
+        if (leafIndex < 0 || leafIndex >= leafCount) {
+            return false;
+        }
+        MessageDigest digest = newDigest(algorithm);
+        byte[] hash = leafDigest(digest, data, off, len);
+        int index = leafIndex;
+        int size = leafCount;
+        int used = 0;
+        while (size > 1) {
+            if ((index & 1) == 1) {
+                if (used >= proof.size()) {
+                    return false;
+                }
+                hash = nodeDigest(digest, proof.get(used++), hash);
+            } else if (index + 1 < size) {
+                if (used >= proof.size()) {
+                    return false;
+                }
+                hash = nodeDigest(digest, hash, proof.get(used++));
+            }
+            index >>= 1;
+            size = (size + 1) / 2;
+        }
+        return used == proof.size() && MessageDigest.isEqual(hash, root);
+    }
+
+    /**
+     * 所有叶子的摘要, 可以序列化后保存, 用于校验部分数据
+     */
+    public static final class Tree {
+        private static final int MAGIC = 0x54484331;
+
+        private final String algorithm;
+        private final int leafSize;
+        private final long length;
+        private final List<byte[]> leaves;
+        private byte[] root;
+
+        public Tree(String algorithm, int leafSize, long length, List<byte[]> leaves) {
+            long expectLeaves = (length + leafSize - 1) / leafSize;
+            if (leaves.size() != expectLeaves) {
+                throw new IllegalArgumentException("叶子数量错误, 期望:" + expectLeaves + ", 实际:" + leaves.size());
+            }
+            this.algorithm = algorithm;
+            this.leafSize = leafSize;
+            this.length = length;
+            this.leaves = Collections.unmodifiableList(new ArrayList<>(leaves));
+        }
+
+        public synchronized byte[] getRoot() {
+            if (root == null) {
+                root = root(newDigest(algorithm), leaves);
+            }
+            return root.clone();
+        }
+
+        public String getAlgorithm() {
+            return algorithm;
+        }
+
+        public int getLeafSize() {
+            return leafSize;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public List<byte[]> getLeaves() {
+            return leaves;
+        }
+
+        /**
+         * 单个叶子的审计路径, 从叶子一层到根依次为兄弟节点的摘要, 用于 verifyLeaf
+         *
+         * @param leafIndex 叶子序号
+         * @return 审计路径
+         */
+        public List<byte[]> proof(int leafIndex) {
+            if (leafIndex < 0 || leafIndex >= leaves.size()) {
+                throw new IndexOutOfBoundsException("leafIndex:" + leafIndex + ", leafCount:" + leaves.size());
+            }
+            MessageDigest digest = newDigest(algorithm);
+            List<byte[]> proof = new ArrayList<>();
+            List<byte[]> level = leaves;
+            int index = leafIndex;
+            while (level.size() > 1) {
+                int sibling = index ^ 1;
+                if (sibling < level.size()) {
+                    proof.add(level.get(sibling));
+                }
+                List<byte[]> next = new ArrayList<>((level.size() + 1) / 2);
+                for (int i = 0; i < level.size(); i += 2) {
+                    next.add(i + 1 < level.size() ? nodeDigest(digest, level.get(i), level.get(i + 1)) : level.get(i));
+                }
+                level = next;
+                index >>= 1;
+            }
+            return proof;
+        }
+
+        /**
+         * 校验一段数据, 先确认树与可信的根摘要一致, 再逐个校验范围内的叶子
+         *
+         * @param trustedRoot 可信的根摘要
+         * @param offset      数据在原文中的偏移量, 必须是叶子长度的整数倍
+         * @param data        数据
+         * @param off         data 中的偏移量
+         * @param len         长度, 必须是叶子长度的整数倍或者到原文末尾
+         * @return 是否一致
+         */
+        public boolean verifyRange(byte[] trustedRoot, long offset, byte[] data, int off, int len) {
+            if (offset < 0 || len < 0 || offset % leafSize != 0 || offset + len > length
+                    || (len % leafSize != 0 && offset + len != length)) {
+                throw new IllegalArgumentException("校验范围必须按叶子对齐, offset:" + offset + ", len:" + len);
+            }
+            if (!MessageDigest.isEqual(getRoot(), trustedRoot)) {
+                return false;
+            }
+            MessageDigest digest = newDigest(algorithm);
+            int leafIndex = (int) (offset / leafSize);
+            for (int pos = 0; pos < len; pos += leafSize, leafIndex++) {
+                byte[] hash = leafDigest(digest, data, off + pos, Math.min(leafSize, len - pos));
+                if (!MessageDigest.isEqual(hash, leaves.get(leafIndex))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * 序列化: magic | 算法 | leafSize | length | 叶子数量 | 摘要长度 | 叶子摘要...
+         */
+        public byte[] toByteArray() {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeInt(MAGIC);
+                out.writeUTF(algorithm);
+                out.writeInt(leafSize);
+                out.writeLong(length);
+                out.writeInt(leaves.size());
+                out.writeShort(leaves.isEmpty() ? 0 : leaves.get(0).length);
+                for (byte[] leaf : leaves) {
+                    out.write(leaf);
+                }
+            } catch (IOException e) {
+                // ByteArrayOutputStream 不会抛出 IOException
+                throw new IllegalStateException(e);
+            }
+            return bytes.toByteArray();
+        }
+
+        public static Tree fromByteArray(byte[] bytes) {
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+                if (in.readInt() != MAGIC) {
+                    throw new CryptoException("不是树形摘要数据");
+                }
+                String algorithm = in.readUTF();
+                int leafSize = in.readInt();
+                long length = in.readLong();
+                int count = in.readInt();
+                int digestLength = in.readUnsignedShort();
+                if (leafSize <= 0 || length < 0 || count < 0 || (long) count * digestLength > bytes.length) {
+                    throw new CryptoException("树形摘要数据已损坏");
+                }
+                List<byte[]> leaves = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    byte[] leaf = new byte[digestLength];
+                    in.readFully(leaf);
+                    leaves.add(leaf);
+                }
+                return new Tree(algorithm, leafSize, length, leaves);
+            } catch (IOException e) {
+                throw new CryptoException("树形摘要数据已损坏", e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Tree(algorithm=" + algorithm + ", leafSize=" + leafSize + ", length=" + length
+                    + ", leaves=" + leaves.size() + ")";
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package cloud.tianai.crypto.check.impl;
+
+import cloud.tianai.crypto.check.EnhanceChecksum;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * @Author: 天爱有情
+ * @date 2021/12/31 15:50
+ * @Description xxHash64 校验, 纯java实现, 非加密的快速哈希, 用于内部数据复制时的完整性校验
+ * <p>
+ * 每32字节为一组, 4个累加器独立计算, 最后合并. xxHash64 不是线性的, 无法像 CRC 一样 combine 两段数据的结果,
+ * 需要分段并行时可以对每段分别计算后再用 TreeHashChecksum 之类的方式组合.
+ * getCheckValue 不影响后续的 update
+ */
+public class XxHash64Checksum implements EnhanceChecksum<Long> {
+
+    private static final long PRIME64_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME64_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME64_3 = 0x165667B19E3779F9L;
+    private static final long PRIME64_4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME64_5 = 0x27D4EB2F165667C5L;
+    private static final int STRIPE_LENGTH = 32;
+
+    private final long seed;
+    private long v1;
+    private long v2;
+    private long v3;
+    private long v4;
+    private long totalLength;
+    /** 不满32字节的数据. */
+    private final byte[] buffer = new byte[STRIPE_LENGTH];
+    private final ByteBuffer bufferView = ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN);
+    private int bufferLength;
+
+    public XxHash64Checksum() {
+        this(0);
+    }
+
+    public XxHash64Checksum(long seed) {
+        this.seed = seed;
+        reset();
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    @Override
+    public Long getCheckValue() {
+        long h;
+        if (totalLength >= STRIPE_LENGTH) {
+            h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h = mergeRound(h, v1);
+            h = mergeRound(h, v2);
+            h = mergeRound(h, v3);
+            h = mergeRound(h, v4);
+        } else {
+            h = seed + PRIME64_5;
+        }
+        h += totalLength;
+        int off = 0;
+        for (; off + 8 <= bufferLength; off += 8) {
+            h ^= round(0, bufferView.getLong(off));
+            h = Long.rotateLeft(h, 27) * PRIME64_1 + PRIME64_4;
+        }
+        if (off + 4 <= bufferLength) {
+            h ^= (bufferView.getInt(off) & 0xFFFFFFFFL) * PRIME64_1;
+            h = Long.rotateLeft(h, 23) * PRIME64_2 + PRIME64_3;
+            off += 4;
+        }
+        for (; off < bufferLength; off++) {
+            h ^= (buffer[off] & 0xFF) * PRIME64_5;
+            h = Long.rotateLeft(h, 11) * PRIME64_1;
+        }
+        h ^= h >>> 33;
+        h *= PRIME64_2;
+        h ^= h >>> 29;
+        h *= PRIME64_3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    /**
+     * 与 getCheckValue 相同, 保留给只认识 java.util.zip.Checksum 的调用方
+     */
+    @Override
+    @Deprecated
+    public long getValue() {
+        return getCheckValue();
+    }
+
+    @Override
+    public void update(int b) {
+        buffer[bufferLength++] = (byte) b;
+        totalLength++;
+        if (bufferLength == STRIPE_LENGTH) {
+            stripe(bufferView, 0);
+            bufferLength = 0;
+        }
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        if (off < 0 || len < 0 || off > b.length - len) {
+            throw new ArrayIndexOutOfBoundsException();
+        }
+        update(ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN), off, off + len);
+    }
+
+    /**
+     * 更新 buffer 中 position 到 limit 之间的数据, 完成后 position 等于 limit
+     *
+     * @param buffer 数据, 可以是堆外内存
+     */
+    @Override
+    public void update(ByteBuffer buffer) {
+        int limit = buffer.limit();
+        update(buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN), buffer.position(), limit);
+        buffer.position(limit);
+    }
+
+    private void update(ByteBuffer data, int off, int end) {
+        totalLength += end - off;
+        if (bufferLength > 0) {
+            int n = Math.min(end - off, STRIPE_LENGTH - bufferLength);
+            for (int i = 0; i < n; i++) {
+                buffer[bufferLength++] = data.get(off++);
+            }
+            if (bufferLength < STRIPE_LENGTH) {
+                return;
+            }
+            stripe(bufferView, 0);
+            bufferLength = 0;
+        }
+        for (; off + STRIPE_LENGTH <= end; off += STRIPE_LENGTH) {
+            stripe(data, off);
+        }
+        while (off < end) {
+            buffer[bufferLength++] = data.get(off++);
+        }
+    }
+
+    private void stripe(ByteBuffer data, int off) {
+        v1 = round(v1, data.getLong(off));
+        v2 = round(v2, data.getLong(off + 8));
+        v3 = round(v3, data.getLong(off + 16));
+        v4 = round(v4, data.getLong(off + 24));
+    }
+
+    private static long round(long acc, long input) {
+        acc += input * PRIME64_2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * PRIME64_1;
+    }
+
+    private static long mergeRound(long acc, long value) {
+        acc ^= round(0, value);
+        return acc * PRIME64_1 + PRIME64_4;
+    }
+
+    @Override
+    public void reset() {
+        v1 = seed + PRIME64_1 + PRIME64_2;
+        v2 = seed + PRIME64_2;
+        v3 = seed;
+        v4 = seed - PRIME64_1;
+        totalLength = 0;
+        bufferLength = 0;
+    }
+
+    @Override
+    public boolean isResumable() {
+        return true;
+    }
+
+    /**
+     * 状态: seed | v1~v4 | 总长度 | 未满32字节的数据
+     */
+    @Override
+    public byte[] saveState() {
+        ByteBuffer state = ByteBuffer.allocate(48 + bufferLength);
+        state.putLong(seed).putLong(v1).putLong(v2).putLong(v3).putLong(v4).putLong(totalLength);
+        state.put(buffer, 0, bufferLength);
+        return state.array();
+    }
+
+    @Override
+    public void restoreState(byte[] state) {
+        ByteBuffer data = ByteBuffer.wrap(state);
+        if (state.length < 48 || data.getLong() != seed) {
+            throw new IllegalArgumentException("状态中的 seed 与当前不一致");
+        }
+        long restoreV1 = data.getLong();
+        long restoreV2 = data.getLong();
+        long restoreV3 = data.getLong();
+        long restoreV4 = data.getLong();
+        long restoreLength = data.getLong();
+        if (restoreLength < 0 || data.remaining() != (int) (restoreLength % STRIPE_LENGTH)) {
+            throw new IllegalArgumentException("xxHash64状态已损坏");
+        }
+        v1 = restoreV1;
+        v2 = restoreV2;
+        v3 = restoreV3;
+        v4 = restoreV4;
+        totalLength = restoreLength;
+        bufferLength = data.remaining();
+        data.get(buffer, 0, bufferLength);
+    }
+}
@@ -43,17 +43,39 @@ public class CryptoCipherBuilder {
      */
     @SneakyThrows
     public static CryptoCipher buildDes3Crypt(String secretKey, boolean encrypt) {
+        int model = encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE;
+        return new AesCryptoCipher(createDes3Cipher(createDes3Key(secretKey), model), model);
+    }
+
+    /**
+     * 生成 3des 秘钥
+     *
+     * @param secretKey 秘钥, 24位
+     * @return Key
+     */
+    @SneakyThrows
+    public static Key createDes3Key(String secretKey) {
         if (StringUtils.isBlank(secretKey) || secretKey.length() != 24) {
             throw new IllegalArgumentException("3des加密key必须为24位");
         }
         SecretKeyFactory keyFactory = SecretKeyFactory.getInstance(DES_KEY_ALGORITHM);
         DESedeKeySpec spec = new DESedeKeySpec(secretKey.getBytes());
-        Key desKey = keyFactory.generateSecret(spec);
+        return keyFactory.generateSecret(spec);
+    }
+
+    /**
+     * 创建并初始化 3des 密码, 返回的 Cipher 不是线程安全的
+     *
+     * @param desKey 秘钥
+     * @param model  Cipher.ENCRYPT_MODE 或 Cipher.DECRYPT_MODE
+     * @return Cipher
+     */
+    @SneakyThrows
+    public static Cipher createDes3Cipher(Key desKey, int model) {
         IvParameterSpec ips = new IvParameterSpec(KEY_IV);
         Cipher cipher = Cipher.getInstance(DES_CIPHER_ALGORITHM);
-        int model = encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE;
         cipher.init(model, desKey, ips);
-        return new AesCryptoCipher(cipher, model);
+        return cipher;
     }
 
     /**
@@ -65,10 +87,22 @@ public class CryptoCipherBuilder {
      */
     @SneakyThrows
     public static CryptoCipher buildRsaCrypt(Key key, boolean encrypt) {
-        Cipher cipher = Cipher.getInstance(RSA_CIPHER_ALGORITHM);
         int model = encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE;
+        return new AesCryptoCipher(createRsaCipher(key, model), model);
+    }
+
+    /**
+     * 创建并初始化 RSA 密码, 返回的 Cipher 不是线程安全的
+     *
+     * @param key   公钥、私钥
+     * @param model Cipher.ENCRYPT_MODE 或 Cipher.DECRYPT_MODE
+     * @return Cipher
+     */
+    @SneakyThrows
+    public static Cipher createRsaCipher(Key key, int model) {
+        Cipher cipher = Cipher.getInstance(RSA_CIPHER_ALGORITHM);
         cipher.init(model, key);
-        return new AesCryptoCipher(cipher, model);
+        return cipher;
     }
 
 
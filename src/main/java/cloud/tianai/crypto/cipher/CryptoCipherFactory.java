@@ -0,0 +1,220 @@
+package cloud.tianai.crypto.cipher;
+
+import cloud.tianai.crypto.cipher.compress.CompressionCodec;
+import cloud.tianai.crypto.cipher.core.AbstractCryptoCipher;
+import cloud.tianai.crypto.cipher.core.CryptoCipher;
+import cloud.tianai.crypto.cipher.core.Recipient;
+import cloud.tianai.crypto.cipher.core.impl.AesCryptoCipher;
+import cloud.tianai.crypto.cipher.core.impl.AutoCryptoCipher;
+import cloud.tianai.crypto.cipher.core.impl.ChaCha20CryptoCipher;
+import cloud.tianai.crypto.cipher.core.impl.Sm4CryptoCipher;
+
+import javax.crypto.Cipher;
+import java.security.Key;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+
+/**
+ * @Author: 天爱有情
+ * @date 2021/12/27 16:30
+ * @Description 线程安全的 CryptoCipher 工厂
+ * <p>
+ * javax.crypto.Cipher 不是线程安全的, 直接用 CryptoCipherBuilder 创建的 CryptoCipher 调用 recreate() 时,
+ * 新的实例和原实例共用同一个外层 Cipher, 多线程同时加解密CEK会出错.
+ * 工厂只保存秘钥, 每个线程第一次使用时创建并初始化一个外层 Cipher, 之后该线程创建的 CryptoCipher 都复用它, 不需要加锁.
+ * <p>
+ * 工厂是不可变的, 应该在应用中创建一次然后共享使用, 每次加解密通过 create() 获取一个新的 CryptoCipher
+ * <pre>
+ * CryptoCipherFactory factory = CryptoCipherFactory.des3(key, CryptoCipherBuilder.ENCRYPT);
+ * CipherOutputStream out = new CipherOutputStream(fileOut, factory.create());
+ * </pre>
+ */
+public final class CryptoCipherFactory {
+
+    /** 默认的内容加密. */
+    private static final BiFunction<Supplier<Cipher>, Integer, AbstractCryptoCipher> AES = AesCryptoCipher::new;
+    private static final BiFunction<Supplier<Cipher>, Integer, AbstractCryptoCipher> SM4 = Sm4CryptoCipher::new;
+    private static final BiFunction<Supplier<Cipher>, Integer, AbstractCryptoCipher> CHA_CHA_20 = ChaCha20CryptoCipher::new;
+    private static final BiFunction<Supplier<Cipher>, Integer, AbstractCryptoCipher> AUTO = AutoCryptoCipher::new;
+
+    private final int model;
+    /** 每个线程一个外层 Cipher. */
+    private final ThreadLocal<Cipher> outerCipher;
+    private final BiFunction<Supplier<Cipher>, Integer, AbstractCryptoCipher> contentCipher;
+    private final CompressionCodec compressionCodec;
+    private final String keyId;
+    /** 多接收方加密的其它接收方, 不可修改. */
+    private final List<Recipient> recipients;
+
+    private CryptoCipherFactory(int model, ThreadLocal<Cipher> outerCipher,
+                                BiFunction<Supplier<Cipher>, Integer, AbstractCryptoCipher> contentCipher,
+                                CompressionCodec compressionCodec, String keyId, List<Recipient> recipients) {
+        this.model = model;
+        this.outerCipher = outerCipher;
+        this.contentCipher = contentCipher;
+        this.compressionCodec = compressionCodec;
+        this.keyId = keyId;
+        this.recipients = recipients;
+    }
+
+    /**
+     * 3des 算法加解密CEK
+     *
+     * @param secretKey 秘钥, 24位
+     * @param encrypt   加密true 解密false
+     * @return CryptoCipherFactory
+     */
+    public static CryptoCipherFactory des3(String secretKey, boolean encrypt) {
+        Key desKey = CryptoCipherBuilder.createDes3Key(secretKey);
+        int model = encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE;
+        return of(() -> CryptoCipherBuilder.createDes3Cipher(desKey, model), model);
+    }
+
+    /**
+     * RSA 算法加解密CEK
+     *
+     * @param key     公钥、私钥
+     * @param encrypt 加密true 解密false
+     * @return CryptoCipherFactory
+     */
+    public static CryptoCipherFactory rsa(Key key, boolean encrypt) {
+        Objects.requireNonNull(key, "key");
+        int model = encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE;
+        return of(() -> CryptoCipherBuilder.createRsaCipher(key, model), model);
+    }
+
+    /**
+     * 自定义外层密码
+     *
+     * @param cipherCreator 创建并初始化外层 Cipher, 每个线程调用一次, 每次都必须返回新的实例
+     * @param model         Cipher.ENCRYPT_MODE 或 Cipher.DECRYPT_MODE, 需要与 cipherCreator 创建的 Cipher 一致
+     * @return CryptoCipherFactory
+     */
+    public static CryptoCipherFactory of(Supplier<Cipher> cipherCreator, int model) {
+        Objects.requireNonNull(cipherCreator, "cipherCreator");
+        return new CryptoCipherFactory(model, ThreadLocal.withInitial(cipherCreator), AES, null, null, Collections.emptyList());
+    }
+
+    /**
+     * 内容使用 SM4 加密
+     *
+     * @return 新的工厂, 与当前工厂共用外层 Cipher
+     */
+    public CryptoCipherFactory withSm4() {
+        return withContentCipher(SM4);
+    }
+
+    /**
+     * 内容使用 AES 加密, 默认
+     *
+     * @return 新的工厂, 与当前工厂共用外层 Cipher
+     */
+    public CryptoCipherFactory withAes() {
+        return withContentCipher(AES);
+    }
+
+    /**
+     * 内容使用 ChaCha20 加密, 适合没有AES硬件加速的机器
+     *
+     * @return 新的工厂, 与当前工厂共用外层 Cipher
+     */
+    public CryptoCipherFactory withChaCha20() {
+        return withContentCipher(CHA_CHA_20);
+    }
+
+    /**
+     * 加密时根据实测速度自动选择 AES 或 ChaCha20, 解密时根据头信息选择, 见 AutoCryptoCipher
+     *
+     * @return 新的工厂, 与当前工厂共用外层 Cipher
+     */
+    public CryptoCipherFactory withAuto() {
+        return withContentCipher(AUTO);
+    }
+
+    /**
+     * 自定义内容加密
+     *
+     * @param contentCipher 参数为外层密码和model, 一般为 XxxCryptoCipher::new
+     * @return 新的工厂, 与当前工厂共用外层 Cipher
+     */
+    public CryptoCipherFactory withContentCipher(BiFunction<Supplier<Cipher>, Integer, AbstractCryptoCipher> contentCipher) {
+        Objects.requireNonNull(contentCipher, "contentCipher");
+        return new CryptoCipherFactory(model, outerCipher, contentCipher, compressionCodec, keyId, recipients);
+    }
+
+    /**
+     * 加密前先压缩, 只对加密有效, 解密时根据头信息自动选择解压算法
+     *
+     * @param compressionCodec 压缩算法, 为空不压缩
+     * @return 新的工厂, 与当前工厂共用外层 Cipher
+     */
+    public CryptoCipherFactory withCompression(CompressionCodec compressionCodec) {
+        return new CryptoCipherFactory(model, outerCipher, contentCipher, compressionCodec, keyId, recipients);
+    }
+
+    /**
+     * 设置当前外层密码对应的秘钥id, 加密时使用多接收方格式, 解密时根据它在头信息中选择接收方
+     *
+     * @param keyId 秘钥id
+     * @return 新的工厂, 与当前工厂共用外层 Cipher
+     */
+    public CryptoCipherFactory withKeyId(String keyId) {
+        return new CryptoCipherFactory(model, outerCipher, contentCipher, compressionCodec, keyId, recipients);
+    }
+
+    /**
+     * 添加一个接收方, 只对加密有效, 内容只加密一次, 每个接收方可以用自己的秘钥解密
+     *
+     * @param keyId         接收方的秘钥id
+     * @param cipherCreator 创建并初始化接收方的外层 Cipher(加密模式), 每个线程调用一次
+     * @return 新的工厂, 与当前工厂共用外层 Cipher
+     */
+    public CryptoCipherFactory withRecipient(String keyId, Supplier<Cipher> cipherCreator) {
+        if (!isEncrypt()) {
+            throw new IllegalArgumentException("只有加密时可以添加接收方");
+        }
+        ThreadLocal<Cipher> recipientCipher = ThreadLocal.withInitial(cipherCreator);
+        List<Recipient> list = new ArrayList<>(recipients);
+        list.add(new Recipient(keyId, recipientCipher::get));
+        return new CryptoCipherFactory(model, outerCipher, contentCipher, compressionCodec, this.keyId, Collections.unmodifiableList(list));
+    }
+
+    /**
+     * 添加一个使用 RSA 公钥的接收方
+     *
+     * @param keyId     接收方的秘钥id
+     * @param publicKey 接收方的公钥
+     * @return 新的工厂, 与当前工厂共用外层 Cipher
+     */
+    public CryptoCipherFactory withRsaRecipient(String keyId, Key publicKey) {
+        Objects.requireNonNull(publicKey, "publicKey");
+        return withRecipient(keyId, () -> CryptoCipherBuilder.createRsaCipher(publicKey, Cipher.ENCRYPT_MODE));
+    }
+
+    /**
+     * 创建一个新的 CryptoCipher, 每个流使用一个, 不能在多个流之间共用
+     *
+     * @return CryptoCipher
+     */
+    public CryptoCipher create() {
+        AbstractCryptoCipher cryptoCipher = contentCipher.apply(outerCipher::get, model);
+        if (compressionCodec != null) {
+            cryptoCipher.setCompressionCodec(compressionCodec);
+        }
+        cryptoCipher.setKeyId(keyId);
+        recipients.forEach(cryptoCipher::addRecipient);
+        return cryptoCipher;
+    }
+
+    public int getModel() {
+        return model;
+    }
+
+    public boolean isEncrypt() {
+        return Cipher.ENCRYPT_MODE == model;
+    }
+}
@@ -0,0 +1,173 @@
+package cloud.tianai.crypto.cipher;
+
+import cloud.tianai.crypto.cipher.core.CryptoCipher;
+import cloud.tianai.crypto.cipher.core.impl.AesCryptoCipher;
+import cloud.tianai.crypto.cipher.core.impl.ChaCha20CryptoCipher;
+import cloud.tianai.crypto.exception.CryptoCipherException;
+import cloud.tianai.crypto.stream.CipherInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+
+import static cloud.tianai.crypto.cipher.core.AbstractCryptoCipher.*;
+
+/**
+ * @Author: 天爱有情
+ * @date 2021/12/30 14:40
+ * @Description 加密格式注册表, 解密时根据数据开头的版本号自动选择解密的 CryptoCipher
+ * <p>
+ * 通过 PushbackInputStream 预读开头的4个字节(不消耗数据), 在版本号表中查找对应的解密器, 只需要打开一次流.
+ * 开头不是已知的加密头(比如 Base64CryptoCipher 不写头信息)或者数据不足4个字节时使用默认解密器.
+ * <p>
+ * 注意 AES 和 SM4 的版本号都是1, 头信息中无法区分, 版本1使用哪种算法由注册的解密器决定.
+ * 未注册的版本号可以通过 setResolver 延迟注册, 第一次遇到该版本时调用, 结果会被缓存
+ * <pre>
+ * CryptoFormatRegistry registry = CryptoFormatRegistry.of(CryptoCipherFactory.des3(key, CryptoCipherBuilder.DECRYPT));
+ * CipherInputStream in = registry.open(Files.newInputStream(file));
+ * </pre>
+ */
+public class CryptoFormatRegistry {
+
+    /** 预读的字节数, 即头信息中 version 的长度. */
+    public static final int PEEK_LENGTH = 4;
+
+    private final Map<Integer, Supplier<CryptoCipher>> decoders = new ConcurrentHashMap<>();
+    private volatile Supplier<CryptoCipher> defaultDecoder;
+    private volatile IntFunction<Supplier<CryptoCipher>> resolver;
+
+    /**
+     * 注册内置格式: 版本1使用 decryptFactory 配置的内容加密(默认AES), 版本2使用 ChaCha20
+     *
+     * @param decryptFactory 解密模式的工厂
+     * @return CryptoFormatRegistry
+     */
+    public static CryptoFormatRegistry of(CryptoCipherFactory decryptFactory) {
+        if (decryptFactory.isEncrypt()) {
+            throw new IllegalArgumentException("CryptoFormatRegistry只能注册解密模式的工厂");
+        }
+        CryptoFormatRegistry registry = new CryptoFormatRegistry();
+        registry.register(AesCryptoCipher.VERSION, decryptFactory::create);
+        CryptoCipherFactory chaCha20 = decryptFactory.withChaCha20();
+        registry.register(ChaCha20CryptoCipher.VERSION, chaCha20::create);
+        return registry;
+    }
+
+    /**
+     * 注册解密器, 版本号相同时覆盖
+     *
+     * @param version 版本号, 不含标识位
+     * @param decoder 每次调用创建一个新的解密模式 CryptoCipher
+     * @return this
+     */
+    public CryptoFormatRegistry register(int version, Supplier<CryptoCipher> decoder) {
+        checkVersion(version);
+        decoders.put(version, Objects.requireNonNull(decoder, "decoder"));
+        return this;
+    }
+
+    /**
+     * 设置默认解密器, 数据开头不是已注册的版本时使用, 为空时抛出异常
+     *
+     * @param decoder 默认解密器
+     * @return this
+     */
+    public CryptoFormatRegistry setDefault(Supplier<CryptoCipher> decoder) {
+        this.defaultDecoder = decoder;
+        return this;
+    }
+
+    /**
+     * 设置未注册版本的延迟注册, 第一次遇到该版本时调用, 返回非空时注册到表中
+     *
+     * @param resolver 根据版本号返回解密器, 不支持时返回 null
+     * @return this
+     */
+    public CryptoFormatRegistry setResolver(IntFunction<Supplier<CryptoCipher>> resolver) {
+        this.resolver = resolver;
+        return this;
+    }
+
+    /**
+     * 根据头信息中的 version 查找解密器, 不含已知标识位之外的位时才认为是加密头
+     *
+     * @param rawVersion 数据开头的4个字节, 包含标识位
+     * @return 解密器, 没有找到时为 null
+     */
+    public Supplier<CryptoCipher> lookup(int rawVersion) {
+        if ((rawVersion & ~VERSION_MASK & ~(FLAG_COMPRESSED | FLAG_MULTI_RECIPIENT)) != 0) {
+            return null;
+        }
+        int version = rawVersion & VERSION_MASK;
+        Supplier<CryptoCipher> decoder = decoders.get(version);
+        IntFunction<Supplier<CryptoCipher>> currentResolver = resolver;
+        if (decoder == null && currentResolver != null) {
+            // 解析结果为空时不放入表中, 下次遇到该版本会再次尝试
+            decoder = decoders.computeIfAbsent(version, currentResolver::apply);
+        }
+        return decoder;
+    }
+
+    /**
+     * 预读数据开头并创建对应的解密 CryptoCipher, 读取的字节会退回到流中
+     *
+     * @param inputStream 回退缓冲区不小于 {@link #PEEK_LENGTH} 的输入流
+     * @return 解密模式的 CryptoCipher
+     */
+    public CryptoCipher detect(PushbackInputStream inputStream) throws IOException {
+        byte[] peek = new byte[PEEK_LENGTH];
+        int length = 0;
+        while (length < PEEK_LENGTH) {
+            int read = inputStream.read(peek, length, PEEK_LENGTH - length);
+            if (read < 0) {
+                break;
+            }
+            length += read;
+        }
+        inputStream.unread(peek, 0, length);
+        Supplier<CryptoCipher> decoder = null;
+        if (length == PEEK_LENGTH) {
+            int rawVersion = ((peek[0] & 0xFF) << 24) | ((peek[1] & 0xFF) << 16) | ((peek[2] & 0xFF) << 8) | (peek[3] & 0xFF);
+            decoder = lookup(rawVersion);
+        }
+        if (decoder == null) {
+            decoder = defaultDecoder;
+        }
+        if (decoder == null) {
+            throw new CryptoCipherException("无法识别的加密格式, 数据开头:" + toHex(peek, length));
+        }
+        return decoder.get();
+    }
+
+    /**
+     * 打开解密流, 自动识别加密格式
+     *
+     * @param inputStream 加密数据
+     * @return 解密流
+     */
+    public CipherInputStream open(InputStream inputStream) throws IOException {
+        PushbackInputStream pushback = inputStream instanceof PushbackInputStream
+                ? (PushbackInputStream) inputStream
+                : new PushbackInputStream(inputStream, PEEK_LENGTH);
+        return new CipherInputStream(pushback, detect(pushback));
+    }
+
+    private static void checkVersion(int version) {
+        if (version < 0 || version > VERSION_MASK) {
+            throw new IllegalArgumentException("版本号必须在0~" + VERSION_MASK + "之间: " + version);
+        }
+    }
+
+    private static String toHex(byte[] bytes, int length) {
+        StringBuilder sb = new StringBuilder(length * 2);
+        for (int i = 0; i < length; i++) {
+            sb.append(String.format("%02x", bytes[i]));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,300 @@
+package cloud.tianai.crypto.cipher;
+
+import cloud.tianai.crypto.cipher.core.AbstractCryptoCipher.EncryptData;
+import cloud.tianai.crypto.cipher.core.EnvelopeHeader;
+import cloud.tianai.crypto.exception.CryptoCipherException;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.crypto.Cipher;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.security.Key;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * @Author: 天爱有情
+ * @date 2021/12/29 16:10
+ * @Description 更换外层秘钥时只重新加密头信息, 不需要解密再加密整个文件
+ * <p>
+ * 外层秘钥只用于加密头信息中的 iv 和 cek, 用旧秘钥解出 iv 和 cek 后用新秘钥重新加密即可, 内容部分不变.
+ * 新头信息长度不变时直接覆盖文件开头; 长度变化时(比如 RSA 换成 3des)写入临时文件, 内容部分使用 FileChannel.transferTo 复制, 完成后替换原文件
+ * <p>
+ * 多接收方格式只处理 keyId 匹配的接收方, 其它接收方保持不变
+ * <pre>
+ * HeaderRewrapper rewrapper = HeaderRewrapper.des3(oldKey, newKey);
+ * HeaderRewrapper.Report report = rewrapper.rewrapDirectory(dir, path -&gt; path.toString().endsWith(".enc"));
+ * </pre>
+ */
+@Slf4j
+public class HeaderRewrapper {
+
+    /** 旧的外层密码, 解密模式, 每个线程一个. */
+    private final ThreadLocal<Cipher> oldCipher;
+    /** 新的外层密码, 加密模式, 每个线程一个. */
+    private final ThreadLocal<Cipher> newCipher;
+    private final String keyId;
+    private final String newKeyId;
+
+    /**
+     * @param oldCipherCreator 创建初始化为解密模式的旧外层密码, 每个线程调用一次
+     * @param newCipherCreator 创建初始化为加密模式的新外层密码, 每个线程调用一次
+     */
+    public HeaderRewrapper(Supplier<Cipher> oldCipherCreator, Supplier<Cipher> newCipherCreator) {
+        this(oldCipherCreator, newCipherCreator, null, null);
+    }
+
+    /**
+     * @param oldCipherCreator 创建初始化为解密模式的旧外层密码, 每个线程调用一次
+     * @param newCipherCreator 创建初始化为加密模式的新外层密码, 每个线程调用一次
+     * @param keyId            多接收方格式中要处理的接收方, 为空时匹配空字符串; 单接收方格式忽略
+     * @param newKeyId         多接收方格式中接收方新的 keyId, 为空时不变
+     */
+    public HeaderRewrapper(Supplier<Cipher> oldCipherCreator, Supplier<Cipher> newCipherCreator, String keyId, String newKeyId) {
+        this.oldCipher = ThreadLocal.withInitial(Objects.requireNonNull(oldCipherCreator, "oldCipherCreator"));
+        this.newCipher = ThreadLocal.withInitial(Objects.requireNonNull(newCipherCreator, "newCipherCreator"));
+        this.keyId = keyId == null ? "" : keyId;
+        this.newKeyId = newKeyId;
+    }
+
+    /**
+     * 3des 秘钥更换
+     *
+     * @param oldSecretKey 旧秘钥
+     * @param newSecretKey 新秘钥
+     * @return HeaderRewrapper
+     */
+    public static HeaderRewrapper des3(String oldSecretKey, String newSecretKey) {
+        Key oldKey = CryptoCipherBuilder.createDes3Key(oldSecretKey);
+        Key newKey = CryptoCipherBuilder.createDes3Key(newSecretKey);
+        return new HeaderRewrapper(() -> CryptoCipherBuilder.createDes3Cipher(oldKey, Cipher.DECRYPT_MODE),
+                () -> CryptoCipherBuilder.createDes3Cipher(newKey, Cipher.ENCRYPT_MODE));
+    }
+
+    /**
+     * RSA 秘钥更换
+     *
+     * @param oldPrivateKey 旧私钥
+     * @param newPublicKey  新公钥
+     * @return HeaderRewrapper
+     */
+    public static HeaderRewrapper rsa(Key oldPrivateKey, Key newPublicKey) {
+        return new HeaderRewrapper(() -> CryptoCipherBuilder.createRsaCipher(oldPrivateKey, Cipher.DECRYPT_MODE),
+                () -> CryptoCipherBuilder.createRsaCipher(newPublicKey, Cipher.ENCRYPT_MODE));
+    }
+
+    /**
+     * 重新加密头信息中的 iv 和 cek
+     *
+     * @param header 旧的头信息
+     * @return 新的头信息
+     */
+    @SneakyThrows
+    public EnvelopeHeader rewrap(EnvelopeHeader header) {
+        List<EncryptData> recipients = new ArrayList<>(header.getRecipients());
+        boolean matched = false;
+        for (int i = 0; i < recipients.size(); i++) {
+            EncryptData data = recipients.get(i);
+            if (header.isMultiRecipient() && !keyId.equals(data.getKeyId())) {
+                continue;
+            }
+            Cipher decrypt = oldCipher.get();
+            Cipher encrypt = newCipher.get();
+            byte[] iv = decrypt.doFinal(data.getEncryptedIV());
+            byte[] cek = decrypt.doFinal(data.getEncryptedCEK());
+            EncryptData rewrapped = new EncryptData(encrypt.doFinal(iv), encrypt.doFinal(cek));
+            if (header.isMultiRecipient()) {
+                rewrapped.setKeyId(newKeyId == null ? data.getKeyId() : newKeyId);
+            }
+            recipients.set(i, rewrapped);
+            matched = true;
+        }
+        if (!matched) {
+            throw new CryptoCipherException("头信息中没有keyId为[" + keyId + "]的接收方");
+        }
+        return header.withRecipients(recipients);
+    }
+
+    /**
+     * 重新加密文件的头信息
+     *
+     * @param file 加密后的文件
+     * @return 处理方式
+     */
+    public Result rewrap(Path file) throws IOException {
+        EnvelopeHeader header;
+        byte[] newHeader;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // 头信息一般只有几十到几百字节
+            DataInputStream input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1024));
+            try {
+                header = EnvelopeHeader.read(input);
+            } catch (EOFException e) {
+                throw new CryptoCipherException("文件[" + file + "]不是完整的加密文件", e);
+            }
+            newHeader = rewrap(header).toByteArray();
+            if (newHeader.length == header.getLength()) {
+                // 长度不变, 直接覆盖
+                ByteBuffer buffer = ByteBuffer.wrap(newHeader);
+                long position = 0;
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                channel.force(false);
+                return Result.IN_PLACE;
+            }
+        }
+        copyWithHeader(file, header.getLength(), newHeader);
+        return Result.COPIED;
+    }
+
+    /**
+     * 并行处理目录(包括子目录)下的所有文件, 使用 ForkJoinPool.commonPool()
+     *
+     * @param dir    目录
+     * @param filter 文件过滤
+     * @return 处理结果
+     */
+    public Report rewrapDirectory(Path dir, Predicate<Path> filter) throws IOException {
+        return rewrapDirectory(dir, filter, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * 并行处理目录(包括子目录)下的所有文件, 单个文件失败不影响其它文件, 失败的文件记录在结果中
+     *
+     * @param dir    目录
+     * @param filter 文件过滤
+     * @param pool   执行的线程池
+     * @return 处理结果
+     */
+    public Report rewrapDirectory(Path dir, Predicate<Path> filter, ForkJoinPool pool) throws IOException {
+        List<Path> files;
+        try (Stream<Path> stream = Files.walk(dir)) {
+            files = stream.filter(Files::isRegularFile).filter(filter).collect(Collectors.toList());
+        }
+        Report report = new Report();
+        try {
+            pool.submit(() -> files.parallelStream().forEach(file -> {
+                try {
+                    if (rewrap(file) == Result.IN_PLACE) {
+                        report.inPlace.incrementAndGet();
+                    } else {
+                        report.copied.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    log.warn("文件[{}]头信息重新加密失败: {}", file, e.getMessage());
+                    report.failures.put(file, e);
+                }
+            })).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CryptoCipherException("头信息重新加密被中断", e);
+        } catch (ExecutionException e) {
+            throw new CryptoCipherException("头信息重新加密失败", e.getCause());
+        }
+        return report;
+    }
+
+    /**
+     * 新头信息 + 原文件的内容部分写入临时文件, 然后替换原文件
+     */
+    private static void copyWithHeader(Path file, long bodyOffset, byte[] newHeader) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(dir, file.getFileName().toString() + ".", ".rewrap");
+        try {
+            try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ);
+                 FileChannel target = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.wrap(newHeader);
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+                long position = bodyOffset;
+                long size = source.size();
+                while (position < size) {
+                    position += source.transferTo(position, size - position, target);
+                }
+                target.force(true);
+            }
+            copyPosixAttributes(file, temp);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * createTempFile 创建的文件权限为 0600, 替换前复制原文件的权限, 以及在有权限时复制所有者和组
+     */
+    private static void copyPosixAttributes(Path source, Path target) throws IOException {
+        PosixFileAttributeView sourceView = Files.getFileAttributeView(source, PosixFileAttributeView.class);
+        PosixFileAttributeView targetView = Files.getFileAttributeView(target, PosixFileAttributeView.class);
+        if (sourceView == null || targetView == null) {
+            return;
+        }
+        PosixFileAttributes attributes = sourceView.readAttributes();
+        try {
+            targetView.setOwner(attributes.owner());
+            targetView.setGroup(attributes.group());
+        } catch (IOException | SecurityException e) {
+            // 非 root 用户通常不能修改所有者, 只保留权限
+            log.debug("文件[{}]无法保留所有者: {}", source, e.getMessage());
+        }
+        targetView.setPermissions(attributes.permissions());
+    }
+
+    public enum Result {
+        /** 头信息长度不变, 直接覆盖. */
+        IN_PLACE,
+        /** 头信息长度变化, 复制内容到新文件. */
+        COPIED
+    }
+
+    /**
+     * 目录处理结果
+     */
+    public static class Report {
+        private final AtomicInteger inPlace = new AtomicInteger();
+        private final AtomicInteger copied = new AtomicInteger();
+        private final Map<Path, Exception> failures = new ConcurrentHashMap<>();
+
+        public int getInPlaceCount() {
+            return inPlace.get();
+        }
+
+        public int getCopiedCount() {
+            return copied.get();
+        }
+
+        public Map<Path, Exception> getFailures() {
+            return Collections.unmodifiableMap(failures);
+        }
+
+        @Override
+        public String toString() {
+            return "Report(inPlace=" + inPlace + ", copied=" + copied + ", failures=" + failures.size() + ")";
+        }
+    }
+}
@@ -0,0 +1,427 @@
+package cloud.tianai.crypto.cipher;
+
+import cloud.tianai.crypto.buffer.BufferPool;
+import cloud.tianai.crypto.buffer.BufferPools;
+import cloud.tianai.crypto.buffer.MappedBuffers;
+import cloud.tianai.crypto.cipher.core.CryptoCipher;
+import cloud.tianai.crypto.cipher.core.EnvelopeHeader;
+import cloud.tianai.crypto.exception.CryptoCipherException;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * @Author: 天爱有情
+ * @date 2021/12/30 10:20
+ * @Description 原地加解密本地文件, 不需要额外一倍的磁盘空间
+ * <p>
+ * CTR 模式加密前后长度不变, 只有头信息会让数据整体移动: 加密时数据从后往前按窗口整体后移头信息的长度, 解密时从前往后整体前移.
+ * 每个窗口通过内存映射读写, 在内存中完成加解密.
+ * <p>
+ * 崩溃安全: 开始前在 {文件名}.ecj 日志中记录头信息, 每个窗口写入之前先把窗口的原始数据写入日志并刷盘,
+ * 日志有两个交替使用的槽位, 每个槽位带有CRC校验. 中途崩溃后调用 recover 用日志中的原始数据重做最后一个窗口, 然后继续完成剩余的窗口.
+ * 重做一个窗口是幂等的, 所以无论崩溃在哪一步都可以恢复. 恢复时使用日志中记录的窗口大小, 与当前对象的 windowSize 无关.
+ * <p>
+ * 每个窗口写入后立即释放映射, 解密最后缩短文件时不会因为文件仍被映射而失败(Windows). 缩短文件在删除日志之前,
+ * 失败时日志仍然保留, recover 会重做最后一个窗口后再次缩短文件.
+ * <p>
+ * 只支持可以 seek 的 CryptoCipher(AES、SM4、ChaCha20, 不能开启压缩)
+ */
+@Slf4j
+public class InPlaceFileCipher {
+
+    public static final String JOURNAL_SUFFIX = ".ecj";
+    public static final int DEFAULT_WINDOW_SIZE = 4 * 1024 * 1024;
+    private static final int JOURNAL_MAGIC = 0x45434A31;
+    private static final byte MODE_ENCRYPT = 1;
+    private static final byte MODE_DECRYPT = 2;
+    /** 日志槽位头: step(4) + length(4) + crc(4). */
+    private static final int SLOT_HEADER_LENGTH = 12;
+
+    private final int windowSize;
+    private final BufferPool bufferPool;
+
+    public InPlaceFileCipher() {
+        this(DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * @param windowSize 每次映射处理的数据长度, 日志文件最大约为它的两倍
+     */
+    public InPlaceFileCipher(int windowSize) {
+        if (windowSize < 4096) {
+            throw new IllegalArgumentException("windowSize不能小于4096: " + windowSize);
+        }
+        this.windowSize = windowSize;
+        this.bufferPool = BufferPools.getDefault();
+    }
+
+    public static Path journalPath(Path file) {
+        return Paths.get(file.toString() + JOURNAL_SUFFIX);
+    }
+
+    /**
+     * 原地加密文件
+     *
+     * @param file          明文文件, 完成后变为加密文件
+     * @param encryptCipher 加密模式的 CryptoCipher
+     */
+    public void encrypt(Path file, CryptoCipher encryptCipher) throws IOException {
+        checkNoJournal(file);
+        byte[] header = encryptCipher.earlyLoadingHeaderData(null);
+        checkSeekable(encryptCipher);
+        try (FileChannel data = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            Journal journal = Journal.create(journalPath(file), MODE_ENCRYPT, data.size(), header, windowSize);
+            process(data, journal, encryptCipher, -1, null);
+        }
+        Files.delete(journalPath(file));
+    }
+
+    /**
+     * 原地解密文件
+     *
+     * @param file          加密文件, 完成后变为明文文件
+     * @param decryptCipher 解密模式的 CryptoCipher
+     */
+    public void decrypt(Path file, CryptoCipher decryptCipher) throws IOException {
+        checkNoJournal(file);
+        try (FileChannel data = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            EnvelopeHeader envelopeHeader;
+            try {
+                envelopeHeader = EnvelopeHeader.read(new DataInputStream(Channels.newInputStream(data.position(0))));
+            } catch (EOFException e) {
+                throw new CryptoCipherException("文件[" + file + "]不是完整的加密文件", e);
+            }
+            byte[] header = envelopeHeader.toByteArray();
+            initDecryptCipher(decryptCipher, header);
+            Journal journal = Journal.create(journalPath(file), MODE_DECRYPT, data.size() - header.length, header, windowSize);
+            process(data, journal, decryptCipher, -1, null);
+        }
+        Files.delete(journalPath(file));
+    }
+
+    /**
+     * 完成中途崩溃的原地加解密, CTR 模式下加密和解密是相同的运算, 所以加密中断时也使用解密模式的 CryptoCipher 恢复
+     *
+     * @param file          文件
+     * @param decryptCipher 解密模式的 CryptoCipher
+     * @return 是否存在未完成的操作并已完成; 日志还未写完整(文件未被修改)时删除日志并返回 false
+     */
+    public boolean recover(Path file, CryptoCipher decryptCipher) throws IOException {
+        Path journalPath = journalPath(file);
+        if (!Files.exists(journalPath)) {
+            return false;
+        }
+        boolean recovered;
+        try (FileChannel data = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            Journal journal = Journal.open(journalPath);
+            recovered = journal != null;
+            if (recovered) {
+                try {
+                    initDecryptCipher(decryptCipher, journal.header);
+                    // 窗口的划分以日志中记录的为准, 当前对象的 windowSize 可能不同
+                    byte[] buffer = bufferPool.acquire(journal.windowSize);
+                    try {
+                        int step = journal.readLastStep(buffer);
+                        log.info("恢复未完成的原地{}: {}, 从第{}个窗口开始", journal.mode == MODE_ENCRYPT ? "加密" : "解密", file, step);
+                        process(data, journal, decryptCipher, step, buffer);
+                    } finally {
+                        bufferPool.release(buffer);
+                    }
+                } finally {
+                    journal.close();
+                }
+            }
+        }
+        Files.delete(journalPath);
+        return recovered;
+    }
+
+    /**
+     * @param redoStep   需要用日志中的原始数据重做的窗口, -1 表示没有
+     * @param redoSource 重做窗口的原始数据
+     */
+    private void process(FileChannel data, Journal journal, CryptoCipher cipher, int redoStep, byte[] redoSource) throws IOException {
+        try {
+            long length = journal.dataLength;
+            int headerLength = journal.header.length;
+            boolean encrypt = journal.mode == MODE_ENCRYPT;
+            int windowSize = journal.windowSize;
+            int steps = (int) ((length + windowSize - 1) / windowSize);
+            if (encrypt && data.size() < length + headerLength) {
+                // 先扩展文件, 之后每个窗口的写入都不会改变文件长度
+                data.write(ByteBuffer.wrap(new byte[1]), length + headerLength - 1);
+            }
+            int step = 0;
+            if (redoStep >= 0) {
+                transform(data, journal, cipher, redoStep, steps, redoSource, false);
+                step = redoStep + 1;
+            }
+            if (step < steps) {
+                byte[] buffer = bufferPool.acquire(windowSize);
+                try {
+                    for (; step < steps; step++) {
+                        transform(data, journal, cipher, step, steps, buffer, true);
+                    }
+                } finally {
+                    bufferPool.release(buffer);
+                }
+            }
+            if (encrypt) {
+                // 数据全部后移之后写入头信息
+                ByteBuffer header = ByteBuffer.wrap(journal.header);
+                while (header.hasRemaining()) {
+                    data.write(header, header.position());
+                }
+            } else {
+                data.truncate(length);
+            }
+            data.force(true);
+        } finally {
+            journal.close();
+        }
+    }
+
+    /**
+     * 处理一个窗口: 读取原始数据 -> 写入日志并刷盘 -> 加解密 -> 写入目标位置并刷盘
+     *
+     * @param readSource 为 false 时使用 buffer 中已有的原始数据(恢复时来自日志)
+     */
+    private void transform(FileChannel data, Journal journal, CryptoCipher cipher, int step, int steps,
+                           byte[] buffer, boolean readSource) throws IOException {
+        long length = journal.dataLength;
+        int headerLength = journal.header.length;
+        int windowSize = journal.windowSize;
+        long start;
+        long end;
+        long source;
+        long target;
+        if (journal.mode == MODE_ENCRYPT) {
+            // 从后往前, 每个窗口后移 headerLength
+            end = length - (long) step * windowSize;
+            start = Math.max(0, end - windowSize);
+            source = start;
+            target = start + headerLength;
+        } else {
+            // 从前往后, 每个窗口前移 headerLength
+            start = (long) step * windowSize;
+            end = Math.min(length, start + windowSize);
+            source = start + headerLength;
+            target = start;
+        }
+        int len = (int) (end - start);
+        long mapStart = Math.min(source, target);
+        MappedByteBuffer mapped = data.map(FileChannel.MapMode.READ_WRITE, mapStart, len + (long) headerLength);
+        try {
+            if (readSource) {
+                mapped.position((int) (source - mapStart));
+                mapped.get(buffer, 0, len);
+                journal.writeStep(step, buffer, len);
+            }
+            cipher.seek(start);
+            int outputLength = cipher.update(buffer, 0, len, buffer, 0);
+            if (outputLength != len) {
+                throw new CryptoCipherException("原地加解密要求输出长度与输入相同, 输入:" + len + ", 输出:" + outputLength);
+            }
+            mapped.position((int) (target - mapStart));
+            mapped.put(buffer, 0, len);
+            mapped.force();
+        } finally {
+            MappedBuffers.unmap(mapped);
+        }
+    }
+
+    private static void initDecryptCipher(CryptoCipher decryptCipher, byte[] header) {
+        byte[] output = decryptCipher.update(header, 0, header.length);
+        if (output != null && output.length > 0) {
+            throw new CryptoCipherException("头信息解析失败");
+        }
+        checkSeekable(decryptCipher);
+    }
+
+    private static void checkSeekable(CryptoCipher cipher) {
+        if (!cipher.isSeekable()) {
+            throw new CryptoCipherException("原地加解密只支持可以seek的CryptoCipher, 并且不能开启压缩");
+        }
+    }
+
+    private static void checkNoJournal(Path file) {
+        if (Files.exists(journalPath(file))) {
+            throw new CryptoCipherException("文件[" + file + "]存在未完成的原地加解密, 请先调用 recover 恢复");
+        }
+    }
+
+    /**
+     * 日志文件
+     * <pre>
+     * | magic(4) | mode(1) | dataLength(8) | windowSize(4) | headerLength(4) | header | crc(4) | slot0 | slot1 |
+     * slot: | step(4) | length(4) | crc(4) | 窗口原始数据 |
+     * </pre>
+     */
+    private static final class Journal {
+        final FileChannel channel;
+        final byte mode;
+        final long dataLength;
+        final int windowSize;
+        final byte[] header;
+        final long slotOffset;
+
+        private Journal(FileChannel channel, byte mode, long dataLength, int windowSize, byte[] header) {
+            this.channel = channel;
+            this.mode = mode;
+            this.dataLength = dataLength;
+            this.windowSize = windowSize;
+            this.header = header;
+            this.slotOffset = 4 + 1 + 8 + 4 + 4 + header.length + 4;
+        }
+
+        static Journal create(Path path, byte mode, long dataLength, byte[] header, int windowSize) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Journal journal = new Journal(channel, mode, dataLength, windowSize, header);
+            try {
+                ByteBuffer buffer = ByteBuffer.allocate((int) journal.slotOffset);
+                buffer.putInt(JOURNAL_MAGIC).put(mode).putLong(dataLength).putInt(windowSize).putInt(header.length).put(header);
+                buffer.putInt(crc(buffer.array(), 0, buffer.position()));
+                buffer.flip();
+                writeFully(channel, buffer, 0);
+                channel.force(true);
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+            return journal;
+        }
+
+        /**
+         * @return 日志头不完整时返回 null, 说明还没有修改过数据文件
+         */
+        static Journal open(Path path) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                long size = channel.size();
+                ByteBuffer fixed = ByteBuffer.allocate(21);
+                if (size < fixed.capacity() || channel.read(fixed, 0) < fixed.capacity()) {
+                    channel.close();
+                    return null;
+                }
+                fixed.flip();
+                int magic = fixed.getInt();
+                byte mode = fixed.get();
+                long dataLength = fixed.getLong();
+                int windowSize = fixed.getInt();
+                int headerLength = fixed.getInt();
+                if (magic != JOURNAL_MAGIC || windowSize < 4096 || headerLength < 0 || headerLength > 1024 * 1024 || size < 25L + headerLength) {
+                    channel.close();
+                    return null;
+                }
+                ByteBuffer all = ByteBuffer.allocate(25 + headerLength);
+                readFully(channel, all, 0);
+                byte[] bytes = all.array();
+                int expectCrc = ByteBuffer.wrap(bytes, 21 + headerLength, 4).getInt();
+                if (crc(bytes, 0, 21 + headerLength) != expectCrc) {
+                    channel.close();
+                    return null;
+                }
+                byte[] header = new byte[headerLength];
+                System.arraycopy(bytes, 21, header, 0, headerLength);
+                return new Journal(channel, mode, dataLength, windowSize, header);
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        void writeStep(int step, byte[] data, int len) throws IOException {
+            ByteBuffer slotHeader = ByteBuffer.allocate(SLOT_HEADER_LENGTH);
+            CRC32 crc32 = new CRC32();
+            crc32.update(step >>> 24);
+            crc32.update(step >>> 16);
+            crc32.update(step >>> 8);
+            crc32.update(step);
+            crc32.update(data, 0, len);
+            slotHeader.putInt(step).putInt(len).putInt((int) crc32.getValue()).flip();
+            long offset = slotOffset + (long) (step & 1) * (SLOT_HEADER_LENGTH + windowSize);
+            writeFully(channel, slotHeader, offset);
+            writeFully(channel, ByteBuffer.wrap(data, 0, len), offset + SLOT_HEADER_LENGTH);
+            channel.force(false);
+        }
+
+        /**
+         * 读取两个槽位中有效且 step 最大的一个, 原始数据读入 buffer
+         *
+         * @return step, 都无效时返回 -1
+         */
+        int readLastStep(byte[] buffer) throws IOException {
+            int best = -1;
+            for (int slot = 0; slot < 2; slot++) {
+                long offset = slotOffset + (long) slot * (SLOT_HEADER_LENGTH + windowSize);
+                ByteBuffer slotHeader = ByteBuffer.allocate(SLOT_HEADER_LENGTH);
+                if (channel.read(slotHeader, offset) < SLOT_HEADER_LENGTH) {
+                    continue;
+                }
+                slotHeader.flip();
+                int step = slotHeader.getInt();
+                int len = slotHeader.getInt();
+                int expectCrc = slotHeader.getInt();
+                if (step <= best || (step & 1) != slot || len <= 0 || len > windowSize) {
+                    continue;
+                }
+                ByteBuffer data = ByteBuffer.allocate(len);
+                try {
+                    readFully(channel, data, offset + SLOT_HEADER_LENGTH);
+                } catch (EOFException e) {
+                    continue;
+                }
+                CRC32 crc32 = new CRC32();
+                crc32.update(step >>> 24);
+                crc32.update(step >>> 16);
+                crc32.update(step >>> 8);
+                crc32.update(step);
+                crc32.update(data.array(), 0, len);
+                if ((int) crc32.getValue() == expectCrc) {
+                    best = step;
+                    System.arraycopy(data.array(), 0, buffer, 0, len);
+                }
+            }
+            return best;
+        }
+
+        void close() throws IOException {
+            channel.close();
+        }
+
+        private static int crc(byte[] bytes, int off, int len) {
+            CRC32 crc32 = new CRC32();
+            crc32.update(bytes, off, len);
+            return (int) crc32.getValue();
+        }
+
+        private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+
+        private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new EOFException();
+                }
+                position += read;
+            }
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package cloud.tianai.crypto.cipher.compress;
+
+/**
+ * @Author: 天爱有情
+ * @date 2021/12/23 10:12
+ * @Description 压缩算法, 在内容加密之前压缩, 解密之后解压
+ * <p>
+ * 压缩算法的id会写入加密头中, 解密时根据id从 {@link CompressionCodecs} 中查找对应的算法
+ */
+public interface CompressionCodec {
+
+    /**
+     * 写入加密头中的id, 范围 1~255
+     *
+     * @return id
+     */
+    int getId();
+
+    /**
+     * 算法名称
+     *
+     * @return name
+     */
+    String getName();
+
+    /**
+     * 创建一个压缩/解压流
+     *
+     * @param model Cipher.ENCRYPT_MODE 为压缩, Cipher.DECRYPT_MODE 为解压
+     * @return CompressionStream
+     */
+    CompressionStream createStream(int model);
+}
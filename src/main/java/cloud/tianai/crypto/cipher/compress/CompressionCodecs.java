@@ -0,0 +1,48 @@
+package cloud.tianai.crypto.cipher.compress;
+
+import cloud.tianai.crypto.exception.CryptoCipherException;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @Author: 天爱有情
+ * @date 2021/12/23 10:20
+ * @Description 压缩算法注册表, 解密时根据加密头中的id查找压缩算法
+ */
+public class CompressionCodecs {
+
+    private static final Map<Integer, CompressionCodec> CODECS = new ConcurrentHashMap<>();
+
+    static {
+        register(new DeflateCompressionCodec());
+        register(new LzfCompressionCodec());
+    }
+
+    /**
+     * 注册压缩算法, id相同时覆盖
+     *
+     * @param codec 压缩算法
+     */
+    public static void register(CompressionCodec codec) {
+        int id = codec.getId();
+        if (id < 1 || id > 255) {
+            throw new IllegalArgumentException("压缩算法id必须在1~255之间: " + id);
+        }
+        CODECS.put(id, codec);
+    }
+
+    /**
+     * 根据id获取压缩算法
+     *
+     * @param id id
+     * @return CompressionCodec
+     */
+    public static CompressionCodec get(int id) {
+        CompressionCodec codec = CODECS.get(id);
+        if (codec == null) {
+            throw new CryptoCipherException("不支持的压缩算法:" + id);
+        }
+        return codec;
+    }
+}
@@ -0,0 +1,32 @@
+package cloud.tianai.crypto.cipher.compress;
+
+/**
+ * @Author: 天爱有情
+ * @date 2021/12/23 10:15
+ * @Description 有状态的压缩/解压流, 用法与 CryptoCipher 的 update/end 一致
+ */
+public interface CompressionStream {
+
+    /**
+     * 压缩/解压
+     *
+     * @param input       原字节
+     * @param inputOffset offset
+     * @param inputLen    inputLen
+     * @return 压缩/解压后的内容, 可能为空数组
+     */
+    byte[] update(byte[] input, int inputOffset, int inputLen);
+
+    /**
+     * 输出剩余的数据并释放资源, 调用后不能再使用
+     *
+     * @return 剩余的数据
+     */
+    byte[] end();
+
+    /**
+     * 不输出剩余数据直接释放资源, 用于出错或中途放弃的流, 可以重复调用, end 之后调用不做任何事
+     */
+    default void close() {
+    }
+}
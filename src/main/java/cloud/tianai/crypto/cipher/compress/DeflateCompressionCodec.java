@@ -0,0 +1,221 @@
+package cloud.tianai.crypto.cipher.compress;
+
+import cloud.tianai.crypto.exception.CryptoCipherException;
+
+import javax.crypto.Cipher;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * @Author: 天爱有情
+ * @date 2021/12/23 10:30
+ * @Description Deflate 压缩(zlib格式), Deflater/Inflater 用完后放回池中复用, 避免每个流都分配本地内存
+ */
+public class DeflateCompressionCodec implements CompressionCodec {
+
+    public static final int ID = 1;
+    /** 每种压缩级别最多缓存的 Deflater/Inflater 数量. */
+    private static final int MAX_POOL_SIZE = 16;
+    private static final int BUFFER_SIZE = 8192;
+
+    /** 下标为 level + 1. */
+    private static final List<Pool<Deflater>> DEFLATER_POOLS = newDeflaterPools();
+    private static final Pool<Inflater> INFLATER_POOL = new Pool<>();
+
+    private final int level;
+
+    public DeflateCompressionCodec() {
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param level 压缩级别 -1~9, 解压时不需要
+     */
+    public DeflateCompressionCodec(int level) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("不支持的压缩级别:" + level);
+        }
+        this.level = level;
+    }
+
+    @Override
+    public int getId() {
+        return ID;
+    }
+
+    @Override
+    public String getName() {
+        return "deflate";
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    @Override
+    public CompressionStream createStream(int model) {
+        if (Cipher.ENCRYPT_MODE == model) {
+            return new DeflateStream(level);
+        }
+        return new InflateStream();
+    }
+
+    private static List<Pool<Deflater>> newDeflaterPools() {
+        // 下标为 level + 1, 包括 DEFAULT_COMPRESSION(-1)
+        List<Pool<Deflater>> pools = new ArrayList<>(Deflater.BEST_COMPRESSION + 2);
+        for (int i = Deflater.DEFAULT_COMPRESSION; i <= Deflater.BEST_COMPRESSION; i++) {
+            pools.add(new Pool<>());
+        }
+        return pools;
+    }
+
+    static class DeflateStream implements CompressionStream {
+        private final int level;
+        private Deflater deflater;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+
+        DeflateStream(int level) {
+            this.level = level;
+            Deflater pooled = DEFLATER_POOLS.get(level + 1).poll();
+            this.deflater = pooled != null ? pooled : new Deflater(level);
+        }
+
+        @Override
+        public byte[] update(byte[] input, int inputOffset, int inputLen) {
+            if (inputLen == 0) {
+                return new byte[0];
+            }
+            if (deflater == null) {
+                throw new CryptoCipherException("压缩流已关闭");
+            }
+            deflater.setInput(input, inputOffset, inputLen);
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            while (!deflater.needsInput()) {
+                int len = deflater.deflate(buffer);
+                output.write(buffer, 0, len);
+            }
+            return output.toByteArray();
+        }
+
+        @Override
+        public byte[] end() {
+            if (deflater == null) {
+                return new byte[0];
+            }
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            try {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int len = deflater.deflate(buffer);
+                    output.write(buffer, 0, len);
+                }
+            } finally {
+                close();
+            }
+            return output.toByteArray();
+        }
+
+        @Override
+        public void close() {
+            if (deflater == null) {
+                return;
+            }
+            deflater.reset();
+            if (!DEFLATER_POOLS.get(level + 1).offer(deflater)) {
+                deflater.end();
+            }
+            deflater = null;
+        }
+    }
+
+    static class InflateStream implements CompressionStream {
+        private Inflater inflater;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+
+        InflateStream() {
+            Inflater pooled = INFLATER_POOL.poll();
+            this.inflater = pooled != null ? pooled : new Inflater();
+        }
+
+        @Override
+        public byte[] update(byte[] input, int inputOffset, int inputLen) {
+            if (inflater == null) {
+                throw new CryptoCipherException("解压流已关闭");
+            }
+            if (inputLen == 0 || inflater.finished()) {
+                return new byte[0];
+            }
+            inflater.setInput(input, inputOffset, inputLen);
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            try {
+                int len;
+                while ((len = inflater.inflate(buffer)) > 0 || !(inflater.needsInput() || inflater.finished())) {
+                    if (inflater.needsDictionary()) {
+                        throw new CryptoCipherException("解压失败, 不支持带字典的deflate数据");
+                    }
+                    output.write(buffer, 0, len);
+                }
+            } catch (DataFormatException e) {
+                throw new CryptoCipherException("解压失败, 数据格式错误", e);
+            }
+            return output.toByteArray();
+        }
+
+        @Override
+        public byte[] end() {
+            if (inflater == null) {
+                return new byte[0];
+            }
+            boolean finished = inflater.finished();
+            close();
+            if (!finished) {
+                throw new CryptoCipherException("解压失败, deflate数据不完整");
+            }
+            return new byte[0];
+        }
+
+        @Override
+        public void close() {
+            if (inflater == null) {
+                return;
+            }
+            inflater.reset();
+            if (!INFLATER_POOL.offer(inflater)) {
+                inflater.end();
+            }
+            inflater = null;
+        }
+    }
+
+    /**
+     * 有容量上限的对象池.
+     */
+    static class Pool<T> {
+        private final Queue<T> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+
+        T poll() {
+            T t = queue.poll();
+            if (t != null) {
+                size.decrementAndGet();
+            }
+            return t;
+        }
+
+        boolean offer(T t) {
+            if (size.incrementAndGet() > MAX_POOL_SIZE) {
+                size.decrementAndGet();
+                return false;
+            }
+            queue.offer(t);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package cloud.tianai.crypto.cipher.compress;
+
+import cloud.tianai.crypto.exception.CryptoCipherException;
+
+import javax.crypto.Cipher;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * @Author: 天爱有情
+ * @date 2021/12/23 11:05
+ * @Description LZF 压缩, 纯java实现, 压缩率不如 deflate, 但速度快很多, 适合对CPU敏感的场景
+ * <p>
+ * 数据按块压缩, 每块最多 65535 字节, 块的格式
+ * +------+-----------+--------------+------+
+ * | type | rawLength | storedLength | data |
+ * +------+-----------+--------------+------+
+ * type 1字节, 0为未压缩(没有 storedLength), 1为LZF压缩; 长度都是2字节无符号数
+ * <p>
+ * LZF 的指令格式:
+ * 000LLLLL                      字面量, 后面跟 L+1 个字节
+ * LLLooooo oooooooo             回溯引用, 长度 L+2, 偏移 o+1
+ * 111ooooo LLLLLLLL oooooooo    回溯引用, 长度 L+9, 偏移 o+1
+ */
+public class LzfCompressionCodec implements CompressionCodec {
+
+    public static final int ID = 2;
+    static final int MAX_BLOCK_SIZE = 0xFFFF;
+    static final int TYPE_RAW = 0;
+    static final int TYPE_COMPRESSED = 1;
+    private static final int HEADER_RAW_LENGTH = 3;
+    private static final int HEADER_COMPRESSED_LENGTH = 5;
+
+    private static final int HASH_LOG = 14;
+    private static final int MAX_LITERAL = 32;
+    private static final int MAX_OFFSET = 1 << 13;
+    private static final int MAX_REF = (1 << 8) + (1 << 3);
+
+    @Override
+    public int getId() {
+        return ID;
+    }
+
+    @Override
+    public String getName() {
+        return "lzf";
+    }
+
+    @Override
+    public CompressionStream createStream(int model) {
+        if (Cipher.ENCRYPT_MODE == model) {
+            return new CompressStream();
+        }
+        return new DecompressStream();
+    }
+
+    /**
+     * 压缩一块数据
+     *
+     * @param input     原数据
+     * @param inOff     offset
+     * @param inLen     长度
+     * @param output    输出, 长度至少为 outOff + inLen
+     * @param outOff    输出的offset
+     * @param hashTable hash表, 长度为 1 << HASH_LOG
+     * @return 压缩后的长度, 压缩后不比原数据短时返回 -1
+     */
+    static int compress(byte[] input, int inOff, int inLen, byte[] output, int outOff, int[] hashTable) {
+        Arrays.fill(hashTable, -1);
+        int limit = outOff + inLen;
+        int op = outOff;
+        int anchor = inOff;
+        int ip = inOff;
+        int inEnd = inOff + inLen;
+        int matchEnd = inEnd - 2;
+        while (ip < matchEnd) {
+            int seq = read3(input, ip);
+            int slot = hash(seq);
+            int ref = hashTable[slot];
+            hashTable[slot] = ip;
+            if (ref < 0 || ip - ref > MAX_OFFSET || read3(input, ref) != seq) {
+                ip++;
+                continue;
+            }
+            int maxLen = Math.min(inEnd - ip, MAX_REF);
+            int len = 3;
+            while (len < maxLen && input[ref + len] == input[ip + len]) {
+                len++;
+            }
+            op = writeLiterals(input, anchor, ip - anchor, output, op, limit);
+            if (op < 0 || op + 3 > limit) {
+                return -1;
+            }
+            int off = ip - ref - 1;
+            int l = len - 2;
+            if (l < 7) {
+                output[op++] = (byte) ((l << 5) | (off >>> 8));
+            } else {
+                output[op++] = (byte) ((7 << 5) | (off >>> 8));
+                output[op++] = (byte) (l - 7);
+            }
+            output[op++] = (byte) off;
+            ip += len;
+            anchor = ip;
+            // 只记录匹配结尾处的位置, 兼顾速度和压缩率
+            if (ip < matchEnd) {
+                hashTable[hash(read3(input, ip - 1))] = ip - 1;
+            }
+        }
+        op = writeLiterals(input, anchor, inEnd - anchor, output, op, limit);
+        if (op < 0 || op >= limit) {
+            return -1;
+        }
+        return op - outOff;
+    }
+
+    /**
+     * 解压一块数据
+     *
+     * @return 解压后的长度
+     */
+    static int decompress(byte[] input, int inOff, int inLen, byte[] output, int outOff, int outLen) {
+        int ip = inOff;
+        int inEnd = inOff + inLen;
+        int op = outOff;
+        int outEnd = outOff + outLen;
+        while (ip < inEnd) {
+            int ctrl = input[ip++] & 0xFF;
+            if (ctrl < MAX_LITERAL) {
+                int run = ctrl + 1;
+                if (ip + run > inEnd || op + run > outEnd) {
+                    throw new CryptoCipherException("解压失败, lzf数据格式错误");
+                }
+                System.arraycopy(input, ip, output, op, run);
+                ip += run;
+                op += run;
+                continue;
+            }
+            int len = ctrl >>> 5;
+            if (len == 7) {
+                if (ip >= inEnd) {
+                    throw new CryptoCipherException("解压失败, lzf数据格式错误");
+                }
+                len += input[ip++] & 0xFF;
+            }
+            len += 2;
+            if (ip >= inEnd) {
+                throw new CryptoCipherException("解压失败, lzf数据格式错误");
+            }
+            int ref = op - ((ctrl & 0x1F) << 8) - (input[ip++] & 0xFF) - 1;
+            if (ref < outOff || op + len > outEnd) {
+                throw new CryptoCipherException("解压失败, lzf数据格式错误");
+            }
+            if (op - ref >= len) {
+                System.arraycopy(output, ref, output, op, len);
+                op += len;
+            } else {
+                // 引用与输出重叠, 逐字节复制
+                for (int i = 0; i < len; i++) {
+                    output[op++] = output[ref++];
+                }
+            }
+        }
+        return op - outOff;
+    }
+
+    private static int writeLiterals(byte[] input, int from, int len, byte[] output, int op, int limit) {
+        while (len > 0) {
+            int run = Math.min(len, MAX_LITERAL);
+            if (op + 1 + run > limit) {
+                return -1;
+            }
+            output[op++] = (byte) (run - 1);
+            System.arraycopy(input, from, output, op, run);
+            op += run;
+            from += run;
+            len -= run;
+        }
+        return op;
+    }
+
+    private static int read3(byte[] b, int i) {
+        return (b[i] & 0xFF) << 16 | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF);
+    }
+
+    private static int hash(int seq) {
+        return (seq * 0x9E3779B1) >>> (32 - HASH_LOG);
+    }
+
+    static class CompressStream implements CompressionStream {
+        private final byte[] block = new byte[MAX_BLOCK_SIZE];
+        private final byte[] compressed = new byte[MAX_BLOCK_SIZE];
+        private final int[] hashTable = new int[1 << HASH_LOG];
+        private int blockLen;
+
+        @Override
+        public byte[] update(byte[] input, int inputOffset, int inputLen) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            while (inputLen > 0) {
+                int len = Math.min(inputLen, MAX_BLOCK_SIZE - blockLen);
+                System.arraycopy(input, inputOffset, block, blockLen, len);
+                blockLen += len;
+                inputOffset += len;
+                inputLen -= len;
+                if (blockLen == MAX_BLOCK_SIZE) {
+                    writeBlock(output);
+                }
+            }
+            return output.toByteArray();
+        }
+
+        @Override
+        public byte[] end() {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            if (blockLen > 0) {
+                writeBlock(output);
+            }
+            return output.toByteArray();
+        }
+
+        private void writeBlock(ByteArrayOutputStream output) {
+            int len = compress(block, 0, blockLen, compressed, 0, hashTable);
+            if (len < 0) {
+                output.write(TYPE_RAW);
+                output.write(blockLen >>> 8);
+                output.write(blockLen);
+                output.write(block, 0, blockLen);
+            } else {
+                output.write(TYPE_COMPRESSED);
+                output.write(blockLen >>> 8);
+                output.write(blockLen);
+                output.write(len >>> 8);
+                output.write(len);
+                output.write(compressed, 0, len);
+            }
+            blockLen = 0;
+        }
+    }
+
+    static class DecompressStream implements CompressionStream {
+        /** 未凑满一块的数据. */
+        private final byte[] pending = new byte[HEADER_COMPRESSED_LENGTH + MAX_BLOCK_SIZE];
+        private final byte[] block = new byte[MAX_BLOCK_SIZE];
+        private int pendingLen;
+
+        @Override
+        public byte[] update(byte[] input, int inputOffset, int inputLen) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            while (inputLen > 0) {
+                int need = frameLength() - pendingLen;
+                int len = Math.min(inputLen, need);
+                System.arraycopy(input, inputOffset, pending, pendingLen, len);
+                pendingLen += len;
+                inputOffset += len;
+                inputLen -= len;
+                // 头信息凑齐后 frameLength 会变长, 需要重新计算
+                if (pendingLen == frameLength()) {
+                    readFrame(output);
+                }
+            }
+            return output.toByteArray();
+        }
+
+        @Override
+        public byte[] end() {
+            if (pendingLen > 0) {
+                pendingLen = 0;
+                throw new CryptoCipherException("解压失败, lzf数据不完整");
+            }
+            return new byte[0];
+        }
+
+        /**
+         * 当前块的总长度, 头信息未凑齐时返回头信息的长度
+         */
+        private int frameLength() {
+            if (pendingLen < 1) {
+                return 1;
+            }
+            int type = pending[0];
+            if (type == TYPE_RAW) {
+                return pendingLen < HEADER_RAW_LENGTH ? HEADER_RAW_LENGTH : HEADER_RAW_LENGTH + readShort(1);
+            }
+            if (type != TYPE_COMPRESSED) {
+                throw new CryptoCipherException("解压失败, 未知的lzf块类型:" + type);
+            }
+            return pendingLen < HEADER_COMPRESSED_LENGTH ? HEADER_COMPRESSED_LENGTH : HEADER_COMPRESSED_LENGTH + readShort(3);
+        }
+
+        private void readFrame(ByteArrayOutputStream output) {
+            int rawLength = readShort(1);
+            if (pending[0] == TYPE_RAW) {
+                output.write(pending, HEADER_RAW_LENGTH, rawLength);
+            } else {
+                int storedLength = readShort(3);
+                int len = decompress(pending, HEADER_COMPRESSED_LENGTH, storedLength, block, 0, rawLength);
+                if (len != rawLength) {
+                    throw new CryptoCipherException("解压失败, lzf块长度不一致");
+                }
+                output.write(block, 0, len);
+            }
+            pendingLen = 0;
+        }
+
+        private int readShort(int index) {
+            return (pending[index] & 0xFF) << 8 | (pending[index + 1] & 0xFF);
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package cloud.tianai.crypto.cipher.core;
 
+import cloud.tianai.crypto.cipher.compress.CompressionCodec;
+import cloud.tianai.crypto.cipher.compress.CompressionCodecs;
+import cloud.tianai.crypto.cipher.compress.CompressionStream;
 import cloud.tianai.crypto.exception.CryptoCipherException;
 import cloud.tianai.crypto.stream.CipherInputStream;
 import lombok.AllArgsConstructor;
@@ -14,7 +17,13 @@ import javax.crypto.spec.SecretKeySpec;
 import java.io.*;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Supplier;
 
 /**
  * @Author: 天爱有情
@@ -25,14 +34,47 @@ import java.util.Arrays;
  * +---------+-----------+----------+---------+--------+------+
  * | version | cekLength | ivLength | cekData | ivData | data |
  * +---------+-----------+----------+---------+--------+------+
+ * <p>
+ * version 的低16位为版本号, 高16位为标识位; 带有 {@link #FLAG_COMPRESSED} 标识时, version 后面跟1字节的压缩算法id,
+ * 内容先压缩再加密, 解密时根据压缩算法id自动解压
+ * <p>
+ * 带有 {@link #FLAG_MULTI_RECIPIENT} 标识时为多接收方格式, 内容只加密一次, 每个接收方一份加密后的 iv 和 cek,
+ * 解密时根据 keyId 选择自己的那一份
+ * +---------+--------------+-------------------------------------------------------------+------+
+ * | version | recipientCnt | keyIdLength(2) | keyId | ivLength | cekLength | ivData | cekData | ... | data |
+ * +---------+--------------+-------------------------------------------------------------+------+ * <p>
+ * 头信息的读写统一由 {@link EnvelopeHeader} 完成
  */
 @Slf4j
 public abstract class AbstractCryptoCipher extends SimpleCryptoCipher {
+    /** 版本号中的标识位: 内容已压缩. */
+    public static final int FLAG_COMPRESSED = 1 << 16;
+    /** 版本号中的标识位: 多接收方. */
+    public static final int FLAG_MULTI_RECIPIENT = 1 << 17;
+    /** 多接收方的最大数量. */
+    public static final int MAX_RECIPIENTS = 1024;
+    /** 版本号所在的低16位. */
+    public static final int VERSION_MASK = 0xFFFF;
+
     byte[] iv;
     SecretKey secretKey;
     EncryptData encryptData;
     Cipher internalCipher;
     byte[] headerData;
+    /** 已经过 internalCipher 处理的数据长度, 用于CTR模式下的 seek. */
+    long position;
+    /** 是否已经调用过 end, seek 后重置. */
+    boolean ended;
+    /** 压缩算法, 加密时由外部设置, 解密时从头信息中读取. */
+    CompressionCodec compressionCodec;
+    /** 压缩/解压流, 为空时不压缩. */
+    CompressionStream compressionStream;
+    /** 当前外层密码对应的秘钥id, 多接收方格式下解密时根据它选择接收方. */
+    String keyId;
+    /** 多接收方加密时除当前外层密码之外的接收方. */
+    List<Recipient> recipients = new ArrayList<>();
+    /** 多接收方加密时每个接收方加密后的 iv 和 cek, 为空时为单接收方格式. */
+    List<EncryptData> recipientData;
     /** 帮助初始化 internalCipher， internalCipher初始化完后清除该数据.*/
     private ByteArrayOutputStream beforeInputData = new ByteArrayOutputStream();
 
@@ -42,12 +84,20 @@ public abstract class AbstractCryptoCipher extends SimpleCryptoCipher {
 
     }
 
+    /**
+     * @param cipherSupplier 外层密码, 每次加解密CEK时获取, 比如每个线程一个 Cipher
+     * @param model          model
+     */
+    public AbstractCryptoCipher(Supplier<Cipher> cipherSupplier, int model) {
+        super(cipherSupplier, model);
+    }
+
     @Override
     @SneakyThrows(IOException.class)
     public byte[] update(byte[] input, int inputOffset, int inputLen) {
         // 判断是否已经初始化
         if (internalCipher != null) {
-            return internalCipher.update(input, inputOffset, inputLen);
+            return contentUpdate(input, inputOffset, inputLen);
         }
         // 记录更新来的数据
         beforeInputData.write(input, inputOffset, inputLen);
@@ -78,6 +128,28 @@ public abstract class AbstractCryptoCipher extends SimpleCryptoCipher {
         return update(headerBytes, useLength, headerBytes.length - useLength);
     }
 
+    @Override
+    @SneakyThrows(ShortBufferException.class)
+    public int update(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset) {
+        if (internalCipher == null || compressionStream != null) {
+            // 头信息还未处理完或者需要压缩, 走常规逻辑
+            byte[] result = update(input, inputOffset, inputLen);
+            System.arraycopy(result, 0, output, outputOffset, result.length);
+            return result.length;
+        }
+        position += inputLen;
+        return internalCipher.update(input, inputOffset, inputLen, output, outputOffset);
+    }
+
+    @Override
+    public int getOutputSize(int inputLen) {
+        if (internalCipher == null || compressionStream != null) {
+            // 还未初始化时输出中可能带有头信息, 压缩后的长度也无法预估
+            return -1;
+        }
+        return internalCipher.getOutputSize(inputLen);
+    }
+
     @SneakyThrows
     protected void tryInitCipher(InputStream inputStream) {
         if (Cipher.ENCRYPT_MODE == getModel()) {
@@ -89,9 +161,10 @@ public abstract class AbstractCryptoCipher extends SimpleCryptoCipher {
             encryptData = tryGetEncryptData(inputStream);
             if (encryptData != null && internalCipher == null) {
                 // 初始化解密
-                cipher = createDecryptCipher();
-                // 赋值
-                this.internalCipher = cipher;
+                this.internalCipher = createDecryptCipher();
+                if (compressionCodec != null) {
+                    compressionStream = compressionCodec.createStream(Cipher.DECRYPT_MODE);
+                }
             }
         }
     }
@@ -103,48 +176,168 @@ public abstract class AbstractCryptoCipher extends SimpleCryptoCipher {
             inputStream = ((CipherInputStream) inputStream).getDelegateStream();
         }
         DataInputStream dataInputStream = new DataInputStream(inputStream);
-        // 版本号
+        // 跳过版本匹配时也要读取标识位, 否则压缩、多接收方的头信息会被当成普通格式解析
         boolean matchVersion = skipCheckVersion();
-        Integer version = null;
-        if (!matchVersion) {
-            // 不至于第一个int都读不到吧... 233
-            version = dataInputStream.readInt();
-            if (getVersion() != version) {
-                // 如果不是 v1 版本，那就抛个异常
-                throw new CryptoCipherException("不支持的加密版本:" + version);
-            }
-        }
-        byte[] encryptedIV;
-        byte[] encryptedCEK;
+        EnvelopeHeader header;
         try {
-            int encryptIvLength = dataInputStream.readInt();
-            int encryptCekLength = dataInputStream.readInt();
-            encryptedIV = new byte[encryptIvLength];
-            encryptedCEK = new byte[encryptCekLength];
-            dataInputStream.readFully(encryptedIV);
-            dataInputStream.readFully(encryptedCEK);
+            // CipherOutputStream 每次写入的数据可能不足一个完整的头信息
+            header = EnvelopeHeader.read(dataInputStream, version -> {
+                if (!matchVersion && !acceptVersion(version)) {
+                    // 不支持的版本，那就抛个异常
+                    throw new CryptoCipherException("不支持的加密版本:" + version);
+                }
+            });
         } catch (EOFException e) {
             // 数据不够，读取失败
             return null;
         }
-
-        EncryptData encryptData = new EncryptData(encryptedIV, encryptedCEK);
+        EncryptData encryptData = header.isMultiRecipient() ? selectRecipient(header) : header.getRecipients().get(0);
+        this.compressionCodec = header.getCodecId() < 0 ? null : CompressionCodecs.get(header.getCodecId());
 
         if (log.isDebugEnabled()) {
-            log.debug("init AES Decrypt Cipher \r\n version:{}\r\n encryptIV:{}, \r\n encryptCEK:{}",
-                    version,
-                    Arrays.toString(encryptedIV),
-                    Arrays.toString(encryptedCEK));
+            log.debug("init AES Decrypt Cipher \r\n version:{}\r\n keyId:{}\r\n encryptIV:{}, \r\n encryptCEK:{}",
+                    header.getVersion(),
+                    encryptData.getKeyId(),
+                    Arrays.toString(encryptData.getEncryptedIV()),
+                    Arrays.toString(encryptData.getEncryptedCEK()));
         }
         return encryptData;
     }
 
+    /**
+     * 返回 keyId 与当前 keyId 相同的接收方
+     */
+    private EncryptData selectRecipient(EnvelopeHeader header) {
+        String expectKeyId = keyId == null ? "" : keyId;
+        for (EncryptData data : header.getRecipients()) {
+            if (expectKeyId.equals(data.getKeyId())) {
+                return data;
+            }
+        }
+        throw new CryptoCipherException("头信息中没有keyId为[" + expectKeyId + "]的接收方");
+    }
+
     @Override
     public byte[] end() throws IllegalBlockSizeException, BadPaddingException {
-        if (internalCipher == null) {
+        if (internalCipher == null || ended) {
             return new byte[0];
         }
-        return internalCipher.doFinal();
+        // end 可能被调用多次(比如读到流末尾后又 close), JDK 的 ChaCha20 加密模式 doFinal 后不能再次使用
+        ended = true;
+        if (compressionStream == null) {
+            return internalCipher.doFinal();
+        }
+        CompressionStream stream = compressionStream;
+        compressionStream = null;
+        try {
+            if (Cipher.ENCRYPT_MODE == getModel()) {
+                return concat(internalCipher.update(stream.end()), internalCipher.doFinal());
+            }
+            byte[] plain = internalCipher.doFinal();
+            byte[] output = plain == null ? new byte[0] : stream.update(plain, 0, plain.length);
+            return concat(output, stream.end());
+        } finally {
+            // doFinal 或解压失败时 stream.end 不会执行, 在这里释放 Deflater/Inflater
+            stream.close();
+        }
+    }
+
+    /**
+     * 使用 internalCipher 加解密, 需要压缩时加密前压缩, 解密后解压
+     */
+    private byte[] contentUpdate(byte[] input, int inputOffset, int inputLen) {
+        position += inputLen;
+        if (compressionStream == null) {
+            return internalCipher.update(input, inputOffset, inputLen);
+        }
+        try {
+            if (Cipher.ENCRYPT_MODE == getModel()) {
+                byte[] compressed = compressionStream.update(input, inputOffset, inputLen);
+                return compressed.length == 0 ? compressed : internalCipher.update(compressed);
+            }
+            byte[] plain = internalCipher.update(input, inputOffset, inputLen);
+            return plain == null ? new byte[0] : compressionStream.update(plain, 0, plain.length);
+        } catch (RuntimeException e) {
+            // 出错后流不会再继续使用, 立即释放压缩流, 之后的 end 不再输出
+            compressionStream.close();
+            ended = true;
+            throw e;
+        }
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        if (a == null || a.length == 0) {
+            return b;
+        }
+        if (b == null || b.length == 0) {
+            return a;
+        }
+        byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    /**
+     * 设置压缩算法, 只对加密生效, 需要在开始加密之前设置; 解密时会根据头信息自动解压
+     *
+     * @param compressionCodec 压缩算法, 为空时不压缩
+     */
+    public void setCompressionCodec(CompressionCodec compressionCodec) {
+        if (internalCipher != null) {
+            throw new CryptoCipherException("CryptoCipher已经初始化, 无法设置压缩算法");
+        }
+        this.compressionCodec = compressionCodec;
+    }
+
+    public CompressionCodec getCompressionCodec() {
+        return compressionCodec;
+    }
+
+    /**
+     * 设置当前外层密码对应的秘钥id.
+     * 加密时设置了 keyId 或添加了接收方就使用多接收方格式; 解密多接收方格式时根据 keyId 选择接收方, 为空时匹配空字符串
+     *
+     * @param keyId 秘钥id, 按 UTF-8 编码后不能超过 {@link Recipient#MAX_KEY_ID_LENGTH}
+     */
+    public void setKeyId(String keyId) {
+        if (internalCipher != null) {
+            throw new CryptoCipherException("CryptoCipher已经初始化, 无法设置keyId");
+        }
+        if (keyId != null && keyId.getBytes(StandardCharsets.UTF_8).length > Recipient.MAX_KEY_ID_LENGTH) {
+            throw new IllegalArgumentException("keyId过长: " + keyId.length());
+        }
+        this.keyId = keyId;
+    }
+
+    public String getKeyId() {
+        return keyId;
+    }
+
+    /**
+     * 添加接收方, 只对加密生效, 内容只加密一次, cek 和 iv 用每个接收方的外层密码各加密一份
+     *
+     * @param recipient 接收方
+     */
+    public void addRecipient(Recipient recipient) {
+        if (internalCipher != null) {
+            throw new CryptoCipherException("CryptoCipher已经初始化, 无法添加接收方");
+        }
+        recipients.add(Objects.requireNonNull(recipient, "recipient"));
+    }
+
+    public List<Recipient> getRecipients() {
+        return Collections.unmodifiableList(recipients);
+    }
+
+    /**
+     * recreate 时把压缩算法、keyId、接收方等设置复制到新的实例
+     *
+     * @param target 新的实例
+     */
+    protected void copySettingsTo(AbstractCryptoCipher target) {
+        target.setCompressionCodec(compressionCodec);
+        target.setKeyId(keyId);
+        recipients.forEach(target::addRecipient);
     }
 
     @Override
@@ -168,6 +361,109 @@ public abstract class AbstractCryptoCipher extends SimpleCryptoCipher {
 //        return getHeaderData(source.getDelegateStream());
     }
 
+    /**
+     * 压缩后的数据无法按位置定位; 解密时头信息读取之前还不知道是否压缩, 也返回false
+     */
+    @Override
+    public boolean isSeekable() {
+        if (compressionCodec != null || (Cipher.DECRYPT_MODE == getModel() && internalCipher == null)) {
+            return false;
+        }
+        return isCounterMode();
+    }
+
+    @Override
+    public long getPosition() {
+        return internalCipher == null ? -1 : position;
+    }
+
+    @Override
+    public void seek(long position) {
+        if (!isSeekable()) {
+            throw new UnsupportedOperationException("内容加密算法[" + getContentCipherAlgorithm() + "]不支持seek");
+        }
+        if (internalCipher == null) {
+            throw new CryptoCipherException("CryptoCipher还未初始化, 无法seek");
+        }
+        if (position < 0) {
+            throw new IllegalArgumentException("position不能小于0: " + position);
+        }
+        // 复用已经解出的 iv 和 cek, 只重新计算计数器
+        this.internalCipher = createContentCipherAt(position);
+        this.position = position;
+        this.ended = false;
+    }
+
+    /**
+     * 内容加密算法是否为计数器模式, 计数器模式下可以根据偏移量直接计算出计数器
+     *
+     * @return boolean
+     */
+    protected boolean isCounterMode() {
+        String algorithm = getContentCipherAlgorithm();
+        return algorithm != null && algorithm.toUpperCase().contains("/CTR/");
+    }
+
+    /**
+     * 创建从指定位置开始加解密的内容Cipher, 计数器 = iv + position / 块大小, 块内偏移的部分直接丢弃
+     *
+     * @param position 数据位置
+     * @return Cipher
+     */
+    @SneakyThrows
+    protected Cipher createContentCipherAt(long position) {
+        int blockSize = iv.length;
+        byte[] counter = addCounter(iv, position / blockSize);
+        Cipher contentCipher = createCryptoCipherFromContentMaterial(counter, secretKey, model);
+        int remainder = (int) (position % blockSize);
+        if (remainder > 0) {
+            contentCipher.update(new byte[remainder]);
+        }
+        return contentCipher;
+    }
+
+    /**
+     * @return 内容加密的 iv, 初始化之前为空
+     */
+    protected byte[] getIv() {
+        return iv;
+    }
+
+    /**
+     * @return 内容加密的秘钥(CEK), 初始化之前为空
+     */
+    protected SecretKey getSecretKey() {
+        return secretKey;
+    }
+
+    /**
+     * 大端序的计数器加法
+     *
+     * @param iv     初始计数器
+     * @param blocks 增加的块数
+     * @return 新的计数器
+     */
+    protected static byte[] addCounter(byte[] iv, long blocks) {
+        byte[] counter = iv.clone();
+        long carry = blocks;
+        for (int i = counter.length - 1; i >= 0 && carry != 0; i--) {
+            long sum = (counter[i] & 0xFF) + (carry & 0xFF);
+            counter[i] = (byte) sum;
+            carry = (carry >>> 8) + (sum >>> 8);
+        }
+        return counter;
+    }
+
+    /**
+     * 解密时读取到版本号后调用, 返回false时抛出不支持的版本异常, 子类可以根据版本号选择内容加密算法
+     *
+     * @param version 头信息中的版本号, 不含标识位
+     * @return 是否支持该版本
+     */
+    protected boolean acceptVersion(int version) {
+        return getVersion() == version;
+    }
+
     /**
      * 读取并匹配版本之前，返回true跳过匹配版本
      *
@@ -183,8 +479,9 @@ public abstract class AbstractCryptoCipher extends SimpleCryptoCipher {
         // 解密向量
         byte[] encryptedIV = encryptData.getEncryptedIV();
         byte[] encryptedCEK = encryptData.getEncryptedCEK();
-        this.iv = getCipher().doFinal(encryptedIV);
-        byte[] cekBytes = getCipher().doFinal(encryptedCEK);
+        Cipher cipher = getCipher();
+        this.iv = cipher.doFinal(encryptedIV);
+        byte[] cekBytes = cipher.doFinal(encryptedCEK);
         this.secretKey = new SecretKeySpec(cekBytes, getAlgorithm());
         return createCryptoCipherFromContentMaterial(this.iv, this.secretKey, model);
     }
@@ -195,42 +492,48 @@ public abstract class AbstractCryptoCipher extends SimpleCryptoCipher {
         this.iv = generateIV();
         this.secretKey = generateCEK();
         this.internalCipher = createCryptoCipherFromContentMaterial(this.iv, this.secretKey, model);
+        if (compressionCodec != null) {
+            compressionStream = compressionCodec.createStream(Cipher.ENCRYPT_MODE);
+        }
         encryptData = new EncryptData();
+        Cipher cipher = getCipher();
         encryptData.setEncryptedIV(cipher.doFinal(this.iv));
         encryptData.setEncryptedCEK(cipher.doFinal(this.secretKey.getEncoded()));
+        if (keyId != null || !recipients.isEmpty()) {
+            encryptData.setKeyId(keyId == null ? "" : keyId);
+            recipientData = new ArrayList<>(recipients.size() + 1);
+            recipientData.add(encryptData);
+            for (Recipient recipient : recipients) {
+                Cipher recipientCipher = recipient.getCipher().get();
+                recipientData.add(new EncryptData(recipientCipher.doFinal(this.iv),
+                        recipientCipher.doFinal(this.secretKey.getEncoded()),
+                        recipient.getKeyId()));
+            }
+            if (recipientData.size() > MAX_RECIPIENTS) {
+                throw new CryptoCipherException("接收方数量不能超过" + MAX_RECIPIENTS);
+            }
+        }
         return internalCipher;
     }
 
-    @SneakyThrows
     protected byte[] getEncryptHeaderBytes() {
-        byte[] encryptedCEK = encryptData.getEncryptedCEK();
-        byte[] encryptedIV = encryptData.getEncryptedIV();
-        int encryptCekLength = encryptedCEK.length;
-        int encryptIvLength = encryptedIV.length;
-
-        ByteArrayOutputStream output = new ByteArrayOutputStream(12 + encryptCekLength + encryptIvLength);
-        DataOutputStream dataOutputStream = new DataOutputStream(output);
-
-        // 版本号
-        dataOutputStream.writeInt(getVersion());
-        // 加密的IV 的长度
-        dataOutputStream.writeInt(encryptedIV.length);
-        // 加密的 cek的长度
-        dataOutputStream.writeInt(encryptedCEK.length);
-        // 加密的 IV 的内容
-        dataOutputStream.write(encryptedIV);
-        // 加密的 cek的内容
-        dataOutputStream.write(encryptedCEK);
+        int flags = 0;
+        if (compressionCodec != null) {
+            flags |= FLAG_COMPRESSED;
+        }
+        if (recipientData != null) {
+            flags |= FLAG_MULTI_RECIPIENT;
+        }
+        int codecId = compressionCodec == null ? -1 : compressionCodec.getId();
+        List<EncryptData> recipients = recipientData == null ? Collections.singletonList(encryptData) : recipientData;
+        EnvelopeHeader header = new EnvelopeHeader(getVersion(), flags, codecId, recipients);
 
         if (log.isDebugEnabled()) {
             log.debug("init AES Encrypt Cipher \r\n encryptIV:{}, \r\n encryptCEK:{}",
-                    Arrays.toString(encryptedIV),
-                    Arrays.toString(encryptedCEK));
+                    Arrays.toString(encryptData.getEncryptedIV()),
+                    Arrays.toString(encryptData.getEncryptedCEK()));
         }
-
-        dataOutputStream.flush();
-        dataOutputStream.close();
-        return output.toByteArray();
+        return header.toByteArray();
     }
 
     @SneakyThrows
@@ -275,6 +578,13 @@ public abstract class AbstractCryptoCipher extends SimpleCryptoCipher {
     public static class EncryptData {
         byte[] encryptedIV;
         byte[] encryptedCEK;
+        /** 多接收方格式下接收方的秘钥id. */
+        String keyId;
+
+        public EncryptData(byte[] encryptedIV, byte[] encryptedCEK) {
+            this.encryptedIV = encryptedIV;
+            this.encryptedCEK = encryptedCEK;
+        }
     }
 
     protected SecureRandom getRandom() {
@@ -42,6 +42,36 @@ public interface CryptoCipher {
      */
     byte[] update(byte[] input, int inputOffset, int inputLen);
 
+    /**
+     * 加解密执行的函数, 直接把结果写入到调用方提供的 output 中, 避免额外的数组分配和拷贝
+     * 调用方需保证 output 剩余空间不小于 {@link #getOutputSize(int)} 返回的长度
+     *
+     * @param input        原字节
+     * @param inputOffset  offset
+     * @param inputLen     inputLen
+     * @param output       输出的字节数组, 允许和 input 为同一个数组(原地加解密)
+     * @param outputOffset output的offset
+     * @return 写入 output 的长度
+     */
+    default int update(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset) {
+        byte[] result = update(input, inputOffset, inputLen);
+        if (result == null || result.length == 0) {
+            return 0;
+        }
+        System.arraycopy(result, 0, output, outputOffset, result.length);
+        return result.length;
+    }
+
+    /**
+     * 预估 update 输入 inputLen 长度的数据后输出的最大长度
+     *
+     * @param inputLen 输入长度
+     * @return 输出的最大长度, 无法预估时返回 -1
+     */
+    default int getOutputSize(int inputLen) {
+        return -1;
+    }
+
     byte[] earlyLoadingHeaderData(CipherInputStream source);
 
     /**
@@ -67,4 +97,31 @@ public interface CryptoCipher {
      * @return int
      */
     int getVersion();
+
+    /**
+     * 是否支持随机定位(比如CTR模式可以直接根据偏移量计算计数器), 支持时 CipherInputStream 的 skip/reset 无需逐字节解密
+     *
+     * @return boolean
+     */
+    default boolean isSeekable() {
+        return false;
+    }
+
+    /**
+     * 获取当前已处理的数据位置(不包含头信息)
+     *
+     * @return 位置, 未初始化或不支持时返回 -1
+     */
+    default long getPosition() {
+        return -1;
+    }
+
+    /**
+     * 定位到数据的指定位置(不包含头信息), 后续 update 从该位置开始加解密
+     *
+     * @param position 位置
+     */
+    default void seek(long position) {
+        throw new UnsupportedOperationException("当前CryptoCipher不支持seek");
+    }
 }
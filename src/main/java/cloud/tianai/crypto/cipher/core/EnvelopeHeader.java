@@ -0,0 +1,189 @@
+package cloud.tianai.crypto.cipher.core;
+
+import cloud.tianai.crypto.cipher.core.AbstractCryptoCipher.EncryptData;
+import cloud.tianai.crypto.exception.CryptoCipherException;
+import lombok.Getter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+import static cloud.tianai.crypto.cipher.core.AbstractCryptoCipher.*;
+
+/**
+ * @Author: 天爱有情
+ * @date 2021/12/29 15:30
+ * @Description AbstractCryptoCipher 加密数据的头信息, 只解析格式, 不解密其中的 iv 和 cek
+ * <p>
+ * 头信息的格式只在这里解析和写入, AbstractCryptoCipher 加解密时也通过这里读写
+ * <p>
+ * 用于不解密内容直接处理头信息的场景, 比如更换外层秘钥时只重新加密头信息中的 iv 和 cek, 见 HeaderRewrapper
+ */
+@Getter
+public class EnvelopeHeader {
+
+    /** 加密后的 iv、cek 的最大长度, 超过时认为头信息已损坏. */
+    static final int MAX_ENCRYPTED_LENGTH = 64 * 1024;
+
+    /** 版本号, 不含标识位. */
+    private final int version;
+    /** 标识位, FLAG_COMPRESSED、FLAG_MULTI_RECIPIENT. */
+    private final int flags;
+    /** 压缩算法id, 未压缩时为 -1. */
+    private final int codecId;
+    /** 加密后的 iv 和 cek, 单接收方格式时只有一个且 keyId 为空. */
+    private final List<EncryptData> recipients;
+
+    public EnvelopeHeader(int version, int flags, int codecId, List<EncryptData> recipients) {
+        if (recipients.isEmpty() || recipients.size() > MAX_RECIPIENTS) {
+            throw new IllegalArgumentException("接收方数量错误:" + recipients.size());
+        }
+        if ((flags & FLAG_MULTI_RECIPIENT) == 0 && recipients.size() != 1) {
+            throw new IllegalArgumentException("单接收方格式只能有一个接收方");
+        }
+        this.version = version;
+        this.flags = flags;
+        this.codecId = codecId;
+        this.recipients = Collections.unmodifiableList(new ArrayList<>(recipients));
+    }
+
+    /**
+     * 读取头信息, 读取完成后 inputStream 正好位于内容的开始位置
+     *
+     * @param inputStream 输入流
+     * @return EnvelopeHeader
+     * @throws java.io.EOFException 数据不足一个完整的头信息
+     */
+    public static EnvelopeHeader read(DataInputStream inputStream) throws IOException {
+        return read(inputStream, version -> {
+        });
+    }
+
+    /**
+     * 读取头信息, 读取完成后 inputStream 正好位于内容的开始位置
+     *
+     * @param inputStream  输入流
+     * @param versionCheck 读到版本号后立即调用, 不支持的版本直接抛出异常, 不再读取后面的数据
+     * @return EnvelopeHeader
+     * @throws java.io.EOFException 数据不足一个完整的头信息
+     */
+    public static EnvelopeHeader read(DataInputStream inputStream, IntConsumer versionCheck) throws IOException {
+        int version = inputStream.readInt();
+        int flags = version & ~VERSION_MASK;
+        version &= VERSION_MASK;
+        versionCheck.accept(version);
+        if ((flags & ~(FLAG_COMPRESSED | FLAG_MULTI_RECIPIENT)) != 0) {
+            throw new CryptoCipherException("不支持的加密头标识:" + Integer.toHexString(flags));
+        }
+        int codecId = (flags & FLAG_COMPRESSED) != 0 ? inputStream.readUnsignedByte() : -1;
+        List<EncryptData> recipients;
+        if ((flags & FLAG_MULTI_RECIPIENT) != 0) {
+            int count = inputStream.readInt();
+            if (count <= 0 || count > MAX_RECIPIENTS) {
+                throw new CryptoCipherException("接收方数量错误:" + count);
+            }
+            recipients = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                byte[] keyIdBytes = new byte[inputStream.readUnsignedShort()];
+                inputStream.readFully(keyIdBytes);
+                EncryptData data = readEncryptData(inputStream);
+                data.setKeyId(new String(keyIdBytes, StandardCharsets.UTF_8));
+                recipients.add(data);
+            }
+        } else {
+            recipients = Collections.singletonList(readEncryptData(inputStream));
+        }
+        return new EnvelopeHeader(version, flags, codecId, recipients);
+    }
+
+    public void write(DataOutputStream outputStream) throws IOException {
+        outputStream.writeInt(version | flags);
+        if (codecId >= 0) {
+            outputStream.writeByte(codecId);
+        }
+        if (!isMultiRecipient()) {
+            writeEncryptData(outputStream, recipients.get(0));
+            return;
+        }
+        outputStream.writeInt(recipients.size());
+        for (EncryptData data : recipients) {
+            byte[] keyIdBytes = data.getKeyId().getBytes(StandardCharsets.UTF_8);
+            outputStream.writeShort(keyIdBytes.length);
+            outputStream.write(keyIdBytes);
+            writeEncryptData(outputStream, data);
+        }
+    }
+
+    static EncryptData readEncryptData(DataInputStream dataInputStream) throws IOException {
+        int encryptIvLength = dataInputStream.readInt();
+        int encryptCekLength = dataInputStream.readInt();
+        if (encryptIvLength < 0 || encryptIvLength > MAX_ENCRYPTED_LENGTH
+                || encryptCekLength < 0 || encryptCekLength > MAX_ENCRYPTED_LENGTH) {
+            throw new CryptoCipherException("头信息格式错误, ivLength:" + encryptIvLength + ", cekLength:" + encryptCekLength);
+        }
+        byte[] encryptedIV = new byte[encryptIvLength];
+        byte[] encryptedCEK = new byte[encryptCekLength];
+        dataInputStream.readFully(encryptedIV);
+        dataInputStream.readFully(encryptedCEK);
+        return new EncryptData(encryptedIV, encryptedCEK);
+    }
+
+    static void writeEncryptData(DataOutputStream dataOutputStream, EncryptData data) throws IOException {
+        // 加密的IV 的长度
+        dataOutputStream.writeInt(data.getEncryptedIV().length);
+        // 加密的 cek的长度
+        dataOutputStream.writeInt(data.getEncryptedCEK().length);
+        // 加密的 IV 的内容
+        dataOutputStream.write(data.getEncryptedIV());
+        // 加密的 cek的内容
+        dataOutputStream.write(data.getEncryptedCEK());
+    }
+
+    public byte[] toByteArray() {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(getLength());
+        try {
+            write(new DataOutputStream(output));
+        } catch (IOException e) {
+            // ByteArrayOutputStream 不会抛出 IOException
+            throw new IllegalStateException(e);
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * @return 头信息的字节数
+     */
+    public int getLength() {
+        int length = 4 + (codecId >= 0 ? 1 : 0);
+        if (isMultiRecipient()) {
+            length += 4;
+        }
+        for (EncryptData data : recipients) {
+            if (isMultiRecipient()) {
+                length += 2 + data.getKeyId().getBytes(StandardCharsets.UTF_8).length;
+            }
+            length += 8 + data.getEncryptedIV().length + data.getEncryptedCEK().length;
+        }
+        return length;
+    }
+
+    public boolean isMultiRecipient() {
+        return (flags & FLAG_MULTI_RECIPIENT) != 0;
+    }
+
+    /**
+     * 替换接收方, 其它信息不变
+     *
+     * @param recipients 新的接收方
+     * @return 新的头信息
+     */
+    public EnvelopeHeader withRecipients(List<EncryptData> recipients) {
+        return new EnvelopeHeader(version, flags, codecId, recipients);
+    }
+}
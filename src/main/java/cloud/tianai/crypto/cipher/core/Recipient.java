@@ -0,0 +1,46 @@
+package cloud.tianai.crypto.cipher.core;
+
+import lombok.Getter;
+
+import javax.crypto.Cipher;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.function.Supplier;
+
+/**
+ * @Author: 天爱有情
+ * @date 2021/12/29 10:15
+ * @Description 多接收方加密中的一个接收方, 内容只加密一次, CEK和IV分别用每个接收方的外层密码加密后写入头信息
+ * <p>
+ * 解密方通过 keyId 在头信息中找到自己的那一份
+ */
+@Getter
+public class Recipient {
+
+    /** keyId 按 UTF-8 编码后的最大长度. */
+    public static final int MAX_KEY_ID_LENGTH = 0xFFFF;
+
+    private final String keyId;
+    /** 外层密码, 每次加密CEK时获取, 多线程时应该每个线程返回不同的 Cipher. */
+    private final Supplier<Cipher> cipher;
+
+    public Recipient(String keyId, Supplier<Cipher> cipher) {
+        Objects.requireNonNull(keyId, "keyId");
+        Objects.requireNonNull(cipher, "cipher");
+        if (keyId.getBytes(StandardCharsets.UTF_8).length > MAX_KEY_ID_LENGTH) {
+            throw new IllegalArgumentException("keyId过长: " + keyId);
+        }
+        this.keyId = keyId;
+        this.cipher = cipher;
+    }
+
+    /**
+     * @param keyId  接收方的秘钥id
+     * @param cipher 已初始化为加密模式的外层密码, 不是线程安全的, 不能在多个线程中共用
+     * @return Recipient
+     */
+    public static Recipient of(String keyId, Cipher cipher) {
+        Objects.requireNonNull(cipher, "cipher");
+        return new Recipient(keyId, () -> cipher);
+    }
+}
@@ -2,10 +2,13 @@ package cloud.tianai.crypto.cipher.core;
 
 import cloud.tianai.crypto.stream.CipherInputStream;
 import cloud.tianai.crypto.stream.CipherOutputStream;
+import lombok.SneakyThrows;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.ShortBufferException;
+import java.util.function.Supplier;
 
 /**
  * @Author: 天爱有情
@@ -19,6 +22,9 @@ public class SimpleCryptoCipher implements CryptoCipher {
      */
     protected Cipher cipher;
 
+    /** 不为空时每次通过它获取密码, 比如每个线程一个 Cipher, 见 CryptoCipherFactory. */
+    protected Supplier<Cipher> cipherSupplier;
+
     /** model， 标识加密还是解密. */
     protected int model;
 
@@ -27,8 +33,23 @@ public class SimpleCryptoCipher implements CryptoCipher {
         this.model = model;
     }
 
+    /**
+     * 每次使用时通过 cipherSupplier 获取密码, 只适用于一次性(doFinal)使用密码的子类, 比如 AbstractCryptoCipher 加解密CEK
+     *
+     * @param cipherSupplier 密码
+     * @param model          model
+     */
+    protected SimpleCryptoCipher(Supplier<Cipher> cipherSupplier, int model) {
+        this.cipherSupplier = cipherSupplier;
+        this.model = model;
+    }
+
     public Cipher getCipher() {
-        return this.cipher;
+        return cipherSupplier != null ? cipherSupplier.get() : this.cipher;
+    }
+
+    protected Supplier<Cipher> getCipherSupplier() {
+        return cipherSupplier;
     }
 
     @Override
@@ -61,6 +82,17 @@ public class SimpleCryptoCipher implements CryptoCipher {
         return cipher.update(input, inputOffset, inputLen);
     }
 
+    @Override
+    @SneakyThrows(ShortBufferException.class)
+    public int update(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset) {
+        return cipher.update(input, inputOffset, inputLen, output, outputOffset);
+    }
+
+    @Override
+    public int getOutputSize(int inputLen) {
+        return cipher.getOutputSize(inputLen);
+    }
+
     @Override
     public byte[] earlyLoadingHeaderData(CipherInputStream source) {
         return new byte[0];
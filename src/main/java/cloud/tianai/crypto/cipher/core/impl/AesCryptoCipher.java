@@ -8,6 +8,7 @@ import lombok.extern.slf4j.Slf4j;
 
 import javax.crypto.Cipher;
 import java.security.SecureRandom;
+import java.util.function.Supplier;
 
 /**
  * @Author: 天爱有情
@@ -27,13 +28,22 @@ public class AesCryptoCipher extends AbstractCryptoCipher {
     public static final int KEY_LENGTH_IN_BITS = 256;
     public static final int CIPHER_IV_LENGTH = 16;
     private static final SecureRandom RANDOM = new SecureRandom();
+    public static final int VERSION = 1;
     @Setter
-    public int version = 1;
+    public int version = VERSION;
     boolean skipCheckVersion;
     @SneakyThrows
     public AesCryptoCipher(Cipher cipher, int model) {
         this(cipher, model, false);
     }
+
+    /**
+     * @param cipherSupplier 外层密码, 每次加解密CEK时获取, 见 CryptoCipherFactory
+     * @param model          model
+     */
+    public AesCryptoCipher(Supplier<Cipher> cipherSupplier, int model) {
+        super(cipherSupplier, model);
+    }
     @SneakyThrows
     public AesCryptoCipher(Cipher cipher, int model, boolean checkVersion) {
         super(cipher, model);
@@ -84,6 +94,10 @@ public class AesCryptoCipher extends AbstractCryptoCipher {
 
     @Override
     public CryptoCipher recreate() {
-        return new AesCryptoCipher(getCipher(), getModel());
+        AesCryptoCipher cryptoCipher = getCipherSupplier() != null
+                ? new AesCryptoCipher(getCipherSupplier(), getModel())
+                : new AesCryptoCipher(getCipher(), getModel());
+        copySettingsTo(cryptoCipher);
+        return cryptoCipher;
     }
 }
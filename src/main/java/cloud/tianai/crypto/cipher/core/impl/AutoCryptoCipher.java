@@ -0,0 +1,186 @@
+package cloud.tianai.crypto.cipher.core.impl;
+
+import cloud.tianai.crypto.cipher.core.AbstractCryptoCipher;
+import cloud.tianai.crypto.cipher.core.CryptoCipher;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.SecureRandom;
+import java.util.function.Supplier;
+
+/**
+ * @Author: 天爱有情
+ * @date 2021/12/28 17:40
+ * @Description 自动选择内容加密算法: 加密时根据当前机器上实测的速度选择 AES/CTR 或 ChaCha20, 解密时根据头信息中的版本号选择
+ * <p>
+ * 加密结果与直接使用 AesCryptoCipher(版本1) 或 ChaCha20CryptoCipher(版本2) 完全相同, 可以互相解密.
+ * 注意 Sm4CryptoCipher 的版本号也是1, 这里解密版本1时按 AES 处理
+ * <p>
+ * 测速只在第一次使用时执行一次, 可以通过系统属性 easy-crypto.cipher.auto=aes|chacha20 直接指定
+ */
+@Slf4j
+public class AutoCryptoCipher extends AbstractCryptoCipher {
+
+    public static final String AUTO_PROPERTY = "easy-crypto.cipher.auto";
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /** 是否使用 ChaCha20, 解密时读取到版本号后才确定. */
+    private boolean chaCha20;
+
+    public AutoCryptoCipher(Cipher cipher, int model) {
+        super(cipher, model);
+        this.chaCha20 = Cipher.ENCRYPT_MODE == model && isChaCha20Preferred();
+    }
+
+    /**
+     * @param cipherSupplier 外层密码, 每次加解密CEK时获取, 见 CryptoCipherFactory
+     * @param model          model
+     */
+    public AutoCryptoCipher(Supplier<Cipher> cipherSupplier, int model) {
+        super(cipherSupplier, model);
+        this.chaCha20 = Cipher.ENCRYPT_MODE == model && isChaCha20Preferred();
+    }
+
+    /**
+     * 当前机器上 ChaCha20 是否比 AES/CTR 快
+     *
+     * @return boolean
+     */
+    public static boolean isChaCha20Preferred() {
+        return Selection.CHA_CHA_20;
+    }
+
+    @Override
+    protected boolean acceptVersion(int version) {
+        if (version == ChaCha20CryptoCipher.VERSION) {
+            chaCha20 = true;
+            return true;
+        }
+        if (version == AesCryptoCipher.VERSION) {
+            chaCha20 = false;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public Cipher createCryptoCipherFromContentMaterial(byte[] iv, SecretKey cek, int cipherMode) {
+        if (chaCha20) {
+            return ChaCha20CryptoCipher.createCipher(iv, cek, cipherMode, 0);
+        }
+        return super.createCryptoCipherFromContentMaterial(iv, cek, cipherMode);
+    }
+
+    @Override
+    protected Cipher createContentCipherAt(long position) {
+        if (chaCha20) {
+            return ChaCha20CryptoCipher.createCipher(getIv(), getSecretKey(), getModel(), position);
+        }
+        return super.createContentCipherAt(position);
+    }
+
+    @Override
+    protected byte[] generateIV() {
+        return chaCha20 ? ChaCha20CryptoCipher.generateNonce(getRandom()) : super.generateIV();
+    }
+
+    @Override
+    protected SecretKey generateCEK() {
+        return chaCha20 ? ChaCha20CryptoCipher.generateKey(getRandom()) : super.generateCEK();
+    }
+
+    @Override
+    protected SecureRandom getRandom() {
+        return RANDOM;
+    }
+
+    @Override
+    public CryptoCipher recreate() {
+        AutoCryptoCipher cryptoCipher = getCipherSupplier() != null
+                ? new AutoCryptoCipher(getCipherSupplier(), getModel())
+                : new AutoCryptoCipher(getCipher(), getModel());
+        copySettingsTo(cryptoCipher);
+        return cryptoCipher;
+    }
+
+    @Override
+    public String getAlgorithm() {
+        return chaCha20 ? ChaCha20CryptoCipher.KEY_GENERATOR_ALGORITHM : AesCryptoCipher.KEY_GENERATOR_ALGORITHM;
+    }
+
+    @Override
+    public String getContentCipherAlgorithm() {
+        return chaCha20 ? ChaCha20CryptoCipher.CONTENT_CIPHER_ALGORITHM : AesCryptoCipher.CONTENT_CIPHER_ALGORITHM;
+    }
+
+    @Override
+    protected boolean isCounterMode() {
+        return true;
+    }
+
+    @Override
+    public int getKeyLength() {
+        return chaCha20 ? ChaCha20CryptoCipher.KEY_LENGTH_IN_BITS : AesCryptoCipher.KEY_LENGTH_IN_BITS;
+    }
+
+    @Override
+    public int getIvLength() {
+        return chaCha20 ? ChaCha20CryptoCipher.CIPHER_NONCE_LENGTH : AesCryptoCipher.CIPHER_IV_LENGTH;
+    }
+
+    @Override
+    public int getVersion() {
+        return chaCha20 ? ChaCha20CryptoCipher.VERSION : AesCryptoCipher.VERSION;
+    }
+
+    /**
+     * 第一次使用时测速, 结果在整个JVM内共享
+     */
+    private static final class Selection {
+        private static final int DATA_SIZE = 64 * 1024;
+        private static final int ROUNDS = 24;
+        static final boolean CHA_CHA_20 = select();
+
+        private static boolean select() {
+            String property = System.getProperty(AUTO_PROPERTY);
+            if (property != null && !property.trim().isEmpty()) {
+                return "chacha20".equalsIgnoreCase(property.trim());
+            }
+            try {
+                byte[] iv = new byte[AesCryptoCipher.CIPHER_IV_LENGTH];
+                byte[] aesKey = new byte[AesCryptoCipher.KEY_LENGTH_IN_BITS / 8];
+                RANDOM.nextBytes(aesKey);
+                Cipher aes = Cipher.getInstance(AesCryptoCipher.CONTENT_CIPHER_ALGORITHM);
+                aes.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(aesKey, AesCryptoCipher.KEY_GENERATOR_ALGORITHM), new IvParameterSpec(iv));
+                Cipher chaCha20 = ChaCha20CryptoCipher.createCipher(ChaCha20CryptoCipher.generateNonce(RANDOM),
+                        ChaCha20CryptoCipher.generateKey(RANDOM), Cipher.ENCRYPT_MODE, 0);
+                long aesNanos = measure(aes);
+                long chaCha20Nanos = measure(chaCha20);
+                log.info("内容加密算法测速, AES/CTR: {}ns, ChaCha20: {}ns", aesNanos, chaCha20Nanos);
+                return chaCha20Nanos < aesNanos;
+            } catch (Exception e) {
+                log.warn("内容加密算法测速失败, 使用AES: {}", e.getMessage());
+                return false;
+            }
+        }
+
+        /**
+         * 返回多轮中最快一轮的耗时, 前面的轮次同时起到预热的作用
+         */
+        @SneakyThrows
+        private static long measure(Cipher cipher) {
+            byte[] data = new byte[DATA_SIZE];
+            long best = Long.MAX_VALUE;
+            for (int i = 0; i < ROUNDS; i++) {
+                long start = System.nanoTime();
+                cipher.update(data, 0, data.length, data, 0);
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            return best;
+        }
+    }
+}
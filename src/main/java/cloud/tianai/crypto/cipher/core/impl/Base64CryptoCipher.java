@@ -1,38 +1,92 @@
 package cloud.tianai.crypto.cipher.core.impl;
 
 import cloud.tianai.crypto.cipher.core.CryptoCipher;
+import cloud.tianai.crypto.exception.CryptoCipherException;
 import cloud.tianai.crypto.stream.CipherInputStream;
-import cloud.tianai.crypto.stream.CipherOutputStream;
 
-import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import java.util.Base64;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * @Author: 天爱有情
  * @date 2021/11/27 14:59
  * @Description base64加解密
+ * <p>
+ * 有状态的流式编解码, 编码时在两次 update 之间保留 0~2 个未凑满3字节的数据, 解码时保留 0~3 个未凑满4位的字符,
+ * 所以可以接受任意长度的 buffer, 不再需要强制修改 CipherInputStream 的 buffer 长度
+ * <p>
+ * 大数据量可以使用 transcodeParallel 并行编解码
  */
 public class Base64CryptoCipher implements CryptoCipher {
 
-    private int model;
-    private int bufferSize;
+    /** MIME 每行的字符数. */
+    public static final int MIME_LINE_LENGTH = 76;
+    static final byte[] MIME_LINE_SEPARATOR = {'\r', '\n'};
+
+    private static final byte[] ENCODE_TABLE = {
+            'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'I', 'J', 'K', 'L', 'M',
+            'N', 'O', 'P', 'Q', 'R', 'S', 'T', 'U', 'V', 'W', 'X', 'Y', 'Z',
+            'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h', 'i', 'j', 'k', 'l', 'm',
+            'n', 'o', 'p', 'q', 'r', 's', 't', 'u', 'v', 'w', 'x', 'y', 'z',
+            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', '+', '/'
+    };
+    private static final byte PAD = '=';
+    /** 解码表, -1 非法字符, -2 填充字符, -3 空白字符. */
+    static final int[] DECODE_TABLE = new int[256];
+    static final int INVALID = -1;
+    static final int PADDING = -2;
+    static final int WHITESPACE = -3;
+
+    static {
+        Arrays.fill(DECODE_TABLE, INVALID);
+        for (int i = 0; i < ENCODE_TABLE.length; i++) {
+            DECODE_TABLE[ENCODE_TABLE[i]] = i;
+        }
+        DECODE_TABLE[PAD] = PADDING;
+        DECODE_TABLE['\r'] = WHITESPACE;
+        DECODE_TABLE['\n'] = WHITESPACE;
+        DECODE_TABLE[' '] = WHITESPACE;
+        DECODE_TABLE['\t'] = WHITESPACE;
+    }
+
+    private final int model;
+    private final boolean mime;
+
+    /** 编码时未凑满3字节的数据. */
+    private final byte[] carry = new byte[3];
+    private int carryLen;
+    /** MIME 编码时当前行已写入的字符数. */
+    private int linePos;
+    /** 解码时未凑满4个字符的数据. */
+    private int bits;
+    int bitsCount;
 
     public Base64CryptoCipher(int model) {
-        this(model, 4096);
+        this(model, false);
     }
 
     /**
-     * 注意： 这里指定的 bufferSize会影响到加密流的buffer， 也就是说这里指定的buff长度和加密流中的长度不一样时，会使用这里的长度,
-     * 因为类似于base64这种加密后解密需要加密长度的加密(转码)算法时，必须由算法本身规定长度
+     * 编解码是有状态的, 已不再需要指定 bufferSize
      *
      * @param model      model
-     * @param bufferSize buff长度
+     * @param bufferSize buff长度, 已不再使用
      */
+    @Deprecated
     public Base64CryptoCipher(int model, int bufferSize) {
+        this(model, false);
+    }
+
+    /**
+     * @param model model
+     * @param mime  是否使用MIME格式, 编码时每76个字符插入一个换行(\r\n), 解码时忽略非base64字符
+     */
+    public Base64CryptoCipher(int model, boolean mime) {
         this.model = model;
-        this.bufferSize = bufferSize;
+        this.mime = mime;
     }
 
     @Override
@@ -40,39 +94,63 @@ public class Base64CryptoCipher implements CryptoCipher {
         return model;
     }
 
+    public boolean isMime() {
+        return mime;
+    }
+
     @Override
-    public byte[] end() throws IllegalBlockSizeException, BadPaddingException {
-        return new byte[0];
+    public byte[] end() {
+        byte[] output = new byte[Cipher.ENCRYPT_MODE == model ? 4 + MIME_LINE_SEPARATOR.length : 2];
+        int len = doFinal(output, 0);
+        return len == output.length ? output : Arrays.copyOf(output, len);
     }
 
     @Override
     public byte[] update(byte[] input, int inputOffset, int inputLen) {
-        return transcode(input, inputOffset, inputLen);
+        byte[] output = new byte[getOutputSize(inputLen)];
+        int len = update(input, inputOffset, inputLen, output, 0);
+        return len == output.length ? output : Arrays.copyOf(output, len);
     }
 
     @Override
-    public byte[] earlyLoadingHeaderData(CipherInputStream source) {
-        int length = calcLength();
-        if (source.getBuffSize() != length) {
-            // 强制改成 bas64指定的长度
-            source.setBuffSize(length);
+    public int update(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset) {
+        if (input == output && inputLen > 0) {
+            // 编解码前后长度不一致, 原地编解码时输出会覆盖还未读取的输入
+            input = Arrays.copyOfRange(input, inputOffset, inputOffset + inputLen);
+            inputOffset = 0;
+        }
+        if (Cipher.ENCRYPT_MODE == model) {
+            return encode(input, inputOffset, inputLen, output, outputOffset);
+        }
+        return decode(input, inputOffset, inputLen, output, outputOffset);
+    }
+
+    @Override
+    public int getOutputSize(int inputLen) {
+        if (Cipher.ENCRYPT_MODE == model) {
+            int chars = (int) ((carryLen + (long) inputLen) / 3 * 4);
+            if (mime) {
+                chars += (linePos + chars) / MIME_LINE_LENGTH * MIME_LINE_SEPARATOR.length;
+            }
+            return chars;
         }
+        // 中间遇到填充符时会提前输出, 按每个字符6bit计算上限
+        return (int) ((bitsCount + (long) inputLen) * 3 / 4);
+    }
+
+    @Override
+    public byte[] earlyLoadingHeaderData(CipherInputStream source) {
         return new byte[0];
     }
 
     @Override
     public byte[] start(CipherInputStream source) {
-        int length = calcLength();
-        if (source.getBuffSize() != length) {
-            // 强制改成 bas64指定的长度
-            source.setBuffSize(length);
-        }
         return new byte[0];
     }
 
     @Override
     public CryptoCipher recreate() {
-        return new Base64CryptoCipher(model);
+        return new Base64CryptoCipher(model, mime);
     }
 
     @Override
@@ -86,19 +164,224 @@ public class Base64CryptoCipher implements CryptoCipher {
         return new byte[0];
     }
 
+    /**
+     * 一次性编解码, 不影响当前对象的状态
+     *
+     * @param source 原数据
+     * @param offset offset
+     * @param length length
+     * @return 编解码后的数据
+     */
+    public byte[] transcode(byte[] source, int offset, int length) {
+        Base64CryptoCipher codec = new Base64CryptoCipher(model, mime);
+        byte[] output = new byte[codec.getOutputSize(length) + 4 + MIME_LINE_SEPARATOR.length];
+        int len = codec.update(source, offset, length, output, 0);
+        len += codec.doFinal(output, len);
+        return Arrays.copyOf(output, len);
+    }
 
+    /**
+     * 并行编解码, 使用 {@link ForkJoinPool#commonPool()}, 不影响当前对象的状态
+     *
+     * @param source 原数据
+     * @param offset offset
+     * @param length length
+     * @return 编解码后的数据, 与 {@link #transcode(byte[], int, int)} 的结果一致
+     */
+    public byte[] transcodeParallel(byte[] source, int offset, int length) {
+        return transcodeParallel(source, offset, length, ForkJoinPool.commonPool());
+    }
 
-    public byte[] transcode(byte[] source, int offset, int length) {
-        byte[] input = new byte[length];
-        System.arraycopy(source, offset, input, 0, length);
-        if (model == Cipher.ENCRYPT_MODE) {
-            return Base64.getEncoder().encode(input);
+    /**
+     * 并行编解码, 不影响当前对象的状态
+     *
+     * @param source 原数据
+     * @param offset offset
+     * @param length length
+     * @param pool   线程池
+     * @return 编解码后的数据, 与 {@link #transcode(byte[], int, int)} 的结果一致
+     */
+    public byte[] transcodeParallel(byte[] source, int offset, int length, ForkJoinPool pool) {
+        if (length < ParallelBase64.PARALLEL_THRESHOLD || pool.getParallelism() < 2) {
+            return transcode(source, offset, length);
+        }
+        if (Cipher.ENCRYPT_MODE == model) {
+            return ParallelBase64.encode(source, offset, length, mime, true, pool);
         }
-        return Base64.getDecoder().decode(input);
+        ParallelBase64.DecodeResult result = ParallelBase64.decode(source, offset, length, mime, true, pool);
+        // 中间带有填充符的数据只能串行解码
+        return result == null ? transcode(source, offset, length) : result.output;
     }
 
+    /**
+     * 并行编解码, 读取 source 中剩余的全部数据
+     *
+     * @param source 原数据
+     * @return 编解码后的数据
+     */
+    public ByteBuffer transcodeParallel(ByteBuffer source) {
+        byte[] output;
+        if (source.hasArray()) {
+            output = transcodeParallel(source.array(), source.arrayOffset() + source.position(), source.remaining());
+            source.position(source.limit());
+        } else {
+            byte[] input = new byte[source.remaining()];
+            source.get(input);
+            output = transcodeParallel(input, 0, input.length);
+        }
+        return ByteBuffer.wrap(output);
+    }
+
+    /**
+     * 文件到文件的并行编解码, 使用 {@link ForkJoinPool#commonPool()}
+     *
+     * @param source 原文件
+     * @param target 目标文件, 已存在时会被覆盖
+     * @throws IOException IO异常
+     */
+    public void transcodeParallel(Path source, Path target) throws IOException {
+        transcodeParallel(source, target, ForkJoinPool.commonPool());
+    }
 
-    public int calcLength() {
-        return Cipher.ENCRYPT_MODE == model ? bufferSize : 4 * ((bufferSize + 2) / 3);
+    /**
+     * 文件到文件的并行编解码, 按块读取, 不会把整个文件读入内存
+     *
+     * @param source 原文件
+     * @param target 目标文件, 已存在时会被覆盖
+     * @param pool   线程池
+     * @throws IOException IO异常
+     */
+    public void transcodeParallel(Path source, Path target, ForkJoinPool pool) throws IOException {
+        ParallelBase64.transcode(source, target, model, mime, pool);
+    }
+
+    /**
+     * 输出剩余的数据, 编码时补齐填充符
+     *
+     * @param output       output
+     * @param outputOffset outputOffset
+     * @return 写入的长度
+     */
+    int doFinal(byte[] output, int outputOffset) {
+        return Cipher.ENCRYPT_MODE == model ? encodeFinal(output, outputOffset) : decodeFinal(output, outputOffset);
+    }
+
+    private int encode(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset) {
+        int in = inputOffset;
+        int end = inputOffset + inputLen;
+        int out = outputOffset;
+        if (carryLen > 0) {
+            while (carryLen < 3 && in < end) {
+                carry[carryLen++] = input[in++];
+            }
+            if (carryLen < 3) {
+                return 0;
+            }
+            out = encodeGroup(carry[0], carry[1], carry[2], output, out);
+            carryLen = 0;
+        }
+        if (mime) {
+            while (end - in >= 3) {
+                out = encodeGroup(input[in], input[in + 1], input[in + 2], output, out);
+                in += 3;
+            }
+        } else {
+            // 非MIME模式不需要处理换行, 单独一个循环
+            while (end - in >= 3) {
+                int value = (input[in] & 0xFF) << 16 | (input[in + 1] & 0xFF) << 8 | (input[in + 2] & 0xFF);
+                output[out] = ENCODE_TABLE[value >>> 18];
+                output[out + 1] = ENCODE_TABLE[(value >>> 12) & 0x3F];
+                output[out + 2] = ENCODE_TABLE[(value >>> 6) & 0x3F];
+                output[out + 3] = ENCODE_TABLE[value & 0x3F];
+                out += 4;
+                in += 3;
+            }
+        }
+        while (in < end) {
+            carry[carryLen++] = input[in++];
+        }
+        return out - outputOffset;
+    }
+
+    private int encodeGroup(byte b0, byte b1, byte b2, byte[] output, int out) {
+        if (mime && linePos == MIME_LINE_LENGTH) {
+            output[out++] = MIME_LINE_SEPARATOR[0];
+            output[out++] = MIME_LINE_SEPARATOR[1];
+            linePos = 0;
+        }
+        int value = (b0 & 0xFF) << 16 | (b1 & 0xFF) << 8 | (b2 & 0xFF);
+        output[out] = ENCODE_TABLE[value >>> 18];
+        output[out + 1] = ENCODE_TABLE[(value >>> 12) & 0x3F];
+        output[out + 2] = ENCODE_TABLE[(value >>> 6) & 0x3F];
+        output[out + 3] = ENCODE_TABLE[value & 0x3F];
+        linePos += 4;
+        return out + 4;
+    }
+
+    private int encodeFinal(byte[] output, int outputOffset) {
+        int out = outputOffset;
+        if (carryLen > 0) {
+            out = encodeGroup(carry[0], carryLen > 1 ? carry[1] : 0, (byte) 0, output, out);
+            output[out - 1] = PAD;
+            if (carryLen == 1) {
+                output[out - 2] = PAD;
+            }
+        }
+        carryLen = 0;
+        linePos = 0;
+        return out - outputOffset;
+    }
+
+    private int decode(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset) {
+        int out = outputOffset;
+        int value = bits;
+        int count = bitsCount;
+        for (int in = inputOffset, end = inputOffset + inputLen; in < end; in++) {
+            int c = DECODE_TABLE[input[in] & 0xFF];
+            if (c >= 0) {
+                value = value << 6 | c;
+                if (++count == 4) {
+                    output[out] = (byte) (value >>> 16);
+                    output[out + 1] = (byte) (value >>> 8);
+                    output[out + 2] = (byte) value;
+                    out += 3;
+                    value = 0;
+                    count = 0;
+                }
+            } else if (c == PADDING) {
+                // 兼容多段base64拼接的数据, 遇到填充符直接输出当前分组
+                out += flushBits(value, count, output, out);
+                value = 0;
+                count = 0;
+            } else if (c == INVALID && !mime) {
+                throw new CryptoCipherException("非法的base64字符: " + (char) (input[in] & 0xFF));
+            }
+        }
+        bits = value;
+        bitsCount = count;
+        return out - outputOffset;
+    }
+
+    private int decodeFinal(byte[] output, int outputOffset) {
+        int len = flushBits(bits, bitsCount, output, outputOffset);
+        bits = 0;
+        bitsCount = 0;
+        return len;
+    }
+
+    private static int flushBits(int value, int count, byte[] output, int out) {
+        switch (count) {
+            case 0:
+                return 0;
+            case 2:
+                output[out] = (byte) (value >>> 4);
+                return 1;
+            case 3:
+                output[out] = (byte) (value >>> 10);
+                output[out + 1] = (byte) (value >>> 2);
+                return 2;
+            default:
+                throw new CryptoCipherException("base64数据长度不正确");
+        }
     }
 }
@@ -0,0 +1,188 @@
+package cloud.tianai.crypto.cipher.core.impl;
+
+import cloud.tianai.crypto.cipher.core.AbstractCryptoCipher;
+import cloud.tianai.crypto.cipher.core.CryptoCipher;
+import cloud.tianai.crypto.cipher.engine.ChaCha20CipherSpi;
+import cloud.tianai.crypto.cipher.engine.EngineCiphers;
+import cloud.tianai.crypto.cipher.util.CryptoRuntime;
+import cloud.tianai.crypto.exception.CryptoCipherException;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.lang.reflect.Constructor;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.function.Supplier;
+
+/**
+ * @Author: 天爱有情
+ * @date 2021/12/28 16:20
+ * @Description 底层加密算法为 ChaCha20 ， 外层算法为自定义的算法框架, 头信息格式与 AesCryptoCipher 相同, 版本号为 2
+ * <p>
+ * 在没有AES硬件加速的机器上(部分ARM和虚拟机), ChaCha20 比软件实现的AES快很多.
+ * JDK11及以上使用JDK自带的 ChaCha20, 否则使用纯java实现的 ChaCha20CipherSpi, 都不可用时使用 BouncyCastle 的 ChaCha7539
+ */
+@Slf4j
+public class ChaCha20CryptoCipher extends AbstractCryptoCipher {
+
+    public static final int VERSION = 2;
+    public static final String CONTENT_CIPHER_ALGORITHM = "ChaCha20";
+    public static final String KEY_GENERATOR_ALGORITHM = "ChaCha20";
+    public static final int KEY_LENGTH_IN_BITS = 256;
+    public static final int CIPHER_NONCE_LENGTH = 12;
+    private static final int BLOCK_SIZE = ChaCha20CipherSpi.BLOCK_SIZE;
+    /** 分组计数器为32位无符号数. */
+    private static final long MAX_BLOCK_COUNTER = 0xFFFFFFFFL;
+    private static final String BC_ALGORITHM = "ChaCha7539";
+    private static final SecureRandom RANDOM = new SecureRandom();
+    /** JDK11+ 的 javax.crypto.spec.ChaCha20ParameterSpec(byte[] nonce, int counter), 不存在时为 null. */
+    private static final Constructor<?> JDK_PARAMETER_SPEC = findJdkParameterSpec();
+
+    public ChaCha20CryptoCipher(Cipher cipher, int model) {
+        super(cipher, model);
+    }
+
+    /**
+     * @param cipherSupplier 外层密码, 每次加解密CEK时获取, 见 CryptoCipherFactory
+     * @param model          model
+     */
+    public ChaCha20CryptoCipher(Supplier<Cipher> cipherSupplier, int model) {
+        super(cipherSupplier, model);
+    }
+
+    @Override
+    public Cipher createCryptoCipherFromContentMaterial(byte[] iv, SecretKey cek, int cipherMode) {
+        return createCipher(iv, cek, cipherMode, 0);
+    }
+
+    @Override
+    protected Cipher createContentCipherAt(long position) {
+        return createCipher(getIv(), getSecretKey(), getModel(), position);
+    }
+
+    @Override
+    protected boolean isCounterMode() {
+        return true;
+    }
+
+    @Override
+    protected byte[] generateIV() {
+        return generateNonce(getRandom());
+    }
+
+    @Override
+    protected SecretKey generateCEK() {
+        return generateKey(getRandom());
+    }
+
+    @Override
+    protected SecureRandom getRandom() {
+        return RANDOM;
+    }
+
+    @Override
+    public CryptoCipher recreate() {
+        ChaCha20CryptoCipher cryptoCipher = getCipherSupplier() != null
+                ? new ChaCha20CryptoCipher(getCipherSupplier(), getModel())
+                : new ChaCha20CryptoCipher(getCipher(), getModel());
+        copySettingsTo(cryptoCipher);
+        return cryptoCipher;
+    }
+
+    @Override
+    public String getAlgorithm() {
+        return KEY_GENERATOR_ALGORITHM;
+    }
+
+    @Override
+    public String getContentCipherAlgorithm() {
+        return CONTENT_CIPHER_ALGORITHM;
+    }
+
+    @Override
+    public int getKeyLength() {
+        return KEY_LENGTH_IN_BITS;
+    }
+
+    @Override
+    public int getIvLength() {
+        return CIPHER_NONCE_LENGTH;
+    }
+
+    @Override
+    public int getVersion() {
+        return VERSION;
+    }
+
+    /**
+     * 创建从指定位置开始加解密的 ChaCha20, 分组计数器 = position / 64, 分组内偏移的部分直接丢弃
+     *
+     * @param nonce    12字节 nonce
+     * @param key      32字节秘钥
+     * @param mode     Cipher.ENCRYPT_MODE 或 Cipher.DECRYPT_MODE
+     * @param position 数据位置
+     * @return Cipher
+     */
+    @SneakyThrows
+    static Cipher createCipher(byte[] nonce, SecretKey key, int mode, long position) {
+        long blockCounter = position / BLOCK_SIZE;
+        if (blockCounter > MAX_BLOCK_COUNTER) {
+            throw new CryptoCipherException("ChaCha20单个nonce最多加密256GB数据, position: " + position);
+        }
+        Cipher cipher;
+        long discard = position % BLOCK_SIZE;
+        if (JDK_PARAMETER_SPEC != null) {
+            cipher = Cipher.getInstance(CONTENT_CIPHER_ALGORITHM);
+            cipher.init(mode, key, (AlgorithmParameterSpec) JDK_PARAMETER_SPEC.newInstance(nonce, (int) blockCounter));
+        } else if ((cipher = EngineCiphers.createChaCha20Cipher()) != null) {
+            byte[] iv = new byte[ChaCha20CipherSpi.IV_SIZE];
+            iv[0] = (byte) blockCounter;
+            iv[1] = (byte) (blockCounter >>> 8);
+            iv[2] = (byte) (blockCounter >>> 16);
+            iv[3] = (byte) (blockCounter >>> 24);
+            System.arraycopy(nonce, 0, iv, 4, CIPHER_NONCE_LENGTH);
+            cipher.init(mode, key, new IvParameterSpec(iv));
+        } else {
+            // BouncyCastle 无法指定初始计数器, 只能从头丢弃密钥流
+            CryptoRuntime.enableBouncyCastle();
+            cipher = Cipher.getInstance(BC_ALGORITHM);
+            cipher.init(mode, key, new IvParameterSpec(nonce));
+            discard = position;
+        }
+        byte[] skip = new byte[(int) Math.min(discard, 8192)];
+        while (discard > 0) {
+            int len = (int) Math.min(discard, skip.length);
+            cipher.update(skip, 0, len, skip, 0);
+            discard -= len;
+        }
+        return cipher;
+    }
+
+    static byte[] generateNonce(SecureRandom random) {
+        byte[] nonce = new byte[CIPHER_NONCE_LENGTH];
+        random.nextBytes(nonce);
+        return nonce;
+    }
+
+    static SecretKey generateKey(SecureRandom random) {
+        byte[] key = new byte[KEY_LENGTH_IN_BITS / 8];
+        random.nextBytes(key);
+        return new SecretKeySpec(key, KEY_GENERATOR_ALGORITHM);
+    }
+
+    private static Constructor<?> findJdkParameterSpec() {
+        try {
+            Class<?> specClass = Class.forName("javax.crypto.spec.ChaCha20ParameterSpec");
+            Constructor<?> constructor = specClass.getConstructor(byte[].class, int.class);
+            Cipher.getInstance(CONTENT_CIPHER_ALGORITHM);
+            return constructor;
+        } catch (Exception e) {
+            log.debug("当前JDK不支持ChaCha20, 使用纯java实现: {}", e.getMessage());
+            return null;
+        }
+    }
+}
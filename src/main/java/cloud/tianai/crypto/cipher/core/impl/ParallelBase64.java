@@ -0,0 +1,324 @@
+package cloud.tianai.crypto.cipher.core.impl;
+
+import cloud.tianai.crypto.exception.CryptoCipherException;
+
+import javax.crypto.Cipher;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+import static cloud.tianai.crypto.cipher.core.impl.Base64CryptoCipher.*;
+
+/**
+ * @Author: 天爱有情
+ * @date 2021/12/22 10:30
+ * @Description base64并行编解码
+ * <p>
+ * 编码时按 3字节(MIME按一行57字节) 对齐切分, 每段的输出位置可以直接算出来;
+ * 解码时先并行统计每段有效字符数, 再按 4个字符 一组划分每段负责的数据, 每段解码到预先计算好的位置,
+ * 结果与串行编解码完全一致. 解码时如果数据中间出现填充符(多段base64拼接的数据), 返回null由调用方串行处理
+ */
+final class ParallelBase64 {
+
+    /** 小于该长度时直接串行处理. */
+    static final int PARALLEL_THRESHOLD = 1024 * 1024;
+    /** 每段的最小长度. */
+    static final int MIN_SEGMENT_SIZE = 256 * 1024;
+    /** 文件编解码时每次读取的长度, 是57的整数倍. */
+    static final int FILE_BLOCK_SIZE = 57 * 256 * 1024;
+    /** MIME 每行对应的原始字节数. */
+    static final int MIME_LINE_BYTES = MIME_LINE_LENGTH / 4 * 3;
+    /** 文件解码时两块之间最多保留的未凑满4个字符的数据长度, 超出时改为串行处理. */
+    private static final int MAX_CARRY = 1024;
+
+    private ParallelBase64() {
+    }
+
+    /**
+     * 编码
+     *
+     * @param input  原数据
+     * @param offset offset
+     * @param length length, last为false时必须是 3(MIME为57) 的整数倍
+     * @param mime   是否MIME格式
+     * @param last   是否是最后一块数据, 最后一块数据会补齐填充符
+     * @param pool   线程池
+     * @return 编码后的数据
+     */
+    static byte[] encode(byte[] input, int offset, int length, boolean mime, boolean last, ForkJoinPool pool) {
+        int align = mime ? MIME_LINE_BYTES : 3;
+        if (!last && length % align != 0) {
+            throw new IllegalArgumentException("length必须是" + align + "的整数倍");
+        }
+        byte[] output = new byte[encodedLength(length, mime, last)];
+        int segment = segmentSize(length, align, pool);
+        int count = (int) ((length + (long) segment - 1) / segment);
+        invoke(pool, count, i -> {
+            int start = i * segment;
+            int len = Math.min(segment, length - start);
+            int out = mime ? start / MIME_LINE_BYTES * (MIME_LINE_LENGTH + MIME_LINE_SEPARATOR.length) : start / 3 * 4;
+            if (mime && start > 0) {
+                // 每段都从新的一行开始, 补上前一行的换行
+                output[out - 2] = MIME_LINE_SEPARATOR[0];
+                output[out - 1] = MIME_LINE_SEPARATOR[1];
+            }
+            Base64CryptoCipher codec = new Base64CryptoCipher(Cipher.ENCRYPT_MODE, mime);
+            out += codec.update(input, offset + start, len, output, out);
+            if (last && i == count - 1) {
+                codec.doFinal(output, out);
+            }
+        });
+        return output;
+    }
+
+    /**
+     * 解码
+     *
+     * @param input  原数据
+     * @param offset offset
+     * @param length length
+     * @param mime   是否MIME格式
+     * @param last   是否是最后一块数据, 不是最后一块时末尾未凑满4个字符的数据不做处理
+     * @param pool   线程池
+     * @return 解码结果, 数据中间出现填充符时返回null
+     */
+    static DecodeResult decode(byte[] input, int offset, int length, boolean mime, boolean last, ForkJoinPool pool) {
+        int segment = segmentSize(length, 4, pool);
+        int count = (int) ((length + (long) segment - 1) / segment);
+        int[] validCount = new int[count];
+        int[] firstPadding = new int[count];
+        int[] lastValid = new int[count];
+        // 第一遍: 统计每段的有效字符数和填充符的位置
+        invoke(pool, count, i -> {
+            int start = i * segment;
+            int end = Math.min(start + segment, length);
+            int valid = 0;
+            int padding = -1;
+            int lastValidIndex = -1;
+            for (int p = start; p < end; p++) {
+                int c = DECODE_TABLE[input[offset + p] & 0xFF];
+                if (c >= 0) {
+                    valid++;
+                    lastValidIndex = p;
+                } else if (c == PADDING) {
+                    if (padding < 0) {
+                        padding = p;
+                    }
+                } else if (c == INVALID && !mime) {
+                    throw new CryptoCipherException("非法的base64字符: " + (char) (input[offset + p] & 0xFF));
+                }
+            }
+            validCount[i] = valid;
+            firstPadding[i] = padding;
+            lastValid[i] = lastValidIndex;
+        });
+        int padding = -1;
+        int lastValidIndex = -1;
+        long[] prefix = new long[count + 1];
+        for (int i = 0; i < count; i++) {
+            prefix[i + 1] = prefix[i] + validCount[i];
+            if (padding < 0) {
+                padding = firstPadding[i];
+            }
+            lastValidIndex = Math.max(lastValidIndex, lastValid[i]);
+        }
+        if (padding >= 0 && (!last || padding < lastValidIndex)) {
+            return null;
+        }
+        long valid = prefix[count];
+        int rem = (int) (valid % 4);
+        if (last && rem == 1) {
+            throw new CryptoCipherException("base64数据长度不正确");
+        }
+        // 不是最后一块时, 末尾未凑满4个字符的数据留给下一块
+        int consumed = last || rem == 0 ? length : indexOfValid(input, offset, length, segment, prefix, valid - rem);
+        long outputLength = valid / 4 * 3 + (last && rem > 0 ? rem - 1 : 0);
+        if (outputLength > Integer.MAX_VALUE - 8) {
+            throw new CryptoCipherException("base64数据过大");
+        }
+        byte[] output = new byte[(int) outputLength];
+        // 第二遍: 每段负责第一个字符落在本段内的分组
+        invoke(pool, count, i -> {
+            int start = i * segment;
+            int end = Math.min(start + segment, consumed);
+            int skip = (int) ((4 - prefix[i] % 4) % 4);
+            int pos = start;
+            while (skip > 0 && pos < end) {
+                if (DECODE_TABLE[input[offset + pos++] & 0xFF] >= 0) {
+                    skip--;
+                }
+            }
+            if (pos >= end) {
+                return;
+            }
+            int out = (int) ((prefix[i] + 3) / 4 * 3);
+            Base64CryptoCipher codec = new Base64CryptoCipher(Cipher.DECRYPT_MODE, mime);
+            out += codec.update(input, offset + pos, end - pos, output, out);
+            // 补齐跨越到下一段的分组
+            for (int p = end; codec.bitsCount != 0 && p < consumed; p++) {
+                out += codec.update(input, offset + p, 1, output, out);
+            }
+            if (last && codec.bitsCount != 0) {
+                codec.doFinal(output, out);
+            }
+        });
+        return new DecodeResult(output, consumed);
+    }
+
+    /**
+     * 文件到文件的编解码
+     *
+     * @param source 原文件
+     * @param target 目标文件
+     * @param model  model
+     * @param mime   是否MIME格式
+     * @param pool   线程池
+     * @throws IOException IO异常
+     */
+    static void transcode(Path source, Path target, int model, boolean mime, ForkJoinPool pool) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long size = in.size();
+            byte[] block = new byte[FILE_BLOCK_SIZE + MAX_CARRY];
+            if (Cipher.ENCRYPT_MODE == model) {
+                boolean first = true;
+                boolean last;
+                do {
+                    int n = readFully(in, block, 0, FILE_BLOCK_SIZE);
+                    last = n < FILE_BLOCK_SIZE || in.position() >= size;
+                    byte[] encoded = encode(block, 0, n, mime, last, pool);
+                    if (encoded.length > 0) {
+                        if (mime && !first) {
+                            writeFully(out, MIME_LINE_SEPARATOR, 0, MIME_LINE_SEPARATOR.length);
+                        }
+                        writeFully(out, encoded, 0, encoded.length);
+                        first = false;
+                    }
+                } while (!last);
+                return;
+            }
+            // 串行解码, 用于处理中间带有填充符的数据
+            Base64CryptoCipher codec = new Base64CryptoCipher(Cipher.DECRYPT_MODE, mime);
+            int carry = 0;
+            boolean last;
+            do {
+                int n = readFully(in, block, carry, FILE_BLOCK_SIZE);
+                int len = carry + n;
+                last = n < FILE_BLOCK_SIZE || in.position() >= size;
+                DecodeResult result = codec.bitsCount == 0 ? decode(block, 0, len, mime, last, pool) : null;
+                if (result != null && len - result.consumed <= MAX_CARRY) {
+                    writeFully(out, result.output, 0, result.output.length);
+                    carry = len - result.consumed;
+                    System.arraycopy(block, result.consumed, block, 0, carry);
+                } else {
+                    byte[] decoded = new byte[codec.getOutputSize(len) + 2];
+                    int k = codec.update(block, 0, len, decoded, 0);
+                    if (last) {
+                        k += codec.doFinal(decoded, k);
+                    }
+                    writeFully(out, decoded, 0, k);
+                    carry = 0;
+                }
+            } while (!last);
+        }
+    }
+
+    static int encodedLength(long length, boolean mime, boolean last) {
+        long chars = last ? (length + 2) / 3 * 4 : length / 3 * 4;
+        if (mime && chars > 0) {
+            chars += (chars - 1) / MIME_LINE_LENGTH * MIME_LINE_SEPARATOR.length;
+        }
+        if (chars > Integer.MAX_VALUE - 8) {
+            throw new CryptoCipherException("base64数据过大");
+        }
+        return (int) chars;
+    }
+
+    private static int segmentSize(int length, int align, ForkJoinPool pool) {
+        if (length < PARALLEL_THRESHOLD || pool.getParallelism() < 2) {
+            return Math.max(align, length + align - length % align);
+        }
+        long size = Math.max(MIN_SEGMENT_SIZE, length / (pool.getParallelism() * 4L) + 1);
+        return (int) ((size + align - 1) / align * align);
+    }
+
+    /**
+     * 查找第n个(从0开始)有效字符的位置
+     */
+    private static int indexOfValid(byte[] input, int offset, int length, int segment, long[] prefix, long n) {
+        int i = 0;
+        while (prefix[i + 1] <= n) {
+            i++;
+        }
+        long count = prefix[i];
+        for (int p = i * segment; p < length; p++) {
+            if (DECODE_TABLE[input[offset + p] & 0xFF] >= 0 && count++ == n) {
+                return p;
+            }
+        }
+        return length;
+    }
+
+    private static void invoke(ForkJoinPool pool, int count, IntConsumer task) {
+        if (count == 1) {
+            task.accept(0);
+        } else if (count > 1) {
+            pool.invoke(new SegmentAction(task, 0, count));
+        }
+    }
+
+    private static int readFully(FileChannel channel, byte[] buffer, int offset, int length) throws IOException {
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, offset, length);
+        while (byteBuffer.hasRemaining() && channel.read(byteBuffer) >= 0) {
+            // 读满为止
+        }
+        return byteBuffer.position() - offset;
+    }
+
+    private static void writeFully(FileChannel channel, byte[] buffer, int offset, int length) throws IOException {
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, offset, length);
+        while (byteBuffer.hasRemaining()) {
+            channel.write(byteBuffer);
+        }
+    }
+
+    static final class DecodeResult {
+        final byte[] output;
+        /** 已处理的输入长度. */
+        final int consumed;
+
+        DecodeResult(byte[] output, int consumed) {
+            this.output = output;
+            this.consumed = consumed;
+        }
+    }
+
+    private static final class SegmentAction extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final IntConsumer task;
+        private final int from;
+        private final int to;
+
+        SegmentAction(IntConsumer task, int from, int to) {
+            this.task = task;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                task.accept(from);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new SegmentAction(task, from, mid), new SegmentAction(task, mid, to));
+        }
+    }
+}
@@ -2,12 +2,16 @@ package cloud.tianai.crypto.cipher.core.impl;
 
 import cloud.tianai.crypto.cipher.core.AbstractCryptoCipher;
 import cloud.tianai.crypto.cipher.core.CryptoCipher;
+import cloud.tianai.crypto.cipher.engine.EngineCiphers;
 import lombok.Setter;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 
 import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
 import java.security.SecureRandom;
+import java.util.function.Supplier;
 
 /**
  * @Author: 天爱有情
@@ -36,6 +40,14 @@ public class Sm4CryptoCipher extends AbstractCryptoCipher {
         this(cipher, model, false);
     }
 
+    /**
+     * @param cipherSupplier 外层密码, 每次加解密CEK时获取, 见 CryptoCipherFactory
+     * @param model          model
+     */
+    public Sm4CryptoCipher(Supplier<Cipher> cipherSupplier, int model) {
+        super(cipherSupplier, model);
+    }
+
     @SneakyThrows
     public Sm4CryptoCipher(Cipher cipher, int model, boolean skipCheckVersion) {
         super(cipher, model);
@@ -56,7 +68,30 @@ public class Sm4CryptoCipher extends AbstractCryptoCipher {
 
     @Override
     public CryptoCipher recreate() {
-        return new Sm4CryptoCipher(getCipher(), getModel());
+        Sm4CryptoCipher cryptoCipher = getCipherSupplier() != null
+                ? new Sm4CryptoCipher(getCipherSupplier(), getModel())
+                : new Sm4CryptoCipher(getCipher(), getModel());
+        copySettingsTo(cryptoCipher);
+        return cryptoCipher;
+    }
+
+    /**
+     * BouncyCastle 的 SM4/CTR 会缓存不足一个分组的数据, 无法按字节定位, 这里优先使用不缓存数据的 CTR 实现
+     */
+    @Override
+    @SneakyThrows
+    public Cipher createCryptoCipherFromContentMaterial(byte[] iv, SecretKey cek, int cipherMode) {
+        Cipher cipher = EngineCiphers.createCounterModeCipher(KEY_GENERATOR_ALGORITHM);
+        if (cipher == null) {
+            return super.createCryptoCipherFromContentMaterial(iv, cek, cipherMode);
+        }
+        cipher.init(cipherMode, cek, new IvParameterSpec(iv));
+        return cipher;
+    }
+
+    @Override
+    protected boolean isCounterMode() {
+        return EngineCiphers.isAvailable();
     }
 
     @Override
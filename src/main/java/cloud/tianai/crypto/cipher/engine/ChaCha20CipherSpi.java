@@ -0,0 +1,137 @@
+package cloud.tianai.crypto.cipher.engine;
+
+import java.security.InvalidKeyException;
+import java.security.Key;
+
+/**
+ * @Author: 天爱有情
+ * @date 2021/12/28 15:10
+ * @Description 纯java实现的 ChaCha20 (RFC 7539), 用于JDK11以下没有内置 ChaCha20 的环境
+ * <p>
+ * IV 为16字节, 与 OpenSSL 的 chacha20 相同: 前4字节为小端序的初始分组计数器, 后12字节为 nonce,
+ * 因此可以从任意分组开始生成密钥流
+ */
+public class ChaCha20CipherSpi extends CounterModeCipherSpi {
+
+    public static final int BLOCK_SIZE = 64;
+    public static final int KEY_SIZE = 32;
+    public static final int IV_SIZE = 16;
+
+    private static final int SIGMA0 = 0x61707865;
+    private static final int SIGMA1 = 0x3320646e;
+    private static final int SIGMA2 = 0x79622d32;
+    private static final int SIGMA3 = 0x6b206574;
+
+    /** 秘钥的8个字. */
+    private final int[] key = new int[8];
+
+    public ChaCha20CipherSpi() {
+        super("ChaCha20");
+    }
+
+    @Override
+    protected int initBlockCipher(Key key) throws InvalidKeyException {
+        byte[] encoded = key == null ? null : key.getEncoded();
+        if (encoded == null || encoded.length != KEY_SIZE) {
+            throw new InvalidKeyException("ChaCha20秘钥长度必须为" + KEY_SIZE);
+        }
+        for (int i = 0; i < 8; i++) {
+            this.key[i] = readIntLE(encoded, i * 4);
+        }
+        return BLOCK_SIZE;
+    }
+
+    @Override
+    protected int getIvLength() {
+        return IV_SIZE;
+    }
+
+    /**
+     * 计数器只有32位, 溢出后密钥流会重复, 单个nonce最多加密256GB数据
+     */
+    @Override
+    protected long getMaxBlocks(byte[] iv) {
+        return (1L << 32) - (readIntLE(iv, 0) & 0xFFFFFFFFL);
+    }
+
+    @Override
+    protected void generateKeystream(byte[] counter, byte[] keystream) {
+        int[] k = this.key;
+        int blockCounter = readIntLE(counter, 0);
+        int n0 = readIntLE(counter, 4);
+        int n1 = readIntLE(counter, 8);
+        int n2 = readIntLE(counter, 12);
+        for (int offset = 0; offset < keystream.length; offset += BLOCK_SIZE) {
+            int x0 = SIGMA0, x1 = SIGMA1, x2 = SIGMA2, x3 = SIGMA3;
+            int x4 = k[0], x5 = k[1], x6 = k[2], x7 = k[3];
+            int x8 = k[4], x9 = k[5], x10 = k[6], x11 = k[7];
+            int x12 = blockCounter, x13 = n0, x14 = n1, x15 = n2;
+            for (int i = 0; i < 10; i++) {
+                // 列
+                x0 += x4; x12 = Integer.rotateLeft(x12 ^ x0, 16);
+                x8 += x12; x4 = Integer.rotateLeft(x4 ^ x8, 12);
+                x0 += x4; x12 = Integer.rotateLeft(x12 ^ x0, 8);
+                x8 += x12; x4 = Integer.rotateLeft(x4 ^ x8, 7);
+                x1 += x5; x13 = Integer.rotateLeft(x13 ^ x1, 16);
+                x9 += x13; x5 = Integer.rotateLeft(x5 ^ x9, 12);
+                x1 += x5; x13 = Integer.rotateLeft(x13 ^ x1, 8);
+                x9 += x13; x5 = Integer.rotateLeft(x5 ^ x9, 7);
+                x2 += x6; x14 = Integer.rotateLeft(x14 ^ x2, 16);
+                x10 += x14; x6 = Integer.rotateLeft(x6 ^ x10, 12);
+                x2 += x6; x14 = Integer.rotateLeft(x14 ^ x2, 8);
+                x10 += x14; x6 = Integer.rotateLeft(x6 ^ x10, 7);
+                x3 += x7; x15 = Integer.rotateLeft(x15 ^ x3, 16);
+                x11 += x15; x7 = Integer.rotateLeft(x7 ^ x11, 12);
+                x3 += x7; x15 = Integer.rotateLeft(x15 ^ x3, 8);
+                x11 += x15; x7 = Integer.rotateLeft(x7 ^ x11, 7);
+                // 对角线
+                x0 += x5; x15 = Integer.rotateLeft(x15 ^ x0, 16);
+                x10 += x15; x5 = Integer.rotateLeft(x5 ^ x10, 12);
+                x0 += x5; x15 = Integer.rotateLeft(x15 ^ x0, 8);
+                x10 += x15; x5 = Integer.rotateLeft(x5 ^ x10, 7);
+                x1 += x6; x12 = Integer.rotateLeft(x12 ^ x1, 16);
+                x11 += x12; x6 = Integer.rotateLeft(x6 ^ x11, 12);
+                x1 += x6; x12 = Integer.rotateLeft(x12 ^ x1, 8);
+                x11 += x12; x6 = Integer.rotateLeft(x6 ^ x11, 7);
+                x2 += x7; x13 = Integer.rotateLeft(x13 ^ x2, 16);
+                x8 += x13; x7 = Integer.rotateLeft(x7 ^ x8, 12);
+                x2 += x7; x13 = Integer.rotateLeft(x13 ^ x2, 8);
+                x8 += x13; x7 = Integer.rotateLeft(x7 ^ x8, 7);
+                x3 += x4; x14 = Integer.rotateLeft(x14 ^ x3, 16);
+                x9 += x14; x4 = Integer.rotateLeft(x4 ^ x9, 12);
+                x3 += x4; x14 = Integer.rotateLeft(x14 ^ x3, 8);
+                x9 += x14; x4 = Integer.rotateLeft(x4 ^ x9, 7);
+            }
+            writeIntLE(keystream, offset, x0 + SIGMA0);
+            writeIntLE(keystream, offset + 4, x1 + SIGMA1);
+            writeIntLE(keystream, offset + 8, x2 + SIGMA2);
+            writeIntLE(keystream, offset + 12, x3 + SIGMA3);
+            writeIntLE(keystream, offset + 16, x4 + k[0]);
+            writeIntLE(keystream, offset + 20, x5 + k[1]);
+            writeIntLE(keystream, offset + 24, x6 + k[2]);
+            writeIntLE(keystream, offset + 28, x7 + k[3]);
+            writeIntLE(keystream, offset + 32, x8 + k[4]);
+            writeIntLE(keystream, offset + 36, x9 + k[5]);
+            writeIntLE(keystream, offset + 40, x10 + k[6]);
+            writeIntLE(keystream, offset + 44, x11 + k[7]);
+            writeIntLE(keystream, offset + 48, x12 + blockCounter);
+            writeIntLE(keystream, offset + 52, x13 + n0);
+            writeIntLE(keystream, offset + 56, x14 + n1);
+            writeIntLE(keystream, offset + 60, x15 + n2);
+            // 溢出后的分组不会被使用, 见 getMaxBlocks
+            blockCounter++;
+        }
+        writeIntLE(counter, 0, blockCounter);
+    }
+
+    private static int readIntLE(byte[] b, int off) {
+        return (b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8 | (b[off + 2] & 0xFF) << 16 | (b[off + 3] & 0xFF) << 24;
+    }
+
+    private static void writeIntLE(byte[] b, int off, int v) {
+        b[off] = (byte) v;
+        b[off + 1] = (byte) (v >>> 8);
+        b[off + 2] = (byte) (v >>> 16);
+        b[off + 3] = (byte) (v >>> 24);
+    }
+}
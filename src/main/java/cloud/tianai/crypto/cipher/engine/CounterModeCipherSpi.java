@@ -0,0 +1,252 @@
+package cloud.tianai.crypto.cipher.engine;
+
+import javax.crypto.*;
+import javax.crypto.spec.IvParameterSpec;
+import java.nio.ByteBuffer;
+import java.security.*;
+import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.InvalidParameterSpecException;
+
+/**
+ * @Author: 天爱有情
+ * @date 2021/12/20 10:12
+ * @Description 基于 ECB 分组加密实现的 CTR 模式,
+ * 和部分 Provider 的 CTR 实现不同, 这里不会缓存不足一个分组的数据, 输入多少就输出多少, 因此可以按字节精确定位
+ * <p>
+ * 子类可以重写 initBlockCipher 和 generateKeystream 直接实现分组算法, 不经过JCE的 ECB 实现, 比如 Sm4CounterModeCipherSpi
+ */
+public class CounterModeCipherSpi extends CipherSpi {
+
+    /** 每次批量生成的密钥流分组数. */
+    protected static final int BATCH_BLOCKS = 64;
+
+    private final String blockAlgorithm;
+    private Cipher blockCipher;
+    private int blockSize;
+    private byte[] iv;
+    private byte[] counter;
+    private byte[] counterBlocks;
+    private byte[] keystream;
+    private ByteBuffer keystreamBuffer;
+    private int keystreamPos;
+    /** keystream 中可以使用的长度, 计数器即将溢出时最后一批只有部分分组可用. */
+    private int keystreamEnd;
+    /** 从 iv 开始最多可以生成的分组数. */
+    private long maxBlocks;
+    /** 从 iv 开始已经生成的分组数. */
+    private long generatedBlocks;
+
+    public CounterModeCipherSpi(String blockAlgorithm) {
+        this.blockAlgorithm = blockAlgorithm;
+    }
+
+    @Override
+    protected void engineSetMode(String mode) throws NoSuchAlgorithmException {
+        if (!"CTR".equalsIgnoreCase(mode)) {
+            throw new NoSuchAlgorithmException("只支持CTR模式: " + mode);
+        }
+    }
+
+    @Override
+    protected void engineSetPadding(String padding) throws NoSuchPaddingException {
+        if (!"NoPadding".equalsIgnoreCase(padding)) {
+            throw new NoSuchPaddingException("只支持NoPadding: " + padding);
+        }
+    }
+
+    @Override
+    protected int engineGetBlockSize() {
+        return blockSize;
+    }
+
+    @Override
+    protected int engineGetOutputSize(int inputLen) {
+        return inputLen;
+    }
+
+    @Override
+    protected byte[] engineGetIV() {
+        return iv == null ? null : iv.clone();
+    }
+
+    @Override
+    protected AlgorithmParameters engineGetParameters() {
+        if (iv == null) {
+            return null;
+        }
+        try {
+            AlgorithmParameters parameters = AlgorithmParameters.getInstance(blockAlgorithm);
+            parameters.init(new IvParameterSpec(iv));
+            return parameters;
+        } catch (NoSuchAlgorithmException | InvalidParameterSpecException e) {
+            return null;
+        }
+    }
+
+    @Override
+    protected void engineInit(int opmode, Key key, SecureRandom random) throws InvalidKeyException {
+        throw new InvalidKeyException("CTR模式必须指定IV");
+    }
+
+    @Override
+    protected void engineInit(int opmode, Key key, AlgorithmParameterSpec params, SecureRandom random)
+            throws InvalidKeyException, InvalidAlgorithmParameterException {
+        if (!(params instanceof IvParameterSpec)) {
+            throw new InvalidAlgorithmParameterException("CTR模式必须使用IvParameterSpec");
+        }
+        blockSize = initBlockCipher(key);
+        byte[] ivBytes = ((IvParameterSpec) params).getIV();
+        if (ivBytes.length != getIvLength()) {
+            throw new InvalidAlgorithmParameterException("IV长度必须为" + getIvLength());
+        }
+        iv = ivBytes;
+        maxBlocks = getMaxBlocks(ivBytes);
+        keystream = new byte[BATCH_BLOCKS * blockSize];
+        keystreamBuffer = ByteBuffer.wrap(keystream);
+        resetCounter();
+    }
+
+    @Override
+    protected void engineInit(int opmode, Key key, AlgorithmParameters params, SecureRandom random)
+            throws InvalidKeyException, InvalidAlgorithmParameterException {
+        try {
+            engineInit(opmode, key, params == null ? null : params.getParameterSpec(IvParameterSpec.class), random);
+        } catch (InvalidParameterSpecException e) {
+            throw new InvalidAlgorithmParameterException(e);
+        }
+    }
+
+    @Override
+    protected byte[] engineUpdate(byte[] input, int inputOffset, int inputLen) {
+        byte[] output = new byte[inputLen];
+        process(input, inputOffset, inputLen, output, 0);
+        return output;
+    }
+
+    @Override
+    protected int engineUpdate(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset)
+            throws ShortBufferException {
+        if (output.length - outputOffset < inputLen) {
+            throw new ShortBufferException("output buffer too short");
+        }
+        process(input, inputOffset, inputLen, output, outputOffset);
+        return inputLen;
+    }
+
+    @Override
+    protected byte[] engineDoFinal(byte[] input, int inputOffset, int inputLen) {
+        byte[] output = engineUpdate(input, inputOffset, inputLen);
+        resetCounter();
+        return output;
+    }
+
+    @Override
+    protected int engineDoFinal(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset)
+            throws ShortBufferException {
+        int len = engineUpdate(input, inputOffset, inputLen, output, outputOffset);
+        resetCounter();
+        return len;
+    }
+
+    /**
+     * 初始化分组算法, CTR 模式加解密都是用分组算法加密计数器
+     *
+     * @param key 秘钥
+     * @return 分组长度
+     */
+    protected int initBlockCipher(Key key) throws InvalidKeyException, InvalidAlgorithmParameterException {
+        try {
+            blockCipher = Cipher.getInstance(blockAlgorithm + "/ECB/NoPadding");
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            throw new InvalidAlgorithmParameterException("不支持的分组算法: " + blockAlgorithm, e);
+        }
+        blockCipher.init(Cipher.ENCRYPT_MODE, key);
+        return blockCipher.getBlockSize();
+    }
+
+    /**
+     * IV(即初始计数器)的长度, 默认与分组长度相同
+     *
+     * @return IV长度
+     */
+    protected int getIvLength() {
+        return blockSize;
+    }
+
+    /**
+     * 从 iv 开始最多可以生成的分组数, 超过后计数器溢出, 密钥流会重复.
+     * 只有实际用到超出的分组时才会抛出异常, 批量生成时多生成的分组不会被使用
+     *
+     * @param iv 初始计数器
+     * @return 分组数, 默认不限制
+     */
+    protected long getMaxBlocks(byte[] iv) {
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * 从 counter 开始生成 keystream.length / blockSize 个分组的密钥流, 并把 counter 更新为下一个分组的计数器
+     *
+     * @param counter   大端序计数器, 原地更新
+     * @param keystream 输出的密钥流
+     */
+    protected void generateKeystream(byte[] counter, byte[] keystream) {
+        if (counterBlocks == null) {
+            counterBlocks = new byte[keystream.length];
+        }
+        for (int offset = 0; offset < counterBlocks.length; offset += blockSize) {
+            System.arraycopy(counter, 0, counterBlocks, offset, blockSize);
+            // 大端序计数器 +1
+            for (int i = blockSize - 1; i >= 0; i--) {
+                if (++counter[i] != 0) {
+                    break;
+                }
+            }
+        }
+        try {
+            blockCipher.update(counterBlocks, 0, counterBlocks.length, keystream, 0);
+        } catch (ShortBufferException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void resetCounter() {
+        counter = iv.clone();
+        keystreamPos = keystream.length;
+        keystreamEnd = keystream.length;
+        generatedBlocks = 0;
+    }
+
+    private void process(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset) {
+        ByteBuffer in = inputLen >= 16 ? ByteBuffer.wrap(input) : null;
+        ByteBuffer out = in == null ? null : input == output ? in : ByteBuffer.wrap(output);
+        while (inputLen > 0) {
+            if (keystreamPos == keystreamEnd) {
+                long remaining = maxBlocks - generatedBlocks;
+                if (remaining <= 0) {
+                    throw new IllegalStateException(blockAlgorithm + "计数器溢出, 单个iv可加密的数据已用完");
+                }
+                generateKeystream(counter, keystream);
+                int blocks = (int) Math.min(BATCH_BLOCKS, remaining);
+                generatedBlocks += blocks;
+                keystreamEnd = blocks * blockSize;
+                keystreamPos = 0;
+            }
+            int len = Math.min(inputLen, keystreamEnd - keystreamPos);
+            int i = 0;
+            if (in != null) {
+                // 按8字节异或, heap ByteBuffer 的 getLong/putLong 在JDK9以后会被优化为单次读写
+                for (int end = len - 7; i < end; i += 8) {
+                    out.putLong(outputOffset + i, in.getLong(inputOffset + i) ^ keystreamBuffer.getLong(keystreamPos + i));
+                }
+            }
+            for (; i < len; i++) {
+                output[outputOffset + i] = (byte) (input[inputOffset + i] ^ keystream[keystreamPos + i]);
+            }
+            keystreamPos += len;
+            inputOffset += len;
+            outputOffset += len;
+            inputLen -= len;
+        }
+    }
+}
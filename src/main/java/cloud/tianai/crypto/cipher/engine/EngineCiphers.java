@@ -0,0 +1,79 @@
+package cloud.tianai.crypto.cipher.engine;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherSpi;
+import java.security.Provider;
+
+/**
+ * @Author: 天爱有情
+ * @date 2021/12/20 10:40
+ * @Description 把本项目实现的 CipherSpi 包装成 javax.crypto.Cipher,
+ * 不需要注册 Provider, 如果当前JDK不允许使用未签名的实现(比如 Oracle JDK), 返回 null 由调用方回退到JCE的实现
+ */
+@Slf4j
+public class EngineCiphers {
+
+    private static final Provider PROVIDER = new EngineProvider();
+    /** 类加载时探测一次当前JDK是否允许使用自定义的 CipherSpi. */
+    private static final boolean AVAILABLE = probe();
+
+    /**
+     * 创建计数器模式的 Cipher, SM4 使用纯java优化实现, 其它算法基于JCE的 ECB 模式实现
+     *
+     * @param blockAlgorithm 分组算法, 比如 SM4
+     * @return Cipher, 不可用时返回 null
+     */
+    public static Cipher createCounterModeCipher(String blockAlgorithm) {
+        CipherSpi spi = "SM4".equalsIgnoreCase(blockAlgorithm)
+                ? new Sm4CounterModeCipherSpi()
+                : new CounterModeCipherSpi(blockAlgorithm);
+        return wrap(spi, blockAlgorithm + "/CTR/NoPadding");
+    }
+
+    /**
+     * 创建纯java实现的 ChaCha20 Cipher, IV 为16字节: 4字节小端序的初始分组计数器 + 12字节 nonce
+     *
+     * @return Cipher, 不可用时返回 null
+     */
+    public static Cipher createChaCha20Cipher() {
+        return wrap(new ChaCha20CipherSpi(), "ChaCha20");
+    }
+
+    public static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    static Cipher wrap(CipherSpi spi, String transformation) {
+        return AVAILABLE ? new EngineCipher(spi, transformation) : null;
+    }
+
+    /**
+     * JDK 8 对不受信任的调用方在 Cipher 构造方法中直接抛出 NullPointerException, 其它版本可能抛出 SecurityException 等, 统一视为不可用
+     */
+    private static boolean probe() {
+        try {
+            new EngineCipher(new ChaCha20CipherSpi(), "ChaCha20");
+            return true;
+        } catch (RuntimeException e) {
+            log.warn("当前JDK不支持直接使用自定义的CipherSpi, 回退到JCE实现: {}", e.toString());
+            return false;
+        }
+    }
+
+    static class EngineCipher extends Cipher {
+        EngineCipher(CipherSpi cipherSpi, String transformation) {
+            super(cipherSpi, PROVIDER, transformation);
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    static class EngineProvider extends Provider {
+        private static final long serialVersionUID = 1L;
+
+        EngineProvider() {
+            super("EasyCryptoEngine", 1.0, "easy-crypto cipher engines");
+        }
+    }
+}
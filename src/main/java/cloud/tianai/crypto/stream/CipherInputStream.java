@@ -1,35 +1,71 @@
 package cloud.tianai.crypto.stream;
 
 
+import cloud.tianai.crypto.buffer.BufferPool;
+import cloud.tianai.crypto.buffer.BufferPools;
+import cloud.tianai.crypto.check.EnhanceChecksum;
+import cloud.tianai.crypto.check.impl.ChecksumAdapter;
 import cloud.tianai.crypto.cipher.core.CryptoCipher;
+import cloud.tianai.crypto.exception.CryptoCipherException;
 import lombok.extern.slf4j.Slf4j;
 
 import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Checksum;
 
 /**
  * @Author: 天爱有情
  * @date 2021/11/25 10:11
  * @Description 带有密码的输入流, 支持加解密操作
+ * <p>
+ * 可以通过 setPlaintextChecksum/setCiphertextChecksum 在加解密的同时计算明文和密文的校验值,
+ * 每块数据读入或输出后立即更新, 不需要再套一层 EnhanceCheckedInputStream. 密文校验值包含头信息.
+ * 设置了校验值后不支持 mark/reset, skip 也会读取并校验被跳过的数据
  */
 @Slf4j
 public class CipherInputStream extends SdkFilterInputStream {
     private static final int MAX_RETRY = 1000;
     private static final int DEFAULT_IN_BUFFER_SIZE = 4096;
+    /** 自适应扩容时 bufIn 的默认上限. */
+    private static final int DEFAULT_MAX_IN_BUFFER_SIZE = 1024 * 1024;
+    /** 调用方一次读取的长度达到该值时, 尝试直接解密到调用方的 buffer 中. */
+    private static final int MIN_DIRECT_READ_SIZE = 512;
     public static final int POSITIVE_MULTIPLE = 64;
     private final AtomicBoolean firstRead = new AtomicBoolean(false);
     private CryptoCipher cryptoCipher;
 
     private boolean hasBeenAccessed;
     private byte[] bufIn;
+    /** bufIn 是否是从 bufferPool 借用的, 外部设置的 bufIn 不归还. */
+    private boolean pooledBufIn;
+    /** 从 bufferPool 借用的输出 buffer, CryptoCipher 能预估输出长度时直接输出到该 buffer 中. */
+    private byte[] pooledBufOut;
+    private BufferPool bufferPool = BufferPools.getDefault();
+    /** bufIn 的有效长度, 从 bufferPool 借用的 bufIn 可能比该值长. */
     private int bufferSize;
     private boolean eof;
     private byte[] bufOut;
     private int currPos;
     private int maxPos;
+    /** 是否根据读取情况自适应扩大 bufIn. */
+    private boolean adaptiveBuffer = true;
+    private int maxBufferSize = DEFAULT_MAX_IN_BUFFER_SIZE;
+    /** 调用方最近一次要求读取的长度. */
+    private int lastReadSize;
+    /** mark 时的数据位置, -1 表示 reset 时需要重新创建 CryptoCipher. */
+    private long markPosition = -1;
+    /** mark 时还未被读取的缓冲数据. */
+    private byte[] markBuffer;
+    private boolean markEof;
+    /** 底层流读入数据的校验, 加密时是明文, 解密时是密文. */
+    private EnhanceChecksum<?> inChecksum;
+    /** 输出数据的校验, 加密时是密文, 解密时是明文. */
+    private EnhanceChecksum<?> outChecksum;
 
     public CipherInputStream(InputStream is, CryptoCipher cryptoCipher) {
         this(is, cryptoCipher, DEFAULT_IN_BUFFER_SIZE);
@@ -49,21 +85,141 @@ public class CipherInputStream extends SdkFilterInputStream {
         return this.bufferSize;
     }
 
+    /**
+     * 手动指定 buffer 长度后不再自适应扩容
+     *
+     * @param bufferSize buffer长度
+     */
     public void setBuffSize(int bufferSize) {
         this.bufferSize = bufferSize;
+        this.adaptiveBuffer = false;
+        if (this.bufIn != null && this.bufIn.length < bufferSize) {
+            releaseBufIn();
+        }
+    }
+
+    public boolean isAdaptiveBuffer() {
+        return adaptiveBuffer;
+    }
+
+    public void setAdaptiveBuffer(boolean adaptiveBuffer) {
+        this.adaptiveBuffer = adaptiveBuffer;
+    }
+
+    public int getMaxBuffSize() {
+        return maxBufferSize;
+    }
+
+    public void setMaxBuffSize(int maxBufferSize) {
+        this.maxBufferSize = maxBufferSize;
     }
 
     public byte[] getBufIn() {
         if (this.bufIn == null) {
-            this.bufIn = new byte[this.bufferSize];
+            this.bufIn = bufferPool.acquire(this.bufferSize);
+            this.pooledBufIn = true;
         }
         return this.bufIn;
     }
 
     public void setBufIn(byte[] bufIn) {
+        releaseBufIn();
         this.bufIn = bufIn;
     }
 
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * 设置借用 buffer 的池, 需要在第一次读取之前设置
+     *
+     * @param bufferPool buffer池
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * 设置明文的校验, 需要在第一次读取之前设置
+     *
+     * @param checksum 校验, 为空时不校验
+     */
+    public void setPlaintextChecksum(Checksum checksum) {
+        if (isEncrypt()) {
+            this.inChecksum = ChecksumAdapter.adapt(checksum);
+        } else {
+            this.outChecksum = ChecksumAdapter.adapt(checksum);
+        }
+    }
+
+    /**
+     * 设置密文(包含头信息)的校验, 需要在第一次读取之前设置
+     *
+     * @param checksum 校验, 为空时不校验
+     */
+    public void setCiphertextChecksum(Checksum checksum) {
+        if (isEncrypt()) {
+            this.outChecksum = ChecksumAdapter.adapt(checksum);
+        } else {
+            this.inChecksum = ChecksumAdapter.adapt(checksum);
+        }
+    }
+
+    public EnhanceChecksum<?> getPlaintextChecksum() {
+        return isEncrypt() ? inChecksum : outChecksum;
+    }
+
+    public EnhanceChecksum<?> getCiphertextChecksum() {
+        return isEncrypt() ? outChecksum : inChecksum;
+    }
+
+    private boolean isEncrypt() {
+        return Cipher.ENCRYPT_MODE == cryptoCipher.getModel();
+    }
+
+    private boolean hasChecksum() {
+        return inChecksum != null || outChecksum != null;
+    }
+
+    private void updateIn(byte[] b, int off, int len) {
+        if (inChecksum != null && len > 0) {
+            inChecksum.update(b, off, len);
+        }
+    }
+
+    private void updateOut(byte[] b, int off, int len) {
+        if (outChecksum != null && len > 0) {
+            outChecksum.update(b, off, len);
+        }
+    }
+
+    /**
+     * 解密时 CryptoCipher 通过该方法直接从底层流读取头信息, 需要校验密文时包装一层
+     */
+    @Override
+    public InputStream getDelegateStream() {
+        if (inChecksum != null) {
+            return new EnhanceCheckedInputStream(in, inChecksum);
+        }
+        return in;
+    }
+
+    private void releaseBufIn() {
+        if (this.bufIn != null && this.pooledBufIn) {
+            bufferPool.release(this.bufIn);
+        }
+        this.bufIn = null;
+        this.pooledBufIn = false;
+    }
+
+    /**
+     * bufIn 每次读取的长度
+     */
+    private int readLength(byte[] bufIn) {
+        return Math.min(bufferSize, bufIn.length);
+    }
+
     public int earlyEncryptGetHeaderSize() {
         byte[] headerData = cryptoCipher.earlyLoadingHeaderData(this);
         return headerData != null? headerData.length : 0;
@@ -86,6 +242,13 @@ public class CipherInputStream extends SdkFilterInputStream {
     @Override
     public int read(byte[] buf, int off, int targetLen) throws IOException {
         hasBeenAccessed = true;
+        lastReadSize = targetLen;
+        if (currPos >= maxPos && !eof && firstRead.get() && targetLen >= MIN_DIRECT_READ_SIZE) {
+            int len = readDirect(buf, off, targetLen);
+            if (len > 0) {
+                return len;
+            }
+        }
         if (readChunkIfNecessary() == -1) {
             return -1;
         }
@@ -103,6 +266,49 @@ public class CipherInputStream extends SdkFilterInputStream {
     }
 
 
+    /**
+     * 直接把数据加解密到调用方的 buffer 中, 省去 bufOut -> buf 的拷贝;
+     * 加解密前后长度一致时(比如CTR模式)直接读取到调用方的 buffer 中原地加解密
+     *
+     * @return 读取并处理后的长度, 返回 0 表示无法直接读取, 需走常规逻辑
+     */
+    private int readDirect(byte[] buf, int off, int targetLen) throws IOException {
+        int outputSize = cryptoCipher.getOutputSize(targetLen);
+        if (outputSize < 0) {
+            return 0;
+        }
+        if (outputSize == targetLen) {
+            abortIfNeeded();
+            int len = in.read(buf, off, targetLen);
+            if (len <= 0) {
+                // 流结束交给 nextChunk 处理 cryptoCipher.end()
+                return 0;
+            }
+            updateIn(buf, off, len);
+            len = cryptoCipher.update(buf, off, len, buf, off);
+            updateOut(buf, off, len);
+            return len;
+        }
+        // 长度不一致时(比如base64), 计算出输出不超过 targetLen 的输入长度
+        byte[] bufIn = getBufIn();
+        int inputLen = Math.min(readLength(bufIn), targetLen);
+        while (inputLen > 0 && (outputSize = cryptoCipher.getOutputSize(inputLen)) > targetLen) {
+            inputLen = (int) Math.min(inputLen - 1L, (long) inputLen * targetLen / outputSize);
+        }
+        if (inputLen <= 0) {
+            return 0;
+        }
+        abortIfNeeded();
+        int len = in.read(bufIn, 0, inputLen);
+        if (len <= 0) {
+            return 0;
+        }
+        updateIn(bufIn, 0, len);
+        len = cryptoCipher.update(bufIn, 0, len, buf, off);
+        updateOut(buf, off, len);
+        return len;
+    }
+
     protected int readChunkIfNecessary() throws IOException {
         int len = 0;
         if (currPos >= maxPos) {
@@ -123,22 +329,41 @@ public class CipherInputStream extends SdkFilterInputStream {
     }
 
     /**
-     * Note: This implementation will only skip up to the end of the buffered data,
-     * potentially skipping 0 bytes.
+     * 先跳过已缓冲的数据, 如果 CryptoCipher 支持 seek(比如CTR模式), 剩余部分直接 skip 底层流并重新计算计数器,
+     * 不需要解密被跳过的数据; 不支持 seek 时最多只跳过已缓冲的数据
      */
     @Override
-    public long skip(long n) {
+    public long skip(long n) throws IOException {
         abortIfNeeded();
         hasBeenAccessed = true;
-        int available = maxPos - currPos;
-        if (n > available) {
-            n = available;
+        if (n <= 0) {
+            return 0;
         }
-        if (n < 0) {
+        if (!firstRead.get() && readChunkIfNecessary() == -1) {
             return 0;
         }
-        currPos += n;
-        return n;
+        if (hasChecksum() && readChunkIfNecessary() == -1) {
+            return 0;
+        }
+        long skipped = Math.min(n, maxPos - currPos);
+        currPos += (int) skipped;
+        // 需要校验时被跳过的数据也要经过校验, 只能跳过已经读入的部分
+        if (skipped == n || eof || hasChecksum() || !cryptoCipher.isSeekable() || cryptoCipher.getPosition() < 0) {
+            return skipped;
+        }
+        long remaining = n - skipped;
+        long skippedIn = 0;
+        while (skippedIn < remaining) {
+            long len = in.skip(remaining - skippedIn);
+            if (len <= 0) {
+                break;
+            }
+            skippedIn += len;
+        }
+        if (skippedIn > 0) {
+            cryptoCipher.seek(cryptoCipher.getPosition() + skippedIn);
+        }
+        return skipped + skippedIn;
     }
 
     @Override
@@ -152,9 +377,19 @@ public class CipherInputStream extends SdkFilterInputStream {
         in.close();
         try {
             cryptoCipher.end();
-        } catch (BadPaddingException | IllegalBlockSizeException ex) {
+        } catch (BadPaddingException | IllegalBlockSizeException | CryptoCipherException ex) {
+            // 提前关闭时解压流可能不完整
             log.warn("cryptoCipher.end() warn", ex);
         }
+        // 归还借用的 buffer
+        releaseBufIn();
+        if (pooledBufOut != null) {
+            if (bufOut == pooledBufOut) {
+                bufOut = null;
+            }
+            bufferPool.release(pooledBufOut);
+            pooledBufOut = null;
+        }
         currPos = maxPos = 0;
         abortIfNeeded();
     }
@@ -162,15 +397,37 @@ public class CipherInputStream extends SdkFilterInputStream {
     @Override
     public boolean markSupported() {
         abortIfNeeded();
-        return in.markSupported();
+        return !hasChecksum() && in.markSupported();
     }
 
+    /**
+     * 支持 seek 的 CryptoCipher 可以在任意位置 mark, reset 时只重新计算计数器, 不需要重新解析头信息和解密CEK;
+     * 否则只能在第一次 read 或 skip 之前 mark
+     */
     @Override
     public void mark(int readLimit) {
+        abortIfNeeded();
+        if (hasChecksum()) {
+            throw new UnsupportedOperationException("设置了校验后不支持mark");
+        }
+        if (cryptoCipher.isSeekable()) {
+            // 先处理掉头信息, 保证 mark 的位置在数据区
+            startIfNecessary();
+            long position = cryptoCipher.getPosition();
+            if (position >= 0) {
+                markPosition = position;
+                markBuffer = currPos < maxPos ? Arrays.copyOfRange(bufOut, currPos, maxPos) : null;
+                markEof = eof;
+                // 底层流可能会多预读一个 bufIn 的长度
+                in.mark((int) Math.min(Integer.MAX_VALUE, (long) readLimit + Math.max(bufferSize, maxBufferSize)));
+                return;
+            }
+        }
         if (hasBeenAccessed) {
             throw new UnsupportedOperationException(
                     "Marking is only supported before your first call to " + "read or skip.");
         }
+        markPosition = -1;
         in.mark(readLimit);
     }
 
@@ -178,6 +435,14 @@ public class CipherInputStream extends SdkFilterInputStream {
     public void reset() throws IOException {
         abortIfNeeded();
         in.reset();
+        if (markPosition >= 0) {
+            cryptoCipher.seek(markPosition);
+            bufOut = markBuffer;
+            currPos = 0;
+            maxPos = markBuffer == null ? 0 : markBuffer.length;
+            eof = markEof;
+            return;
+        }
         resetInternal();
     }
 
@@ -203,18 +468,15 @@ public class CipherInputStream extends SdkFilterInputStream {
             return -1;
         }
         bufOut = null;
-        if (firstRead.compareAndSet(false, true)) {
-            // 第一次读
-            // 做读处理
+        if (startIfNecessary()) {
             // 如果返回了数据，则不往下执行
-            bufOut = cryptoCipher.start(this);
-            if (bufOut != null && bufOut.length > 0) {
-                currPos = 0;
-                return maxPos = bufOut.length;
-            }
+            return maxPos;
         }
         byte[] bufIn = getBufIn();
-        int len = in.read(bufIn);
+        if (adaptiveBuffer) {
+            bufIn = growBufInIfNecessary(bufIn);
+        }
+        int len = in.read(bufIn, 0, readLength(bufIn));
         if (len == -1) {
             eof = true;
             try {
@@ -222,6 +484,7 @@ public class CipherInputStream extends SdkFilterInputStream {
                 if (bufOut == null) {
                     return -1;
                 }
+                updateOut(bufOut, 0, bufOut.length);
                 currPos = 0;
                 return maxPos = bufOut.length;
             } catch (IllegalBlockSizeException ignored) {
@@ -231,9 +494,63 @@ public class CipherInputStream extends SdkFilterInputStream {
             return -1;
         }
 
+        updateIn(bufIn, 0, len);
         // 解密/加密
-        bufOut = cryptoCipher.update(bufIn, 0, len);
+        int outputSize = cryptoCipher.getOutputSize(len);
         currPos = 0;
-        return maxPos = (bufOut == null ? 0 : bufOut.length);
+        if (outputSize >= 0) {
+            // 能预估输出长度时输出到借用的 buffer 中, 避免每次都分配新的数组
+            if (pooledBufOut == null || pooledBufOut.length < outputSize) {
+                bufferPool.release(pooledBufOut);
+                pooledBufOut = bufferPool.acquire(Math.max(outputSize, 1));
+            }
+            bufOut = pooledBufOut;
+            maxPos = cryptoCipher.update(bufIn, 0, len, bufOut, 0);
+        } else {
+            bufOut = cryptoCipher.update(bufIn, 0, len);
+            maxPos = bufOut == null ? 0 : bufOut.length;
+        }
+        updateOut(bufOut, 0, maxPos);
+        return maxPos;
+    }
+
+    /**
+     * 第一次读, 给 CryptoCipher 做读取前的准备(比如读取/生成头信息)
+     *
+     * @return 是否返回了数据
+     */
+    private boolean startIfNecessary() {
+        if (!firstRead.compareAndSet(false, true)) {
+            return false;
+        }
+        bufOut = cryptoCipher.start(this);
+        if (bufOut != null && bufOut.length > 0) {
+            updateOut(bufOut, 0, bufOut.length);
+            currPos = 0;
+            maxPos = bufOut.length;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 根据调用方每次读取的长度以及底层流的 available() 扩大 bufIn,
+     * 每次扩大一倍, 最大不超过 maxBufferSize
+     */
+    private byte[] growBufInIfNecessary(byte[] bufIn) throws IOException {
+        int expect = Math.max(lastReadSize, in.available());
+        int size = bufferSize;
+        while (size < expect && size <= (maxBufferSize >> 1)) {
+            size <<= 1;
+        }
+        if (size == bufferSize) {
+            return bufIn;
+        }
+        this.bufferSize = size;
+        if (bufIn.length >= size) {
+            return bufIn;
+        }
+        releaseBufIn();
+        return getBufIn();
     }
 }
@@ -1,6 +1,10 @@
 package cloud.tianai.crypto.stream;
 
 
+import cloud.tianai.crypto.buffer.BufferPool;
+import cloud.tianai.crypto.buffer.BufferPools;
+import cloud.tianai.crypto.check.EnhanceChecksum;
+import cloud.tianai.crypto.check.impl.ChecksumAdapter;
 import cloud.tianai.crypto.cipher.core.CryptoCipher;
 import cloud.tianai.crypto.exception.CryptoException;
 import lombok.extern.slf4j.Slf4j;
@@ -12,16 +16,28 @@ import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Checksum;
 
 /**
  * @Author: 天爱有情
  * @date 2021/11/25 10:09
  * @Description 带有密码的输出流
+ * <p>
+ * 可以通过 setPlaintextChecksum/setCiphertextChecksum 在加解密的同时计算明文和密文的校验值, 密文校验值包含头信息
  */
 @Slf4j
 public class CipherOutputStream extends SdkFilterOutputStream {
     private final AtomicBoolean firstRead = new AtomicBoolean(false);
+    /** 每次直接输出的最大长度, 大块数据分片处理, 避免 outBuf 过大. */
+    private static final int MAX_SLICE_SIZE = 64 * 1024;
     private CryptoCipher cryptoCipher;
+    /** 从 bufferPool 借用的输出 buffer, CryptoCipher 能预估输出长度时直接输出到该 buffer 中. */
+    private byte[] outBuf;
+    private BufferPool bufferPool = BufferPools.getDefault();
+    /** 写入数据的校验, 加密时是明文, 解密时是密文. */
+    private EnhanceChecksum<?> inChecksum;
+    /** 输出数据的校验, 加密时是密文, 解密时是明文. */
+    private EnhanceChecksum<?> outChecksum;
 
     public CipherOutputStream(OutputStream os, CryptoCipher c) {
         super(os);
@@ -50,11 +66,34 @@ public class CipherOutputStream extends SdkFilterOutputStream {
             // 第一次写
             byte[] start = cryptoCipher.start(b, off, len);
             if(start != null && start.length > 0) {
-                out.write(start);
+                writeOut(start, 0, start.length);
             }
         }
-        byte[] update = cryptoCipher.update(b, off, len);
-        out.write(update);
+        if (inChecksum != null && len > 0) {
+            inChecksum.update(b, off, len);
+        }
+        while (len > 0) {
+            int sliceLen = Math.min(len, MAX_SLICE_SIZE);
+            int outputSize = cryptoCipher.getOutputSize(sliceLen);
+            if (outputSize < 0) {
+                // 无法预估输出长度(比如还未输出头信息), 走常规逻辑
+                byte[] update = cryptoCipher.update(b, off, sliceLen);
+                if (update != null && update.length > 0) {
+                    writeOut(update, 0, update.length);
+                }
+            } else {
+                if (outBuf == null || outBuf.length < outputSize) {
+                    bufferPool.release(outBuf);
+                    outBuf = bufferPool.acquire(Math.max(outputSize, 1024));
+                }
+                int outputLen = cryptoCipher.update(b, off, sliceLen, outBuf, 0);
+                if (outputLen > 0) {
+                    writeOut(outBuf, 0, outputLen);
+                }
+            }
+            off += sliceLen;
+            len -= sliceLen;
+        }
     }
 
 
@@ -63,13 +102,74 @@ public class CipherOutputStream extends SdkFilterOutputStream {
         try {
             byte[] end = cryptoCipher.end();
             if (end != null && end.length > 0) {
-                out.write(end);
+                writeOut(end, 0, end.length);
             }
         } catch (BadPaddingException | IllegalBlockSizeException ex) {
             log.warn("cryptoCipher.end() warn", ex);
+        } finally {
+            bufferPool.release(outBuf);
+            outBuf = null;
         }
         out.close();
     }
 
+    private void writeOut(byte[] b, int off, int len) throws IOException {
+        if (outChecksum != null) {
+            outChecksum.update(b, off, len);
+        }
+        out.write(b, off, len);
+    }
+
+    /**
+     * 设置明文的校验, 需要在第一次写入之前设置
+     *
+     * @param checksum 校验, 为空时不校验
+     */
+    public void setPlaintextChecksum(Checksum checksum) {
+        if (isEncrypt()) {
+            this.inChecksum = ChecksumAdapter.adapt(checksum);
+        } else {
+            this.outChecksum = ChecksumAdapter.adapt(checksum);
+        }
+    }
+
+    /**
+     * 设置密文(包含头信息)的校验, 需要在第一次写入之前设置
+     *
+     * @param checksum 校验, 为空时不校验
+     */
+    public void setCiphertextChecksum(Checksum checksum) {
+        if (isEncrypt()) {
+            this.outChecksum = ChecksumAdapter.adapt(checksum);
+        } else {
+            this.inChecksum = ChecksumAdapter.adapt(checksum);
+        }
+    }
+
+    public EnhanceChecksum<?> getPlaintextChecksum() {
+        return isEncrypt() ? inChecksum : outChecksum;
+    }
+
+    public EnhanceChecksum<?> getCiphertextChecksum() {
+        return isEncrypt() ? outChecksum : inChecksum;
+    }
+
+    private boolean isEncrypt() {
+        return Cipher.ENCRYPT_MODE == cryptoCipher.getModel();
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * 设置借用 buffer 的池, 需要在第一次写入之前设置
+     *
+     * @param bufferPool buffer池
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
 
 }
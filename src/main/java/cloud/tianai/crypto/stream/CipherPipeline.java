@@ -0,0 +1,411 @@
+package cloud.tianai.crypto.stream;
+
+import cloud.tianai.crypto.buffer.BufferPool;
+import cloud.tianai.crypto.buffer.BufferPools;
+import cloud.tianai.crypto.cipher.core.CryptoCipher;
+import cloud.tianai.crypto.exception.CryptoException;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.IllegalBlockSizeException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * @Author: 天爱有情
+ * @date 2021/12/24 14:35
+ * @Description 三段流水线的加解密传输: 读取、加解密、写入分别在不同的线程中执行, 读写IO和加解密的CPU可以同时进行
+ * <p>
+ * 三个阶段通过一个预先分配好(从 BufferPool 借用)的环形缓冲区连接, 每个阶段只推进自己的序号:
+ * 读线程填充 slot 后推进 readSeq, 加解密线程处理完推进 cipherSeq, 写线程写完推进 writeSeq, slot 即可被再次读取.
+ * 等待时先自旋, 再 yield, 最后 park, 上游推进序号后 unpark 等待中的下游线程.
+ * <p>
+ * 与 CipherOutputStream 一样只调用 CryptoCipher 的 start(byte[],int,int)/update/end, 可以用于任意 CryptoCipher
+ */
+@Slf4j
+public class CipherPipeline {
+
+    public static final int DEFAULT_SLOT_COUNT = 8;
+    public static final int DEFAULT_SLOT_SIZE = 256 * 1024;
+    /** 单核时自旋没有意义. */
+    private static final int SPIN_TRIES = Runtime.getRuntime().availableProcessors() > 1 ? 1000 : 0;
+    private static final int YIELD_TRIES = 50;
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final int slotCount;
+    private final int slotSize;
+    /** 执行读写阶段的线程池, 为空时每次传输新建两个线程. */
+    private final Executor executor;
+    private BufferPool bufferPool = BufferPools.getDefault();
+
+    public CipherPipeline() {
+        this(DEFAULT_SLOT_COUNT, DEFAULT_SLOT_SIZE);
+    }
+
+    public CipherPipeline(int slotCount, int slotSize) {
+        this(slotCount, slotSize, null);
+    }
+
+    /**
+     * @param slotCount 环形缓冲区的 slot 数量, 至少为2
+     * @param slotSize  每个 slot 的读取长度
+     * @param executor  执行读写阶段的线程池, 每次传输需要占用两个线程
+     */
+    public CipherPipeline(int slotCount, int slotSize, Executor executor) {
+        if (slotCount < 2) {
+            throw new IllegalArgumentException("slotCount不能小于2: " + slotCount);
+        }
+        if (slotSize <= 0) {
+            throw new IllegalArgumentException("slotSize必须大于0: " + slotSize);
+        }
+        this.slotCount = slotCount;
+        this.slotSize = slotSize;
+        this.executor = executor;
+    }
+
+    /**
+     * 读取 in 中的全部数据, 加解密后写入 out, 不会关闭 in 和 out; 加解密在当前线程中执行
+     *
+     * @param in           输入
+     * @param out          输出
+     * @param cryptoCipher 加解密
+     * @return 各阶段的统计信息
+     * @throws IOException 读写异常
+     */
+    public PipelineStats transfer(InputStream in, OutputStream out, CryptoCipher cryptoCipher) throws IOException {
+        return new Transfer(in, out, cryptoCipher).run();
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * 设置 slot 借用 buffer 的池, 传输结束后归还
+     *
+     * @param bufferPool buffer池
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    private static final class Slot {
+        final byte[] input;
+        int inputLen;
+        /** 加解密后的输出, 长度不变时直接指向 input. */
+        byte[] output;
+        int outputLen;
+        /** 加解密长度变化时复用的输出 buffer. */
+        byte[] outBuf;
+        /** cryptoCipher.start() 的输出. */
+        byte[] head;
+        /** cryptoCipher.end() 的输出. */
+        byte[] tail;
+        boolean last;
+
+        Slot(byte[] input) {
+            this.input = input;
+        }
+    }
+
+    /**
+     * 一次传输的状态.
+     */
+    private final class Transfer {
+        private final InputStream in;
+        private final OutputStream out;
+        private final CryptoCipher cryptoCipher;
+        private final Slot[] ring;
+        private final AtomicLong readSeq = new AtomicLong();
+        private final AtomicLong cipherSeq = new AtomicLong();
+        private final AtomicLong writeSeq = new AtomicLong();
+        private volatile Thread readWaiter;
+        private volatile Thread cipherWaiter;
+        private volatile Thread writeWaiter;
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+        private final PipelineStats stats = new PipelineStats();
+        private final CountDownLatch done = new CountDownLatch(2);
+
+        Transfer(InputStream in, OutputStream out, CryptoCipher cryptoCipher) {
+            this.in = in;
+            this.out = out;
+            this.cryptoCipher = cryptoCipher;
+            this.ring = new Slot[slotCount];
+            for (int i = 0; i < slotCount; i++) {
+                ring[i] = new Slot(bufferPool.acquire(slotSize));
+            }
+        }
+
+        PipelineStats run() throws IOException {
+            long start = System.nanoTime();
+            execute(this::readStage, "reader");
+            execute(this::writeStage, "writer");
+            try {
+                cipherStage();
+            } catch (Throwable e) {
+                fail(e);
+            }
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                fail(e);
+                Thread.currentThread().interrupt();
+            }
+            stats.elapsedNanos = System.nanoTime() - start;
+            releaseBuffers();
+            Throwable e = failure.get();
+            if (e == null) {
+                return stats;
+            }
+            if (e instanceof IOException) {
+                throw (IOException) e;
+            }
+            if (e instanceof RuntimeException) {
+                throw (RuntimeException) e;
+            }
+            if (e instanceof Error) {
+                throw (Error) e;
+            }
+            if (e instanceof InterruptedException) {
+                throw new InterruptedIOException("CipherPipeline被中断");
+            }
+            throw new CryptoException(e);
+        }
+
+        private void releaseBuffers() {
+            if (done.getCount() > 0) {
+                // 被中断时读写线程可能还在使用 buffer, 不能归还
+                return;
+            }
+            for (Slot slot : ring) {
+                bufferPool.release(slot.input);
+                bufferPool.release(slot.outBuf);
+            }
+        }
+
+        private void execute(StageTask task, String name) {
+            Runnable runnable = () -> {
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    fail(e);
+                } finally {
+                    done.countDown();
+                }
+            };
+            if (executor != null) {
+                executor.execute(runnable);
+                return;
+            }
+            Thread thread = new Thread(runnable, "cipher-pipeline-" + name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void readStage() throws IOException {
+            PipelineStats.StageStats stageStats = stats.getRead();
+            for (long seq = 0; ; seq++) {
+                final long current = seq;
+                await(() -> current - writeSeq.get() < slotCount, stageStats, Stage.READ);
+                long begin = System.nanoTime();
+                Slot slot = ring[(int) (seq % slotCount)];
+                int len = 0;
+                int n = 0;
+                while (len < slotSize && (n = in.read(slot.input, len, slotSize - len)) >= 0) {
+                    len += n;
+                }
+                slot.inputLen = len;
+                slot.last = n < 0;
+                stageStats.busyNanos += System.nanoTime() - begin;
+                stageStats.bytes += len;
+                stageStats.slots++;
+                readSeq.lazySet(seq + 1);
+                LockSupport.unpark(cipherWaiter);
+                if (slot.last) {
+                    return;
+                }
+            }
+        }
+
+        private void cipherStage() throws BadPaddingException, IllegalBlockSizeException {
+            PipelineStats.StageStats stageStats = stats.getCipher();
+            boolean first = true;
+            for (long seq = 0; ; seq++) {
+                final long current = seq;
+                await(() -> current < readSeq.get(), stageStats, Stage.CIPHER);
+                long begin = System.nanoTime();
+                Slot slot = ring[(int) (seq % slotCount)];
+                slot.output = null;
+                slot.outputLen = 0;
+                slot.head = null;
+                slot.tail = null;
+                if (first) {
+                    // 与 CipherOutputStream 一致, 第一次写之前调用 start
+                    slot.head = cryptoCipher.start(slot.input, 0, slot.inputLen);
+                    first = false;
+                }
+                if (slot.inputLen > 0) {
+                    update(slot);
+                }
+                if (slot.last) {
+                    slot.tail = cryptoCipher.end();
+                }
+                stageStats.busyNanos += System.nanoTime() - begin;
+                stageStats.bytes += outputLength(slot);
+                stageStats.slots++;
+                cipherSeq.lazySet(seq + 1);
+                LockSupport.unpark(writeWaiter);
+                if (slot.last) {
+                    return;
+                }
+            }
+        }
+
+        private void update(Slot slot) {
+            int len = slot.inputLen;
+            int outputSize = cryptoCipher.getOutputSize(len);
+            if (outputSize == len) {
+                // 长度不变(比如CTR模式)时原地加解密
+                slot.outputLen = cryptoCipher.update(slot.input, 0, len, slot.input, 0);
+                slot.output = slot.input;
+            } else if (outputSize >= 0) {
+                if (slot.outBuf == null || slot.outBuf.length < outputSize) {
+                    bufferPool.release(slot.outBuf);
+                    slot.outBuf = bufferPool.acquire(outputSize);
+                }
+                slot.outputLen = cryptoCipher.update(slot.input, 0, len, slot.outBuf, 0);
+                slot.output = slot.outBuf;
+            } else {
+                // 无法预估输出长度(比如还未输出头信息), 走常规逻辑
+                byte[] update = cryptoCipher.update(slot.input, 0, len);
+                slot.output = update;
+                slot.outputLen = update == null ? 0 : update.length;
+            }
+        }
+
+        private void writeStage() throws IOException {
+            PipelineStats.StageStats stageStats = stats.getWrite();
+            for (long seq = 0; ; seq++) {
+                final long current = seq;
+                await(() -> current < cipherSeq.get(), stageStats, Stage.WRITE);
+                long begin = System.nanoTime();
+                Slot slot = ring[(int) (seq % slotCount)];
+                boolean last = slot.last;
+                if (slot.head != null && slot.head.length > 0) {
+                    out.write(slot.head);
+                }
+                if (slot.outputLen > 0) {
+                    out.write(slot.output, 0, slot.outputLen);
+                }
+                if (slot.tail != null && slot.tail.length > 0) {
+                    out.write(slot.tail);
+                }
+                if (last) {
+                    out.flush();
+                }
+                stageStats.busyNanos += System.nanoTime() - begin;
+                stageStats.bytes += outputLength(slot);
+                stageStats.slots++;
+                writeSeq.lazySet(seq + 1);
+                LockSupport.unpark(readWaiter);
+                if (last) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * 等待条件满足, 先自旋, 再 yield, 最后 park
+         */
+        private void await(BooleanSupplier condition, PipelineStats.StageStats stageStats, Stage stage) {
+            if (condition.getAsBoolean()) {
+                checkFailure();
+                return;
+            }
+            long begin = System.nanoTime();
+            int tries = 0;
+            while (!condition.getAsBoolean()) {
+                checkFailure();
+                if (tries < SPIN_TRIES) {
+                    tries++;
+                } else if (tries < SPIN_TRIES + YIELD_TRIES) {
+                    tries++;
+                    Thread.yield();
+                } else {
+                    setWaiter(stage, Thread.currentThread());
+                    // 设置完 waiter 再检查一次, 避免错过 unpark
+                    if (!condition.getAsBoolean()) {
+                        LockSupport.parkNanos(this, PARK_NANOS);
+                    }
+                    setWaiter(stage, null);
+                }
+            }
+            stageStats.waitNanos += System.nanoTime() - begin;
+        }
+
+        private void setWaiter(Stage stage, Thread thread) {
+            switch (stage) {
+                case READ:
+                    readWaiter = thread;
+                    break;
+                case CIPHER:
+                    cipherWaiter = thread;
+                    break;
+                default:
+                    writeWaiter = thread;
+                    break;
+            }
+        }
+
+        private void checkFailure() {
+            if (failure.get() != null) {
+                throw new AbortException();
+            }
+        }
+
+        private void fail(Throwable e) {
+            if (e instanceof AbortException) {
+                return;
+            }
+            if (!failure.compareAndSet(null, e)) {
+                log.debug("CipherPipeline stage failed after another stage failed", e);
+            }
+            LockSupport.unpark(readWaiter);
+            LockSupport.unpark(cipherWaiter);
+            LockSupport.unpark(writeWaiter);
+        }
+    }
+
+    private static long outputLength(Slot slot) {
+        return slot.outputLen + (slot.head == null ? 0 : slot.head.length) + (slot.tail == null ? 0 : slot.tail.length);
+    }
+
+    private enum Stage {
+        READ, CIPHER, WRITE
+    }
+
+    @FunctionalInterface
+    private interface StageTask {
+        void run() throws Exception;
+    }
+
+    /**
+     * 其它阶段已经失败, 当前阶段直接退出.
+     */
+    private static final class AbortException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        AbortException() {
+            super(null, null, false, false);
+        }
+    }
+}
@@ -1,20 +1,36 @@
 package cloud.tianai.crypto.stream;
 
+import cloud.tianai.crypto.buffer.BufferPool;
+import cloud.tianai.crypto.buffer.BufferPools;
+import cloud.tianai.crypto.check.ChecksumState;
 import cloud.tianai.crypto.check.EnhanceChecksum;
 import cloud.tianai.crypto.check.impl.ChecksumAdapter;
 
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.zip.Checksum;
 
 /**
  * @Author: 天爱有情
  * @date 2021/11/26 14:32
  * @Description 重写java的 CheckedInputStream
+ * <p>
+ * 记录已经校验的字节数, 可以通过 snapshot 导出状态, 中断后用 resume 从该位置继续校验
  */
 public class EnhanceCheckedInputStream extends FilterInputStream {
+    private static final int SKIP_BUFFER_SIZE = 512;
     private EnhanceChecksum cksum;
+    /** 已经校验的字节数. */
+    private long position;
+    /** 通过 open/resume 打开文件时记录的文件长度和修改时间, snapshot 时写入状态. */
+    private long sourceSize = ChecksumState.UNKNOWN;
+    private long sourceLastModified = ChecksumState.UNKNOWN;
 
     /**
      * Creates an input stream using the specified Checksum.
@@ -23,12 +39,24 @@ public class EnhanceCheckedInputStream extends FilterInputStream {
      * @param cksum the Checksum
      */
     public EnhanceCheckedInputStream(InputStream in, Checksum cksum) {
+        this(in, cksum, false);
+    }
+
+    /**
+     * @param in        the input stream
+     * @param cksum     the Checksum
+     * @param resumable 是否需要通过 snapshot 导出状态, 为 true 时校验不支持导出状态则直接抛出异常, 不会等到 snapshot 时才失败
+     */
+    public EnhanceCheckedInputStream(InputStream in, Checksum cksum, boolean resumable) {
         super(in);
         if (cksum instanceof EnhanceChecksum) {
             this.cksum = (EnhanceChecksum) cksum;
         } else {
             this.cksum = new ChecksumAdapter(cksum);
         }
+        if (resumable && !this.cksum.isResumable()) {
+            throw new IllegalArgumentException(cksum.getClass().getName() + " 不支持导出计算状态, 无法中断后恢复");
+        }
     }
 
     /**
@@ -42,6 +70,7 @@ public class EnhanceCheckedInputStream extends FilterInputStream {
         int b = in.read();
         if (b != -1) {
             cksum.update(b);
+            position++;
         }
         return b;
     }
@@ -67,6 +96,7 @@ public class EnhanceCheckedInputStream extends FilterInputStream {
         len = in.read(buf, off, len);
         if (len != -1) {
             cksum.update(buf, off, len);
+            position += len;
         }
         return len;
     }
@@ -80,17 +110,22 @@ public class EnhanceCheckedInputStream extends FilterInputStream {
      */
     @Override
     public long skip(long n) throws IOException {
-        byte[] buf = new byte[512];
-        long total = 0;
-        while (total < n) {
-            long len = n - total;
-            len = read(buf, 0, len < buf.length ? (int) len : buf.length);
-            if (len == -1) {
-                return total;
+        BufferPool bufferPool = BufferPools.getDefault();
+        byte[] buf = bufferPool.acquire(SKIP_BUFFER_SIZE);
+        try {
+            long total = 0;
+            while (total < n) {
+                long len = n - total;
+                len = read(buf, 0, len < buf.length ? (int) len : buf.length);
+                if (len == -1) {
+                    return total;
+                }
+                total += len;
             }
-            total += len;
+            return total;
+        } finally {
+            bufferPool.release(buf);
         }
-        return total;
     }
 
     /**
@@ -102,4 +137,66 @@ public class EnhanceCheckedInputStream extends FilterInputStream {
         return cksum;
     }
 
+    /**
+     * 已经校验的字节数, 恢复的流从状态中的 offset 开始计数
+     *
+     * @return 字节数
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * 导出当前位置和校验状态, 校验需要支持 saveState; 需要导出状态时建议创建时传入 resumable 为 true 提前检查
+     *
+     * @return ChecksumState
+     * @throws UnsupportedOperationException 校验不支持导出状态时
+     */
+    public ChecksumState snapshot() {
+        if (!cksum.isResumable()) {
+            throw new UnsupportedOperationException(cksum.getClass().getName() + " 不支持导出计算状态");
+        }
+        return new ChecksumState(position, cksum.saveState(), sourceSize, sourceLastModified);
+    }
+
+    /**
+     * 打开文件并校验, snapshot 导出的状态中会记录打开时文件的长度和修改时间, 恢复时文件已被修改则拒绝恢复
+     *
+     * @param file  文件
+     * @param cksum 支持导出状态的校验
+     * @return EnhanceCheckedInputStream
+     */
+    public static EnhanceCheckedInputStream open(Path file, EnhanceChecksum<?> cksum) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        EnhanceCheckedInputStream in = new EnhanceCheckedInputStream(Files.newInputStream(file), cksum, true);
+        in.sourceSize = attributes.size();
+        in.sourceLastModified = attributes.lastModifiedTime().toMillis();
+        return in;
+    }
+
+    /**
+     * 从保存的状态继续校验文件, 文件从 state.getOffset() 处开始读取; 状态中记录了文件信息时, 文件已被修改则抛出异常
+     *
+     * @param file  文件
+     * @param cksum 与导出状态时相同类型和参数的校验
+     * @param state 状态
+     * @return EnhanceCheckedInputStream
+     */
+    public static EnhanceCheckedInputStream resume(Path file, EnhanceChecksum<?> cksum, ChecksumState state) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        SeekableByteChannel channel = Files.newByteChannel(file);
+        try {
+            state.restoreTo(cksum, file);
+            channel.position(state.getOffset());
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        EnhanceCheckedInputStream in = new EnhanceCheckedInputStream(Channels.newInputStream(channel), cksum, true);
+        in.position = state.getOffset();
+        in.sourceSize = attributes.size();
+        in.sourceLastModified = attributes.lastModifiedTime().toMillis();
+        return in;
+    }
+
 }
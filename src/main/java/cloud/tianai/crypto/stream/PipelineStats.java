@@ -0,0 +1,48 @@
+package cloud.tianai.crypto.stream;
+
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * @Author: 天爱有情
+ * @date 2021/12/24 15:20
+ * @Description CipherPipeline 每个阶段的统计信息
+ */
+@Getter
+@ToString
+public class PipelineStats {
+
+    private final StageStats read = new StageStats("read");
+    private final StageStats cipher = new StageStats("cipher");
+    private final StageStats write = new StageStats("write");
+    /** 总耗时. */
+    long elapsedNanos;
+
+    @Getter
+    @ToString
+    public static class StageStats {
+        private final String name;
+        /** 处理数据的耗时. */
+        long busyNanos;
+        /** 等待上下游的耗时. */
+        long waitNanos;
+        /** 处理的字节数, cipher阶段为输出的字节数. */
+        long bytes;
+        /** 处理的块数. */
+        long slots;
+
+        StageStats(String name) {
+            this.name = name;
+        }
+
+        /**
+         * 利用率 = 处理数据的耗时 / (处理数据的耗时 + 等待的耗时)
+         *
+         * @return 0~1
+         */
+        public double getUtilization() {
+            long total = busyNanos + waitNanos;
+            return total == 0 ? 0 : (double) busyNanos / total;
+        }
+    }
+}
@@ -1,14 +1,42 @@
 package cloud.tianai.crypto;
 
+import cloud.tianai.crypto.check.ChecksumCache;
+import cloud.tianai.crypto.check.ChecksumFactory;
+import cloud.tianai.crypto.check.ChecksumService;
+import cloud.tianai.crypto.check.ChecksumState;
+import cloud.tianai.crypto.check.EasyCryptoProvider;
+import cloud.tianai.crypto.check.EnhanceChecksum;
+import cloud.tianai.crypto.check.FileChecksums;
+import cloud.tianai.crypto.check.ParallelCrc64;
 import cloud.tianai.crypto.check.impl.*;
 import cloud.tianai.crypto.cipher.util.CryptoRuntime;
+import cloud.tianai.crypto.exception.CryptoException;
 import cloud.tianai.crypto.stream.EnhanceCheckedInputStream;
 import org.bouncycastle.util.encoders.Hex;
+import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
 
 public class CheckedTest {
     static {
@@ -82,6 +110,563 @@ public class CheckedTest {
         System.out.println("sm3:" + Hex.toHexString(md5));
     }
 
+    @Test
+    public void testCrc64Slicing() {
+        // CRC-64/XZ 标准校验值
+        CRC64Checksum check = new CRC64Checksum();
+        check.update("123456789".getBytes(StandardCharsets.US_ASCII), 0, 9);
+        Assert.assertEquals(0x995DC9BBDF1939FAL, check.getValue());
+
+        // 与逐字节计算的结果一致, 覆盖各种偏移量和长度
+        Random random = new Random(41);
+        byte[] data = new byte[300];
+        random.nextBytes(data);
+        for (int off = 0; off < 24; off++) {
+            for (int len = 0; off + len <= data.length; len += 1 + len / 8) {
+                long init = random.nextLong();
+                CRC64Checksum expect = new CRC64Checksum(init);
+                for (int i = off; i < off + len; i++) {
+                    expect.update(data[i]);
+                }
+                CRC64Checksum actual = new CRC64Checksum(init);
+                actual.update(data, off, len);
+                Assert.assertEquals(expect.getValue(), actual.getValue());
+            }
+        }
+        CRC64Checksum whole = new CRC64Checksum(data, data.length);
+        CRC64Checksum parts = new CRC64Checksum();
+        parts.update(data, 0, 100);
+        parts.update(data, 100, 200);
+        Assert.assertEquals(whole.getValue(), parts.getValue());
+    }
+
+    @Test
+    public void testParallelCrc64() throws IOException {
+        Random random = new Random(42);
+        byte[] data = new byte[3 * 1024 * 1024 + 12345];
+        random.nextBytes(data);
+        long expect = new CRC64Checksum(data, data.length).getValue();
+
+        // combine 与直接计算一致, 大长度满足结合律
+        int split = 1_000_003;
+        CRC64Checksum left = new CRC64Checksum();
+        left.update(data, 0, split);
+        CRC64Checksum right = new CRC64Checksum();
+        right.update(data, split, data.length - split);
+        Assert.assertEquals(expect, CRC64Checksum.combine(left, right, data.length - split).getValue());
+        long a = random.nextLong(), b = random.nextLong(), c = random.nextLong();
+        long lenB = 123L << 30, lenC = (77L << 30) + 5;
+        Assert.assertEquals(CRC64Checksum.combine(CRC64Checksum.combine(a, b, lenB), c, lenC),
+                CRC64Checksum.combine(a, CRC64Checksum.combine(b, c, lenC), lenB + lenC));
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        Path file = Files.createTempFile("crc64", ".dat");
+        try {
+            Files.write(file, data);
+            Assert.assertEquals(expect, ParallelCrc64.checksum(file, 256 * 1024, pool));
+            Assert.assertEquals(expect, ParallelCrc64.checksum(file));
+            Assert.assertEquals(expect, ParallelCrc64.checksum(ByteBuffer.wrap(data), 100_000, pool));
+            ByteBuffer direct = ByteBuffer.allocateDirect(data.length + 10);
+            direct.position(10);
+            direct.put(data).position(10);
+            Assert.assertEquals(expect, ParallelCrc64.checksum(direct, 300_000, pool));
+            Assert.assertEquals(10, direct.position());
+            Assert.assertEquals(0L, ParallelCrc64.checksum(ByteBuffer.allocate(0)));
+        } finally {
+            pool.shutdown();
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testParallelMultiPartChecksum() {
+        byte[] data = new byte[5 * 1024 * 1024 + 7];
+        new Random(43).nextBytes(data);
+        MultiPartChecksum expect = new MultiPartChecksum(new Md5Checksum(), new Sha256Checksum(), new Sm3Checksum(), new CRC64Checksum());
+        expect.update(data, 0, data.length);
+        List<EnhanceChecksum<?>> expectValues = expect.getCheckValue();
+
+        try (ParallelMultiPartChecksum parallel = new ParallelMultiPartChecksum(64 * 1024, 2, null,
+                new Md5Checksum(), new Sha256Checksum(), new Sm3Checksum(), new CRC64Checksum())) {
+            for (int round = 0; round < 2; round++) {
+                // 单字节、小块、跨多个 chunk 的大块混合写入
+                parallel.update(data[0]);
+                parallel.update(data, 1, 100);
+                parallel.update(data, 101, data.length - 101);
+                List<EnhanceChecksum<?>> values = parallel.getCheckValue();
+                Assert.assertArrayEquals((byte[]) expectValues.get(0).getCheckValue(), (byte[]) values.get(0).getCheckValue());
+                Assert.assertArrayEquals((byte[]) expectValues.get(1).getCheckValue(), (byte[]) values.get(1).getCheckValue());
+                Assert.assertArrayEquals((byte[]) expectValues.get(2).getCheckValue(), (byte[]) values.get(2).getCheckValue());
+                Assert.assertEquals(expectValues.get(3).getCheckValue(), values.get(3).getCheckValue());
+                parallel.reset();
+            }
+        }
+    }
+
+    /**
+     * 工作线程被中断后退出, update 和 close 不会阻塞
+     */
+    @Test(timeout = 30000)
+    public void testParallelMultiPartChecksumInterrupted() throws InterruptedException {
+        List<Thread> threads = new ArrayList<>();
+        ParallelMultiPartChecksum parallel = new ParallelMultiPartChecksum(1024, 1, runnable -> {
+            Thread thread = new Thread(runnable);
+            threads.add(thread);
+            thread.start();
+        }, new Md5Checksum(), new CRC64Checksum());
+        threads.get(0).interrupt();
+        threads.get(0).join();
+        byte[] data = new byte[1024];
+        try {
+            for (int i = 0; i < 100; i++) {
+                parallel.update(data, 0, data.length);
+            }
+            parallel.getCheckValue();
+            Assert.fail("工作线程中断后应该抛出异常");
+        } catch (CryptoException e) {
+            Assert.assertTrue(e.getCause() instanceof InterruptedException);
+        }
+        parallel.close();
+        threads.get(1).join();
+    }
+
+    @Test
+    public void testTreeHashChecksum() {
+        int leafSize = 64 * 1024;
+        byte[] data = new byte[leafSize * 5 + 123];
+        new Random(44).nextBytes(data);
+        TreeHashChecksum checksum = new TreeHashChecksum("SHA-256", leafSize, ForkJoinPool.commonPool());
+        checksum.update(data[0]);
+        checksum.update(data, 1, data.length - 1);
+        byte[] root = checksum.getCheckValue();
+        // getCheckValue 不影响后续计算, 与一次性写入的结果一致
+        Assert.assertArrayEquals(root, checksum.getCheckValue());
+        TreeHashChecksum once = new TreeHashChecksum("SHA-256", leafSize, ForkJoinPool.commonPool());
+        once.update(data, 0, data.length);
+        Assert.assertArrayEquals(root, once.getCheckValue());
+
+        TreeHashChecksum.Tree tree = TreeHashChecksum.Tree.fromByteArray(checksum.getTree().toByteArray());
+        Assert.assertEquals(6, tree.getLeaves().size());
+        Assert.assertArrayEquals(root, tree.getRoot());
+        // 中间两个叶子、包含最后一个不完整叶子的范围
+        Assert.assertTrue(tree.verifyRange(root, leafSize, data, leafSize, leafSize * 2));
+        Assert.assertTrue(tree.verifyRange(root, leafSize * 4L, data, leafSize * 4, data.length - leafSize * 4));
+        for (int i = 0; i < tree.getLeaves().size(); i++) {
+            int len = Math.min(leafSize, data.length - i * leafSize);
+            Assert.assertTrue(TreeHashChecksum.verifyLeaf("SHA-256", root, i, 6, data, i * leafSize, len, tree.proof(i)));
+        }
+        byte[] tampered = data.clone();
+        tampered[leafSize * 2 + 10] ^= 1;
+        Assert.assertFalse(tree.verifyRange(root, leafSize, tampered, leafSize, leafSize * 2));
+        Assert.assertFalse(TreeHashChecksum.verifyLeaf("SHA-256", root, 2, 6, tampered, leafSize * 2, leafSize, tree.proof(2)));
+
+        checksum.reset();
+        Assert.assertArrayEquals(new TreeHashChecksum("SHA-256").getCheckValue(), checksum.getCheckValue());
+        // 与 RFC 6962 一致, 空数据的根摘要为 H(空)
+        Assert.assertArrayEquals(new Sha256Checksum().getCheckValue(), checksum.getCheckValue());
+        TreeHashChecksum.Tree empty = TreeHashChecksum.Tree.fromByteArray(checksum.getTree().toByteArray());
+        Assert.assertEquals(0, empty.getLeaves().size());
+        Assert.assertArrayEquals(checksum.getCheckValue(), empty.getRoot());
+        Assert.assertTrue(empty.verifyRange(checksum.getCheckValue(), 0, new byte[0], 0, 0));
+
+        // SM3 不需要注册 provider
+        TreeHashChecksum sm3 = new TreeHashChecksum("SM3", leafSize, ForkJoinPool.commonPool());
+        sm3.update(data, 0, data.length);
+        TreeHashChecksum.Tree sm3Tree = sm3.getTree();
+        Assert.assertEquals(6, sm3Tree.getLeaves().size());
+        Assert.assertTrue(TreeHashChecksum.verifyLeaf("SM3", sm3.getCheckValue(), 3, 6, data, leafSize * 3, leafSize, sm3Tree.proof(3)));
+    }
+
+    @Test
+    public void testResumableChecksumState() throws IOException {
+        byte[] data = new byte[3 * 1024 * 1024 + 77];
+        new Random(45).nextBytes(data);
+        Path file = Files.createTempFile("checksum", ".bin");
+        Path stateFile = Files.createTempFile("checksum", ".state");
+        try {
+            Files.write(file, data);
+            MultiPartChecksum expect = new MultiPartChecksum(new Md5Checksum(), new Sha256Checksum(), new Sm3Checksum(), new CRC64Checksum());
+            expect.update(data, 0, data.length);
+
+            // 读取一部分后保存状态, 模拟中断
+            EnhanceCheckedInputStream first = EnhanceCheckedInputStream.open(file,
+                    new MultiPartChecksum(new Md5Checksum(true), new Sha256Checksum(true), new Sm3Checksum(true), new CRC64Checksum()));
+            byte[] buffer = new byte[1000 * 1000 + 3];
+            first.read(buffer);
+            first.read(buffer, 0, 12345);
+            first.snapshot().save(stateFile);
+            first.close();
+
+            Assert.assertFalse(Files.exists(stateFile.resolveSibling(stateFile.getFileName() + ".tmp")));
+            ChecksumState state = ChecksumState.load(stateFile);
+            Assert.assertEquals(1000 * 1000 + 3 + 12345, state.getOffset());
+            Assert.assertEquals(data.length, state.getSourceSize());
+            Assert.assertEquals(Files.getLastModifiedTime(file).toMillis(), state.getSourceLastModified());
+            MultiPartChecksum resumed = new MultiPartChecksum(new Md5Checksum(true), new Sha256Checksum(true), new Sm3Checksum(true), new CRC64Checksum());
+            try (EnhanceCheckedInputStream in = EnhanceCheckedInputStream.resume(file, resumed, state)) {
+                readAll(in);
+                Assert.assertEquals(data.length, in.getPosition());
+            }
+            List<EnhanceChecksum<?>> expectValues = expect.getCheckValue();
+            List<EnhanceChecksum<?>> values = resumed.getCheckValue();
+            for (int i = 0; i < 3; i++) {
+                Assert.assertArrayEquals((byte[]) expectValues.get(i).getCheckValue(), (byte[]) values.get(i).getCheckValue());
+            }
+            Assert.assertEquals(expectValues.get(3).getCheckValue(), values.get(3).getCheckValue());
+
+            // 保存状态后文件被修改, 拒绝恢复
+            Files.setLastModifiedTime(file, FileTime.fromMillis(state.getSourceLastModified() + 2000));
+            try {
+                EnhanceCheckedInputStream.resume(file, resumed, state).close();
+                Assert.fail("文件修改后不能恢复");
+            } catch (IOException expected) {
+            }
+            // 没有记录文件信息的状态只检查长度
+            ChecksumState noSource = new ChecksumState(state.getOffset(), state.getState());
+            EnhanceCheckedInputStream.resume(file, resumed, ChecksumState.fromByteArray(noSource.toByteArray())).close();
+
+            TreeHashChecksum tree = new TreeHashChecksum("SHA-256", 64 * 1024, ForkJoinPool.commonPool());
+            tree.update(data, 0, 100000);
+            TreeHashChecksum resumedTree = new TreeHashChecksum("SHA-256", 64 * 1024, ForkJoinPool.commonPool());
+            resumedTree.restoreState(tree.saveState());
+            tree.update(data, 100000, data.length - 100000);
+            resumedTree.update(data, 100000, data.length - 100000);
+            Assert.assertArrayEquals(tree.getCheckValue(), resumedTree.getCheckValue());
+
+            // 未开启 resumable 的 JDK 摘要不支持导出状态
+            try {
+                new Md5Checksum().saveState();
+                Assert.fail();
+            } catch (UnsupportedOperationException expected) {
+            }
+            // 需要导出状态时在创建流的时候就检查, 不会读到一半才失败
+            Assert.assertTrue(resumed.isResumable());
+            Assert.assertFalse(new MultiPartChecksum(new Md5Checksum(true), new Md5Checksum()).isResumable());
+            Assert.assertFalse(new ChecksumAdapter(new CRC32()).isResumable());
+            for (Checksum checksum : new Checksum[]{new Md5Checksum(), new CRC32(), new MultiPartChecksum(new CRC64Checksum(), new Sha256Checksum())}) {
+                try {
+                    new EnhanceCheckedInputStream(new ByteArrayInputStream(data), checksum, true);
+                    Assert.fail();
+                } catch (IllegalArgumentException expected) {
+                }
+                try {
+                    new EnhanceCheckedInputStream(new ByteArrayInputStream(data), checksum).snapshot();
+                    Assert.fail();
+                } catch (UnsupportedOperationException expected) {
+                }
+            }
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(stateFile);
+        }
+    }
+
+    @Test
+    public void testCrc32cAndXxHash64() {
+        byte[] check = "123456789".getBytes(StandardCharsets.US_ASCII);
+        for (boolean preferJdk : new boolean[]{true, false}) {
+            Crc32cChecksum crc32c = new Crc32cChecksum(preferJdk);
+            crc32c.update(check, 0, check.length);
+            Assert.assertEquals(0xE3069283L, (long) crc32c.getCheckValue());
+        }
+        byte[] data = new byte[1024 * 1024 + 13];
+        new Random(46).nextBytes(data);
+        Crc32cChecksum jdk = new Crc32cChecksum(true);
+        jdk.update(data, 0, data.length);
+        Crc32cChecksum pure = new Crc32cChecksum(false);
+        pure.update(data[0]);
+        pure.update(data, 1, 9);
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length - 10);
+        direct.put(data, 10, data.length - 10).flip();
+        pure.update(direct);
+        Assert.assertFalse(direct.hasRemaining());
+        Assert.assertEquals(jdk.getCheckValue(), pure.getCheckValue());
+        Crc32cChecksum first = new Crc32cChecksum();
+        first.update(data, 0, 1000);
+        Crc32cChecksum second = new Crc32cChecksum();
+        second.update(data, 1000, data.length - 1000);
+        Assert.assertEquals((long) jdk.getCheckValue(), Crc32cChecksum.combine(first.getCheckValue(), second.getCheckValue(), data.length - 1000));
+        // 恢复状态后继续计算
+        Crc32cChecksum resumed = new Crc32cChecksum();
+        resumed.restoreState(first.saveState());
+        resumed.update(data, 1000, data.length - 1000);
+        Assert.assertEquals(jdk.getCheckValue(), resumed.getCheckValue());
+
+        XxHash64Checksum xxHash64 = new XxHash64Checksum();
+        Assert.assertEquals(0xEF46DB3751D8E999L, (long) xxHash64.getCheckValue());
+        xxHash64.update("abc".getBytes(StandardCharsets.US_ASCII), 0, 3);
+        Assert.assertEquals(0x44BC2CF5AD770999L, (long) xxHash64.getCheckValue());
+        byte[] sample = new byte[1000];
+        for (int i = 0; i < sample.length; i++) {
+            sample[i] = (byte) (i * 31 + 7);
+        }
+        XxHash64Checksum whole = new XxHash64Checksum();
+        whole.update(sample, 0, sample.length);
+        Assert.assertEquals(0x99594F4828043D35L, (long) whole.getCheckValue());
+        XxHash64Checksum seeded = new XxHash64Checksum(12345);
+        seeded.update(sample, 0, 7);
+        XxHash64Checksum seededResumed = new XxHash64Checksum(12345);
+        seededResumed.restoreState(seeded.saveState());
+        seededResumed.update(sample[7]);
+        seededResumed.update(ByteBuffer.wrap(sample, 8, sample.length - 8));
+        Assert.assertEquals(0xCBD42AE414E71A03L, (long) seededResumed.getCheckValue());
+    }
+
+    @Test
+    public void testChecksumCache() throws IOException {
+        Path dir = Files.createTempDirectory("checksum-cache");
+        Path file = dir.resolve("data.bin");
+        Path cacheFile = dir.resolve("checksum.cache");
+        byte[] data = new byte[100 * 1024 + 5];
+        new Random(47).nextBytes(data);
+        Files.write(file, data);
+        Md5Checksum md5 = new Md5Checksum();
+        md5.update(data, 0, data.length);
+        byte[] expectMd5 = md5.getCheckValue();
+        CRC64Checksum crc64 = new CRC64Checksum();
+        crc64.update(data, 0, data.length);
+        try (ChecksumCache cache = ChecksumCache.open(cacheFile);
+             ChecksumCache reader = ChecksumCache.openReadOnly(cacheFile)) {
+            ChecksumService service = new ChecksumService(cache);
+            List<Object> values = service.compute(file, new Md5Checksum(), new CRC64Checksum());
+            Assert.assertArrayEquals(expectMd5, (byte[]) values.get(0));
+            Assert.assertEquals(crc64.getCheckValue(), values.get(1));
+            Assert.assertEquals(2, cache.size());
+
+            // 命中缓存时不读取文件, 传入的校验保持初始状态
+            Md5Checksum untouched = new Md5Checksum();
+            values = service.compute(file, untouched, new CRC64Checksum());
+            Assert.assertArrayEquals(expectMd5, (byte[]) values.get(0));
+            Assert.assertArrayEquals(new Md5Checksum().getCheckValue(), untouched.getCheckValue());
+
+            reader.refresh();
+            Assert.assertEquals(2, reader.size());
+            Assert.assertNotNull(reader.get(ChecksumCache.FileIdentity.of(file), "MD5"));
+            try {
+                ChecksumCache.open(cacheFile);
+                Assert.fail();
+            } catch (CryptoException expected) {
+            }
+
+            // 文件变化后重新计算
+            Files.write(file, new byte[]{1, 2, 3}, StandardOpenOption.APPEND);
+            Assert.assertNull(cache.get(ChecksumCache.FileIdentity.of(file), "MD5"));
+            values = service.compute(file, new Md5Checksum());
+            Assert.assertFalse(Arrays.equals(expectMd5, (byte[]) values.get(0)));
+        }
+        // 模拟写入时崩溃留下不完整的记录
+        Files.write(cacheFile, new byte[]{0, 0, 0, 50, 1, 2, 3}, StandardOpenOption.APPEND);
+        try (ChecksumCache cache = ChecksumCache.open(cacheFile)) {
+            Assert.assertEquals(2, cache.size());
+            Assert.assertNotNull(cache.get(ChecksumCache.FileIdentity.of(file), "MD5"));
+            Assert.assertNull(cache.get(ChecksumCache.FileIdentity.of(file), "CRC64"));
+            cache.compact();
+            Assert.assertEquals(2, cache.size());
+        }
+        try (ChecksumCache cache = ChecksumCache.openReadOnly(cacheFile)) {
+            Assert.assertEquals(2, cache.size());
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            files.forEach(f -> f.toFile().delete());
+        }
+        Files.deleteIfExists(dir);
+    }
+
+    /**
+     * 散列表扩容、压缩和索引重建后所有路径和算法的最新记录都能查到, 只读者不需要 refresh 就能看到写入者的新记录
+     */
+    @Test
+    public void testChecksumCacheIndex() throws Exception {
+        Path dir = Files.createTempDirectory("checksum-cache");
+        Path cacheFile = dir.resolve("checksum.cache");
+        Path indexFile = dir.resolve("checksum.cache.idx");
+        // 超过初始散列表 4096 * 0.75 的容量
+        ChecksumCache.FileIdentity[] identities = new ChecksumCache.FileIdentity[4000];
+        for (int i = 0; i < identities.length; i++) {
+            Path file = dir.resolve(i + ".bin");
+            Files.write(file, new byte[]{(byte) i});
+            identities[i] = ChecksumCache.FileIdentity.of(file);
+        }
+        long indexLength;
+        try (ChecksumCache cache = ChecksumCache.open(cacheFile);
+             ChecksumCache reader = ChecksumCache.openReadOnly(cacheFile)) {
+            for (int i = 0; i < identities.length; i++) {
+                cache.put(identities[i], "MD5", new byte[]{(byte) i, 1});
+                if (i % 500 == 0) {
+                    Assert.assertArrayEquals(new byte[]{(byte) i, 1}, reader.get(identities[i], "MD5"));
+                }
+            }
+            Assert.assertEquals(identities.length, cache.size());
+            // 覆盖一半的记录后压缩
+            for (int i = 0; i < identities.length; i += 2) {
+                cache.put(identities[i], "MD5", new byte[]{(byte) i, 2});
+            }
+            cache.compact();
+            Assert.assertEquals(identities.length, cache.size());
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            try {
+                List<Future<?>> futures = new ArrayList<>();
+                for (int t = 0; t < 4; t++) {
+                    int from = t;
+                    futures.add(executor.submit(() -> {
+                        for (int i = from; i < identities.length; i += 4) {
+                            byte[] expect = {(byte) i, (byte) (i % 2 == 0 ? 2 : 1)};
+                            Assert.assertArrayEquals(expect, cache.get(identities[i], "MD5"));
+                            Assert.assertArrayEquals(expect, reader.get(identities[i], "MD5"));
+                        }
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            } finally {
+                executor.shutdown();
+            }
+            Assert.assertEquals(identities.length, reader.size());
+            Assert.assertNull(reader.get(identities[0], "CRC64"));
+            indexLength = Files.size(indexFile);
+        }
+        // 重新打开时回收扩容和压缩留下的旧散列表
+        try (ChecksumCache cache = ChecksumCache.open(cacheFile)) {
+            Assert.assertTrue(Files.size(indexFile) < indexLength);
+            Assert.assertEquals(identities.length, cache.size());
+            Assert.assertArrayEquals(new byte[]{1, 1}, cache.get(identities[1], "MD5"));
+            Assert.assertArrayEquals(new byte[]{2, 2}, cache.get(identities[2], "MD5"));
+        }
+        // 索引丢失时从日志重建
+        Files.delete(indexFile);
+        try (ChecksumCache cache = ChecksumCache.open(cacheFile)) {
+            Assert.assertEquals(identities.length, cache.size());
+            for (int i = 0; i < identities.length; i++) {
+                Assert.assertArrayEquals(new byte[]{(byte) i, (byte) (i % 2 == 0 ? 2 : 1)}, cache.get(identities[i], "MD5"));
+            }
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            files.forEach(f -> f.toFile().delete());
+        }
+        Files.deleteIfExists(dir);
+    }
+
+    @Test
+    public void testFileChecksums() throws IOException {
+        // 超过 MAP_THRESHOLD 的文件按窗口映射, 较小的文件分多次读入 buffer
+        for (int length : new int[]{FileChecksums.MAP_THRESHOLD + 1001, 600 * 1024 + 7}) {
+            byte[] data = new byte[length];
+            new Random(48).nextBytes(data);
+            Path file = Files.createTempFile("checksum", ".bin");
+            try {
+                Files.write(file, data);
+                EnhanceChecksum<?>[] expect = {new CRC64Checksum(), new Crc32cChecksum(false), new XxHash64Checksum(),
+                        new Sha256Checksum(), new Sm3Checksum(true), new ChecksumAdapter(new java.util.zip.CRC32()),
+                        new TreeHashChecksum("SHA-256", 64 * 1024, ForkJoinPool.commonPool())};
+                for (EnhanceChecksum<?> checksum : expect) {
+                    checksum.update(data, 0, data.length);
+                }
+                EnhanceChecksum<?>[] mapped = {new CRC64Checksum(), new Crc32cChecksum(false), new XxHash64Checksum(),
+                        new Sha256Checksum(), new Sm3Checksum(true), new ChecksumAdapter(new java.util.zip.CRC32()),
+                        new TreeHashChecksum("SHA-256", 64 * 1024, ForkJoinPool.commonPool())};
+                // 窗口长度不按8字节对齐, 覆盖跨窗口的尾部处理
+                FileChecksums.update(file, 1024 * 1024 + 3, mapped);
+                for (int i = 0; i < expect.length; i++) {
+                    Object expectValue = expect[i].getCheckValue();
+                    Object value = mapped[i].getCheckValue();
+                    if (expectValue instanceof byte[]) {
+                        Assert.assertArrayEquals((byte[]) expectValue, (byte[]) value);
+                    } else {
+                        Assert.assertEquals(expectValue, value);
+                    }
+                }
+
+                try (ParallelMultiPartChecksum parallel = new ParallelMultiPartChecksum(new Md5Checksum(), new CRC64Checksum())) {
+                    FileChecksums.update(file, FileChecksums.DEFAULT_WINDOW_SIZE, parallel);
+                    List<EnhanceChecksum<?>> checksums = parallel.getCheckValue();
+                    Assert.assertEquals(expect[0].getCheckValue(), checksums.get(1).getCheckValue());
+                }
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    @Test
+    public void testChecksumFactory() {
+        byte[] data = new byte[10000];
+        new Random(49).nextBytes(data);
+        for (boolean resumable : new boolean[]{false, true}) {
+            for (String algorithm : new String[]{"MD5", "SHA-256", "SM3"}) {
+                DigestChecksum whole = new DigestChecksum(algorithm, resumable);
+                whole.update(data, 0, data.length);
+                byte[] expect = whole.getCheckValue();
+                // getCheckValue 可以重复调用, 不影响后续 update
+                Assert.assertArrayEquals(expect, whole.getCheckValue());
+                DigestChecksum partial = new DigestChecksum(algorithm, resumable);
+                partial.update(data, 0, 100);
+                byte[] first = partial.getCheckValue();
+                Assert.assertArrayEquals(first, partial.getCheckValue());
+                partial.update(data, 100, data.length - 100);
+                Assert.assertArrayEquals(expect, partial.getCheckValue());
+                partial.reset();
+                partial.update(data, 0, 100);
+                Assert.assertArrayEquals(first, partial.getCheckValue());
+                Assert.assertArrayEquals(expect, ChecksumFactory.digest(algorithm, data, 0, data.length));
+            }
+        }
+        DigestChecksum pooled = ChecksumFactory.acquire("SHA-256");
+        pooled.update(data, 0, 10);
+        ChecksumFactory.release(pooled);
+        DigestChecksum reused = ChecksumFactory.acquire("sha-256");
+        Assert.assertSame(pooled, reused);
+        Assert.assertArrayEquals(new Sha256Checksum().getCheckValue(), reused.getCheckValue());
+        ChecksumFactory.release(reused);
+    }
+
+    @Test
+    public void testSm3Digest() throws Exception {
+        Sm3Checksum abc = new Sm3Checksum();
+        abc.update("abc".getBytes(StandardCharsets.US_ASCII), 0, 3);
+        Assert.assertEquals("66c7f0f462eeedd9d1f2d46bdc10e4e24167c4875cf2f7a2297da02b8f4ba8e0", Hex.toHexString(abc.getCheckValue()));
+
+        Random random = new Random(50);
+        for (int n = 0; n < 200; n++) {
+            int len = n < 150 ? n : random.nextInt(50000);
+            byte[] data = new byte[len];
+            random.nextBytes(data);
+            org.bouncycastle.crypto.digests.SM3Digest bc = new org.bouncycastle.crypto.digests.SM3Digest();
+            bc.update(data, 0, len);
+            byte[] expect = new byte[32];
+            bc.doFinal(expect, 0);
+            // 数组、堆外 ByteBuffer 和单字节混合更新
+            Sm3Checksum checksum = new Sm3Checksum();
+            int position = 0;
+            while (position < len) {
+                int k = Math.min(len - position, random.nextInt(150));
+                switch (k % 3) {
+                    case 0:
+                        checksum.update(data, position, k);
+                        break;
+                    case 1:
+                        ByteBuffer direct = ByteBuffer.allocateDirect(k);
+                        direct.put(data, position, k).flip();
+                        checksum.update(direct);
+                        break;
+                    default:
+                        for (int i = 0; i < k; i++) {
+                            checksum.update(data[position + i]);
+                        }
+                }
+                position += k;
+            }
+            Assert.assertArrayEquals(expect, checksum.getCheckValue());
+        }
+
+        // 直接指定 provider 实例, 不注册到 JVM, 避免影响其他测试
+        java.security.MessageDigest messageDigest = java.security.MessageDigest.getInstance("SM3", new EasyCryptoProvider());
+        messageDigest.update("ab".getBytes(StandardCharsets.US_ASCII));
+        java.security.MessageDigest copy = (java.security.MessageDigest) messageDigest.clone();
+        copy.update((byte) 'c');
+        Assert.assertArrayEquals(abc.getCheckValue(), copy.digest());
+    }
+
     public void readAll(InputStream input) throws IOException {
         byte[] buffer = new byte[4096];
         while (-1 != input.read(buffer)) {
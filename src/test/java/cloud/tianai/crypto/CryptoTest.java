@@ -1,25 +1,61 @@
 package cloud.tianai.crypto;
 
+import cloud.tianai.crypto.buffer.SizeClassBufferPool;
+import cloud.tianai.crypto.check.impl.CRC64Checksum;
+import cloud.tianai.crypto.check.impl.Md5Checksum;
 import cloud.tianai.crypto.cipher.CryptoCipherBuilder;
+import cloud.tianai.crypto.cipher.CryptoCipherFactory;
+import cloud.tianai.crypto.cipher.CryptoFormatRegistry;
+import cloud.tianai.crypto.cipher.HeaderRewrapper;
+import cloud.tianai.crypto.cipher.InPlaceFileCipher;
+import cloud.tianai.crypto.cipher.compress.CompressionCodec;
+import cloud.tianai.crypto.cipher.compress.DeflateCompressionCodec;
+import cloud.tianai.crypto.cipher.compress.LzfCompressionCodec;
+import cloud.tianai.crypto.cipher.core.AbstractCryptoCipher;
 import cloud.tianai.crypto.cipher.core.CryptoCipher;
+import cloud.tianai.crypto.cipher.core.Recipient;
 import cloud.tianai.crypto.cipher.core.impl.AesCryptoCipher;
 import cloud.tianai.crypto.cipher.core.impl.Base64CryptoCipher;
+import cloud.tianai.crypto.cipher.engine.EngineCiphers;
 import cloud.tianai.crypto.cipher.util.CryptoRuntime;
 import cloud.tianai.crypto.cipher.util.RsaUtils;
+import cloud.tianai.crypto.exception.CryptoCipherException;
 import cloud.tianai.crypto.stream.CipherInputStream;
 import cloud.tianai.crypto.stream.CipherOutputStream;
+import cloud.tianai.crypto.stream.CipherPipeline;
+import cloud.tianai.crypto.stream.PipelineStats;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Assert;
 import org.junit.Test;
 
 import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.*;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.security.*;
 import java.security.interfaces.RSAPrivateKey;
 import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
 
 public class CryptoTest {
     static {
@@ -206,6 +242,390 @@ public class CryptoTest {
         System.out.println(Base64.getEncoder().encodeToString(kg.generateKey().getEncoded()));
     }
 
+    @Test
+    public void testSm4CounterModeEngine() throws Exception {
+        CryptoRuntime.enableBouncyCastle();
+        Random random = new Random(34);
+        byte[] key = new byte[16];
+        byte[] iv = new byte[16];
+        random.nextBytes(key);
+        random.nextBytes(iv);
+        // 计数器低64位即将溢出
+        Arrays.fill(iv, 8, 16, (byte) 0xFF);
+        iv[15] = (byte) 0xF0;
+        byte[] data = new byte[100000];
+        random.nextBytes(data);
+
+        Cipher bc = Cipher.getInstance("SM4/CTR/NoPadding", BouncyCastleProvider.PROVIDER_NAME);
+        bc.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "SM4"), new IvParameterSpec(iv));
+        byte[] expected = bc.doFinal(data);
+
+        Cipher engine = EngineCiphers.createCounterModeCipher("SM4");
+        Assert.assertNotNull(engine);
+        engine.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "SM4"), new IvParameterSpec(iv));
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        int offset = 0;
+        while (offset < data.length) {
+            int len = Math.min(random.nextInt(3000), data.length - offset);
+            byte[] out = engine.update(data, offset, len);
+            if (out != null) {
+                actual.write(out);
+            }
+            offset += len;
+        }
+        Assert.assertArrayEquals(expected, actual.toByteArray());
+
+        // GB/T 32907-2016 附录A 示例1
+        byte[] standardKey = new byte[]{0x01, 0x23, 0x45, 0x67, (byte) 0x89, (byte) 0xab, (byte) 0xcd, (byte) 0xef,
+                (byte) 0xfe, (byte) 0xdc, (byte) 0xba, (byte) 0x98, 0x76, 0x54, 0x32, 0x10};
+        engine.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(standardKey, "SM4"), new IvParameterSpec(standardKey));
+        byte[] keystream = engine.doFinal(new byte[16]);
+        Assert.assertEquals("681edf34d206965e86b3e94f536e4246", new BigInteger(1, keystream).toString(16));
+    }
+
+    @Test
+    public void testChaCha20() throws Exception {
+        CryptoRuntime.enableBouncyCastle();
+        Random random = new Random(35);
+        byte[] key = new byte[32];
+        byte[] nonce = new byte[12];
+        random.nextBytes(key);
+        random.nextBytes(nonce);
+        byte[] data = new byte[50000];
+        random.nextBytes(data);
+        Cipher bc = Cipher.getInstance("ChaCha7539", BouncyCastleProvider.PROVIDER_NAME);
+        bc.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "ChaCha7539"), new IvParameterSpec(nonce));
+        byte[] expected = bc.doFinal(data);
+
+        // 纯java实现, IV = 计数器(小端序) + nonce, 从第3个分组的中间开始
+        byte[] iv = new byte[16];
+        iv[0] = 3;
+        System.arraycopy(nonce, 0, iv, 4, 12);
+        Cipher engine = EngineCiphers.createChaCha20Cipher();
+        Assert.assertNotNull(engine);
+        engine.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "ChaCha20"), new IvParameterSpec(iv));
+        engine.update(new byte[10]);
+        byte[] actual = engine.doFinal(data, 3 * 64 + 10, data.length - 3 * 64 - 10);
+        Assert.assertArrayEquals(Arrays.copyOfRange(expected, 3 * 64 + 10, expected.length), actual);
+
+        // 计数器从 0xFFFFFFFE 开始只有2个分组可用, 用完之前不会因为批量生成而报错
+        iv[0] = (byte) 0xFE;
+        iv[1] = iv[2] = iv[3] = (byte) 0xFF;
+        engine.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "ChaCha20"), new IvParameterSpec(iv));
+        Assert.assertEquals(100, engine.update(new byte[100]).length);
+        Assert.assertEquals(28, engine.update(new byte[28]).length);
+        try {
+            engine.update(new byte[1]);
+            Assert.fail("计数器溢出后应该报错");
+        } catch (IllegalStateException e) {
+            // 计数器溢出
+        }
+
+        // 加解密与seek, 包括自动选择
+        for (CryptoCipherFactory factory : new CryptoCipherFactory[]{
+                CryptoCipherFactory.des3("123456781234567812345678", true).withChaCha20(),
+                CryptoCipherFactory.des3("123456781234567812345678", true).withAuto()}) {
+            ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+            try (CipherOutputStream out = new CipherOutputStream(encrypted, factory.create())) {
+                out.write(data);
+            }
+            CryptoCipher decryptCipher = CryptoCipherFactory.des3("123456781234567812345678", false).withAuto().create();
+            CipherInputStream in = new CipherInputStream(new ByteArrayInputStream(encrypted.toByteArray()), decryptCipher);
+            Assert.assertEquals(1, in.read(new byte[1]));
+            Assert.assertTrue(decryptCipher.isSeekable());
+            Assert.assertEquals(12344, in.skip(12344));
+            byte[] tail = readAll(in, 777);
+            Assert.assertArrayEquals(Arrays.copyOfRange(data, 12345, data.length), tail);
+        }
+    }
+
+    @Test
+    public void testMultiRecipient() throws Exception {
+        CryptoRuntime.enableBouncyCastle();
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        KeyPair escrow = generator.generateKeyPair();
+        KeyPair audit = generator.generateKeyPair();
+        byte[] data = new byte[20000];
+        new Random(36).nextBytes(data);
+
+        CryptoCipherFactory encryptFactory = CryptoCipherFactory.des3("123456781234567812345678", true)
+                .withKeyId("tenant")
+                .withRsaRecipient("escrow", escrow.getPublic())
+                .withRsaRecipient("audit", audit.getPublic());
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        try (CipherOutputStream out = new CipherOutputStream(encrypted, encryptFactory.create())) {
+            out.write(data);
+        }
+
+        CryptoCipherFactory[] decryptFactories = {
+                CryptoCipherFactory.des3("123456781234567812345678", false).withKeyId("tenant"),
+                CryptoCipherFactory.rsa(escrow.getPrivate(), false).withKeyId("escrow"),
+                CryptoCipherFactory.rsa(audit.getPrivate(), false).withKeyId("audit")};
+        for (CryptoCipherFactory factory : decryptFactories) {
+            CipherInputStream in = new CipherInputStream(new ByteArrayInputStream(encrypted.toByteArray()), factory.create());
+            Assert.assertArrayEquals(data, readAll(in, 1000));
+        }
+        try {
+            CryptoCipher cipher = CryptoCipherFactory.rsa(audit.getPrivate(), false).withKeyId("unknown").create();
+            readAll(new CipherInputStream(new ByteArrayInputStream(encrypted.toByteArray()), cipher), 1000);
+            Assert.fail();
+        } catch (CryptoCipherException e) {
+            Assert.assertTrue(e.getMessage().contains("unknown"));
+        }
+        // keyId 按 UTF-8 编码后超过 65535 字节时拒绝设置, 不会写出被截断的头信息
+        char[] longKeyId = new char[Recipient.MAX_KEY_ID_LENGTH / 3 + 1];
+        Arrays.fill(longKeyId, '中');
+        try {
+            CryptoCipherFactory.des3("123456781234567812345678", true).withKeyId(new String(longKeyId)).create();
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            Assert.assertTrue(e.getMessage().contains("keyId"));
+        }
+    }
+
+    @Test
+    public void testHeaderRewrap() throws Exception {
+        CryptoRuntime.enableBouncyCastle();
+        String oldKey = "123456781234567812345678";
+        String newKey = "876543218765432187654321";
+        Path dir = Files.createTempDirectory("rewrap");
+        byte[] data = new byte[100_000];
+        new Random(37).nextBytes(data);
+        try {
+            for (int i = 0; i < 8; i++) {
+                Path file = Files.createDirectories(dir.resolve("sub" + i % 2)).resolve(i + ".enc");
+                try (CipherOutputStream out = new CipherOutputStream(Files.newOutputStream(file), CryptoCipherBuilder.buildDes3Crypt(oldKey, true))) {
+                    out.write(data, 0, data.length - i);
+                }
+            }
+            // 3des 换 3des, 头信息长度不变
+            HeaderRewrapper.Report report = HeaderRewrapper.des3(oldKey, newKey).rewrapDirectory(dir, path -> path.toString().endsWith(".enc"));
+            Assert.assertEquals(8, report.getInPlaceCount());
+            Assert.assertTrue(report.getFailures().isEmpty());
+            Path file = dir.resolve("sub1").resolve("3.enc");
+            CipherInputStream in = new CipherInputStream(Files.newInputStream(file), CryptoCipherBuilder.buildDes3Crypt(newKey, false));
+            Assert.assertArrayEquals(Arrays.copyOf(data, data.length - 3), readAll(in, 4096));
+            in.close();
+
+            // 3des 换 RSA, 头信息变长, 复制内容
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(1024);
+            KeyPair keyPair = generator.generateKeyPair();
+            Key desKey = CryptoCipherBuilder.createDes3Key(newKey);
+            HeaderRewrapper toRsa = new HeaderRewrapper(() -> CryptoCipherBuilder.createDes3Cipher(desKey, Cipher.DECRYPT_MODE),
+                    () -> CryptoCipherBuilder.createRsaCipher(keyPair.getPublic(), Cipher.ENCRYPT_MODE));
+            boolean posix = Files.getFileAttributeView(file, PosixFileAttributeView.class) != null;
+            Set<PosixFilePermission> permissions = PosixFilePermissions.fromString("rw-r-----");
+            if (posix) {
+                Files.setPosixFilePermissions(file, permissions);
+            }
+            Assert.assertEquals(HeaderRewrapper.Result.COPIED, toRsa.rewrap(file));
+            if (posix) {
+                // 复制到临时文件再替换后保留原文件的权限
+                Assert.assertEquals(permissions, Files.getPosixFilePermissions(file));
+            }
+            in = new CipherInputStream(Files.newInputStream(file), CryptoCipherBuilder.buildRsaCrypt(keyPair.getPrivate(), false));
+            Assert.assertArrayEquals(Arrays.copyOf(data, data.length - 3), readAll(in, 4096));
+            in.close();
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    @Test
+    public void testCryptoFormatRegistry() throws Exception {
+        CryptoRuntime.enableBouncyCastle();
+        String key = "123456781234567812345678";
+        byte[] data = new byte[30_000];
+        new Random(39).nextBytes(data);
+        CryptoCipherFactory encrypt = CryptoCipherFactory.des3(key, true);
+        // AES、ChaCha20 和不写头信息的 Base64
+        byte[][] encrypted = new byte[3][];
+        encrypted[2] = Base64.getEncoder().encode(data);
+        for (int i = 0; i < 2; i++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (CipherOutputStream cipherOut = new CipherOutputStream(out, i == 0 ? encrypt.create() : encrypt.withChaCha20().create())) {
+                cipherOut.write(data);
+            }
+            encrypted[i] = out.toByteArray();
+        }
+        CryptoFormatRegistry registry = CryptoFormatRegistry.of(CryptoCipherFactory.des3(key, false))
+                .setDefault(() -> new Base64CryptoCipher(Cipher.DECRYPT_MODE));
+        for (byte[] bytes : encrypted) {
+            try (CipherInputStream in = registry.open(new ByteArrayInputStream(bytes))) {
+                Assert.assertArrayEquals(data, readAll(in, 4096));
+            }
+        }
+
+        // 延迟注册, 没有默认解密器时无法识别的格式抛出异常
+        CryptoCipherFactory decrypt = CryptoCipherFactory.des3(key, false);
+        int[] resolved = new int[1];
+        CryptoFormatRegistry lazy = new CryptoFormatRegistry().setResolver(version -> {
+            resolved[0]++;
+            return version == 2 ? decrypt.withChaCha20()::create : null;
+        });
+        for (int i = 0; i < 2; i++) {
+            try (CipherInputStream in = lazy.open(new ByteArrayInputStream(encrypted[1]))) {
+                Assert.assertArrayEquals(data, readAll(in, 4096));
+            }
+        }
+        Assert.assertEquals(1, resolved[0]);
+        try {
+            lazy.open(new ByteArrayInputStream(encrypted[0]));
+            Assert.fail();
+        } catch (CryptoCipherException e) {
+            Assert.assertEquals(2, resolved[0]);
+        }
+    }
+
+    @Test
+    public void testFusedChecksums() throws Exception {
+        CryptoRuntime.enableBouncyCastle();
+        byte[] data = new byte[200_000];
+        new Random(40).nextBytes(data);
+        CryptoCipherFactory encrypt = CryptoCipherFactory.des3("123456781234567812345678", true);
+        CryptoCipherFactory decrypt = CryptoCipherFactory.des3("123456781234567812345678", false);
+        Md5Checksum expectMd5 = new Md5Checksum();
+        expectMd5.update(data, 0, data.length);
+        byte[] md5 = expectMd5.getCheckValue();
+
+        // 加密流: 明文md5 + 密文crc64(包含头信息)
+        CipherInputStream in = new CipherInputStream(new ByteArrayInputStream(data), encrypt.create());
+        in.setPlaintextChecksum(new Md5Checksum());
+        in.setCiphertextChecksum(new CRC64Checksum());
+        byte[] encrypted = readAll(in, 3000);
+        in.close();
+        CRC64Checksum expectCrc = new CRC64Checksum();
+        expectCrc.update(encrypted, 0, encrypted.length);
+        Assert.assertArrayEquals(md5, (byte[]) in.getPlaintextChecksum().getCheckValue());
+        Assert.assertEquals(expectCrc.getCheckValue(), in.getCiphertextChecksum().getCheckValue());
+
+        // 解密流
+        in = new CipherInputStream(new ByteArrayInputStream(encrypted), decrypt.create());
+        in.setPlaintextChecksum(new Md5Checksum());
+        in.setCiphertextChecksum(new CRC64Checksum());
+        Assert.assertArrayEquals(data, readAll(in, 700));
+        in.close();
+        Assert.assertArrayEquals(md5, (byte[]) in.getPlaintextChecksum().getCheckValue());
+        Assert.assertEquals(expectCrc.getCheckValue(), in.getCiphertextChecksum().getCheckValue());
+
+        // 加密输出流
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CipherOutputStream out = new CipherOutputStream(bytes, encrypt.create());
+        out.setPlaintextChecksum(new Md5Checksum());
+        out.setCiphertextChecksum(new CRC64Checksum());
+        for (int off = 0; off < data.length; off += 777) {
+            out.write(data, off, Math.min(777, data.length - off));
+        }
+        out.close();
+        expectCrc.reset();
+        expectCrc.update(bytes.toByteArray(), 0, bytes.size());
+        Assert.assertArrayEquals(md5, (byte[]) out.getPlaintextChecksum().getCheckValue());
+        Assert.assertEquals(expectCrc.getCheckValue(), out.getCiphertextChecksum().getCheckValue());
+
+        // 解密输出流
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        out = new CipherOutputStream(plain, decrypt.create());
+        out.setPlaintextChecksum(new Md5Checksum());
+        out.setCiphertextChecksum(new CRC64Checksum());
+        out.write(bytes.toByteArray());
+        out.close();
+        Assert.assertArrayEquals(data, plain.toByteArray());
+        Assert.assertArrayEquals(md5, (byte[]) out.getPlaintextChecksum().getCheckValue());
+        Assert.assertEquals(expectCrc.getCheckValue(), out.getCiphertextChecksum().getCheckValue());
+    }
+
+    @Test
+    public void testInPlaceFileCipher() throws Exception {
+        CryptoRuntime.enableBouncyCastle();
+        String key = "123456781234567812345678";
+        Path file = Files.createTempFile("in-place", ".dat");
+        // 窗口大小不整除文件长度, 覆盖最后一个不完整窗口
+        byte[] data = new byte[100_000];
+        new Random(38).nextBytes(data);
+        try {
+            Files.write(file, data);
+            InPlaceFileCipher inPlace = new InPlaceFileCipher(8192);
+            inPlace.encrypt(file, CryptoCipherBuilder.buildDes3Crypt(key, true));
+            Assert.assertFalse(Files.exists(InPlaceFileCipher.journalPath(file)));
+            try (CipherInputStream in = new CipherInputStream(Files.newInputStream(file), CryptoCipherBuilder.buildDes3Crypt(key, false))) {
+                Assert.assertArrayEquals(data, readAll(in, 4096));
+            }
+            inPlace.decrypt(file, CryptoCipherBuilder.buildDes3Crypt(key, false));
+            Assert.assertArrayEquals(data, Files.readAllBytes(file));
+            Assert.assertFalse(inPlace.recover(file, CryptoCipherBuilder.buildDes3Crypt(key, false)));
+        } finally {
+            Files.deleteIfExists(InPlaceFileCipher.journalPath(file));
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * 原地加解密在第N个窗口 seek 时中断, 之后 recover 完成剩余的窗口; 恢复时使用窗口大小不同的 InPlaceFileCipher 也应以日志为准
+     */
+    @Test
+    public void testInPlaceFileCipherRecover() throws Exception {
+        CryptoRuntime.enableBouncyCastle();
+        String key = "123456781234567812345678";
+        Path file = Files.createTempFile("in-place-recover", ".dat");
+        byte[] data = new byte[100_000];
+        new Random(40).nextBytes(data);
+        InPlaceFileCipher inPlace = new InPlaceFileCipher(8192);
+        try {
+            // 100_000 / 8192 共13个窗口: 第一个、中间、最后一个窗口中断
+            for (int crashAt : new int[]{1, 2, 7, 13}) {
+                for (int recoverWindowSize : new int[]{8192, 4096, 65536}) {
+                    InPlaceFileCipher recovering = new InPlaceFileCipher(recoverWindowSize);
+                    Files.write(file, data);
+                    try {
+                        inPlace.encrypt(file, crashOnSeek(key, Cipher.ENCRYPT_MODE, crashAt));
+                        Assert.fail();
+                    } catch (IllegalStateException e) {
+                        Assert.assertTrue(Files.exists(InPlaceFileCipher.journalPath(file)));
+                    }
+                    Assert.assertTrue(recovering.recover(file, CryptoCipherBuilder.buildDes3Crypt(key, false)));
+                    Assert.assertFalse(Files.exists(InPlaceFileCipher.journalPath(file)));
+                    try (CipherInputStream in = new CipherInputStream(Files.newInputStream(file), CryptoCipherBuilder.buildDes3Crypt(key, false))) {
+                        Assert.assertArrayEquals(data, readAll(in, 4096));
+                    }
+
+                    try {
+                        inPlace.decrypt(file, crashOnSeek(key, Cipher.DECRYPT_MODE, crashAt));
+                        Assert.fail();
+                    } catch (IllegalStateException e) {
+                        Assert.assertTrue(Files.exists(InPlaceFileCipher.journalPath(file)));
+                    }
+                    Assert.assertTrue(recovering.recover(file, CryptoCipherBuilder.buildDes3Crypt(key, false)));
+                    Assert.assertFalse(Files.exists(InPlaceFileCipher.journalPath(file)));
+                    Assert.assertArrayEquals(data, Files.readAllBytes(file));
+                }
+            }
+        } finally {
+            Files.deleteIfExists(InPlaceFileCipher.journalPath(file));
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * 第 crashAt 次 seek 时抛出异常, 模拟原地加解密中途崩溃(此时窗口的原始数据已写入日志, 还未写回文件)
+     */
+    private static CryptoCipher crashOnSeek(String key, int model, int crashAt) {
+        return new AesCryptoCipher(CryptoCipherBuilder.createDes3Cipher(CryptoCipherBuilder.createDes3Key(key), model), model) {
+            private int seeks;
+
+            @Override
+            public void seek(long position) {
+                if (++seeks == crashAt) {
+                    throw new IllegalStateException("crash at seek " + seeks);
+                }
+                super.seek(position);
+            }
+        };
+    }
+
     /**
      * 使用 CipherInputStream 加密 源文件, 使用自定义算法加密
      *
@@ -269,9 +689,8 @@ public class CryptoTest {
         // 源文件
         FileInputStream source = new FileInputStream("C:\\Users\\Thinkpad\\Desktop\\预览20M.pdf");
         // 包装成加密流
-        //注意： 这里指定的 bufferSize会影响到加密流的buffer， 也就是说这里指定的buff长度和加密流中的长度不一样时，会使用这里的长度,
-        //     因为类似于base64这种加密后解密需要加密长度的加密(转码)算法时，必须由算法本身计算长度
-        Base64CryptoCipher cipher = new Base64CryptoCipher(Cipher.ENCRYPT_MODE, 4096);
+        // base64编解码是有状态的, 可以使用任意长度的buffer, 如需MIME格式可使用 new Base64CryptoCipher(model, true)
+        Base64CryptoCipher cipher = new Base64CryptoCipher(Cipher.ENCRYPT_MODE);
         CipherInputStream cipherInputStream = new CipherInputStream(source, cipher);
         // 输出
         FileOutputStream outputStream = new FileOutputStream("C:\\Users\\Thinkpad\\Desktop\\加密-预览20M.pdf");
@@ -295,9 +714,8 @@ public class CryptoTest {
         long start = System.currentTimeMillis();
         // 源文件
         FileInputStream source = new FileInputStream("C:\\Users\\Thinkpad\\Desktop\\加密-预览20M.pdf");
-        //注意： 这里指定的 bufferSize会影响到加密流的buffer， 也就是说这里指定的buff长度和加密流中的长度不一样时，会使用这里的长度,
-        //     因为类似于base64这种加密后解密需要加密长度的加密(转码)算法时，必须由算法本身计算长度
-        Base64CryptoCipher cipher = new Base64CryptoCipher(Cipher.DECRYPT_MODE, 4096);
+        // base64编解码是有状态的, 可以使用任意长度的buffer, 如需MIME格式可使用 new Base64CryptoCipher(model, true)
+        Base64CryptoCipher cipher = new Base64CryptoCipher(Cipher.DECRYPT_MODE);
         CipherInputStream cipherInputStream = new CipherInputStream(source, cipher);
         // 输出
         FileOutputStream outputStream = new FileOutputStream("C:\\Users\\Thinkpad\\Desktop\\解密-预览20M.pdf");
@@ -340,6 +758,308 @@ public class CryptoTest {
     }
 
 
+    /**
+     * 大buffer读取时直接解密到调用方的buffer中, 小buffer读取走常规逻辑, 结果应一致
+     */
+    @Test
+    public void testDirectReadRoundTrip() throws IOException {
+        byte[] data = new byte[3 * 1024 * 1024 + 17];
+        new Random(1).nextBytes(data);
+        CipherInputStream encryptStream = new CipherInputStream(new ByteArrayInputStream(data), CryptoCipherBuilder.buildDes3Crypt("123456781234567812345678", true));
+        byte[] encrypted = readAll(encryptStream, 64 * 1024);
+        CipherInputStream decryptStream = new CipherInputStream(new ByteArrayInputStream(encrypted), CryptoCipherBuilder.buildDes3Crypt("123456781234567812345678", false));
+        Assert.assertArrayEquals(data, readAll(decryptStream, 100));
+    }
+
+    /**
+     * CTR模式下 skip 直接跳过底层流, mark/reset 只重新计算计数器
+     */
+    @Test
+    public void testSkipAndReset() throws IOException {
+        byte[] data = new byte[1024 * 1024];
+        new Random(2).nextBytes(data);
+        CipherInputStream encryptStream = new CipherInputStream(new ByteArrayInputStream(data), CryptoCipherBuilder.buildDes3Crypt("123456781234567812345678", true));
+        byte[] encrypted = readAll(encryptStream, 8192);
+
+        CipherInputStream decryptStream = new CipherInputStream(new ByteArrayInputStream(encrypted), CryptoCipherBuilder.buildDes3Crypt("123456781234567812345678", false));
+        byte[] buffer = new byte[1000];
+        Assert.assertEquals(1000, decryptStream.read(buffer));
+        Assert.assertEquals(500_001, decryptStream.skip(500_001));
+        decryptStream.mark(Integer.MAX_VALUE);
+        Assert.assertEquals(1000, decryptStream.read(buffer));
+        Assert.assertArrayEquals(Arrays.copyOfRange(data, 501_001, 502_001), buffer);
+        decryptStream.reset();
+        Assert.assertEquals(1000, decryptStream.read(buffer));
+        Assert.assertArrayEquals(Arrays.copyOfRange(data, 501_001, 502_001), buffer);
+    }
+
+    /**
+     * base64 流式编解码, 任意buffer长度的结果应与 java.util.Base64 一致
+     */
+    @Test
+    public void testBase64Stream() throws IOException {
+        byte[] data = new byte[100_003];
+        new Random(3).nextBytes(data);
+        for (boolean mime : new boolean[]{false, true}) {
+            byte[] expect = mime ? Base64.getMimeEncoder().encode(data) : Base64.getEncoder().encode(data);
+            CipherInputStream encryptStream = new CipherInputStream(new ByteArrayInputStream(data), new Base64CryptoCipher(Cipher.ENCRYPT_MODE, mime));
+            encryptStream.setBuffSize(1001);
+            byte[] encoded = readAll(encryptStream, 7);
+            Assert.assertArrayEquals(expect, encoded);
+            CipherInputStream decryptStream = new CipherInputStream(new ByteArrayInputStream(encoded), new Base64CryptoCipher(Cipher.DECRYPT_MODE, mime));
+            Assert.assertArrayEquals(data, readAll(decryptStream, 4099));
+        }
+    }
+
+    /**
+     * base64 并行编解码, 结果应与串行编解码一致
+     */
+    @Test
+    public void testBase64Parallel() {
+        byte[] data = new byte[5 * 1024 * 1024 + 7];
+        new Random(4).nextBytes(data);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        for (boolean mime : new boolean[]{false, true}) {
+            Base64CryptoCipher encoder = new Base64CryptoCipher(Cipher.ENCRYPT_MODE, mime);
+            byte[] encoded = encoder.transcodeParallel(data, 0, data.length, pool);
+            Assert.assertArrayEquals(encoder.transcode(data, 0, data.length), encoded);
+            Base64CryptoCipher decoder = new Base64CryptoCipher(Cipher.DECRYPT_MODE, mime);
+            Assert.assertArrayEquals(data, decoder.transcodeParallel(encoded, 0, encoded.length, pool));
+        }
+        pool.shutdown();
+    }
+
+    /**
+     * base64 并行编解码 ByteBuffer 和文件, 长度不是分段大小的整数倍, 文件跨越多个读取块, 结果应与 java.util.Base64 一致
+     */
+    @Test
+    public void testBase64ParallelBufferAndFile() throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        Path dir = Files.createTempDirectory("base64");
+        try {
+            // 1.5MB 左右走并行的 ByteBuffer 路径, 12MB 左右的编码结果超过一个文件读取块, MIME 时块边界落在4个字符的分组中间
+            for (int size : new int[]{3 * 1024 * 1024 / 2 + 1, 12 * 1024 * 1024 + 5}) {
+                byte[] data = new byte[size];
+                new Random(size).nextBytes(data);
+                for (boolean mime : new boolean[]{false, true}) {
+                    byte[] expected = mime ? Base64.getMimeEncoder().encode(data) : Base64.getEncoder().encode(data);
+
+                    // ByteBuffer: 带偏移的堆内存和堆外内存
+                    byte[] padded = new byte[size + 3];
+                    System.arraycopy(data, 0, padded, 3, size);
+                    ByteBuffer heap = ByteBuffer.wrap(padded, 3, size).slice();
+                    ByteBuffer encoded = new Base64CryptoCipher(Cipher.ENCRYPT_MODE, mime).transcodeParallel(heap);
+                    Assert.assertFalse(heap.hasRemaining());
+                    Assert.assertArrayEquals(expected, toArray(encoded));
+                    ByteBuffer direct = ByteBuffer.allocateDirect(expected.length);
+                    direct.put(expected).flip();
+                    ByteBuffer decoded = new Base64CryptoCipher(Cipher.DECRYPT_MODE, mime).transcodeParallel(direct);
+                    Assert.assertArrayEquals(data, toArray(decoded));
+
+                    // 文件
+                    Path source = dir.resolve("source");
+                    Path target = dir.resolve("target");
+                    Path restored = dir.resolve("restored");
+                    Files.write(source, data);
+                    new Base64CryptoCipher(Cipher.ENCRYPT_MODE, mime).transcodeParallel(source, target, pool);
+                    Assert.assertArrayEquals(expected, Files.readAllBytes(target));
+                    new Base64CryptoCipher(Cipher.DECRYPT_MODE, mime).transcodeParallel(target, restored, pool);
+                    Assert.assertArrayEquals(data, Files.readAllBytes(restored));
+                }
+            }
+            // 多段base64拼接的数据(中间带有填充符)回退到串行解码
+            byte[] first = new byte[2 * 1024 * 1024 + 1];
+            byte[] second = new byte[1024 * 1024 + 2];
+            new Random(7).nextBytes(first);
+            new Random(8).nextBytes(second);
+            Path joined = dir.resolve("joined");
+            Path restored = dir.resolve("restored");
+            try (OutputStream out = Files.newOutputStream(joined)) {
+                out.write(Base64.getEncoder().encode(first));
+                out.write(Base64.getEncoder().encode(second));
+            }
+            new Base64CryptoCipher(Cipher.DECRYPT_MODE, false).transcodeParallel(joined, restored, pool);
+            byte[] expected = Arrays.copyOf(first, first.length + second.length);
+            System.arraycopy(second, 0, expected, first.length, second.length);
+            Assert.assertArrayEquals(expected, Files.readAllBytes(restored));
+        } finally {
+            pool.shutdown();
+            try (Stream<Path> files = Files.list(dir)) {
+                files.forEach(f -> f.toFile().delete());
+            }
+            Files.delete(dir);
+        }
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * 多个线程共用同一个 CryptoCipherFactory 创建 CryptoCipher 并加解密
+     */
+    @Test
+    public void testCryptoCipherFactoryConcurrent() throws Exception {
+        CryptoCipherFactory encryptFactory = CryptoCipherFactory.des3("123456781234567812345678", true);
+        CryptoCipherFactory decryptFactory = CryptoCipherFactory.des3("123456781234567812345678", false);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> futures = new ArrayList<>();
+            for (int i = 0; i < 64; i++) {
+                int seed = i;
+                futures.add(executor.submit(() -> {
+                    byte[] data = new byte[1000 + seed * 97];
+                    new Random(seed).nextBytes(data);
+                    CryptoCipherFactory factory = seed % 2 == 0 ? encryptFactory : encryptFactory.withSm4();
+                    ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+                    try (CipherOutputStream out = new CipherOutputStream(encrypted, factory.create())) {
+                        out.write(data);
+                    }
+                    CryptoCipher decryptCipher = seed % 2 == 0 ? decryptFactory.create() : decryptFactory.withSm4().create();
+                    CipherInputStream in = new CipherInputStream(new ByteArrayInputStream(encrypted.toByteArray()), decryptCipher);
+                    return Arrays.equals(data, readAll(in, 333));
+                }));
+            }
+            for (Future<Boolean> future : futures) {
+                Assert.assertTrue(future.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * 先压缩再加密, 解密时根据头信息自动解压
+     */
+    @Test
+    public void testCompressThenEncrypt() throws IOException, GeneralSecurityException {
+        StringBuilder sb = new StringBuilder();
+        Random random = new Random(5);
+        while (sb.length() < 1024 * 1024) {
+            sb.append("{\"id\":").append(random.nextInt(10000)).append(",\"name\":\"test\"}\n");
+        }
+        byte[] data = sb.toString().getBytes();
+        for (CompressionCodec codec : new CompressionCodec[]{new DeflateCompressionCodec(), new LzfCompressionCodec()}) {
+            AbstractCryptoCipher encryptCipher = (AbstractCryptoCipher) CryptoCipherBuilder.buildDes3Crypt("123456781234567812345678", true);
+            encryptCipher.setCompressionCodec(codec);
+            ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+            CipherOutputStream cipherOutputStream = new CipherOutputStream(encrypted, encryptCipher);
+            cipherOutputStream.write(data);
+            cipherOutputStream.close();
+            Assert.assertTrue(encrypted.size() < data.length / 3);
+
+            CipherInputStream decryptStream = new CipherInputStream(new ByteArrayInputStream(encrypted.toByteArray()), CryptoCipherBuilder.buildDes3Crypt("123456781234567812345678", false));
+            Assert.assertArrayEquals(data, readAll(decryptStream, 1000));
+
+            // 跳过版本匹配时仍然根据标识位解压
+            Cipher des3Cipher = CryptoCipherBuilder.createDes3Cipher(CryptoCipherBuilder.createDes3Key("123456781234567812345678"), Cipher.DECRYPT_MODE);
+            decryptStream = new CipherInputStream(new ByteArrayInputStream(encrypted.toByteArray()), new AesCryptoCipher(des3Cipher, Cipher.DECRYPT_MODE, true, 99));
+            Assert.assertArrayEquals(data, readAll(decryptStream, 1000));
+
+            if (codec instanceof DeflateCompressionCodec) {
+                // 解压失败后释放 Inflater, 之后的 end 不再输出
+                byte[] corrupted = encrypted.toByteArray();
+                corrupted[corrupted.length / 2] ^= 0x55;
+                CryptoCipher corruptedCipher = CryptoCipherBuilder.buildDes3Crypt("123456781234567812345678", false);
+                try {
+                    readAll(new CipherInputStream(new ByteArrayInputStream(corrupted), corruptedCipher), 1000);
+                    Assert.fail("损坏的数据应该解压失败");
+                } catch (CryptoCipherException e) {
+                    // 解压失败
+                }
+                Assert.assertEquals(0, corruptedCipher.end().length);
+            }
+        }
+    }
+
+    /**
+     * 流水线加解密, 结果应与 CipherInputStream 一致
+     */
+    @Test
+    public void testCipherPipeline() throws IOException {
+        byte[] data = new byte[3 * 1024 * 1024 + 5];
+        new Random(6).nextBytes(data);
+        CipherPipeline pipeline = new CipherPipeline(4, 64 * 1024);
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        PipelineStats stats = pipeline.transfer(new ByteArrayInputStream(data), encrypted, CryptoCipherBuilder.buildDes3Crypt("123456781234567812345678", true));
+        Assert.assertEquals(data.length, stats.getRead().getBytes());
+        Assert.assertEquals(encrypted.size(), stats.getWrite().getBytes());
+
+        CipherInputStream decryptStream = new CipherInputStream(new ByteArrayInputStream(encrypted.toByteArray()), CryptoCipherBuilder.buildDes3Crypt("123456781234567812345678", false));
+        Assert.assertArrayEquals(data, readAll(decryptStream, 8192));
+
+        ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        pipeline.transfer(new ByteArrayInputStream(encrypted.toByteArray()), decrypted, CryptoCipherBuilder.buildDes3Crypt("123456781234567812345678", false));
+        Assert.assertArrayEquals(data, decrypted.toByteArray());
+    }
+
+    /**
+     * 流关闭后借用的 buffer 全部归还
+     */
+    @Test
+    public void testBufferPoolReleasedOnClose() throws IOException {
+        SizeClassBufferPool bufferPool = new SizeClassBufferPool(true);
+        byte[] data = new byte[256 * 1024];
+        new Random(7).nextBytes(data);
+        CipherInputStream encryptStream = new CipherInputStream(new ByteArrayInputStream(data), CryptoCipherBuilder.buildDes3Crypt("123456781234567812345678", true));
+        encryptStream.setBufferPool(bufferPool);
+        byte[] encrypted = readAll(encryptStream, 100);
+        encryptStream.close();
+        Assert.assertEquals(0, bufferPool.getOutstandingCount());
+
+        ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        CipherOutputStream decryptStream = new CipherOutputStream(decrypted, CryptoCipherBuilder.buildDes3Crypt("123456781234567812345678", false));
+        decryptStream.setBufferPool(bufferPool);
+        decryptStream.write(encrypted);
+        decryptStream.close();
+        Assert.assertEquals(0, bufferPool.getOutstandingCount());
+        Assert.assertArrayEquals(data, decrypted.toByteArray());
+    }
+
+    /**
+     * 重复归还不会导致同一个 buffer 被借出两次, 归还的 buffer 已清零
+     */
+    @Test
+    public void testBufferPoolDoubleRelease() {
+        for (int threadCacheSize : new int[]{0, 4}) {
+            SizeClassBufferPool bufferPool = new SizeClassBufferPool(SizeClassBufferPool.DEFAULT_MAX_POOLED_SIZE, threadCacheSize, 8, false);
+            byte[] buffer = bufferPool.acquire(1000);
+            Arrays.fill(buffer, (byte) 7);
+            bufferPool.release(buffer);
+            bufferPool.release(buffer);
+            byte[] first = bufferPool.acquire(1000);
+            byte[] second = bufferPool.acquire(1000);
+            Assert.assertNotSame(first, second);
+            Assert.assertArrayEquals(new byte[first.length], first);
+
+            ByteBuffer direct = bufferPool.acquireDirect(20000);
+            while (direct.hasRemaining()) {
+                direct.put((byte) 7);
+            }
+            bufferPool.releaseDirect(direct);
+            bufferPool.releaseDirect(direct);
+            ByteBuffer firstDirect = bufferPool.acquireDirect(20000);
+            ByteBuffer secondDirect = bufferPool.acquireDirect(20000);
+            Assert.assertNotSame(firstDirect, secondDirect);
+            firstDirect.clear();
+            while (firstDirect.hasRemaining()) {
+                Assert.assertEquals(0, firstDirect.get());
+            }
+        }
+    }
+
+    private byte[] readAll(InputStream input, int bufferSize) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[bufferSize];
+        int n;
+        while (-1 != (n = input.read(buffer))) {
+            output.write(buffer, 0, n);
+        }
+        return output.toByteArray();
+    }
+
     public void write(InputStream input, OutputStream output) throws IOException {
         byte[] buffer = new byte[16];
         int n;